@@ -0,0 +1,332 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+/**
+ * A sorted set which also knows the index of its elements: an AVL tree
+ * whose nodes hold the size of their subtree. Adding and removing an
+ * element, finding its index and getting the element at an index all take
+ * logarithmic time.
+ * <p>
+ * Like a <tt>TreeSet</tt>, the set relies on the natural ordering of its
+ * elements, which must not change while they are in the set. The class is
+ * not thread safe.
+ *
+ * @param <E> the type of the elements
+ */
+class IndexedTreeSet<E extends Comparable<? super E>>
+{
+    /**
+     * The root of the tree, <tt>null</tt> when the set is empty.
+     */
+    private Node<E> root = null;
+
+    /**
+     * Returns the number of elements in the set.
+     *
+     * @return the number of elements in the set
+     */
+    int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * Adds an element to the set unless an element equal to it is there
+     * already.
+     *
+     * @param element the element to add
+     * @return the index of <tt>element</tt> in the set, or <tt>-1</tt> if
+     * another element equal to it is in the set
+     */
+    int add(E element)
+    {
+        int ix = rank(element);
+        if (ix >= 0)
+            return (get(ix) == element) ? ix : -1;
+
+        root = insert(root, element);
+        return -ix - 1;
+    }
+
+    /**
+     * Removes an element from the set.
+     *
+     * @param element the element to remove
+     * @return <tt>true</tt> if the set contained an element equal to
+     * <tt>element</tt>
+     */
+    boolean remove(E element)
+    {
+        if (rank(element) < 0)
+            return false;
+
+        root = delete(root, element);
+        return true;
+    }
+
+    /**
+     * Determines whether the set contains an element equal to a given one.
+     *
+     * @param element the element
+     * @return <tt>true</tt> if the set contains an element equal to
+     * <tt>element</tt>
+     */
+    boolean contains(E element)
+    {
+        return rank(element) >= 0;
+    }
+
+    /**
+     * Returns the index of an element.
+     *
+     * @param element the element
+     * @return the index of <tt>element</tt>, or <tt>-1</tt> if it is not in
+     * the set
+     */
+    int indexOf(E element)
+    {
+        int ix = rank(element);
+        return (ix >= 0 && get(ix) == element) ? ix : -1;
+    }
+
+    /**
+     * Returns the element at an index.
+     *
+     * @param index the index
+     * @return the element at <tt>index</tt>
+     * @throws IndexOutOfBoundsException if <tt>index</tt> is not a valid
+     * index
+     */
+    E get(int index)
+        throws IndexOutOfBoundsException
+    {
+        if (index < 0 || index >= size())
+        {
+            throw new IndexOutOfBoundsException(
+                "Index: " + index + ", Size: " + size());
+        }
+
+        Node<E> node = root;
+        while (true)
+        {
+            int leftSize = size(node.left);
+            if (index < leftSize)
+                node = node.left;
+            else if (index == leftSize)
+                return node.element;
+            else
+            {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Copies the elements of the set in order.
+     *
+     * @param list the list to add the elements to
+     */
+    void copyTo(List<? super E> list)
+    {
+        copy(root, list);
+    }
+
+    /**
+     * Finds the index of the element equal to a given one.
+     *
+     * @param element the element
+     * @return the index of the element equal to <tt>element</tt> or, as
+     * <tt>Collections.binarySearch</tt> does, <tt>(-(insertion point) - 1)</tt>
+     * if the set contains no such element
+     */
+    private int rank(E element)
+    {
+        Node<E> node = root;
+        int before = 0;
+
+        while (node != null)
+        {
+            int c = element.compareTo(node.element);
+            if (c < 0)
+                node = node.left;
+            else if (c > 0)
+            {
+                before += size(node.left) + 1;
+                node = node.right;
+            }
+            else
+                return before + size(node.left);
+        }
+        return -before - 1;
+    }
+
+    private static <E extends Comparable<? super E>> Node<E> insert(
+            Node<E> node, E element)
+    {
+        if (node == null)
+            return new Node<E>(element);
+
+        if (element.compareTo(node.element) < 0)
+            node.left = insert(node.left, element);
+        else
+            node.right = insert(node.right, element);
+        return balance(node);
+    }
+
+    private static <E extends Comparable<? super E>> Node<E> delete(
+            Node<E> node, E element)
+    {
+        int c = element.compareTo(node.element);
+
+        if (c < 0)
+            node.left = delete(node.left, element);
+        else if (c > 0)
+            node.right = delete(node.right, element);
+        else
+        {
+            if (node.left == null)
+                return node.right;
+            if (node.right == null)
+                return node.left;
+
+            // replace the node with the first node of its right subtree
+            Node<E> next = node.right;
+            while (next.left != null)
+                next = next.left;
+            next.right = deleteFirst(node.right);
+            next.left = node.left;
+            node = next;
+        }
+        return balance(node);
+    }
+
+    private static <E> Node<E> deleteFirst(Node<E> node)
+    {
+        if (node.left == null)
+            return node.right;
+
+        node.left = deleteFirst(node.left);
+        return balance(node);
+    }
+
+    /**
+     * Restores the AVL property of a node whose subtrees are balanced and
+     * differ in height by at most two, and updates its height and size.
+     *
+     * @param node the node
+     * @return the root of the balanced subtree
+     */
+    private static <E> Node<E> balance(Node<E> node)
+    {
+        int diff = height(node.left) - height(node.right);
+
+        if (diff > 1)
+        {
+            if (height(node.left.left) < height(node.left.right))
+                node.left = rotateLeft(node.left);
+            node = rotateRight(node);
+        }
+        else if (diff < -1)
+        {
+            if (height(node.right.right) < height(node.right.left))
+                node.right = rotateRight(node.right);
+            node = rotateLeft(node);
+        }
+        else
+            node.update();
+
+        return node;
+    }
+
+    private static <E> Node<E> rotateLeft(Node<E> node)
+    {
+        Node<E> right = node.right;
+        node.right = right.left;
+        right.left = node;
+        node.update();
+        right.update();
+        return right;
+    }
+
+    private static <E> Node<E> rotateRight(Node<E> node)
+    {
+        Node<E> left = node.left;
+        node.left = left.right;
+        left.right = node;
+        node.update();
+        left.update();
+        return left;
+    }
+
+    private static <E> void copy(Node<E> node, List<? super E> list)
+    {
+        while (node != null)
+        {
+            copy(node.left, list);
+            list.add(node.element);
+            node = node.right;
+        }
+    }
+
+    private static int size(Node<?> node)
+    {
+        return (node == null) ? 0 : node.size;
+    }
+
+    private static int height(Node<?> node)
+    {
+        return (node == null) ? 0 : node.height;
+    }
+
+    /**
+     * A node of the tree.
+     */
+    private static class Node<E>
+    {
+        final E element;
+
+        Node<E> left;
+
+        Node<E> right;
+
+        /**
+         * The height of the subtree rooted at this node.
+         */
+        int height = 1;
+
+        /**
+         * The number of nodes in the subtree rooted at this node.
+         */
+        int size = 1;
+
+        Node(E element)
+        {
+            this.element = element;
+        }
+
+        void update()
+        {
+            height = Math.max(height(left), height(right)) + 1;
+            size = size(left) + size(right) + 1;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * The journal of the changes made to the contact list since the contact
+ * list file was last written. Each record holds the current state of a meta
+ * contact or a meta contact group, so the contact list is restored by
+ * reading the contact list file and applying the records in order.
+ * <p>
+ * Records are appended to the journal file, which makes storing a change
+ * cheap whatever the size of the contact list. Once the journal grows large
+ * the contact list file is written again and the journal is cleared.
+ */
+class MclJournal
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MclJournal</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(MclJournal.class);
+
+    /**
+     * The record of a meta contact, which replaces the node of the meta
+     * contact if any and is appended to the child contacts of its parent.
+     */
+    static final byte META_CONTACT = 1;
+
+    /**
+     * The record of a meta contact which was removed.
+     */
+    static final byte META_CONTACT_REMOVED = 2;
+
+    /**
+     * The record of the name and the proto groups of a meta contact group,
+     * without its subgroups and child contacts.
+     */
+    static final byte GROUP = 3;
+
+    /**
+     * The record of a meta contact group with its subgroups and child
+     * contacts, which replaces the node of the group if any.
+     */
+    static final byte GROUP_TREE = 4;
+
+    /**
+     * The record of a meta contact group which was removed.
+     */
+    static final byte GROUP_REMOVED = 5;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Creates a journal stored in a given file.
+     *
+     * @param file the journal file
+     */
+    MclJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the size of the journal file.
+     *
+     * @return the size of the journal file in bytes
+     */
+    long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Appends records to the journal.
+     *
+     * @param records the records to append
+     * @throws IOException if writing fails
+     */
+    void append(List<Record> records)
+        throws IOException
+    {
+        DataOutputStream out
+            = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(file, true)));
+
+        try
+        {
+            for (Record record : records)
+            {
+                byte[] xml
+                    = (record.xml == null)
+                        ? new byte[0]
+                        : record.xml.getBytes("UTF-8");
+
+                out.writeByte(record.type);
+                out.writeUTF(record.uid);
+                out.writeUTF((record.parentUID == null) ? "" : record.parentUID);
+                out.writeInt(xml.length);
+                out.write(xml);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the records of the journal. A record which was not completely
+     * written, because the application stopped while writing it, ends the
+     * journal.
+     *
+     * @return the records of the journal, in the order they were appended
+     */
+    List<Record> read()
+    {
+        List<Record> records = new ArrayList<Record>();
+
+        if (!file.exists())
+            return records;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+            while (true)
+            {
+                int type = in.read();
+
+                if (type == -1)
+                    break;
+
+                String uid = in.readUTF();
+                String parentUID = in.readUTF();
+                int length = in.readInt();
+
+                if (length < 0 || length > file.length())
+                    throw new IOException("Bad record length " + length);
+
+                byte[] xml = new byte[length];
+                in.readFully(xml);
+
+                records.add(
+                    new Record(
+                            (byte) type,
+                            uid,
+                            (parentUID.length() == 0) ? null : parentUID,
+                            (length == 0) ? null : new String(xml, "UTF-8")));
+            }
+        }
+        catch (EOFException ex)
+        {
+            logger.warn("Ignoring an incomplete contact list journal record");
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException ex)
+                {
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Removes all records from the journal.
+     */
+    void clear()
+    {
+        if (file.exists() && !file.delete())
+            logger.error("Failed to delete " + file);
+    }
+
+    /**
+     * A change of the contact list.
+     */
+    static class Record
+    {
+        /**
+         * The type of the record, one of the <tt>META_CONTACT</tt>,
+         * <tt>META_CONTACT_REMOVED</tt>, <tt>GROUP</tt>, <tt>GROUP_TREE</tt>
+         * and <tt>GROUP_REMOVED</tt> constants.
+         */
+        final byte type;
+
+        /**
+         * The UID of the meta contact or group.
+         */
+        final String uid;
+
+        /**
+         * The UID of the parent group, <tt>null</tt> for the root group and
+         * for removals.
+         */
+        final String parentUID;
+
+        /**
+         * The XML of the node of the meta contact or group, <tt>null</tt>
+         * for removals.
+         */
+        final String xml;
+
+        Record(byte type, String uid, String parentUID, String xml)
+        {
+            this.type = type;
+            this.uid = uid;
+            this.parentUID = parentUID;
+            this.xml = xml;
+        }
+    }
+}
@@ -0,0 +1,593 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A binary copy of the contact list file and its journal, which is written
+ * when the contact list is stopped and lets the contacts of an account be
+ * loaded at the next start without parsing the contact list file.
+ * <p>
+ * The snapshot is stamped with the size and the modification time of the
+ * contact list file and with the size of the journal it was written with.
+ * It is only used while they are unchanged, so the contact list file stays
+ * authoritative. The snapshot file is read in a single pass and only the
+ * groups and meta contacts which hold contacts of the account being loaded
+ * are decoded. It is not mapped, so that it may be replaced while a snapshot
+ * is still referenced, and it is written aside and renamed into place, so
+ * that a crash while writing it never leaves a truncated snapshot which looks
+ * up to date.
+ */
+class MclSnapshot
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MclSnapshot</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(MclSnapshot.class);
+
+    /**
+     * The first bytes of a snapshot file, "MCLS".
+     */
+    private static final int MAGIC = 0x4d434c53;
+
+    /**
+     * The version of the format of the snapshot file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The content of the snapshot file, positioned at the record of the root
+     * group.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The account IDs which the records refer to by index.
+     */
+    private final String[] accountIDs;
+
+    private MclSnapshot(ByteBuffer buffer, String[] accountIDs)
+    {
+        this.buffer = buffer;
+        this.accountIDs = accountIDs;
+    }
+
+    /**
+     * Reads a snapshot file, provided it was written with the current
+     * contact list file and journal.
+     *
+     * @param file the snapshot file
+     * @param contactlistFile the contact list file
+     * @param journalLength the size of the journal
+     * @return the snapshot or <tt>null</tt> if there is no snapshot or it
+     * is out of date
+     */
+    static MclSnapshot open(File file, File contactlistFile, long journalLength)
+    {
+        if (!file.exists())
+            return null;
+
+        try
+        {
+            byte[] bytes;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try
+            {
+                bytes = new byte[(int) raf.length()];
+                raf.readFully(bytes);
+            }
+            finally
+            {
+                raf.close();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+            if (buffer.getInt() != MAGIC
+                || buffer.getInt() != VERSION
+                || buffer.getLong() != contactlistFile.length()
+                || buffer.getLong() != contactlistFile.lastModified()
+                || buffer.getLong() != journalLength)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Ignoring out of date " + file);
+                return null;
+            }
+
+            String[] accountIDs = new String[buffer.getShort() & 0xffff];
+            for (int i = 0; i < accountIDs.length; i++)
+                accountIDs[i] = getString(buffer);
+
+            return new MclSnapshot(buffer.slice(), accountIDs);
+        }
+        catch (Exception ex)
+        {
+            logger.warn("Failed to read contact list snapshot " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the contact list.
+     *
+     * @param file the snapshot file
+     * @param contactlistFile the contact list file, as last written
+     * @param journalLength the size of the journal, as last written
+     * @param root the root group of the contact list
+     * @throws IOException if writing fails
+     */
+    static void write(File file, File contactlistFile, long journalLength,
+        Group root)
+        throws IOException
+    {
+        List<String> accountIDs = new ArrayList<String>();
+        collectAccountIDs(root, accountIDs);
+
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        DataOutputStream out
+            = new DataOutputStream(new BufferedOutputStream(fileOut));
+
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(contactlistFile.length());
+            out.writeLong(contactlistFile.lastModified());
+            out.writeLong(journalLength);
+            out.writeShort(accountIDs.size());
+            for (String accountID : accountIDs)
+                putString(out, accountID);
+            out.write(toBytes(root, accountIDs));
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file))
+        {
+            // on some platforms rename does not replace existing files
+            if (!file.delete() || !tmp.renameTo(file))
+            {
+                tmp.delete();
+                throw new IOException(
+                        "Cannot replace contact list snapshot " + file);
+            }
+        }
+    }
+
+    /**
+     * Decodes the groups and the meta contacts of the snapshot which hold
+     * contacts of an account. A group is returned with its child contacts
+     * and subgroups if it is the root group or has proto groups of the
+     * account, otherwise with its name only. A meta contact is returned if
+     * it has contacts of the account, with these contacts only.
+     *
+     * @param accountID the ID of the account
+     * @return the root group of the contact list
+     * @throws RuntimeException if the snapshot is corrupt
+     */
+    Group read(String accountID)
+    {
+        short accountIx = (short) Arrays.asList(accountIDs).indexOf(accountID);
+
+        // each read has its own position in the buffer
+        return getGroup(buffer.duplicate(), accountIx, true);
+    }
+
+    /**
+     * Decodes the group record at the position of a buffer and moves past
+     * it.
+     *
+     * @param buffer the buffer
+     * @param accountIx the index of the account to decode the records of
+     * @param root whether the record is the one of the root group
+     * @return the group
+     */
+    private Group getGroup(ByteBuffer buffer, short accountIx, boolean root)
+    {
+        int length = buffer.getInt();
+        int end = buffer.position() + length;
+        Group group = new Group(getString(buffer), getString(buffer));
+
+        for (int i = buffer.getShort() & 0xffff; i > 0; i--)
+        {
+            short protoAccountIx = buffer.getShort();
+            String uid = getString(buffer);
+            String parentUID = getString(buffer);
+            String persistentData = getString(buffer);
+
+            if (protoAccountIx == accountIx)
+            {
+                group.protoGroups.add(
+                    new ProtoGroup(
+                            accountIDs[accountIx],
+                            uid,
+                            parentUID,
+                            persistentData));
+            }
+        }
+
+        if (root || !group.protoGroups.isEmpty())
+        {
+            for (int i = buffer.getInt(); i > 0; i--)
+            {
+                MetaContact metaContact = getMetaContact(buffer, accountIx);
+
+                if (metaContact != null)
+                    group.childContacts.add(metaContact);
+            }
+            for (int i = buffer.getInt(); i > 0; i--)
+                group.subgroups.add(getGroup(buffer, accountIx, false));
+        }
+
+        buffer.position(end);
+        return group;
+    }
+
+    /**
+     * Decodes the meta contact record at the position of a buffer if it has
+     * contacts of an account and moves past it.
+     *
+     * @param buffer the buffer
+     * @param accountIx the index of the account to decode the contacts of
+     * @return the meta contact with the contacts of the account or
+     * <tt>null</tt> if it has no contact of the account
+     */
+    private MetaContact getMetaContact(ByteBuffer buffer, short accountIx)
+    {
+        int length = buffer.getInt();
+        int end = buffer.position() + length;
+        short[] protoAccountIxs = new short[buffer.getShort() & 0xffff];
+        boolean hasAccount = false;
+
+        for (int i = 0; i < protoAccountIxs.length; i++)
+        {
+            protoAccountIxs[i] = buffer.getShort();
+            if (protoAccountIxs[i] == accountIx)
+                hasAccount = true;
+        }
+
+        if (!hasAccount)
+        {
+            buffer.position(end);
+            return null;
+        }
+
+        MetaContact metaContact
+            = new MetaContact(getString(buffer), getString(buffer));
+
+        metaContact.displayNameUserDefined = (buffer.get() != 0);
+        for (int i = buffer.getShort() & 0xffff; i > 0; i--)
+            metaContact.addDetail(getString(buffer), getString(buffer));
+
+        for (short protoAccountIx : protoAccountIxs)
+        {
+            String address = getString(buffer);
+            String parentProtoGroupUID = getString(buffer);
+            String persistentData = getString(buffer);
+
+            if (protoAccountIx == accountIx)
+            {
+                metaContact.protoContacts.add(
+                    new ProtoContact(
+                            accountIDs[accountIx],
+                            address,
+                            parentProtoGroupUID,
+                            persistentData));
+            }
+        }
+
+        buffer.position(end);
+        return metaContact;
+    }
+
+    /**
+     * Encodes the record of a group.
+     *
+     * @param group the group
+     * @param accountIDs the account IDs referred to by index
+     * @return the record of the group
+     * @throws IOException if encoding fails
+     */
+    private static byte[] toBytes(Group group, List<String> accountIDs)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        putString(out, group.uid);
+        putString(out, group.name);
+
+        out.writeShort(group.protoGroups.size());
+        for (ProtoGroup protoGroup : group.protoGroups)
+        {
+            out.writeShort(accountIDs.indexOf(protoGroup.accountID));
+            putString(out, protoGroup.uid);
+            putString(out, protoGroup.parentUID);
+            putString(out, protoGroup.persistentData);
+        }
+
+        out.writeInt(group.childContacts.size());
+        for (MetaContact metaContact : group.childContacts)
+            out.write(toBytes(metaContact, accountIDs));
+
+        out.writeInt(group.subgroups.size());
+        for (Group subgroup : group.subgroups)
+            out.write(toBytes(subgroup, accountIDs));
+
+        return withLength(bytes.toByteArray());
+    }
+
+    /**
+     * Encodes the record of a meta contact. The account indexes of its
+     * contacts come first so that the meta contacts without contacts of an
+     * account are skipped without decoding.
+     *
+     * @param metaContact the meta contact
+     * @param accountIDs the account IDs referred to by index
+     * @return the record of the meta contact
+     * @throws IOException if encoding fails
+     */
+    private static byte[] toBytes(MetaContact metaContact,
+        List<String> accountIDs)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeShort(metaContact.protoContacts.size());
+        for (ProtoContact protoContact : metaContact.protoContacts)
+            out.writeShort(accountIDs.indexOf(protoContact.accountID));
+
+        putString(out, metaContact.uid);
+        putString(out, metaContact.displayName);
+        out.writeBoolean(metaContact.displayNameUserDefined);
+
+        List<String[]> details = new ArrayList<String[]>();
+        if (metaContact.details != null)
+        {
+            for (Map.Entry<String, List<String>> e
+                    : metaContact.details.entrySet())
+            {
+                for (String value : e.getValue())
+                    details.add(new String[] { e.getKey(), value });
+            }
+        }
+        out.writeShort(details.size());
+        for (String[] detail : details)
+        {
+            putString(out, detail[0]);
+            putString(out, detail[1]);
+        }
+
+        for (ProtoContact protoContact : metaContact.protoContacts)
+        {
+            putString(out, protoContact.address);
+            putString(out, protoContact.parentProtoGroupUID);
+            putString(out, protoContact.persistentData);
+        }
+
+        return withLength(bytes.toByteArray());
+    }
+
+    /**
+     * Prefixes a record with its length.
+     *
+     * @param record the record
+     * @return the record prefixed with its length
+     */
+    private static byte[] withLength(byte[] record)
+    {
+        return ByteBuffer.allocate(4 + record.length)
+            .putInt(record.length).put(record).array();
+    }
+
+    /**
+     * Adds the account IDs of the proto groups and contacts of a group and
+     * its subgroups to a list, unless they are there already.
+     *
+     * @param group the group
+     * @param accountIDs the list of account IDs
+     */
+    private static void collectAccountIDs(Group group, List<String> accountIDs)
+    {
+        for (ProtoGroup protoGroup : group.protoGroups)
+        {
+            if (!accountIDs.contains(protoGroup.accountID))
+                accountIDs.add(protoGroup.accountID);
+        }
+        for (MetaContact metaContact : group.childContacts)
+        {
+            for (ProtoContact protoContact : metaContact.protoContacts)
+            {
+                if (!accountIDs.contains(protoContact.accountID))
+                    accountIDs.add(protoContact.accountID);
+            }
+        }
+        for (Group subgroup : group.subgroups)
+            collectAccountIDs(subgroup, accountIDs);
+    }
+
+    /**
+     * Writes a string which may be <tt>null</tt>.
+     *
+     * @param out the stream to write to
+     * @param s the string
+     * @throws IOException if writing fails
+     */
+    private static void putString(DataOutputStream out, String s)
+        throws IOException
+    {
+        if (s == null)
+            out.writeInt(-1);
+        else
+        {
+            byte[] bytes = s.getBytes("UTF-8");
+
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a string written by <tt>putString</tt>.
+     *
+     * @param buffer the buffer to read from
+     * @return the string
+     */
+    private static String getString(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+
+        if (length < 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * A meta contact group of the snapshot.
+     */
+    static class Group
+    {
+        final String uid;
+
+        final String name;
+
+        final List<ProtoGroup> protoGroups = new ArrayList<ProtoGroup>();
+
+        final List<MetaContact> childContacts = new ArrayList<MetaContact>();
+
+        final List<Group> subgroups = new ArrayList<Group>();
+
+        Group(String uid, String name)
+        {
+            this.uid = uid;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A proto group of a meta contact group of the snapshot.
+     */
+    static class ProtoGroup
+    {
+        final String accountID;
+
+        final String uid;
+
+        /**
+         * The UID of the parent proto group.
+         */
+        final String parentUID;
+
+        final String persistentData;
+
+        ProtoGroup(String accountID, String uid, String parentUID,
+            String persistentData)
+        {
+            this.accountID = accountID;
+            this.uid = uid;
+            this.parentUID = parentUID;
+            this.persistentData = persistentData;
+        }
+    }
+
+    /**
+     * A meta contact of the snapshot.
+     */
+    static class MetaContact
+    {
+        final String uid;
+
+        final String displayName;
+
+        boolean displayNameUserDefined = false;
+
+        /**
+         * The details of the meta contact, <tt>null</tt> if it has none.
+         */
+        Map<String, List<String>> details = null;
+
+        final List<ProtoContact> protoContacts = new ArrayList<ProtoContact>();
+
+        MetaContact(String uid, String displayName)
+        {
+            this.uid = uid;
+            this.displayName = displayName;
+        }
+
+        void addDetail(String name, String value)
+        {
+            if (details == null)
+                details = new Hashtable<String, List<String>>();
+
+            List<String> values = details.get(name);
+            if (values == null)
+            {
+                values = new ArrayList<String>();
+                details.put(name, values);
+            }
+            values.add(value);
+        }
+    }
+
+    /**
+     * A proto contact of a meta contact of the snapshot.
+     */
+    static class ProtoContact
+    {
+        final String accountID;
+
+        final String address;
+
+        final String parentProtoGroupUID;
+
+        final String persistentData;
+
+        ProtoContact(String accountID, String address,
+            String parentProtoGroupUID, String persistentData)
+        {
+            this.accountID = accountID;
+            this.address = address;
+            this.parentProtoGroupUID = parentProtoGroupUID;
+            this.persistentData = persistentData;
+        }
+    }
+}
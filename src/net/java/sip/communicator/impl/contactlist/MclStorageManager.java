@@ -21,6 +21,11 @@
 import java.util.*;
 
 import javax.xml.parsers.*;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -33,6 +38,7 @@
 import org.jitsi.util.xml.XMLUtils;
 import org.osgi.framework.*;
 import org.w3c.dom.*;
+import org.xml.sax.InputSource;
 
 /**
  * The class handles read / write operations over the file where a persistent
@@ -75,6 +81,104 @@
      */
     private boolean multiTenantMode = false;
 
+    /**
+     * The property to disable the incremental storage of the contact list.
+     * When it is enabled, which is the default, changes are appended to a
+     * journal next to the contact list file and the file is only written
+     * again once the journal grows large.
+     */
+    private static final String INCREMENTAL_STORAGE_PROP =
+        "net.java.sip.communicator.impl.contactlist.INCREMENTAL_STORAGE";
+
+    /**
+     * Whether INCREMENTAL_STORAGE_PROP is enabled.
+     */
+    private boolean incrementalStorage = true;
+
+    /**
+     * The suffix added to the name of the contact list file to get the name
+     * of the journal file.
+     */
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    /**
+     * The size in bytes beyond which the journal is compacted into the
+     * contact list file.
+     */
+    private static final long MAX_JOURNAL_SIZE = 256 * 1024;
+
+    /**
+     * The journal of the changes not written to the contact list file yet.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * The property to disable the startup snapshot of the contact list.
+     * When it is enabled, which is the default, a binary copy of the contact
+     * list is written when the storage manager stops and the contacts are
+     * loaded from it at the next start, as long as the contact list file
+     * and the journal did not change in between.
+     */
+    private static final String STARTUP_SNAPSHOT_PROP =
+        "net.java.sip.communicator.impl.contactlist.STARTUP_SNAPSHOT";
+
+    /**
+     * The suffix added to the name of the contact list file to get the name
+     * of the snapshot file.
+     */
+    private static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+
+    /**
+     * The snapshot file, <tt>null</tt> if STARTUP_SNAPSHOT_PROP is disabled.
+     */
+    private File snapshotFile = null;
+
+    /**
+     * The snapshot the contacts are loaded from until the contact list
+     * document is loaded, or <tt>null</tt>.
+     */
+    private volatile MclSnapshot snapshot = null;
+
+    /**
+     * Whether the contact list document was loaded and the journal applied
+     * to it.
+     */
+    private volatile boolean contactListLoaded = false;
+
+    /**
+     * Whether changes were made which are not tracked in
+     * <tt>modifiedMetaContacts</tt> and <tt>modifiedGroups</tt>, so that the
+     * whole contact list file must be written.
+     */
+    private boolean fullStorageNeeded = false;
+
+    /**
+     * The UIDs of the meta contacts changed since the contact list was last
+     * stored.
+     */
+    private final Set<String> modifiedMetaContacts
+        = new LinkedHashSet<String>();
+
+    /**
+     * The UIDs of the meta contact groups changed since the contact list was
+     * last stored, mapped to whether their subgroups and child contacts
+     * changed as well.
+     */
+    private final Map<String, Boolean> modifiedGroups
+        = new LinkedHashMap<String, Boolean>();
+
+    /**
+     * The nodes of the meta contacts by UID.
+     */
+    private final Map<String, Element> metaContactNodes
+        = new HashMap<String, Element>();
+
+    /**
+     * The nodes of the meta contact groups by UID.
+     */
+    private final Map<String, Element> groupNodes
+        = new HashMap<String, Element>();
+
     /**
      * Indicates whether the storage manager has been properly started or in
      * other words that it has successfully found and read the xml contact list
@@ -247,7 +351,9 @@
 
     /**
      * A lock that we use when storing the contact list to avoid being exited
-     * while in there.
+     * while in there. It is also held while the contact list document is
+     * changed or read, since the events are delivered by several threads at
+     * a time.
      */
     private static final Object contactListRWLock = new Object();
 
@@ -326,6 +432,20 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
                         "Failed to create file"
                             + contactlistFile.getAbsolutePath());
             }
+
+            journal
+                = new MclJournal(
+                        faService.getPrivatePersistentFile(
+                                fileName + JOURNAL_FILE_SUFFIX,
+                                FileCategory.PROFILE));
+
+            if (configurationService.getBoolean(STARTUP_SNAPSHOT_PROP, true))
+            {
+                snapshotFile
+                    = faService.getPrivatePersistentFile(
+                            fileName + SNAPSHOT_FILE_SUFFIX,
+                            FileCategory.PROFILE);
+            }
         }
         catch (Exception ex)
         {
@@ -337,6 +457,8 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
 
         multiTenantMode = configurationService.getBoolean(
             MULTI_TENANT_MODE_PROP, multiTenantMode);
+        incrementalStorage = configurationService.getBoolean(
+            INCREMENTAL_STORAGE_PROP, incrementalStorage);
 
         // create the failsafe transaction and restore the file if needed
         try
@@ -354,6 +476,39 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
             logger.error("The contactlist file can't be found", e);
         }
 
+        // the contact list file is only parsed once it changes if the
+        // contacts can be loaded from the snapshot
+        if (snapshotFile != null)
+        {
+            snapshot
+                = MclSnapshot.open(
+                        snapshotFile, contactlistFile, journal.length());
+        }
+
+        this.mclServiceImpl = mclServImpl;
+
+        boolean journalReplayed = (snapshot == null) && loadContactList();
+
+        mclServImpl.addMetaContactListListener(this);
+        started = true;
+
+        // the journal is cleared once the contact list file is written again
+        if (journalReplayed)
+            scheduleContactListStorage();
+
+        this.launchStorageThread();
+    }
+
+    /**
+     * Parses the contact list file, or creates it if it does not exist or
+     * is broken, and applies the journal to it.
+     *
+     * @return <tt>true</tt> if the journal had records
+     * @throws IOException if the contact list file cannot be created
+     */
+    private boolean loadContactList()
+        throws IOException
+    {
         try
         {
             // load the contact list
@@ -363,7 +518,8 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
             {
                 // if the contact list does not exist - create it.
                 contactListDocument = builder.newDocument();
-                initVirginDocument(mclServImpl, contactListDocument);
+                initVirginDocument(mclServiceImpl, contactListDocument);
+                indexDocument();
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
@@ -373,6 +529,7 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
                 try
                 {
                     contactListDocument = builder.parse(contactlistFile);
+                    indexDocument();
                 }
                 catch (Throwable ex)
                 {
@@ -383,7 +540,8 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
                     contactlistFile.delete();
                     contactlistFile.createNewFile();
                     contactListDocument = builder.newDocument();
-                    initVirginDocument(mclServImpl, contactListDocument);
+                    initVirginDocument(mclServiceImpl, contactListDocument);
+                    indexDocument();
 
                     // write the contact list so that it is there for the parser
                     storeContactList0();
@@ -397,190 +555,784 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
             logger.error("Error finding configuration for default parsers", ex);
         }
 
-        mclServImpl.addMetaContactListListener(this);
-        this.mclServiceImpl = mclServImpl;
-        started = true;
-        this.launchStorageThread();
+        // apply the changes stored after the contact list file was written
+        boolean journalReplayed
+            = (contactListDocument != null) && replayJournal();
+
+        contactListLoaded = true;
+        return journalReplayed;
     }
 
     /**
-     * Stores the contact list in its current state.
-     *
-     * @throws IOException if writing fails.
+     * Loads the contact list document if the contacts were loaded from the
+     * snapshot so far. The snapshot is not used any more, since the contact
+     * list document changes from now on.
      */
-    private void scheduleContactListStorage() throws IOException
+    private void ensureContactListLoaded()
     {
+        if (contactListLoaded)
+            return;
+
         synchronized (contactListRWLock)
         {
-            if (!isStarted())
+            // the journal is being applied if the document exists
+            if (contactListLoaded || contactListDocument != null)
                 return;
 
-            this.isModified = true;
-            contactListRWLock.notifyAll();
+            snapshot = null;
+            try
+            {
+                if (loadContactList())
+                    scheduleContactListStorage();
+            }
+            catch (IOException ex)
+            {
+                logger.error("Failed to load the contact list file", ex);
+            }
         }
     }
 
     /**
-     * Writes the contact list on the hard disk.
+     * Applies the records of the journal to the contact list document.
      *
-     * @throws IOException in case writing fails.
+     * @return <tt>true</tt> if the journal had records
      */
-    private void storeContactList0() throws IOException
+    private boolean replayJournal()
     {
-        if (logger.isTraceEnabled())
-            logger.trace("storing contact list. because is started =="
-            + isStarted());
-        if (logger.isTraceEnabled())
-            logger.trace("storing contact list. because is modified =="
-            + isModified);
-        if (isStarted())
+        if (journal == null)
+            return false;
+
+        List<MclJournal.Record> records = journal.read();
+
+        if (records.isEmpty())
+            return false;
+
+        if (logger.isDebugEnabled())
         {
-            // begin a new transaction
-            try
-            {
-                contactlistTrans.beginTransaction();
-            }
-            catch (IllegalStateException e)
-            {
-                logger.error("the contactlist file is missing", e);
-            }
+            logger.debug("Applying " + records.size()
+                + " contact list journal records");
+        }
 
-            // really write the modification
-            OutputStream stream = new FileOutputStream(contactlistFile);
-            XMLUtils.indentedWriteXML(contactListDocument, stream);
-            stream.close();
+        DocumentBuilder builder;
+        try
+        {
+            builder = XMLUtils.newDocumentBuilderFactory().newDocumentBuilder();
+        }
+        catch (ParserConfigurationException ex)
+        {
+            logger.error("Error finding configuration for default parsers", ex);
+            return false;
+        }
 
-            // commit the changes
+        for (MclJournal.Record record : records)
+        {
             try
             {
-                contactlistTrans.commit();
+                applyJournalRecord(builder, record);
             }
-            catch (IllegalStateException e)
+            catch (Exception ex)
             {
-                logger.error("the contactlist file is missing", e);
+                logger.error("Failed to apply the contact list journal record"
+                    + " of " + record.uid, ex);
             }
         }
+        return true;
     }
 
     /**
-     * Launches a separate thread that waits on the contact list rw lock and
-     * when notified stores the contact list in case there have been
-     * modifications since last time it saved.
+     * Applies a record of the journal to the contact list document.
+     *
+     * @param builder the builder to parse the XML of the record with
+     * @param record the record
+     * @throws Exception if the XML of the record cannot be parsed
      */
-    private void launchStorageThread()
+    private void applyJournalRecord(DocumentBuilder builder,
+        MclJournal.Record record)
+        throws Exception
     {
-        new Thread()
+        Element node = null;
+
+        if (record.xml != null)
         {
-            @Override
-            public void run()
+            Document recordDocument
+                = builder.parse(new InputSource(new StringReader(record.xml)));
+
+            node
+                = (Element) contactListDocument.importNode(
+                        recordDocument.getDocumentElement(), true);
+        }
+
+        Element parentNode
+            = (record.parentUID == null)
+                ? null
+                : findMetaContactGroupNode(record.parentUID);
+
+        switch (record.type)
+        {
+        case MclJournal.META_CONTACT:
+        {
+            if (parentNode == null)
+                break;
+
+            Element oldNode = findMetaContactNode(record.uid);
+            if (oldNode != null)
+                oldNode.getParentNode().removeChild(oldNode);
+
+            XMLUtils.findChild(parentNode, CHILD_CONTACTS_NODE_NAME)
+                .appendChild(node);
+            indexNodes(node);
+            break;
+        }
+        case MclJournal.GROUP:
+        {
+            Element oldNode = findMetaContactGroupNode(record.uid);
+            Element protoGroupsNode
+                = XMLUtils.findChild(node, PROTO_GROUPS_NODE_NAME);
+
+            if (oldNode != null)
             {
-                try
-                {
-                    synchronized (contactListRWLock)
-                    {
-                        while (isStarted())
-                        {
-                            contactListRWLock.wait(5000);
-                            if (isModified)
-                            {
-                                storeContactList0();
-                                isModified = false;
-                            }
-                        }
-                    }
-                }
-                catch (IOException ex)
+                oldNode.setAttribute(GROUP_NAME_ATTR_NAME,
+                    node.getAttribute(GROUP_NAME_ATTR_NAME));
+
+                Element oldProtoGroupsNode
+                    = XMLUtils.findChild(oldNode, PROTO_GROUPS_NODE_NAME);
+
+                if (oldProtoGroupsNode != null)
+                    oldNode.replaceChild(protoGroupsNode, oldProtoGroupsNode);
+                else
                 {
-                    logger.error("Storing contact list failed", ex);
-                    started = false;
+                    oldNode.insertBefore(
+                        protoGroupsNode, oldNode.getFirstChild());
                 }
-                catch (InterruptedException ex)
+            }
+            else if (parentNode != null)
+            {
+                node.appendChild(
+                    contactListDocument.createElement(SUBGROUPS_NODE_NAME));
+                node.appendChild(
+                    contactListDocument.createElement(
+                            CHILD_CONTACTS_NODE_NAME));
+
+                XMLUtils.findChild(parentNode, SUBGROUPS_NODE_NAME)
+                    .appendChild(node);
+                indexNodes(node);
+            }
+            break;
+        }
+        case MclJournal.GROUP_TREE:
+        {
+            Element oldNode = findMetaContactGroupNode(record.uid);
+
+            if (parentNode == null)
+            {
+                // the root group
+                if (oldNode != null)
                 {
-                    logger.error("Storing contact list failed", ex);
-                    started = false;
+                    oldNode.getParentNode().replaceChild(node, oldNode);
+                    indexNodes(node);
                 }
+            }
+            else
+            {
+                if (oldNode != null)
+                    oldNode.getParentNode().removeChild(oldNode);
 
+                XMLUtils.findChild(parentNode, SUBGROUPS_NODE_NAME)
+                    .appendChild(node);
+                indexNodes(node);
             }
-        }.start();
+            break;
+        }
+        case MclJournal.META_CONTACT_REMOVED:
+        {
+            Element oldNode = findMetaContactNode(record.uid);
+            if (oldNode != null)
+                oldNode.getParentNode().removeChild(oldNode);
+            break;
+        }
+        case MclJournal.GROUP_REMOVED:
+        {
+            Element oldNode = findMetaContactGroupNode(record.uid);
+            if (oldNode != null)
+                oldNode.getParentNode().removeChild(oldNode);
+            break;
+        }
+        default:
+            logger.warn("Unknown contact list journal record type "
+                + record.type);
+        }
     }
 
     /**
-     * Stops the storage manager and performs a final write
+     * Stores the contact list in its current state.
+     *
+     * @throws IOException if writing fails.
      */
-    public void storeContactListAndStopStorageManager()
+    private void scheduleContactListStorage() throws IOException
     {
         synchronized (contactListRWLock)
         {
             if (!isStarted())
                 return;
 
-            started = false;
-
-            // make sure everyone gets released after we finish.
+            this.fullStorageNeeded = true;
+            this.isModified = true;
             contactListRWLock.notifyAll();
-
-            // write the contact list ourselves before we go out..
-            try
-            {
-                storeContactList0();
-            }
-            catch (IOException ex)
-            {
-                logger
-                    .debug("Failed to store contact list before stopping", ex);
-            }
         }
     }
 
     /**
-     * update persistent data in the dom object model for the given metacontact
-     * and its contacts
+     * Stores the contact list after a change limited to a meta contact.
      *
-     * @param metaContact MetaContact target meta contact
+     * @param metaContact the changed meta contact
+     * @throws IOException if writing fails.
      */
-    private void updatePersistentDataForMetaContact(MetaContact metaContact)
+    private void scheduleContactListStorage(MetaContact metaContact)
+        throws IOException
     {
-        Element metaContactNode = findMetaContactNode(metaContact.getMetaUID());
-
-        Iterator<Contact> iter = metaContact.getContacts();
-        while (iter.hasNext())
+        synchronized (contactListRWLock)
         {
-            Contact item = iter.next();
-            String persistentData = item.getPersistentData();
-
-            /*
-             * TODO If persistentData is null and persistentDataNode exists and
-             * contains non-null text, will persistentDataNode be left without
-             * updating?
-             */
-            if (persistentData != null)
-            {
-                Element currentNode =
-                    XMLUtils.locateElement(metaContactNode,
-                        PROTO_CONTACT_NODE_NAME,
-                        PROTO_CONTACT_ADDRESS_ATTR_NAME, item.getAddress());
-
-                Element persistentDataNode =
-                    XMLUtils.findChild(currentNode, PERSISTENT_DATA_NODE_NAME);
-
-                // if node does not exist - create it
-                if (persistentDataNode == null)
-                {
-                    persistentDataNode =
-                        contactListDocument
-                            .createElement(PERSISTENT_DATA_NODE_NAME);
-
-                    currentNode.appendChild(persistentDataNode);
-                }
+            if (!isStarted())
+                return;
 
-                XMLUtils.setText(persistentDataNode, persistentData);
-            }
+            modifiedMetaContacts.add(metaContact.getMetaUID());
+            this.isModified = true;
+            contactListRWLock.notifyAll();
         }
     }
 
     /**
-     * Fills the document with the tags necessary for it to be filled properly
-     * as the meta contact list evolves.
+     * Stores the contact list after a change of a meta contact group.
+     *
+     * @param metaGroup the changed group
+     * @param subtree <tt>true</tt> if the subgroups and child contacts of the
+     *            group may have changed as well, <tt>false</tt> if only its
+     *            name or proto groups changed
+     * @throws IOException if writing fails.
+     */
+    private void scheduleContactListStorage(MetaContactGroup metaGroup,
+        boolean subtree)
+        throws IOException
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            String uid = metaGroup.getMetaUID();
+
+            if (subtree || !modifiedGroups.containsKey(uid))
+                modifiedGroups.put(uid, subtree);
+            this.isModified = true;
+            contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Appends the changes made since the contact list was last stored to the
+     * journal, unless the whole contact list file must be written because
+     * the changes are not tracked or the journal is too large.
+     *
+     * @return <tt>true</tt> if the changes were stored in the journal
+     */
+    private boolean storeJournalRecords()
+    {
+        if (!incrementalStorage
+            || fullStorageNeeded
+            || journal == null
+            || journal.length() >= MAX_JOURNAL_SIZE)
+        {
+            return false;
+        }
+
+        try
+        {
+            journal.append(createJournalRecords());
+        }
+        catch (Exception ex)
+        {
+            logger.error("Failed to append to the contact list journal", ex);
+            return false;
+        }
+
+        modifiedMetaContacts.clear();
+        modifiedGroups.clear();
+        return true;
+    }
+
+    /**
+     * Creates the journal records of the meta contacts and groups changed
+     * since the contact list was last stored. The groups come first, parents
+     * before children, so that the parents of the records exist when the
+     * records are applied.
+     *
+     * @return the journal records
+     * @throws Exception if a node cannot be serialized
+     */
+    private List<MclJournal.Record> createJournalRecords()
+        throws Exception
+    {
+        Transformer transformer
+            = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+        List<MclJournal.Record> records = new ArrayList<MclJournal.Record>();
+        List<String> removedGroups = new ArrayList<String>();
+        final Map<Element, Integer> groupDepths
+            = new HashMap<Element, Integer>();
+
+        for (String uid : modifiedGroups.keySet())
+        {
+            Element groupNode = findMetaContactGroupNode(uid);
+
+            if (groupNode == null)
+            {
+                removedGroups.add(uid);
+                continue;
+            }
+
+            int depth = 0;
+            for (Node n = groupNode; n != null; n = n.getParentNode())
+                depth++;
+            groupDepths.put(groupNode, depth);
+        }
+
+        List<Element> groups = new ArrayList<Element>(groupDepths.keySet());
+        Collections.sort(groups, new Comparator<Element>()
+        {
+            public int compare(Element e1, Element e2)
+            {
+                return groupDepths.get(e1).compareTo(groupDepths.get(e2));
+            }
+        });
+
+        for (Element groupNode : groups)
+        {
+            String uid = groupNode.getAttribute(UID_ATTR_NAME);
+
+            if (modifiedGroups.get(uid))
+            {
+                records.add(new MclJournal.Record(MclJournal.GROUP_TREE,
+                    uid, getParentGroupUID(groupNode),
+                    toXml(transformer, groupNode)));
+            }
+            else
+            {
+                Element shallowNode = (Element) groupNode.cloneNode(false);
+                Element protoGroupsNode
+                    = XMLUtils.findChild(groupNode, PROTO_GROUPS_NODE_NAME);
+
+                if (protoGroupsNode != null)
+                    shallowNode.appendChild(protoGroupsNode.cloneNode(true));
+
+                records.add(new MclJournal.Record(MclJournal.GROUP,
+                    uid, getParentGroupUID(groupNode),
+                    toXml(transformer, shallowNode)));
+            }
+        }
+
+        for (String uid : modifiedMetaContacts)
+        {
+            Element metaContactNode = findMetaContactNode(uid);
+
+            if (metaContactNode == null)
+            {
+                records.add(new MclJournal.Record(
+                    MclJournal.META_CONTACT_REMOVED, uid, null, null));
+            }
+            else
+            {
+                records.add(new MclJournal.Record(MclJournal.META_CONTACT,
+                    uid, getParentGroupUID(metaContactNode),
+                    toXml(transformer, metaContactNode)));
+            }
+        }
+
+        for (String uid : removedGroups)
+        {
+            records.add(new MclJournal.Record(
+                MclJournal.GROUP_REMOVED, uid, null, null));
+        }
+
+        return records;
+    }
+
+    /**
+     * Returns the UID of the group containing the node of a meta contact or
+     * group.
+     *
+     * @param node the node of a meta contact or group
+     * @return the UID of the parent group or <tt>null</tt> for the root group
+     */
+    private static String getParentGroupUID(Element node)
+    {
+        // the node is in the child contacts or subgroups of its group
+        Node container = node.getParentNode();
+        Node parent = (container == null) ? null : container.getParentNode();
+
+        if (parent instanceof Element
+            && parent.getNodeName().equals(GROUP_NODE_NAME))
+            return ((Element) parent).getAttribute(UID_ATTR_NAME);
+        else
+            return null;
+    }
+
+    /**
+     * Serializes a node.
+     *
+     * @param transformer the transformer to serialize with
+     * @param node the node
+     * @return the XML of the node
+     * @throws Exception if the node cannot be serialized
+     */
+    private static String toXml(Transformer transformer, Element node)
+        throws Exception
+    {
+        StringWriter writer = new StringWriter();
+
+        transformer.transform(new DOMSource(node), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    /**
+     * Writes the contact list on the hard disk.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void storeContactList0() throws IOException
+    {
+        if (logger.isTraceEnabled())
+            logger.trace("storing contact list. because is started =="
+            + isStarted());
+        if (logger.isTraceEnabled())
+            logger.trace("storing contact list. because is modified =="
+            + isModified);
+        // nothing changed if the contact list document was not loaded
+        if (isStarted() && contactListDocument != null)
+        {
+            // begin a new transaction
+            try
+            {
+                contactlistTrans.beginTransaction();
+            }
+            catch (IllegalStateException e)
+            {
+                logger.error("the contactlist file is missing", e);
+            }
+
+            // really write the modification
+            OutputStream stream = new FileOutputStream(contactlistFile);
+            XMLUtils.indentedWriteXML(contactListDocument, stream);
+            stream.close();
+
+            // commit the changes
+            try
+            {
+                contactlistTrans.commit();
+            }
+            catch (IllegalStateException e)
+            {
+                logger.error("the contactlist file is missing", e);
+            }
+
+            // the file now holds all the changes of the journal
+            fullStorageNeeded = false;
+            modifiedMetaContacts.clear();
+            modifiedGroups.clear();
+            if (journal != null)
+                journal.clear();
+        }
+    }
+
+    /**
+     * Launches a separate thread that waits on the contact list rw lock and
+     * when notified stores the contact list in case there have been
+     * modifications since last time it saved.
+     */
+    private void launchStorageThread()
+    {
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    synchronized (contactListRWLock)
+                    {
+                        while (isStarted())
+                        {
+                            contactListRWLock.wait(5000);
+                            if (isModified)
+                            {
+                                if (!storeJournalRecords())
+                                    storeContactList0();
+                                isModified = false;
+                            }
+                        }
+                    }
+                }
+                catch (IOException ex)
+                {
+                    logger.error("Storing contact list failed", ex);
+                    started = false;
+                }
+                catch (InterruptedException ex)
+                {
+                    logger.error("Storing contact list failed", ex);
+                    started = false;
+                }
+
+            }
+        }.start();
+    }
+
+    /**
+     * Stops the storage manager and performs a final write
+     */
+    public void storeContactListAndStopStorageManager()
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            started = false;
+
+            // make sure everyone gets released after we finish.
+            contactListRWLock.notifyAll();
+
+            // keep the changes which were not stored yet in the journal, it
+            // is applied when we start again
+            if (isModified && storeJournalRecords())
+                isModified = false;
+
+            // write the contact list ourselves before we go out..
+            try
+            {
+                storeContactList0();
+            }
+            catch (IOException ex)
+            {
+                logger
+                    .debug("Failed to store contact list before stopping", ex);
+            }
+
+            if (!isModified)
+                storeSnapshot();
+        }
+    }
+
+    /**
+     * Writes the snapshot of the contact list document, which holds the
+     * contact list file and the journal as they were just written. The
+     * snapshot loaded at start is still valid if the contact list document
+     * was not loaded.
+     */
+    private void storeSnapshot()
+    {
+        if (snapshotFile == null || contactListDocument == null)
+            return;
+
+        Element root
+            = findMetaContactGroupNode(mclServiceImpl.getRoot().getMetaUID());
+
+        if (root == null)
+            return;
+
+        try
+        {
+            MclSnapshot.write(snapshotFile, contactlistFile, journal.length(),
+                toSnapshotGroup(root));
+        }
+        catch (Exception ex)
+        {
+            logger.error("Failed to store the contact list snapshot", ex);
+            snapshotFile.delete();
+        }
+    }
+
+    /**
+     * Copies the node of a group and its subnodes to the snapshot.
+     *
+     * @param groupNode the node of the group
+     * @return the snapshot of the group
+     */
+    private MclSnapshot.Group toSnapshotGroup(Element groupNode)
+    {
+        MclSnapshot.Group group
+            = new MclSnapshot.Group(
+                    XMLUtils.getAttribute(groupNode, GROUP_UID_ATTR_NAME),
+                    XMLUtils.getAttribute(groupNode, GROUP_NAME_ATTR_NAME));
+
+        Element protoGroupsNode
+            = XMLUtils.findChild(groupNode, PROTO_GROUPS_NODE_NAME);
+
+        if (protoGroupsNode != null)
+        {
+            for (Element protoGroupNode
+                    : XMLUtils.findChildren(
+                            protoGroupsNode, PROTO_GROUP_NODE_NAME))
+            {
+                group.protoGroups.add(
+                    new MclSnapshot.ProtoGroup(
+                            XMLUtils.getAttribute(
+                                    protoGroupNode, ACCOUNT_ID_ATTR_NAME),
+                            XMLUtils.getAttribute(
+                                    protoGroupNode, UID_ATTR_NAME),
+                            XMLUtils.getAttribute(
+                                    protoGroupNode,
+                                    PARENT_PROTO_GROUP_UID_ATTR_NAME),
+                            getPersistentData(protoGroupNode)));
+            }
+        }
+
+        Element childContactsNode
+            = XMLUtils.findChild(groupNode, CHILD_CONTACTS_NODE_NAME);
+
+        if (childContactsNode != null)
+        {
+            for (Element metaContactNode
+                    : XMLUtils.findChildren(
+                            childContactsNode, META_CONTACT_NODE_NAME))
+            {
+                group.childContacts.add(toSnapshotMetaContact(metaContactNode));
+            }
+        }
+
+        Element subgroupsNode
+            = XMLUtils.findChild(groupNode, SUBGROUPS_NODE_NAME);
+
+        if (subgroupsNode != null)
+        {
+            for (Element subgroupNode
+                    : XMLUtils.findChildren(subgroupsNode, GROUP_NODE_NAME))
+            {
+                group.subgroups.add(toSnapshotGroup(subgroupNode));
+            }
+        }
+
+        return group;
+    }
+
+    /**
+     * Copies the node of a meta contact and its subnodes to the snapshot.
+     *
+     * @param metaContactNode the node of the meta contact
+     * @return the snapshot of the meta contact
+     */
+    private MclSnapshot.MetaContact toSnapshotMetaContact(
+        Element metaContactNode)
+    {
+        Element displayNameNode
+            = XMLUtils.findChild(
+                    metaContactNode,
+                    META_CONTACT_DISPLAY_NAME_NODE_NAME);
+        MclSnapshot.MetaContact metaContact
+            = new MclSnapshot.MetaContact(
+                    XMLUtils.getAttribute(metaContactNode, UID_ATTR_NAME),
+                    XMLUtils.getText(displayNameNode));
+
+        metaContact.displayNameUserDefined
+            = Boolean.valueOf(displayNameNode.getAttribute(
+                    USER_DEFINED_DISPLAY_NAME_ATTR_NAME));
+
+        for (Element detailNode
+                : XMLUtils.findChildren(
+                        metaContactNode,
+                        META_CONTACT_DETAIL_NAME_NODE_NAME))
+        {
+            metaContact.addDetail(
+                detailNode.getAttribute(DETAIL_NAME_ATTR_NAME),
+                detailNode.getAttribute(DETAIL_VALUE_ATTR_NAME));
+        }
+
+        for (Element protoContactNode
+                : XMLUtils.findChildren(
+                        metaContactNode,
+                        PROTO_CONTACT_NODE_NAME))
+        {
+            metaContact.protoContacts.add(
+                new MclSnapshot.ProtoContact(
+                        XMLUtils.getAttribute(
+                                protoContactNode, ACCOUNT_ID_ATTR_NAME),
+                        XMLUtils.getAttribute(
+                                protoContactNode,
+                                PROTO_CONTACT_ADDRESS_ATTR_NAME),
+                        XMLUtils.getAttribute(
+                                protoContactNode,
+                                PARENT_PROTO_GROUP_UID_ATTR_NAME),
+                        getPersistentData(protoContactNode)));
+        }
+
+        return metaContact;
+    }
+
+    /**
+     * Returns the persistent data of a proto contact or proto group node.
+     *
+     * @param node the node
+     * @return the persistent data or an empty string if the node has none
+     */
+    private static String getPersistentData(Element node)
+    {
+        Element persistentDataNode
+            = XMLUtils.findChild(node, PERSISTENT_DATA_NODE_NAME);
+
+        return (persistentDataNode == null)
+            ? ""
+            : XMLUtils.getText(persistentDataNode);
+    }
+
+    /**
+     * update persistent data in the dom object model for the given metacontact
+     * and its contacts
+     *
+     * @param metaContact MetaContact target meta contact
+     */
+    private void updatePersistentDataForMetaContact(MetaContact metaContact)
+    {
+        Element metaContactNode = findMetaContactNode(metaContact.getMetaUID());
+
+        Iterator<Contact> iter = metaContact.getContacts();
+        while (iter.hasNext())
+        {
+            Contact item = iter.next();
+            String persistentData = item.getPersistentData();
+
+            /*
+             * TODO If persistentData is null and persistentDataNode exists and
+             * contains non-null text, will persistentDataNode be left without
+             * updating?
+             */
+            if (persistentData != null)
+            {
+                Element currentNode =
+                    XMLUtils.locateElement(metaContactNode,
+                        PROTO_CONTACT_NODE_NAME,
+                        PROTO_CONTACT_ADDRESS_ATTR_NAME, item.getAddress());
+
+                Element persistentDataNode =
+                    XMLUtils.findChild(currentNode, PERSISTENT_DATA_NODE_NAME);
+
+                // if node does not exist - create it
+                if (persistentDataNode == null)
+                {
+                    persistentDataNode =
+                        contactListDocument
+                            .createElement(PERSISTENT_DATA_NODE_NAME);
+
+                    currentNode.appendChild(persistentDataNode);
+                }
+
+                XMLUtils.setText(persistentDataNode, persistentData);
+            }
+        }
+    }
+
+    /**
+     * Fills the document with the tags necessary for it to be filled properly
+     * as the meta contact list evolves.
      *
      * @param mclServImpl the meta contact list service to use when
      *            initializing the document.
@@ -616,61 +1368,249 @@ void extractContactsForAccount(String accountID) throws XMLException
         if (!isStarted())
             return;
 
-        // we don't want to receive meta contact events triggered by ourselves
-        // so we stop listening. it is possible but very unlikely that other
-        // events, not triggered by us are received while we're off the channel
-        // but that would be a very bizzare case ..... I guess we got to live
-        // with the risk.
-        this.mclServiceImpl.removeMetaContactListListener(this);
+        // we don't want to receive meta contact events triggered by
+        // ourselves so we stop listening to the events fired by this thread.
+        // the events fired by other threads in the meantime are still
+        // received.
+        this.mclServiceImpl.setMutedListener(this);
+        // the listeners must not be called while we hold the lock, so the
+        // events we fire are delivered once we've released it
+        this.mclServiceImpl.deferEvents();
+
+        try
+        {
+            // the events fired by other threads must not change the document
+            // while we read it
+            synchronized (contactListRWLock)
+            {
+                MclSnapshot.Group snapshotRoot = readSnapshot(accountID);
+
+                if (snapshotRoot != null)
+                {
+                    processSnapshotGroup(
+                        mclServiceImpl, accountID, snapshotRoot, null, null);
+                    return;
+                }
+
+                Element root
+                    = findMetaContactGroupNode(
+                            mclServiceImpl.getRoot().getMetaUID());
+
+                if (root == null)
+                {
+                    // If there is no root, there is definitely something wrong
+                    // really broken file will create it again
+                    logger.fatal(
+                        "The contactlist file is recreated cause its broken");
+
+                    DocumentBuilderFactory factory =
+                        DocumentBuilderFactory.newInstance();
+                    DocumentBuilder builder = factory.newDocumentBuilder();
+                    contactListDocument = builder.newDocument();
+
+                    initVirginDocument(mclServiceImpl, contactListDocument);
+                    indexDocument();
+
+                    // write the contact list so that it is there for the parser
+                    storeContactList0();
+                }
+                else
+                {
+                    // if there is root lets parse it
+                    // parse the group node and extract all its child groups and
+                    // contacts
+                    processGroupXmlNode(
+                        mclServiceImpl, accountID, root, null, null);
+
+                    // now save the contact list in case it has changed
+                    scheduleContactListStorage();
+                }
+            }
+        }
+        catch (Throwable exc)
+        {
+            // catch everything because we MUST NOT disturb the thread
+            // initializing the meta CL for a new provider with null point
+            // exceptions or others of the sort
+            throw new XMLException("Failed to extract contacts for account "
+                + accountID, exc);
+        }
+        finally
+        {
+            // now that we're done updating the contact list we can tell the
+            // other listeners and start listening again
+            this.mclServiceImpl.fireDeferredEvents();
+            this.mclServiceImpl.setMutedListener(null);
+        }
+    }
+
+    /**
+     * Returns the groups and meta contacts of the snapshot which hold
+     * contacts of an account, unless the contact list document is loaded.
+     *
+     * @param accountID the ID of the account
+     * @return the root group of the snapshot or <tt>null</tt> if the
+     *         contacts are to be loaded from the contact list document
+     */
+    private MclSnapshot.Group readSnapshot(String accountID)
+    {
+        MclSnapshot snapshot = this.snapshot;
+
+        if (snapshot == null)
+            return null;
+
+        try
+        {
+            return snapshot.read(accountID);
+        }
+        catch (RuntimeException ex)
+        {
+            logger.warn("Failed to read the contact list snapshot", ex);
+            this.snapshot = null;
+            return null;
+        }
+    }
+
+    /**
+     * Creates the groups and meta contacts of a group of the snapshot and
+     * of its subgroups through <tt>mclServiceImpl</tt>, the same way
+     * <tt>processGroupXmlNode</tt> does for the node of the group.
+     *
+     * @param mclServImpl the <tt>MetaContactListServiceImpl</tt> for
+     *            creating new contacts and groups.
+     * @param accountID a String identifier of the account whose contacts we're
+     *            interested in.
+     * @param group the group of the snapshot, with the proto groups and
+     *            contacts of the account only.
+     * @param parentGroup the <tt>MetaContactGroupImpl</tt> where we should be
+     *            creating children.
+     * @param parentProtoGroups a Map binding the UIDs of the proto groups
+     *            which could be parents of the proto groups of
+     *            <tt>group</tt> to the proto groups, may be null for top
+     *            level groups.
+     */
+    private void processSnapshotGroup(MetaContactListServiceImpl mclServImpl,
+        String accountID, MclSnapshot.Group group,
+        MetaContactGroupImpl parentGroup,
+        Map<String, ContactGroup> parentProtoGroups)
+    {
+        MetaContactGroupImpl currentMetaGroup = null;
+        Map<String, ContactGroup> protoGroupsMap =
+            new Hashtable<String, ContactGroup>();
+
+        if (parentGroup == null)
+        {
+            currentMetaGroup = mclServImpl.rootMetaGroup;
+        }
+        else
+        {
+            if(!multiTenantMode)
+            {
+                currentMetaGroup =
+                    mclServImpl.loadStoredMetaContactGroup(parentGroup,
+                        group.uid, group.name);
+            }
+
+            for (MclSnapshot.ProtoGroup protoGroup : group.protoGroups)
+            {
+                ContactGroup parentProtoGroup = null;
+                if (parentProtoGroups != null && parentProtoGroups.size() > 0)
+                    parentProtoGroup =
+                        parentProtoGroups.get(protoGroup.parentUID);
+
+                if(multiTenantMode && currentMetaGroup == null)
+                {
+                    currentMetaGroup =
+                        mclServImpl.loadStoredMetaContactGroup(parentGroup,
+                            group.uid, group.name);
+                }
 
-        try
-        {
-            Element root =
-                findMetaContactGroupNode(mclServiceImpl.getRoot().getMetaUID());
+                ContactGroup newProtoGroup =
+                    mclServImpl.loadStoredContactGroup(currentMetaGroup,
+                        protoGroup.uid, parentProtoGroup,
+                        protoGroup.persistentData, accountID);
+
+                protoGroupsMap.put(protoGroup.uid, newProtoGroup);
+            }
+
+            if (protoGroupsMap.size() == 0)
+                return;
+        }
 
-            if (root == null)
+        for (MclSnapshot.MetaContact metaContact : group.childContacts)
+        {
+            try
             {
-                // If there is no root, there is definitely something wrong
-                // really broken file will create it again
-                logger
-                    .fatal("The contactlist file is recreated cause its broken");
+                List<StoredProtoContactDescriptor> protoContacts =
+                    new LinkedList<StoredProtoContactDescriptor>();
 
-                DocumentBuilderFactory factory =
-                    DocumentBuilderFactory.newInstance();
-                DocumentBuilder builder = factory.newDocumentBuilder();
-                contactListDocument = builder.newDocument();
+                for (MclSnapshot.ProtoContact protoContact
+                        : metaContact.protoContacts)
+                {
+                    // duplicates are removed from the contact list document
+                    // when it is loaded from the file
+                    if (StoredProtoContactDescriptor.findContactInList(
+                            protoContact.address, protoContacts) != null)
+                        continue;
+
+                    protoContacts.add(new StoredProtoContactDescriptor(
+                        protoContact.address, protoContact.persistentData,
+                        protoGroupsMap.get(protoContact.parentProtoGroupUID)));
+                }
 
-                initVirginDocument(mclServiceImpl, contactListDocument);
+                MetaContactImpl mc = mclServImpl.loadStoredMetaContact(
+                    currentMetaGroup, metaContact.uid,
+                    metaContact.displayName, metaContact.details,
+                    protoContacts, accountID);
 
-                // write the contact list so that it is there for the parser
-                storeContactList0();
+                if(metaContact.displayNameUserDefined)
+                    mc.setDisplayNameUserDefined(true);
             }
-            else
+            catch (Throwable thr)
             {
-                // if there is root lets parse it
-                // parse the group node and extract all its child groups and
-                // contacts
-                processGroupXmlNode(mclServiceImpl, accountID, root, null, null);
+                logger.warn("Failed to load meta contact " + metaContact.uid
+                    + ". Will remove and continue with other contacts", thr);
+
+                removeFaultyNode(findMetaContactNode(metaContact.uid));
+            }
+        }
 
-                // now save the contact list in case it has changed
-                scheduleContactListStorage();
+        for (MclSnapshot.Group subgroup : group.subgroups)
+        {
+            try
+            {
+                processSnapshotGroup(mclServImpl, accountID, subgroup,
+                    currentMetaGroup, protoGroupsMap);
             }
+            catch (Throwable throwable)
+            {
+                logger.error("Failed to process group " + subgroup.uid
+                    + ". Removing.", throwable);
 
+                removeFaultyNode(findMetaContactGroupNode(subgroup.uid));
+            }
         }
-        catch (Throwable exc)
+    }
+
+    /**
+     * Removes the node of a meta contact or group which failed to load from
+     * the contact list document, so that it doesn't cause us problems again.
+     *
+     * @param node the node or <tt>null</tt> if it was not found
+     */
+    private void removeFaultyNode(Element node)
+    {
+        if (node == null || node.getParentNode() == null)
+            return;
+
+        try
         {
-            // catch everything because we MUST NOT disturb the thread
-            // initializing the meta CL for a new provider with null point
-            // exceptions or others of the sort
-            throw new XMLException("Failed to extract contacts for account "
-                + accountID, exc);
+            node.getParentNode().removeChild(node);
+            scheduleContactListStorage();
         }
-        finally
+        catch (Throwable thr)
         {
-            // now that we're done updating the contact list we can start
-            // listening
-            // again
-            this.mclServiceImpl.addMetaContactListListener(this);
+            logger.error("Failed to remove node " + node, thr);
         }
     }
 
@@ -1171,6 +2111,10 @@ private Element createMetaContactNode(MetaContact metaContact)
 
         metaContactElement
             .setAttribute(UID_ATTR_NAME, metaContact.getMetaUID());
+        synchronized (metaContactNodes)
+        {
+            metaContactNodes.put(metaContact.getMetaUID(), metaContactElement);
+        }
 
         // create the display name node
         Element displayNameNode =
@@ -1217,6 +2161,10 @@ private Element createMetaContactGroupNode(MetaContactGroup metaGroup)
             .getGroupName());
 
         metaGroupElement.setAttribute(UID_ATTR_NAME, metaGroup.getMetaUID());
+        synchronized (groupNodes)
+        {
+            groupNodes.put(metaGroup.getMetaUID(), metaGroupElement);
+        }
 
         // create and fill the proto groups node
         Element protoGroupsElement =
@@ -1279,48 +2227,52 @@ private Element createMetaContactGroupNode(MetaContactGroup metaGroup)
      */
     public void metaContactAdded(MetaContactEvent evt)
     {
-        // if the parent group is not persistent, do not do anything
-        // cause its missing in xml
-        if(!evt.getParentGroup().isPersistent())
-            return;
+        synchronized (contactListRWLock)
+        {
+            // if the parent group is not persistent, do not do anything
+            // cause its missing in xml
+            if(!evt.getParentGroup().isPersistent())
+                return;
 
-        Element parentGroupNode =
-            findMetaContactGroupNode(evt.getParentGroup().getMetaUID());
+            Element parentGroupNode =
+                findMetaContactGroupNode(evt.getParentGroup().getMetaUID());
 
-        // not sure what to do in case of null. we'll be logging an internal
-        // err for now and that's all.
-        if (parentGroupNode == null)
-        {
-            logger.error("Couldn't find parent of a newly added contact: "
-                + evt.getSourceMetaContact());
-            if(logger.isTraceEnabled())
-                logger.trace("The above exception occurred with the "
-                                + "following stack trace: ",
-                                new Exception());
-            return;
-        }
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (parentGroupNode == null)
+            {
+                logger.error("Couldn't find parent of a newly added contact: "
+                    + evt.getSourceMetaContact());
+                if(logger.isTraceEnabled())
+                    logger.trace("The above exception occurred with the "
+                                    + "following stack trace: ",
+                                    new Exception());
+                return;
+            }
 
-        parentGroupNode =
-            XMLUtils.findChild(parentGroupNode, CHILD_CONTACTS_NODE_NAME);
+            parentGroupNode =
+                XMLUtils.findChild(parentGroupNode, CHILD_CONTACTS_NODE_NAME);
 
-        Element metaContactElement =
-            createMetaContactNode(evt.getSourceMetaContact());
+            Element metaContactElement =
+                createMetaContactNode(evt.getSourceMetaContact());
 
-        parentGroupNode.appendChild(metaContactElement);
+            parentGroupNode.appendChild(metaContactElement);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContact(), ex);
+            try
+            {
+                scheduleContactListStorage(evt.getSourceMetaContact());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after adding contact "
+                    + evt.getSourceMetaContact(), ex);
+            }
         }
     }
 
@@ -1333,48 +2285,53 @@ public void metaContactAdded(MetaContactEvent evt)
      */
     public void metaContactGroupAdded(MetaContactGroupEvent evt)
     {
-        // if the group was created as an encapsulator of a non persistent proto
-        // group then we'll ignore it.
-        if (evt.getSourceProtoGroup() != null
-            && !evt.getSourceProtoGroup().isPersistent())
-            return;
+        synchronized (contactListRWLock)
+        {
+            // if the group was created as an encapsulator of a non persistent
+            // proto group then we'll ignore it.
+            if (evt.getSourceProtoGroup() != null
+                && !evt.getSourceProtoGroup().isPersistent())
+                return;
 
-        MetaContactGroup parentGroup =
-            evt.getSourceMetaContactGroup().getParentMetaContactGroup();
+            MetaContactGroup parentGroup =
+                evt.getSourceMetaContactGroup().getParentMetaContactGroup();
 
-        Element parentGroupNode =
-            findMetaContactGroupNode(parentGroup.getMetaUID());
+            Element parentGroupNode =
+                findMetaContactGroupNode(parentGroup.getMetaUID());
 
-        // not sure what to do in case of null. we'll be logging an internal
-        // err for now and that's all.
-        if (parentGroupNode == null)
-        {
-            logger.error("Couldn't find parent of a newly added group: "
-                + parentGroup);
-            return;
-        }
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (parentGroupNode == null)
+            {
+                logger.error("Couldn't find parent of a newly added group: "
+                    + parentGroup);
+                return;
+            }
 
-        Element newGroupElement =
-            createMetaContactGroupNode(evt.getSourceMetaContactGroup());
+            Element newGroupElement =
+                createMetaContactGroupNode(evt.getSourceMetaContactGroup());
 
-        Element subgroupsNode =
-            XMLUtils.findChild(parentGroupNode, SUBGROUPS_NODE_NAME);
+            Element subgroupsNode =
+                XMLUtils.findChild(parentGroupNode, SUBGROUPS_NODE_NAME);
 
-        subgroupsNode.appendChild(newGroupElement);
+            subgroupsNode.appendChild(newGroupElement);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContactGroup(), ex);
+            try
+            {
+                scheduleContactListStorage(
+                    evt.getSourceMetaContactGroup(), true);
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after adding contact "
+                    + evt.getSourceMetaContactGroup(), ex);
+            }
         }
     }
 
@@ -1385,35 +2342,42 @@ public void metaContactGroupAdded(MetaContactGroupEvent evt)
      */
     public void metaContactGroupRemoved(MetaContactGroupEvent evt)
     {
-        Element metaContactGroupNode =
-            findMetaContactGroupNode(evt.getSourceMetaContactGroup()
-                .getMetaUID());
-
-        // not sure what to do in case of null. we'll be loggin an internal err
-        // for now and that's all.
-        if (metaContactGroupNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after removing an MN group. Groupt not found: "
-                + evt.getSourceMetaContactGroup());
-            return;
-        }
+            Element metaContactGroupNode =
+                findMetaContactGroupNode(evt.getSourceMetaContactGroup()
+                    .getMetaUID());
 
-        // remove the meta contact node.
-        metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
+            // not sure what to do in case of null. we'll be loggin an internal
+            // err for now and that's all.
+            if (metaContactGroupNode == null)
+            {
+                logger.error(
+                    "Save after removing an MN group. Groupt not found: "
+                        + evt.getSourceMetaContactGroup());
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing group "
-                + evt.getSourceMetaContactGroup(), ex);
+            // remove the meta contact node.
+            metaContactGroupNode.getParentNode().removeChild(
+                metaContactGroupNode);
+
+            try
+            {
+                scheduleContactListStorage(
+                    evt.getSourceMetaContactGroup(), true);
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after removing group "
+                    + evt.getSourceMetaContactGroup(), ex);
+            }
         }
     }
 
@@ -1425,56 +2389,63 @@ public void metaContactGroupRemoved(MetaContactGroupEvent evt)
      */
     public void metaContactMoved(MetaContactMovedEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
-        Element newParentNode =
-            findMetaContactGroupNode(evt.getNewParent().getMetaUID());
-
-        if (newParentNode == null)
-        {
-            logger.error("Save after metacontact moved. new parent not found: "
-                + evt.getNewParent());
-            if(logger.isTraceEnabled())
-                logger.error("The above exception has occurred with the "
-                                +"following stack trace",
-                                new Exception());
-            return;
-        }
-
-        // in case of null this is a case of moving from non persistent group
-        // to a persistent one.
-        if(metaContactNode == null)
-        {
-            // create new node
-            metaContactNode = createMetaContactNode(evt.getSourceMetaContact());
-        }
-        else
+        synchronized (contactListRWLock)
         {
-            metaContactNode.getParentNode().removeChild(metaContactNode);
-        }
+            Element metaContactNode =
+                findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
+            Element newParentNode =
+                findMetaContactGroupNode(evt.getNewParent().getMetaUID());
+
+            if (newParentNode == null)
+            {
+                logger.error(
+                    "Save after metacontact moved. new parent not found: "
+                        + evt.getNewParent());
+                if(logger.isTraceEnabled())
+                    logger.error("The above exception has occurred with the "
+                                    +"following stack trace",
+                                    new Exception());
+                return;
+            }
+
+            // in case of null this is a case of moving from non persistent
+            // group to a persistent one.
+            if(metaContactNode == null)
+            {
+                // create new node
+                metaContactNode
+                    = createMetaContactNode(evt.getSourceMetaContact());
+            }
+            else
+            {
+                metaContactNode.getParentNode().removeChild(metaContactNode);
+            }
 
-        updateParentsForMetaContactNode(metaContactNode, evt.getNewParent());
+            updateParentsForMetaContactNode(
+                metaContactNode, evt.getNewParent());
 
-        Element childContacts =
-            XMLUtils.findChild(newParentNode, CHILD_CONTACTS_NODE_NAME);
+            Element childContacts =
+                XMLUtils.findChild(newParentNode, CHILD_CONTACTS_NODE_NAME);
 
-        childContacts.appendChild(metaContactNode);
+            childContacts.appendChild(metaContactNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving "
-                + evt.getSourceMetaContact(), ex);
-        }
+            try
+            {
+                scheduleContactListStorage(evt.getSourceMetaContact());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after moving "
+                    + evt.getSourceMetaContact(), ex);
+            }
 
+        }
     }
 
     /**
@@ -1531,34 +2502,39 @@ private void updateParentsForMetaContactNode(Element metaContactNode,
      */
     public void metaContactRemoved(MetaContactEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
-
-        // not sure what to do in case of null. we'll be loggin an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after metacontact removed. Contact not found: "
-                + evt.getSourceMetaContact());
-            return;
-        }
+            Element metaContactNode =
+                findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
+
+            // not sure what to do in case of null. we'll be loggin an internal
+            // err for now and that's all.
+            if (metaContactNode == null)
+            {
+                logger.error(
+                    "Save after metacontact removed. Contact not found: "
+                        + evt.getSourceMetaContact());
+                return;
+            }
 
-        // remove the meta contact node.
-        metaContactNode.getParentNode().removeChild(metaContactNode);
+            // remove the meta contact node.
+            metaContactNode.getParentNode().removeChild(metaContactNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing "
-                + evt.getSourceMetaContact(), ex);
+            try
+            {
+                scheduleContactListStorage(evt.getSourceMetaContact());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after removing "
+                    + evt.getSourceMetaContact(), ex);
+            }
         }
     }
 
@@ -1569,51 +2545,56 @@ public void metaContactRemoved(MetaContactEvent evt)
      */
     public void metaContactRenamed(MetaContactRenamedEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
-
-        // not sure what to do in case of null. we'll be loggin an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after renam failed. Contact not found: "
-                + evt.getSourceMetaContact());
-            return;
-        }
+            Element metaContactNode =
+                findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
 
-        Element displayNameNode =
-            XMLUtils.findChild(metaContactNode,
-                META_CONTACT_DISPLAY_NAME_NODE_NAME);
+            // not sure what to do in case of null. we'll be loggin an internal
+            // err for now and that's all.
+            if (metaContactNode == null)
+            {
+                logger.error("Save after renam failed. Contact not found: "
+                    + evt.getSourceMetaContact());
+                return;
+            }
 
-        if(((MetaContactImpl)evt.getSourceMetaContact())
-                .isDisplayNameUserDefined())
-        {
-            displayNameNode.setAttribute(USER_DEFINED_DISPLAY_NAME_ATTR_NAME,
-                                         Boolean.TRUE.toString());
-        }
-        else
-        {
-            displayNameNode.removeAttribute(
-                USER_DEFINED_DISPLAY_NAME_ATTR_NAME);
-        }
+            Element displayNameNode =
+                XMLUtils.findChild(metaContactNode,
+                    META_CONTACT_DISPLAY_NAME_NODE_NAME);
+
+            if(((MetaContactImpl)evt.getSourceMetaContact())
+                    .isDisplayNameUserDefined())
+            {
+                displayNameNode.setAttribute(
+                    USER_DEFINED_DISPLAY_NAME_ATTR_NAME,
+                    Boolean.TRUE.toString());
+            }
+            else
+            {
+                displayNameNode.removeAttribute(
+                    USER_DEFINED_DISPLAY_NAME_ATTR_NAME);
+            }
 
-        XMLUtils.setText(displayNameNode, evt.getNewDisplayName());
+            XMLUtils.setText(displayNameNode, evt.getNewDisplayName());
 
-        updatePersistentDataForMetaContact(evt.getSourceMetaContact());
+            updatePersistentDataForMetaContact(evt.getSourceMetaContact());
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
+            try
+            {
+                scheduleContactListStorage(evt.getSourceMetaContact());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after rename of "
+                    + evt.getSourceMetaContact(), ex);
+            }
         }
     }
 
@@ -1624,36 +2605,40 @@ public void metaContactRenamed(MetaContactRenamedEvent evt)
      */
     public void protoContactModified(ProtoContactEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
-        {
-            logger.error("Save after proto contact modification failed. "
-                + "Contact not found: " + evt.getParent());
-            return;
-        }
+        synchronized (contactListRWLock)
+        {
+            Element metaContactNode =
+                findMetaContactNode(evt.getParent().getMetaUID());
 
-        updatePersistentDataForMetaContact(evt.getParent());
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (metaContactNode == null)
+            {
+                logger.error("Save after proto contact modification failed. "
+                    + "Contact not found: " + evt.getParent());
+                return;
+            }
 
-        // i don't think we could do anything else in addition to updating the
-        // persistent data.
+            updatePersistentDataForMetaContact(evt.getParent());
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after rename of " + evt.getParent(), ex);
+            // i don't think we could do anything else in addition to updating
+            // the persistent data.
+
+            try
+            {
+                scheduleContactListStorage(evt.getParent());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error(
+                    "Writing CL failed after rename of " + evt.getParent(), ex);
+            }
         }
     }
 
@@ -1665,141 +2650,147 @@ public void protoContactModified(ProtoContactEvent evt)
      */
     public void metaContactModified(MetaContactModifiedEvent evt)
     {
-        String name = evt.getModificationName();
+        synchronized (contactListRWLock)
+        {
+            String name = evt.getModificationName();
 
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
+            Element metaContactNode =
+                findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
 
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
-        {
-            logger.error("Save after rename failed. Contact not found: "
-                + evt.getSourceMetaContact());
-            return;
-        }
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (metaContactNode == null)
+            {
+                logger.error("Save after rename failed. Contact not found: "
+                    + evt.getSourceMetaContact());
+                return;
+            }
 
-        Object oldValue = evt.getOldValue();
-        Object newValue = evt.getNewValue();
+            Object oldValue = evt.getOldValue();
+            Object newValue = evt.getNewValue();
 
-        boolean isChanged = false;
+            boolean isChanged = false;
 
-        if (oldValue == null && newValue != null)
-        {
-            // indicates add
+            if (oldValue == null && newValue != null)
+            {
+                // indicates add
 
-            if (!(newValue instanceof String))
-                return;
+                if (!(newValue instanceof String))
+                    return;
 
-            Element detailElement =
-                contactListDocument
-                    .createElement(META_CONTACT_DETAIL_NAME_NODE_NAME);
+                Element detailElement =
+                    contactListDocument
+                        .createElement(META_CONTACT_DETAIL_NAME_NODE_NAME);
 
-            detailElement.setAttribute(DETAIL_NAME_ATTR_NAME, name);
-            detailElement.setAttribute(DETAIL_VALUE_ATTR_NAME,
-                (String) newValue);
+                detailElement.setAttribute(DETAIL_NAME_ATTR_NAME, name);
+                detailElement.setAttribute(DETAIL_VALUE_ATTR_NAME,
+                    (String) newValue);
 
-            metaContactNode.appendChild(detailElement);
-            isChanged = true;
-        }
-        else if (oldValue != null && newValue == null)
-        {
-            // indicates remove
-            if (oldValue instanceof List<?>)
+                metaContactNode.appendChild(detailElement);
+                isChanged = true;
+            }
+            else if (oldValue != null && newValue == null)
             {
-                List<?> valuesToRemove = (List<?>) oldValue;
-                // indicates removing multiple values at one time
-                List<Element> nodes =
-                    XMLUtils.locateElements(metaContactNode,
-                        META_CONTACT_DETAIL_NAME_NODE_NAME,
-                        DETAIL_NAME_ATTR_NAME, name);
-
-                List<Element> nodesToRemove = new ArrayList<Element>();
-                for (Element e : nodes)
+                // indicates remove
+                if (oldValue instanceof List<?>)
                 {
-                    if (valuesToRemove
-                            .contains(e.getAttribute(DETAIL_VALUE_ATTR_NAME)))
+                    List<?> valuesToRemove = (List<?>) oldValue;
+                    // indicates removing multiple values at one time
+                    List<Element> nodes =
+                        XMLUtils.locateElements(metaContactNode,
+                            META_CONTACT_DETAIL_NAME_NODE_NAME,
+                            DETAIL_NAME_ATTR_NAME, name);
+
+                    List<Element> nodesToRemove = new ArrayList<Element>();
+                    for (Element e : nodes)
                     {
-                        nodesToRemove.add(e);
+                        if (valuesToRemove.contains(
+                                e.getAttribute(DETAIL_VALUE_ATTR_NAME)))
+                        {
+                            nodesToRemove.add(e);
+                        }
                     }
-                }
 
-                for (Element e : nodesToRemove)
-                {
-                    metaContactNode.removeChild(e);
+                    for (Element e : nodesToRemove)
+                    {
+                        metaContactNode.removeChild(e);
+                    }
+                    if (nodesToRemove.size() > 0)
+                        isChanged = true;
                 }
-                if (nodesToRemove.size() > 0)
+                else if (oldValue instanceof String)
+                {
+                    // removing one value only
+                    List<Element> nodes =
+                        XMLUtils.locateElements(metaContactNode,
+                            META_CONTACT_DETAIL_NAME_NODE_NAME,
+                            DETAIL_NAME_ATTR_NAME, name);
+
+                    Element elementToRemove = null;
+                    for (Element e : nodes)
+                    {
+                        if (e.getAttribute(DETAIL_VALUE_ATTR_NAME)
+                                .equals(oldValue))
+                        {
+                            elementToRemove = e;
+                            break;
+                        }
+                    }
+
+                    if (elementToRemove == null)
+                        return;
+
+                    metaContactNode.removeChild(elementToRemove);
+
                     isChanged = true;
+                }
             }
-            else if (oldValue instanceof String)
+            else if (oldValue != null && newValue != null)
             {
-                // removing one value only
+                // indicates change
                 List<Element> nodes =
                     XMLUtils.locateElements(metaContactNode,
                         META_CONTACT_DETAIL_NAME_NODE_NAME,
-                        DETAIL_NAME_ATTR_NAME, name);
+                        DETAIL_NAME_ATTR_NAME,
+                        name);
 
-                Element elementToRemove = null;
+                Element changedElement = null;
                 for (Element e : nodes)
                 {
                     if (e.getAttribute(DETAIL_VALUE_ATTR_NAME).equals(oldValue))
                     {
-                        elementToRemove = e;
+                        changedElement = e;
                         break;
                     }
                 }
 
-                if (elementToRemove == null)
+                if (changedElement == null)
                     return;
 
-                metaContactNode.removeChild(elementToRemove);
+                changedElement.setAttribute(DETAIL_VALUE_ATTR_NAME,
+                    (String) newValue);
 
                 isChanged = true;
             }
-        }
-        else if (oldValue != null && newValue != null)
-        {
-            // indicates change
-            List<Element> nodes =
-                XMLUtils.locateElements(metaContactNode,
-                    META_CONTACT_DETAIL_NAME_NODE_NAME, DETAIL_NAME_ATTR_NAME,
-                    name);
-
-            Element changedElement = null;
-            for (Element e : nodes)
-            {
-                if (e.getAttribute(DETAIL_VALUE_ATTR_NAME).equals(oldValue))
-                {
-                    changedElement = e;
-                    break;
-                }
-            }
 
-            if (changedElement == null)
+            if (!isChanged)
                 return;
 
-            changedElement.setAttribute(DETAIL_VALUE_ATTR_NAME,
-                (String) newValue);
-
-            isChanged = true;
-        }
-
-        if (!isChanged)
-            return;
-
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
+            try
+            {
+                scheduleContactListStorage(evt.getSourceMetaContact());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after rename of "
+                    + evt.getSourceMetaContact(), ex);
+            }
         }
     }
 
@@ -1810,38 +2801,42 @@ else if (oldValue != null && newValue != null)
      */
     public void protoContactRemoved(ProtoContactEvent evt)
     {
-        Element oldMcNode =
-            findMetaContactNode(evt.getOldParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (oldMcNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Failed to find meta contact (old parent): "
-                + oldMcNode);
-            return;
-        }
+            Element oldMcNode =
+                findMetaContactNode(evt.getOldParent().getMetaUID());
+
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (oldMcNode == null)
+            {
+                logger.error("Failed to find meta contact (old parent): "
+                    + oldMcNode);
+                return;
+            }
 
-        Element protoNode =
-            XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
-                PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
-                    .getAddress());
+            Element protoNode =
+                XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
+                    PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
+                        .getAddress());
 
-        protoNode.getParentNode().removeChild(protoNode);
+            protoNode.getParentNode().removeChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing proto contact "
-                + evt.getProtoContact(), ex);
+            try
+            {
+                scheduleContactListStorage(evt.getOldParent());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after removing proto contact "
+                    + evt.getProtoContact(), ex);
+            }
         }
     }
 
@@ -1864,42 +2859,69 @@ public void childContactsReordered(MetaContactGroupEvent evt)
      */
     public void metaContactGroupModified(MetaContactGroupEvent evt)
     {
-        MetaContactGroup mcGroup = evt.getSourceMetaContactGroup();
-        Element mcGroupNode = findMetaContactGroupNode(mcGroup.getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (mcGroupNode == null)
-        {
-            logger.error("Failed to find meta contact group: " + mcGroup);
-            if (logger.isTraceEnabled())
-                logger.trace(
-                    "The above error occurred with the following stack trace: ",
-                    new Exception());
-            return;
-        }
-
-        switch (evt.getEventID())
+        synchronized (contactListRWLock)
         {
-        case MetaContactGroupEvent.CONTACT_GROUP_RENAMED_IN_META_GROUP:
-        case MetaContactGroupEvent.CONTACT_GROUP_REMOVED_FROM_META_GROUP:
-        case MetaContactGroupEvent.CONTACT_GROUP_ADDED_TO_META_GROUP:
-            // the fact that a contact group was added or removed to a
-            // meta group may imply substantial changes in the child contacts
-            // and the layout of any possible subgroups, so
-            // to make things simple, we'll remove the existing meta contact
-            // group node and re-create it according to its current state.
-            Node parentNode = mcGroupNode.getParentNode();
+            MetaContactGroup mcGroup = evt.getSourceMetaContactGroup();
+            Element mcGroupNode
+                = findMetaContactGroupNode(mcGroup.getMetaUID());
 
-            parentNode.removeChild(mcGroupNode);
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (mcGroupNode == null)
+            {
+                logger.error("Failed to find meta contact group: " + mcGroup);
+                if (logger.isTraceEnabled())
+                    logger.trace(
+                        "The above error occurred with the following stack"
+                            + " trace: ",
+                        new Exception());
+                return;
+            }
+
+            switch (evt.getEventID())
+            {
+            case MetaContactGroupEvent.CONTACT_GROUP_RENAMED_IN_META_GROUP:
+            case MetaContactGroupEvent.CONTACT_GROUP_REMOVED_FROM_META_GROUP:
+            case MetaContactGroupEvent.CONTACT_GROUP_ADDED_TO_META_GROUP:
+                // the fact that a contact group was added or removed to a meta
+                // group may imply substantial changes in the child contacts and
+                // the layout of any possible subgroups, so to make things
+                // simple, we'll remove the existing meta contact group node and
+                // re-create it according to its current state.
+                Node parentNode = mcGroupNode.getParentNode();
+
+                parentNode.removeChild(mcGroupNode);
 
-            Element newGroupElement = createMetaContactGroupNode(mcGroup);
+                Element newGroupElement = createMetaContactGroupNode(mcGroup);
 
-            parentNode.appendChild(newGroupElement);
+                parentNode.appendChild(newGroupElement);
+
+                try
+                {
+                    scheduleContactListStorage(mcGroup, true);
+                }
+                catch (IOException ex)
+                {
+                    /**
+                     * given we're being invoked from an event dispatch thread
+                     * that was probably triggered by a net operation - we could
+                     * not do much. so ... log and @todo one day we'll have a
+                     * global error dispatcher
+                     */
+                    logger.error(
+                        "Writing CL failed after adding contact " + mcGroup,
+                        ex);
+                }
+                break;
+            case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
+                mcGroupNode
+                    .setAttribute(GROUP_NAME_ATTR_NAME, mcGroup.getGroupName());
+                break;
+            }
 
             try
             {
-                scheduleContactListStorage();
+                scheduleContactListStorage(mcGroup, false);
             }
             catch (IOException ex)
             {
@@ -1910,33 +2932,12 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
                  * dispatcher
                  */
                 logger.error(
-                    "Writing CL failed after adding contact " + mcGroup,
+                    "Writing CL failed after removing proto group "
+                        + mcGroup.getGroupName(),
                     ex);
             }
-            break;
-        case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
-            mcGroupNode
-                .setAttribute(GROUP_NAME_ATTR_NAME, mcGroup.getGroupName());
-            break;
-        }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after removing proto group "
-                    + mcGroup.getGroupName(),
-                ex);
         }
-
     }
 
     /**
@@ -1948,42 +2949,46 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
      */
     public void protoContactAdded(ProtoContactEvent evt)
     {
-        Element mcNode = findMetaContactNode(evt.getParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (mcNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Failed to find meta contact: " + evt.getParent());
-            return;
-        }
+            Element mcNode = findMetaContactNode(evt.getParent().getMetaUID());
 
-        Element protoNode = createProtoContactNode(evt.getProtoContact());
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (mcNode == null)
+            {
+                logger.error("Failed to find meta contact: " + evt.getParent());
+                return;
+            }
 
-        if(protoNode == null)
-        {
-            logger.error("Failed to create proto contact node for: "
-                + evt.getProtoContact());
-            return;
-        }
+            Element protoNode = createProtoContactNode(evt.getProtoContact());
 
-        mcNode.appendChild(protoNode);
+            if(protoNode == null)
+            {
+                logger.error("Failed to create proto contact node for: "
+                    + evt.getProtoContact());
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding proto contact "
-                + evt.getProtoContact(), ex);
-        }
+            mcNode.appendChild(protoNode);
+
+            try
+            {
+                scheduleContactListStorage(evt.getParent());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after adding proto contact "
+                    + evt.getProtoContact(), ex);
+            }
 
+        }
     }
 
     /**
@@ -1994,52 +2999,57 @@ public void protoContactAdded(ProtoContactEvent evt)
      */
     public void protoContactMoved(ProtoContactEvent evt)
     {
-        Element newMcNode =
-            findMetaContactNode(evt.getNewParent().getMetaUID());
-        Element oldMcNode =
-            findMetaContactNode(evt.getOldParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (oldMcNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Failed to find meta contact (old parent): "
-                + oldMcNode);
-            return;
-        }
+            Element newMcNode =
+                findMetaContactNode(evt.getNewParent().getMetaUID());
+            Element oldMcNode =
+                findMetaContactNode(evt.getOldParent().getMetaUID());
 
-        if (newMcNode == null)
-        {
-            logger.error("Failed to find meta contact (old parent): "
-                + newMcNode);
-            return;
-        }
+            // not sure what to do in case of null. we'll be logging an internal
+            // err for now and that's all.
+            if (oldMcNode == null)
+            {
+                logger.error("Failed to find meta contact (old parent): "
+                    + oldMcNode);
+                return;
+            }
+
+            if (newMcNode == null)
+            {
+                logger.error("Failed to find meta contact (old parent): "
+                    + newMcNode);
+                return;
+            }
 
-        Element protoNode =
-            XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
-                PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
-                    .getAddress());
+            Element protoNode =
+                XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
+                    PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
+                        .getAddress());
 
-        protoNode.getParentNode().removeChild(protoNode);
+            protoNode.getParentNode().removeChild(protoNode);
 
-        // update parent attr and append the contact to its new parent node.
-        protoNode.setAttribute(PARENT_PROTO_GROUP_UID_ATTR_NAME, evt
-            .getProtoContact().getParentContactGroup().getUID());
-        newMcNode.appendChild(protoNode);
+            // update parent attr and append the contact to its new parent node.
+            protoNode.setAttribute(PARENT_PROTO_GROUP_UID_ATTR_NAME, evt
+                .getProtoContact().getParentContactGroup().getUID());
+            newMcNode.appendChild(protoNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving proto contact "
-                + evt.getProtoContact(), ex);
+            try
+            {
+                scheduleContactListStorage(evt.getOldParent());
+                scheduleContactListStorage(evt.getNewParent());
+            }
+            catch (IOException ex)
+            {
+                /**
+                 * given we're being invoked from an event dispatch thread that
+                 * was probably triggered by a net operation - we could not do
+                 * much. so ... log and @todo one day we'll have a global error
+                 * dispatcher
+                 */
+                logger.error("Writing CL failed after moving proto contact "
+                    + evt.getProtoContact(), ex);
+            }
         }
     }
 
@@ -2055,10 +3065,7 @@ public void protoContactMoved(ProtoContactEvent evt)
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return findIndexedNode(metaContactNodes, metaContactUID);
     }
 
     /**
@@ -2073,10 +3080,96 @@ private Element findMetaContactNode(String metaContactUID)
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
+        return findIndexedNode(groupNodes, metaContactGroupUID);
+    }
+
+    /**
+     * Returns the node with the specified uid from an index of nodes, or null
+     * if the node is not in the contact list document any more.
+     *
+     * @param nodes the index of the nodes
+     * @param uid the UID of the node
+     * @return the node or null if no such node is in the contact list
+     *         document
+     */
+    private Element findIndexedNode(Map<String, Element> nodes, String uid)
+    {
+        ensureContactListLoaded();
+
+        synchronized (nodes)
+        {
+            Element node = nodes.get(uid);
+
+            if (node == null)
+                return null;
+
+            // nodes are removed from the document without removing their
+            // children from the index
+            for (Node n = node; n != null; n = n.getParentNode())
+            {
+                if (n == contactListDocument)
+                    return node;
+            }
+
+            nodes.remove(uid);
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds the indexes of the meta contact and group nodes from the
+     * contact list document.
+     */
+    private void indexDocument()
+    {
+        synchronized (metaContactNodes)
+        {
+            metaContactNodes.clear();
+        }
+        synchronized (groupNodes)
+        {
+            groupNodes.clear();
+        }
+
+        Element root = contactListDocument.getDocumentElement();
+        if (root != null)
+            indexNodes(root);
+    }
+
+    /**
+     * Adds a node and the meta contact and group nodes it contains to the
+     * indexes of nodes.
+     *
+     * @param node the node to index
+     */
+    private void indexNodes(Element node)
+    {
+        String nodeName = node.getNodeName();
+
+        if (nodeName.equals(META_CONTACT_NODE_NAME))
+        {
+            synchronized (metaContactNodes)
+            {
+                metaContactNodes.put(node.getAttribute(UID_ATTR_NAME), node);
+            }
+            return;
+        }
+
+        if (nodeName.equals(GROUP_NODE_NAME))
+        {
+            synchronized (groupNodes)
+            {
+                groupNodes.put(node.getAttribute(UID_ATTR_NAME), node);
+            }
+        }
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+        for (Node child = node.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                indexNodes((Element) child);
+        }
     }
 
     /**
@@ -2085,6 +3178,10 @@ private Element findMetaContactGroupNode(String metaContactGroupUID)
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        if (journal != null)
+            journal.clear();
+        if (snapshotFile != null)
+            snapshotFile.delete();
     }
 
     /**
@@ -48,10 +48,11 @@
                                         = new TreeSet<MetaContactGroupImpl>();
 
     /**
-     * A list containing all child contacts.
+     * All child contacts, in order. Contacts move in this set each time their
+     * status changes, so it finds their index without walking it.
      */
-    private final Set<MetaContactImpl> childContacts
-                                            = new TreeSet<MetaContactImpl>();
+    private final IndexedTreeSet<MetaContactImpl> childContacts
+                                    = new IndexedTreeSet<MetaContactImpl>();
 
     /**
      * A list of the contact groups encapsulated by this MetaContactGroup
@@ -70,11 +71,18 @@
 
     /**
      * We use this copy for returning iterators and searching over the list
-     * in order to avoid creating it upon each query. The copy is updated upon
-     * each modification
+     * in order to avoid creating it upon each query. The copy is dropped upon
+     * each modification and created again by the next query which needs it,
+     * so that a series of status changes does not copy the list each time.
      */
     private List<MetaContact> childContactsOrderedCopy
-                                            = new LinkedList<MetaContact>();
+                                    = Collections.<MetaContact>emptyList();
+
+    /**
+     * Whether <tt>childContactsOrderedCopy</tt> misses the latest changes of
+     * <tt>childContacts</tt>.
+     */
+    private boolean childContactsChanged = false;
 
     /**
      * We use this copy for returning iterators and searching over the list
@@ -191,7 +199,10 @@ public boolean canContainSubgroups()
      */
     public int countChildContacts()
     {
-        return childContacts.size();
+        synchronized(childContacts)
+        {
+            return childContacts.size();
+        }
     }
 
     /**
@@ -265,7 +276,18 @@ public int countSubgroups()
      */
     public Iterator<MetaContact> getChildContacts()
     {
-        return childContactsOrderedCopy.iterator();
+        synchronized(childContacts)
+        {
+            if (childContactsChanged)
+            {
+                List<MetaContact> copy
+                    = new ArrayList<MetaContact>(childContacts.size());
+                childContacts.copyTo(copy);
+                childContactsOrderedCopy = Collections.unmodifiableList(copy);
+                childContactsChanged = false;
+            }
+            return childContactsOrderedCopy.iterator();
+        }
     }
 
     /**
@@ -303,23 +325,13 @@ public MetaContact getMetaContact(String metaContactID)
      */
     public int indexOf(MetaContact metaContact)
     {
-        int i = 0;
+        if (!(metaContact instanceof MetaContactImpl))
+            return -1;
 
-        Iterator<MetaContact> childrenIter = getChildContacts();
-
-        while (childrenIter.hasNext())
+        synchronized(childContacts)
         {
-            MetaContact current = childrenIter.next();
-
-            if (current == metaContact)
-            {
-                return i;
-            }
-            i++;
+            return childContacts.indexOf((MetaContactImpl) metaContact);
         }
-
-        //if we got here then metaContact is not in this list
-        return -1;
     }
 
     /**
@@ -696,7 +708,10 @@ public MetaContactGroupImpl findMetaContactGroupByContactGroup(
     public MetaContact getMetaContact(int index) throws
         IndexOutOfBoundsException
     {
-        return this.childContactsOrderedCopy.get(index);
+        synchronized(childContacts)
+        {
+            return this.childContacts.get(index);
+        }
     }
 
     /**
@@ -710,6 +725,10 @@ void addMetaContact(MetaContactImpl metaContact)
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        MetaContactListIndex index = getAttachedIndex();
+        if (index != null)
+            index.addMetaContact(metaContact);
     }
 
     /**
@@ -726,11 +745,8 @@ int lightAddMetaContact(MetaContactImpl metaContact)
     {
         synchronized(childContacts)
         {
-            this.childContacts.add(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                = new LinkedList<MetaContact>(childContacts);
-            return childContactsOrderedCopy.indexOf(metaContact);
+            childContactsChanged = true;
+            return this.childContacts.add(metaContact);
         }
     }
 
@@ -750,10 +766,8 @@ void lightRemoveMetaContact(MetaContactImpl metaContact)
     {
         synchronized(childContacts)
         {
-            this.childContacts.remove(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                            = new LinkedList<MetaContact>(childContacts);
+            if (this.childContacts.remove(metaContact))
+                childContactsChanged = true;
         }
     }
 
@@ -765,8 +779,13 @@ void lightRemoveMetaContact(MetaContactImpl metaContact)
      */
     void removeMetaContact(MetaContactImpl metaContact)
     {
+        boolean wasParent = (metaContact.getParentGroup() == this);
+
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+
+        if (wasParent)
+            mclServiceImpl.getIndex().removeMetaContact(metaContact);
     }
 
     /**
@@ -838,9 +857,12 @@ public MetaContactGroup getMetaContactSubgroupByUID(String grpUID)
      */
     public boolean contains(MetaContact contact)
     {
+        if (!(contact instanceof MetaContactImpl))
+            return false;
+
         synchronized (childContacts)
         {
-            return this.childContacts.contains(contact);
+            return this.childContacts.contains((MetaContactImpl) contact);
         }
     }
 
@@ -949,6 +971,10 @@ public String toString()
     void addProtoGroup( ContactGroup protoGroup)
     {
         protoGroups.add(protoGroup);
+
+        MetaContactListIndex index = getAttachedIndex();
+        if (index != null)
+            index.addProtoGroup(this, protoGroup);
     }
 
     /**
@@ -960,6 +986,8 @@ void addProtoGroup( ContactGroup protoGroup)
     void removeProtoGroup( ContactGroup protoGroup)
     {
         protoGroups.remove(protoGroup);
+
+        mclServiceImpl.getIndex().removeProtoGroup(this, protoGroup);
     }
 
     /**
@@ -977,6 +1005,10 @@ void addSubgroup(MetaContactGroup subgroup)
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        MetaContactListIndex index = getAttachedIndex();
+        if (index != null)
+            index.addGroup((MetaContactGroupImpl)subgroup);
     }
 
     /**
@@ -994,6 +1026,8 @@ MetaContactGroupImpl removeSubgroup(int index)
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
+        mclServiceImpl.getIndex().removeGroup(subgroup);
+
         return subgroup;
     }
 
@@ -1026,6 +1060,26 @@ final MetaContactListServiceImpl getMclServiceImpl()
         return mclServiceImpl;
     }
 
+    /**
+     * Returns the index of the contact list if this group is attached to its
+     * root group, so that the contacts and groups added to this group must
+     * be indexed.
+     *
+     * @return the index of the contact list or <tt>null</tt> if this group
+     * is not in the contact list
+     */
+    MetaContactListIndex getAttachedIndex()
+    {
+        MetaContactGroupImpl group = this;
+
+        while (group.parentMetaContactGroup != null)
+            group = group.parentMetaContactGroup;
+
+        return (group == mclServiceImpl.getRoot())
+            ? mclServiceImpl.getIndex()
+            : null;
+    }
+
     /**
      * Implements {@link MetaContactGroup#getData(Object)}.
      * @return the data value corresponding to the given key
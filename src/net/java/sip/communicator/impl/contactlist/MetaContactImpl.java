@@ -683,6 +683,13 @@ void addProtoContact(Contact contact)
 
             this.protoContacts.add(contact);
 
+            if (parentGroup != null)
+            {
+                MetaContactListIndex index = parentGroup.getAttachedIndex();
+                if (index != null)
+                    index.addContact(this, contact);
+            }
+
             // Re-init the default contact.
             defaultContact = null;
 
@@ -781,6 +788,12 @@ void removeProtoContact(Contact contact)
             contactsOnline -= contact.getPresenceStatus().isOnline() ? 1 : 0;
             this.protoContacts.remove(contact);
 
+            if (parentGroup != null)
+            {
+                parentGroup.getMclServiceImpl().getIndex()
+                    .removeContact(this, contact);
+            }
+
             if (defaultContact == contact)
                 defaultContact = null;
 
@@ -832,6 +845,13 @@ boolean removeContactsForProvider(ProtocolProviderService provider)
             {
                 contactsIter.remove();
                 modified = true;
+
+                MetaContactGroupImpl parentGroup = this.parentGroup;
+                if (parentGroup != null)
+                {
+                    parentGroup.getMclServiceImpl().getIndex()
+                        .removeContact(this, contact);
+                }
             }
         }
 
@@ -865,6 +885,13 @@ boolean removeContactsForGroup(ContactGroup protoGroup)
             {
                 contactsIter.remove();
                 modified = true;
+
+                MetaContactGroupImpl parentGroup = this.parentGroup;
+                if (parentGroup != null)
+                {
+                    parentGroup.getMclServiceImpl().getIndex()
+                        .removeContact(this, contact);
+                }
             }
         }
 
@@ -0,0 +1,315 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts and meta groups of a contact list by meta UID,
+ * the meta contacts by the address of their protocol contacts and the meta
+ * groups by their protocol groups, so that the contact list can find them
+ * without going through the whole tree.
+ * <p>
+ * Only the contacts and groups which are attached to the root group of the
+ * contact list are indexed. The groups and contacts keep the index up to
+ * date as they are added to and removed from the tree.
+ */
+class MetaContactListIndex
+{
+    /**
+     * The meta contacts by meta UID.
+     */
+    private final Map<String, MetaContactImpl> contactsByUID
+        = new HashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta groups by meta UID.
+     */
+    private final Map<String, MetaContactGroupImpl> groupsByUID
+        = new HashMap<String, MetaContactGroupImpl>();
+
+    /**
+     * The meta contacts by the address of their protocol contacts, of which
+     * there is rarely more than one for an address.
+     */
+    private final Map<String, List<MetaContactImpl>> contactsByAddress
+        = new HashMap<String, List<MetaContactImpl>>();
+
+    /**
+     * The meta groups by protocol group. Protocol groups may compute their
+     * hash code from their name, which changes when they are renamed, so
+     * they are compared by identity.
+     */
+    private final Map<ContactGroup, MetaContactGroupImpl> groupsByProtoGroup
+        = new IdentityHashMap<ContactGroup, MetaContactGroupImpl>();
+
+    /**
+     * Indexes a meta group, its protocol groups and, recursively, its
+     * meta contacts and subgroups.
+     *
+     * @param group the meta group
+     */
+    synchronized void addGroup(MetaContactGroupImpl group)
+    {
+        groupsByUID.put(group.getMetaUID(), group);
+
+        Iterator<ContactGroup> protoGroups = group.getContactGroups();
+        while (protoGroups.hasNext())
+            groupsByProtoGroup.put(protoGroups.next(), group);
+
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+            addMetaContact((MetaContactImpl) contacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addGroup((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Removes a meta group, its protocol groups and, recursively, its meta
+     * contacts and subgroups from the index.
+     *
+     * @param group the meta group
+     */
+    synchronized void removeGroup(MetaContactGroupImpl group)
+    {
+        if (groupsByUID.get(group.getMetaUID()) == group)
+            groupsByUID.remove(group.getMetaUID());
+
+        Iterator<ContactGroup> protoGroups = group.getContactGroups();
+        while (protoGroups.hasNext())
+            removeProtoGroup(group, protoGroups.next());
+
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+            removeMetaContact((MetaContactImpl) contacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeGroup((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Indexes a protocol group of a meta group.
+     *
+     * @param group the meta group
+     * @param protoGroup the protocol group
+     */
+    synchronized void addProtoGroup(
+            MetaContactGroupImpl group,
+            ContactGroup protoGroup)
+    {
+        groupsByProtoGroup.put(protoGroup, group);
+    }
+
+    /**
+     * Removes a protocol group of a meta group from the index.
+     *
+     * @param group the meta group
+     * @param protoGroup the protocol group
+     */
+    synchronized void removeProtoGroup(
+            MetaContactGroupImpl group,
+            ContactGroup protoGroup)
+    {
+        if (groupsByProtoGroup.get(protoGroup) == group)
+            groupsByProtoGroup.remove(protoGroup);
+    }
+
+    /**
+     * Indexes a meta contact and its protocol contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    synchronized void addMetaContact(MetaContactImpl metaContact)
+    {
+        contactsByUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            addContact(metaContact, contacts.next());
+    }
+
+    /**
+     * Removes a meta contact and its protocol contacts from the index.
+     *
+     * @param metaContact the meta contact
+     */
+    synchronized void removeMetaContact(MetaContactImpl metaContact)
+    {
+        if (contactsByUID.get(metaContact.getMetaUID()) == metaContact)
+            contactsByUID.remove(metaContact.getMetaUID());
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            removeAddress(metaContact, contacts.next().getAddress());
+    }
+
+    /**
+     * Indexes a protocol contact of a meta contact.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    synchronized void addContact(MetaContactImpl metaContact, Contact contact)
+    {
+        String address = contact.getAddress();
+        List<MetaContactImpl> metaContacts = contactsByAddress.get(address);
+
+        if (metaContacts == null)
+        {
+            metaContacts = new ArrayList<MetaContactImpl>(1);
+            contactsByAddress.put(address, metaContacts);
+        }
+        if (!metaContacts.contains(metaContact))
+            metaContacts.add(metaContact);
+    }
+
+    /**
+     * Removes a protocol contact which a meta contact no longer holds from
+     * the index.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    synchronized void removeContact(
+            MetaContactImpl metaContact,
+            Contact contact)
+    {
+        String address = contact.getAddress();
+
+        // the meta contact may hold the address from another provider
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+        {
+            if (contacts.next().getAddress().equals(address))
+                return;
+        }
+
+        removeAddress(metaContact, address);
+    }
+
+    /**
+     * Removes a meta contact from those listed for an address.
+     *
+     * @param metaContact the meta contact
+     * @param address the address
+     */
+    private void removeAddress(MetaContactImpl metaContact, String address)
+    {
+        List<MetaContactImpl> metaContacts = contactsByAddress.get(address);
+
+        if (metaContacts != null
+                && metaContacts.remove(metaContact)
+                && metaContacts.isEmpty())
+        {
+            contactsByAddress.remove(address);
+        }
+    }
+
+    /**
+     * Returns the meta contact with a given meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta contact or <tt>null</tt> if none has that UID
+     */
+    synchronized MetaContactImpl findMetaContactByMetaUID(String metaUID)
+    {
+        return contactsByUID.get(metaUID);
+    }
+
+    /**
+     * Returns the meta group with a given meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta group or <tt>null</tt> if none has that UID
+     */
+    synchronized MetaContactGroupImpl findMetaContactGroupByMetaUID(
+            String metaUID)
+    {
+        return groupsByUID.get(metaUID);
+    }
+
+    /**
+     * Returns the meta group a protocol group was last indexed for.
+     *
+     * @param protoGroup the protocol group
+     * @return the meta group or <tt>null</tt>
+     */
+    synchronized MetaContactGroupImpl findMetaContactGroupByContactGroup(
+            ContactGroup protoGroup)
+    {
+        return groupsByProtoGroup.get(protoGroup);
+    }
+
+    /**
+     * Returns the meta contact holding a protocol contact with a given
+     * address from a given provider.
+     *
+     * @param address the address of the protocol contact
+     * @param provider the provider of the protocol contact
+     * @return the meta contact or <tt>null</tt> if there is no such
+     * protocol contact
+     */
+    synchronized MetaContactImpl findMetaContactByContact(
+            String address,
+            ProtocolProviderService provider)
+    {
+        List<MetaContactImpl> metaContacts = contactsByAddress.get(address);
+
+        if (metaContacts != null)
+        {
+            for (MetaContactImpl metaContact : metaContacts)
+            {
+                if (metaContact.getContact(address, provider) != null)
+                    return metaContact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the meta contact holding a protocol contact with a given
+     * address from the provider of a given account.
+     *
+     * @param address the address of the protocol contact
+     * @param accountID the unique ID of the account of the provider
+     * @return the meta contact or <tt>null</tt> if there is no such
+     * protocol contact
+     */
+    synchronized MetaContactImpl findMetaContactByContact(
+            String address,
+            String accountID)
+    {
+        List<MetaContactImpl> metaContacts = contactsByAddress.get(address);
+
+        if (metaContacts != null)
+        {
+            for (MetaContactImpl metaContact : metaContacts)
+            {
+                if (metaContact.getContact(address, accountID) != null)
+                    return metaContact;
+            }
+        }
+        return null;
+    }
+}
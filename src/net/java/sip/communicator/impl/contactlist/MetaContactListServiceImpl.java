@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.contactlist;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -86,10 +87,26 @@
 
     /**
      * Listeners interested in events dispatched upon modification of the meta
-     * contact list.
+     * contact list. The list is copied when listeners are added or removed,
+     * so events are dispatched without locking it.
      */
-    private final List<MetaContactListListener> metaContactListListeners
-        = new Vector<MetaContactListListener>();
+    private final List<ListenerEntry> metaContactListListeners
+        = new CopyOnWriteArrayList<ListenerEntry>();
+
+    /**
+     * The listener which does not receive the events fired by the current
+     * thread, because the thread applies changes the listener must not be
+     * told about.
+     */
+    private final ThreadLocal<MetaContactListListener> mutedListener
+        = new ThreadLocal<MetaContactListListener>();
+
+    /**
+     * The events fired by the current thread which are held back until the
+     * thread releases a lock the listeners may need.
+     */
+    private final ThreadLocal<List<EventObject>> deferredEvents
+        = new ThreadLocal<List<EventObject>>();
 
     /**
      * Contains (as keys) <tt>MetaContactGroup</tt> names that are currently
@@ -125,6 +142,35 @@
      */
     private final MclStorageManager storageManager = new MclStorageManager();
 
+    /**
+     * The index of the contacts and groups attached to
+     * <tt>rootMetaGroup</tt>, which the find methods look up instead of
+     * going through the whole contact list.
+     */
+    private final MetaContactListIndex index = new MetaContactListIndex();
+
+    /**
+     * The time in milliseconds during which the groups reordered by
+     * presence changes are collected before a single
+     * <tt>CHILD_CONTACTS_REORDERED</tt> event is fired for each of them.
+     */
+    private static final long REORDER_EVENT_DELAY = 250;
+
+    /**
+     * The groups reordered by presence changes which we have not fired a
+     * <tt>CHILD_CONTACTS_REORDERED</tt> event for yet, mapped to the
+     * provider of the first change.
+     */
+    private final Map<MetaContactGroup, ProtocolProviderService>
+        pendingReorderedGroups
+            = new LinkedHashMap<MetaContactGroup, ProtocolProviderService>();
+
+    /**
+     * The timer firing the pending <tt>CHILD_CONTACTS_REORDERED</tt>
+     * events, <tt>null</tt> when the service is not started.
+     */
+    private Timer reorderEventTimer = null;
+
     /**
      * Creates an instance of this class.
      */
@@ -134,6 +180,7 @@ public MetaContactListServiceImpl()
             = new MetaContactGroupImpl(
                     this, ContactlistActivator.getResources().getI18NString(
                         "service.gui.CONTACTS"), "RootMetaContactGroup");
+        index.addGroup(rootMetaGroup);
     }
 
     /**
@@ -165,6 +212,12 @@ public void start(BundleContext bc)
             logger.debug("Starting the meta contact list implementation.");
         this.bundleContext = bc;
 
+        synchronized (pendingReorderedGroups)
+        {
+            reorderEventTimer
+                = new Timer("MetaContactList reorder events", true);
+        }
+
         //initialize the meta contact list from what has been stored locally.
         try
         {
@@ -246,11 +299,23 @@ public void stop(BundleContext bc)
         }
         currentlyInstalledProviders.clear();
         storageManager.stop();
+
+        synchronized (pendingReorderedGroups)
+        {
+            if (reorderEventTimer != null)
+            {
+                reorderEventTimer.cancel();
+                reorderEventTimer = null;
+            }
+        }
+        firePendingReorderedEvents();
     }
 
     /**
      * Adds a listener for <tt>MetaContactListChangeEvent</tt>s posted after
-     * the tree changes.
+     * the tree changes. An <tt>AsynchronousMetaContactListListener</tt>
+     * receives the events in a thread of its own, in the order they were
+     * fired.
      *
      * @param listener the listener to add
      */
@@ -258,11 +323,64 @@ public void addMetaContactListListener(MetaContactListListener listener)
     {
         synchronized (metaContactListListeners)
         {
-            if(!metaContactListListeners.contains(listener))
-                metaContactListListeners.add(listener);
+            for (ListenerEntry entry : metaContactListListeners)
+            {
+                if (entry.listener.equals(listener))
+                    return;
+            }
+            metaContactListListeners.add(
+                new ListenerEntry(
+                        listener,
+                        listener
+                            instanceof AsynchronousMetaContactListListener));
         }
     }
 
+    /**
+     * Stops delivering the events fired by the current thread to a listener,
+     * for example while the thread applies changes made by the listener
+     * itself. The events fired by other threads are still delivered.
+     *
+     * @param listener the listener which is not to receive the events fired
+     * by the current thread or <tt>null</tt> to deliver them to all
+     * listeners again
+     */
+    void setMutedListener(MetaContactListListener listener)
+    {
+        if (listener == null)
+            mutedListener.remove();
+        else
+            mutedListener.set(listener);
+    }
+
+    /**
+     * Holds back the events fired by the current thread until
+     * <tt>fireDeferredEvents</tt> is called, for example while the thread
+     * holds a lock which the listeners may need.
+     */
+    void deferEvents()
+    {
+        if (deferredEvents.get() == null)
+            deferredEvents.set(new ArrayList<EventObject>());
+    }
+
+    /**
+     * Delivers the events held back since <tt>deferEvents</tt> was called by
+     * the current thread, in the order they were fired, and stops holding
+     * back the events of the thread.
+     */
+    void fireDeferredEvents()
+    {
+        List<EventObject> events = deferredEvents.get();
+
+        if (events == null)
+            return;
+        deferredEvents.remove();
+
+        for (EventObject evt : events)
+            dispatchEvent(evt);
+    }
+
     /**
      * First makes the specified protocol provider create the contact as
      * indicated by <tt>contactID</tt>, and then associates it to the
@@ -812,6 +930,16 @@ public MetaContactGroup getRoot()
         return rootMetaGroup;
     }
 
+    /**
+     * Returns the index of the contacts and groups of this contact list.
+     *
+     * @return the index of the contacts and groups of this contact list
+     */
+    MetaContactListIndex getIndex()
+    {
+        return index;
+    }
+
     /**
      * Sets the display name for <tt>metaContact</tt> to be <tt>newName</tt>.
      * <p>
@@ -1376,7 +1504,14 @@ public void removeMetaContactListListener(
     {
         synchronized (metaContactListListeners)
         {
-            this.metaContactListListeners.remove(listener);
+            for (ListenerEntry entry : metaContactListListeners)
+            {
+                if (entry.listener.equals(listener))
+                {
+                    metaContactListListeners.remove(entry);
+                    entry.stop();
+                }
+            }
         }
     }
 
@@ -1626,7 +1761,17 @@ private void locallyRemoveAllContactsForProvider(
     public MetaContactGroup findMetaContactGroupByContactGroup
         (ContactGroup contactGroup)
     {
-        return rootMetaGroup.findMetaContactGroupByContactGroup(contactGroup);
+        MetaContactGroup metaGroup
+            = index.findMetaContactGroupByContactGroup(contactGroup);
+
+        // protocol groups may be equal without being the same instance
+        if (metaGroup == null)
+        {
+            metaGroup
+                = rootMetaGroup.findMetaContactGroupByContactGroup(
+                        contactGroup);
+        }
+        return metaGroup;
     }
 
     /**
@@ -1644,7 +1789,14 @@ private void locallyRemoveAllContactsForProvider(
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        MetaContact metaContact
+            = index.findMetaContactByContact(
+                    contact.getAddress(), contact.getProtocolProvider());
+
+        // protocol contacts may be equal without having the same address
+        if (metaContact == null)
+            metaContact = rootMetaGroup.findMetaContactByContact(contact);
+        return metaContact;
     }
 
     /**
@@ -1667,8 +1819,18 @@ public MetaContact findMetaContactByContact(Contact contact)
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        MetaContact metaContact
+            = index.findMetaContactByContact(contactAddress, accountID);
+
+        // protocol contacts may equal an address which is not the one they
+        // are indexed by, for example in another case or with parameters
+        if (metaContact == null)
+        {
+            metaContact
+                = rootMetaGroup.findMetaContactByContact(
+                        contactAddress, accountID);
+        }
+        return metaContact;
     }
 
     /**
@@ -1681,8 +1843,7 @@ public MetaContact findMetaContactByContact(String contactAddress,
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return index.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -1696,7 +1857,7 @@ public MetaContact findMetaContactByMetaUID(String metaContactID)
      */
     public MetaContactGroup findMetaContactGroupByMetaUID(String metaGroupID)
     {
-        return rootMetaGroup.findMetaContactGroupByMetaUID(metaGroupID);
+        return index.findMetaContactGroupByMetaUID(metaGroupID);
     }
 
     /**
@@ -2437,10 +2598,16 @@ else if (event.getType() == ServiceEvent.UNREGISTERING)
                 // which will be resolved from the already modified account
                 synchronized(this)
                 {
-                    this.removeMetaContactListListener(storageManager);
-                    this.handleProviderRemoved(
-                        (ProtocolProviderService)sService);
-                    this.addMetaContactListListener(storageManager);
+                    setMutedListener(storageManager);
+                    try
+                    {
+                        this.handleProviderRemoved(
+                            (ProtocolProviderService)sService);
+                    }
+                    finally
+                    {
+                        setMutedListener(null);
+                    }
                 }
 
                 return;
@@ -3005,7 +3172,7 @@ public void groupNameChanged(ServerStoredGroupEvent evt)
      * to.
      * @param eventID the id indicating the exavt type of the event to fire.
      */
-    private synchronized void fireMetaContactEvent(MetaContact sourceContact,
+    private void fireMetaContactEvent(MetaContact sourceContact,
                                       MetaContactGroup parentGroup,
                                       int eventID)
     {
@@ -3015,90 +3182,157 @@ private synchronized void fireMetaContactEvent(MetaContact sourceContact,
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (evt.getEventID())
-            {
-                case MetaContactEvent.META_CONTACT_ADDED:
-                    listener.metaContactAdded(evt);
-                    break;
-                case MetaContactEvent.META_CONTACT_REMOVED:
-                    listener.metaContactRemoved(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type " + evt.getEventID());
-            }
-        }
+        dispatchEvent(evt);
     }
 
     /**
-     * Gets a copy of the list of current <code>MetaContactListListener</code>
-     * interested in events fired by this instance.
+     * Delivers an event to the registered <tt>MetaContactListListener</tt>s,
+     * in the current thread or in the threads of the asynchronous listeners.
+     * The listeners are not locked during the delivery, so a slow listener
+     * only holds up the thread firing the event.
      *
-     * @return an array of <code>MetaContactListListener</code>s currently
-     *         interested in events fired by this instance. The returned array
-     *         is a copy of the internal listener storage and thus can be safely
-     *         modified.
+     * @param evt the event to deliver
      */
-    private MetaContactListListener[] getMetaContactListListeners()
+    private void dispatchEvent(EventObject evt)
     {
-        MetaContactListListener[] listeners;
+        List<EventObject> deferred = deferredEvents.get();
 
-        synchronized (metaContactListListeners)
+        if (deferred != null)
         {
-            listeners
-                = metaContactListListeners.toArray(
-                        new MetaContactListListener[
-                                metaContactListListeners.size()]);
+            deferred.add(evt);
+            return;
+        }
+
+        MetaContactListListener muted = mutedListener.get();
+
+        for (ListenerEntry entry : metaContactListListeners)
+        {
+            if (muted != null && muted.equals(entry.listener))
+                continue;
+
+            entry.dispatchEvent(evt);
         }
-        return listeners;
     }
 
     /**
-     * Creates the corresponding <tt>MetaContactPropertyChangeEvent</tt>
-     * instance and notifies all <tt>MetaContactListListener</tt>s that a
-     * MetaContact has been modified. Synchronized to avoid firing events
-     * when we are editing the account (there we temporally remove and then
-     * add again the storage manager and don't want anybody to interrupt us).
+     * Calls the method of a <tt>MetaContactListListener</tt> corresponding to
+     * an event.
      *
-     * @param event the event to dispatch.
+     * @param listener the listener
+     * @param evt the event
      */
-    synchronized void fireMetaContactEvent(MetaContactPropertyChangeEvent event)
+    private static void deliverEvent(MetaContactListListener listener,
+                                     EventObject evt)
     {
-        if (logger.isTraceEnabled())
-            logger.trace("Will dispatch the following mcl property change event: "
-                     + event);
+        if (evt instanceof MetaContactEvent)
+        {
+            MetaContactEvent metaContactEvent = (MetaContactEvent) evt;
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
+            switch (metaContactEvent.getEventID())
+            {
+                case MetaContactEvent.META_CONTACT_ADDED:
+                    listener.metaContactAdded(metaContactEvent);
+                    break;
+                case MetaContactEvent.META_CONTACT_REMOVED:
+                    listener.metaContactRemoved(metaContactEvent);
+                    break;
+                default:
+                    logger.error("Unknown event type "
+                        + metaContactEvent.getEventID());
+            }
+        }
+        else if (evt instanceof MetaContactMovedEvent)
         {
-            if (event instanceof MetaContactMovedEvent)
+            listener.metaContactMoved((MetaContactMovedEvent) evt);
+        }
+        else if (evt instanceof MetaContactRenamedEvent)
+        {
+            listener.metaContactRenamed((MetaContactRenamedEvent) evt);
+        }
+        else if (evt instanceof MetaContactModifiedEvent)
+        {
+            listener.metaContactModified((MetaContactModifiedEvent) evt);
+        }
+        else if (evt instanceof MetaContactAvatarUpdateEvent)
+        {
+            listener.metaContactAvatarUpdated(
+                (MetaContactAvatarUpdateEvent) evt);
+        }
+        else if (evt instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent protoContactEvent = (ProtoContactEvent) evt;
+            String eventName = protoContactEvent.getPropertyName();
+
+            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
             {
-                listener.metaContactMoved( (MetaContactMovedEvent) event);
+                listener.protoContactAdded(protoContactEvent);
             }
-            else if (event instanceof MetaContactRenamedEvent)
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
+            {
+                listener.protoContactMoved(protoContactEvent);
+            }
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
             {
-                listener.metaContactRenamed( (MetaContactRenamedEvent) event);
+                listener.protoContactRemoved(protoContactEvent);
             }
-            else if (event instanceof MetaContactModifiedEvent)
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
             {
-                listener.metaContactModified( (MetaContactModifiedEvent) event);
+                listener.protoContactModified(protoContactEvent);
             }
-            else if (event instanceof MetaContactAvatarUpdateEvent)
+        }
+        else if (evt instanceof MetaContactGroupEvent)
+        {
+            MetaContactGroupEvent groupEvent = (MetaContactGroupEvent) evt;
+            int eventID = groupEvent.getEventID();
+
+            switch (eventID)
             {
-                listener.metaContactAvatarUpdated(
-                    (MetaContactAvatarUpdateEvent) event);
+                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
+                    listener.metaContactGroupAdded(groupEvent);
+                    break;
+                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
+                    listener.metaContactGroupRemoved(groupEvent);
+                    break;
+                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
+                    listener.childContactsReordered(groupEvent);
+                    break;
+                case MetaContactGroupEvent
+                    .META_CONTACT_GROUP_RENAMED:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
+                    listener.metaContactGroupModified(groupEvent);
+                    break;
+                default:
+                    logger.error("Unknown event type (" + eventID
+                                 + ") for event: " + groupEvent);
             }
         }
     }
 
+    /**
+     * Creates the corresponding <tt>MetaContactPropertyChangeEvent</tt>
+     * instance and notifies all <tt>MetaContactListListener</tt>s that a
+     * MetaContact has been modified.
+     *
+     * @param event the event to dispatch.
+     */
+    void fireMetaContactEvent(MetaContactPropertyChangeEvent event)
+    {
+        if (logger.isTraceEnabled())
+            logger.trace("Will dispatch the following mcl property change event: "
+                     + event);
+
+        dispatchEvent(event);
+    }
+
     /**
      * Creates the corresponding <tt>ProtoContactEvent</tt> instance and
      * notifies all <tt>MetaContactListListener</tt>s that a protocol specific
      * <tt>Contact</tt> has been added moved or removed.
-     * Synchronized to avoid firing events
-     * when we are editing the account (there we temporally remove and then
-     * add again the storage manager and don't want anybody to interrupt us).
-     *
      * @param source the contact that has caused the event.
      * @param eventName One of the ProtoContactEvent.PROTO_CONTACT_XXX fields
      * indicating the exact type of the event.
@@ -3109,7 +3343,7 @@ else if (event instanceof MetaContactAvatarUpdateEvent)
      * <tt>Contact</tt> after the event occurred or <tt>null</tt> if the event
      * is caused by removing a <tt>Contact</tt>
      */
-    private synchronized void fireProtoContactEvent(Contact     source,
+    private void fireProtoContactEvent(Contact     source,
                                        String      eventName,
                                        MetaContact oldParent,
                                        MetaContact newParent)
@@ -3121,25 +3355,7 @@ private synchronized void fireProtoContactEvent(Contact     source,
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
-            {
-                listener.protoContactAdded(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
-            {
-                listener.protoContactMoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
-            {
-                listener.protoContactRemoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
-            {
-                listener.protoContactModified(event);
-            }
-        }
+        dispatchEvent(event);
     }
 
     /**
@@ -3165,12 +3381,81 @@ public void contactPresenceStatusChanged(
         int newContactIndex = metaContactImpl.reevalContact();
 
         if(oldContactIndex != newContactIndex)
+        {
+            MetaContactGroup parentGroup
+                = findParentMetaContactGroup(metaContactImpl);
+
+            if (parentGroup != null)
+                addPendingReorderedEvent(parentGroup, evt.getSourceProvider());
+        }
+    }
+
+    /**
+     * Schedules a <tt>CHILD_CONTACTS_REORDERED</tt> event for a group
+     * reordered by a presence change. At login providers deliver the
+     * presence of their contacts in bursts, so the events of the changes
+     * which follow within <tt>REORDER_EVENT_DELAY</tt> are merged and each
+     * reordered group gets a single event.
+     *
+     * @param group the reordered group
+     * @param provider the provider of the contact whose presence changed
+     */
+    private void addPendingReorderedEvent(
+            MetaContactGroup group,
+            ProtocolProviderService provider)
+    {
+        synchronized (pendingReorderedGroups)
+        {
+            if (reorderEventTimer != null)
+            {
+                if (pendingReorderedGroups.isEmpty())
+                {
+                    reorderEventTimer.schedule(new TimerTask()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            firePendingReorderedEvents();
+                        }
+                    }, REORDER_EVENT_DELAY);
+                }
+                if (!pendingReorderedGroups.containsKey(group))
+                    pendingReorderedGroups.put(group, provider);
+                return;
+            }
+        }
+
+        // we are not started, so there is nothing to wait for
+        fireMetaContactGroupEvent(
+            group, provider, null,
+            MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+    }
+
+    /**
+     * Fires a <tt>CHILD_CONTACTS_REORDERED</tt> event for each of the groups
+     * reordered by presence changes since the last time.
+     */
+    private void firePendingReorderedEvents()
+    {
+        Map<MetaContactGroup, ProtocolProviderService> groups;
+
+        synchronized (pendingReorderedGroups)
+        {
+            if (pendingReorderedGroups.isEmpty())
+                return;
+
+            groups
+                = new LinkedHashMap<MetaContactGroup, ProtocolProviderService>(
+                        pendingReorderedGroups);
+            pendingReorderedGroups.clear();
+        }
+
+        for (Map.Entry<MetaContactGroup, ProtocolProviderService> e
+                : groups.entrySet())
         {
             fireMetaContactGroupEvent(
-                findParentMetaContactGroup(metaContactImpl)
-                , evt.getSourceProvider()
-                , null
-                , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+                e.getKey(), e.getValue(), null,
+                MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
         }
     }
 
@@ -3348,10 +3633,6 @@ MetaContactImpl loadStoredMetaContact(
      * Creates the corresponding MetaContactGroup event and notifies all
      * <tt>MetaContactListListener</tt>s that a MetaContactGroup is added or
      * removed from the MetaContactList.
-     * Synchronized to avoid firing events
-     * when we are editing the account (there we temporally remove and then
-     * add again the storage manager and don't want anybody to interrupt us).
-     *
      * @param source
      *            the MetaContactGroup instance that is added to the
      *            MetaContactList
@@ -3363,7 +3644,7 @@ MetaContactImpl loadStoredMetaContact(
      *            one of the METACONTACT_GROUP_XXX static fields indicating the
      *            nature of the event.
      */
-    private synchronized void fireMetaContactGroupEvent( MetaContactGroup source,
+    private void fireMetaContactGroupEvent( MetaContactGroup source,
                                             ProtocolProviderService provider,
                                             ContactGroup sourceProtoGroup,
                                             int eventID)
@@ -3375,32 +3656,133 @@ private synchronized void fireMetaContactGroupEvent( MetaContactGroup source,
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
+        dispatchEvent(evt);
+    }
+
+    /**
+     * A registered <tt>MetaContactListListener</tt>, which receives the
+     * events either in the thread firing them or, if it is asynchronous, in
+     * a thread of its own in the order they were fired.
+     */
+    private static class ListenerEntry
+        implements Runnable
+    {
+        /**
+         * The listener.
+         */
+        final MetaContactListListener listener;
+
+        /**
+         * The events waiting to be delivered to an asynchronous listener, or
+         * <tt>null</tt> if the listener is synchronous.
+         */
+        private final LinkedList<EventObject> pendingEvents;
+
+        /**
+         * Whether the listener has been removed and the thread delivering
+         * its events is to stop.
+         */
+        private boolean stopped = false;
+
+        ListenerEntry(MetaContactListListener listener, boolean asynchronous)
         {
-            switch (eventID)
+            this.listener = listener;
+
+            if (asynchronous)
             {
-                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
-                    listener.metaContactGroupAdded(evt);
-                    break;
-                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
-                    listener.metaContactGroupRemoved(evt);
-                    break;
-                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
-                    listener.childContactsReordered(evt);
-                    break;
-                case MetaContactGroupEvent
-                    .META_CONTACT_GROUP_RENAMED:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
-                    listener.metaContactGroupModified(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type (" + eventID
-                                 + ") for event: " + evt);
+                pendingEvents = new LinkedList<EventObject>();
+
+                Thread thread = new Thread(this, getClass().getName());
+
+                thread.setDaemon(true);
+                thread.start();
+            }
+            else
+                pendingEvents = null;
+        }
+
+        /**
+         * Delivers an event to the listener, now or in the thread of the
+         * listener.
+         *
+         * @param evt the event
+         */
+        void dispatchEvent(EventObject evt)
+        {
+            if (pendingEvents == null)
+            {
+                deliverEvent(listener, evt);
+                return;
+            }
+
+            synchronized (pendingEvents)
+            {
+                if (stopped)
+                    return;
+                pendingEvents.add(evt);
+                pendingEvents.notify();
+            }
+        }
+
+        /**
+         * Stops the thread delivering the events to an asynchronous listener
+         * and drops the events it has not delivered yet.
+         */
+        void stop()
+        {
+            if (pendingEvents == null)
+                return;
+
+            synchronized (pendingEvents)
+            {
+                stopped = true;
+                pendingEvents.clear();
+                pendingEvents.notify();
+            }
+        }
+
+        /**
+         * Delivers the pending events to an asynchronous listener until the
+         * listener is removed.
+         */
+        public void run()
+        {
+            while (true)
+            {
+                EventObject evt;
+
+                synchronized (pendingEvents)
+                {
+                    boolean interrupted = false;
+
+                    while (!stopped && pendingEvents.isEmpty())
+                    {
+                        try
+                        {
+                            pendingEvents.wait();
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted)
+                        Thread.currentThread().interrupt();
+                    if (stopped)
+                        return;
+                    evt = pendingEvents.removeFirst();
+                }
+
+                try
+                {
+                    deliverEvent(listener, evt);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.error("Failed to deliver " + evt, t);
+                }
             }
         }
     }
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.gui.main.contactlist;
 
 import java.lang.reflect.*;
+import java.util.*;
 
 import javax.swing.*;
 import javax.swing.tree.*;
@@ -42,6 +43,19 @@
      */
     private final JTree parentTree;
 
+    /**
+     * The nodes inserted since {@link #beginBatch()} by parent node, which
+     * the tree has not been notified about yet, or <tt>null</tt> if the
+     * insertions are not being batched.
+     */
+    private Map<GroupNode, List<TreeNode>> batchedInsertions;
+
+    /**
+     * The lead selection row of the parent tree when the insertions started
+     * being batched.
+     */
+    private int batchSelectedRow;
+
     /**
      * Creates an instance of <tt>ContactListTreeModel</tt>.
      *
@@ -109,6 +123,8 @@ public void run()
         }
 
         // The following code is always invoked in the swing thread.
+        flushInsertions();
+
         int childCount = rootGroupNode.getChildCount();
         int[] removedIndexs = new int[childCount];
         Object[] removedNodes = new Object[childCount];
@@ -122,6 +138,154 @@ public void run()
         nodesWereRemoved(rootGroupNode, removedIndexs, removedNodes);
     }
 
+    /**
+     * Starts batching the insertions of nodes, so that the parent tree is
+     * notified once per parent node instead of once per inserted node when
+     * many contacts are added at a time. Must be called in the event
+     * dispatch thread and followed by {@link #endBatch()}.
+     */
+    void beginBatch()
+    {
+        if (batchedInsertions == null)
+        {
+            batchedInsertions = new LinkedHashMap<GroupNode, List<TreeNode>>();
+            batchSelectedRow = getLeadSelectionRow();
+        }
+    }
+
+    /**
+     * Notifies the parent tree of the nodes inserted since
+     * {@link #beginBatch()} and stops batching the insertions.
+     */
+    void endBatch()
+    {
+        if (batchedInsertions != null)
+        {
+            flushInsertions();
+            batchedInsertions = null;
+
+            GroupNode.refreshSelection(
+                    parentTree,
+                    batchSelectedRow,
+                    getLeadSelectionRow());
+        }
+    }
+
+    /**
+     * Determines whether the insertions of nodes are being batched.
+     *
+     * @return <tt>true</tt> if the insertions of nodes are being batched
+     */
+    boolean isBatching()
+    {
+        return batchedInsertions != null;
+    }
+
+    /**
+     * Notifies the parent tree that a node has been inserted, or records
+     * the insertion if insertions are being batched.
+     *
+     * @param parent the parent of the inserted node
+     * @param index the index of the inserted node
+     */
+    void nodeWasInserted(GroupNode parent, int index)
+    {
+        if (batchedInsertions == null)
+        {
+            nodesWereInserted(parent, new int[]{index});
+            return;
+        }
+
+        List<TreeNode> nodes = batchedInsertions.get(parent);
+
+        if (nodes == null)
+        {
+            nodes = new ArrayList<TreeNode>();
+            batchedInsertions.put(parent, nodes);
+        }
+        nodes.add(parent.getChildAt(index));
+    }
+
+    /**
+     * Notifies the parent tree of the insertions batched so far. Must be
+     * called before nodes are removed, so that the removed indexes match the
+     * nodes the parent tree knows, and before the parent tree is asked to
+     * expand a node which it may not know yet.
+     */
+    void flushInsertions()
+    {
+        if (batchedInsertions == null || batchedInsertions.isEmpty())
+            return;
+
+        Map<GroupNode, List<TreeNode>> insertions = batchedInsertions;
+        Set<TreeNode> insertedNodes = new HashSet<TreeNode>();
+
+        batchedInsertions = new LinkedHashMap<GroupNode, List<TreeNode>>();
+        for (List<TreeNode> nodes : insertions.values())
+            insertedNodes.addAll(nodes);
+
+        for (Map.Entry<GroupNode, List<TreeNode>> e : insertions.entrySet())
+        {
+            GroupNode parent = e.getKey();
+
+            // A node inserted in the same batch comes with its children and
+            // a node which is no longer in the tree has nothing to report.
+            if (insertedNodes.contains(parent)
+                    || (parent != rootGroupNode && !isInTree(parent)))
+                continue;
+
+            List<Integer> indexes = new ArrayList<Integer>();
+
+            for (TreeNode node : e.getValue())
+            {
+                int index = parent.getIndex(node);
+
+                if (index != -1)
+                    indexes.add(index);
+            }
+            if (indexes.isEmpty())
+                continue;
+
+            Collections.sort(indexes);
+
+            int[] childIndices = new int[indexes.size()];
+
+            for (int i = 0; i < childIndices.length; i++)
+                childIndices[i] = indexes.get(i);
+
+            nodesWereInserted(parent, childIndices);
+        }
+    }
+
+    /**
+     * Determines whether a node is attached to the root node.
+     *
+     * @param node the node
+     * @return <tt>true</tt> if <tt>node</tt> is attached to the root node
+     */
+    private boolean isInTree(TreeNode node)
+    {
+        while (node != null)
+        {
+            if (node == rootGroupNode)
+                return true;
+            node = node.getParent();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the current lead selection row of the parent tree.
+     *
+     * @return the current lead selection row
+     */
+    private int getLeadSelectionRow()
+    {
+        int[] rows = parentTree.getSelectionRows();
+
+        return ((rows != null) && (rows.length != 0)) ? rows[0] : -1;
+    }
+
     /**
      * Returns the parent tree.
      *
@@ -182,7 +182,9 @@ public void removeContact(UIContactImpl uiContact)
         // not found
         if(index == -1)
             return;
-        
+
+        treeModel.flushInsertions();
+
         int selectedIndex = getLeadSelectionRow();
 
         // We remove the node directly from the list, thus skipping all
@@ -252,6 +254,8 @@ public void removeContactGroup(UIGroupImpl uiGroup)
         if(index == -1)
             return;
 
+        treeModel.flushInsertions();
+
         int selectedIndex = getLeadSelectionRow();
 
         // We remove the node directly from the list, thus skipping all the
@@ -437,7 +441,7 @@ else if (treeNode instanceof GroupNode)
      */
     private void fireNodeInserted(int index)
     {
-        treeModel.nodesWereInserted(this, new int[]{index});
+        treeModel.nodeWasInserted(this, index);
     }
 
     /**
@@ -539,7 +543,28 @@ private TreePath getLeadSelectionPath()
      */
     private void refreshSelection(int lastSelectedIndex, int newSelectedIndex)
     {
-        JTree tree = treeModel.getParentTree();
+        // the parent tree does not know the batched nodes yet, the selection
+        // is refreshed once they are reported
+        if (treeModel.isBatching())
+            return;
+
+        refreshSelection(
+                treeModel.getParentTree(),
+                lastSelectedIndex,
+                newSelectedIndex);
+    }
+
+    /**
+     * Refreshes the selection paths of a tree.
+     *
+     * @param tree the tree
+     * @param lastSelectedIndex the last selected index
+     * @param newSelectedIndex the newly selected index
+     */
+    static void refreshSelection(JTree tree,
+                                 int lastSelectedIndex,
+                                 int newSelectedIndex)
+    {
         TreeUI treeUI = tree.getUI();
 
         if (treeUI instanceof SIPCommTreeUI)
@@ -108,7 +108,7 @@ public void applyFilter(FilterQuery filterQuery)
             // First add the MetaContactListSource
             filterQuery.addContactQuery(defaultQuery);
 
-            mclSource.startQuery(defaultQuery, filterPattern);
+            mclSource.startQuery(defaultQuery, filterString, filterPattern);
         }
         else if (sourceContactList.getDefaultFilter()
                     .equals(TreeContactList.historyFilter))
@@ -19,6 +19,7 @@
 
 import java.awt.*;
 import java.awt.event.*;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.List;
 
@@ -155,9 +156,43 @@
     private UIFilterQuery currentFilterQuery;
 
     /**
-     * The thread used to do the filtering.
+     * The delay in milliseconds before a search filter is applied, so that
+     * typing in the search field only filters once the user stops typing.
      */
-    private FilterThread filterThread;
+    private static final long SEARCH_FILTER_DELAY = 100;
+
+    /**
+     * The task which applies the last filter on the threads of the
+     * <tt>ContactQueryExecutor</tt>.
+     */
+    private ContactQueryExecutor.Task filterTask;
+
+    /**
+     * The longest time in milliseconds the event dispatch thread spends
+     * applying queued updates at a time, so that it keeps painting and
+     * handling input while a large contact list is being filled.
+     */
+    private static final long UPDATE_BATCH_TIME = 20;
+
+    /**
+     * The updates of the contact list requested outside the event dispatch
+     * thread, in the order they were requested.
+     */
+    private final List<Runnable> pendingUpdates = new LinkedList<Runnable>();
+
+    /**
+     * Schedules the application of {@link #pendingUpdates} on the event
+     * dispatch thread, once however many updates are queued in the meantime.
+     */
+    private final Runnable applyPendingUpdatesLater
+        = LowPriorityEventQueue.createRepetitiveInvokeLater(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        applyPendingUpdates(UPDATE_BATCH_TIME);
+                    }
+                });
 
     /**
      * Indicates that the received call image search has been canceled.
@@ -220,6 +255,9 @@ public TreeContactList(ContactListContainer clContainer)
 
         setTreeModel(treeModel);
 
+        // Filters are applied one at a time, in the order they were set.
+        ContactQueryExecutor.getInstance().setConcurrency(this, 1);
+
         // We hide the root node as it doesn't represent a real group.
         if (isRootVisible())
             setRootVisible(false);
@@ -365,7 +403,7 @@ private void contactChanged(final SourceContact sourceContact,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            invokeLaterBatched(new Runnable()
             {
                 public void run()
                 {
@@ -607,7 +645,7 @@ public void addContact( final UIContact contact,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            SwingUtilities.invokeLater(new Runnable()
+            invokeLaterBatched(new Runnable()
             {
                 public void run()
                 {
@@ -705,6 +743,71 @@ else if (group instanceof UIGroupImpl)
             this.expandGroup(treeModel.getRoot());
     }
 
+    /**
+     * Queues an update of the contact list requested outside the event
+     * dispatch thread. The queued updates are applied together, so that the
+     * tree is notified once per group of the contacts added in the meantime
+     * instead of once per contact.
+     *
+     * @param update the update to apply in the event dispatch thread
+     */
+    private void invokeLaterBatched(Runnable update)
+    {
+        synchronized (pendingUpdates)
+        {
+            pendingUpdates.add(update);
+        }
+        applyPendingUpdatesLater.run();
+    }
+
+    /**
+     * Applies the queued updates of the contact list for up to a given time
+     * and schedules the remaining ones for later.
+     *
+     * @param maxTime the time in milliseconds after which the remaining
+     * updates are left for later
+     */
+    private void applyPendingUpdates(long maxTime)
+    {
+        long now = System.currentTimeMillis();
+        long deadline
+            = (maxTime > Long.MAX_VALUE - now) ? Long.MAX_VALUE : (now + maxTime);
+
+        treeModel.beginBatch();
+        try
+        {
+            while (true)
+            {
+                Runnable update;
+
+                synchronized (pendingUpdates)
+                {
+                    if (pendingUpdates.isEmpty())
+                        break;
+                    if (System.currentTimeMillis() >= deadline)
+                    {
+                        applyPendingUpdatesLater.run();
+                        break;
+                    }
+                    update = pendingUpdates.remove(0);
+                }
+
+                try
+                {
+                    update.run();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Failed to update the contact list.", e);
+                }
+            }
+        }
+        finally
+        {
+            treeModel.endBatch();
+        }
+    }
+
     /**
      * Returns the root meta contact UI group.
      * @return the root meta contact UI group implementation.
@@ -826,7 +929,7 @@ private void addContact(final MetaContactQuery query,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            invokeLaterBatched(new Runnable()
             {
                 public void run()
                 {
@@ -857,7 +960,7 @@ public void addContact(final ContactQuery query,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            invokeLaterBatched(new Runnable()
             {
                 public void run()
                 {
@@ -887,7 +990,7 @@ public void removeContact(  final UIContact contact,
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            LowPriorityEventQueue.invokeLater(new Runnable()
+            invokeLaterBatched(new Runnable()
             {
                 public void run()
                 {
@@ -988,7 +1091,7 @@ public void addGroup(final UIGroup group, final boolean isSorted)
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            SwingUtilities.invokeLater(new Runnable()
+            invokeLaterBatched(new Runnable()
             {
                 public void run()
                 {
@@ -1033,7 +1136,7 @@ public void removeGroup(final UIGroup group)
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
-            SwingUtilities.invokeLater(new Runnable()
+            invokeLaterBatched(new Runnable()
             {
                 public void run()
                 {
@@ -1087,6 +1190,41 @@ public void run()
     @Override
     public void removeAll()
     {
+        clearTreeModel();
+    }
+
+    /**
+     * Removes all the nodes of the tree model in the event dispatch thread,
+     * after applying the updates queued before, so that the contacts added
+     * for the previous filter do not show up once the list is cleared for
+     * the next one.
+     */
+    private void clearTreeModel()
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            try
+            {
+                SwingUtilities.invokeAndWait(new Runnable()
+                {
+                    public void run()
+                    {
+                        clearTreeModel();
+                    }
+                });
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (InvocationTargetException e)
+            {
+                logger.error("Failed to clear the contact list.", e);
+            }
+            return;
+        }
+
+        applyPendingUpdates(Long.MAX_VALUE);
         treeModel.clear();
     }
 
@@ -1225,7 +1363,7 @@ public void setAutoSectionAllowed(boolean value)
      * @param filter the <tt>ContactListFilter</tt> to apply.
      * @return the filter query
      */
-    public FilterQuery applyFilter(ContactListFilter filter)
+    public FilterQuery applyFilter(final ContactListFilter filter)
     {
         if (logger.isDebugEnabled())
             logger.debug("Contact list filter applied: " + filter);
@@ -1233,86 +1371,61 @@ public FilterQuery applyFilter(ContactListFilter filter)
         if (currentFilterQuery != null && !currentFilterQuery.isCanceled())
             currentFilterQuery.cancel();
         rootUIGroup = null;
-        currentFilterQuery = new UIFilterQuery(this);
 
-        if (filterThread == null)
-        {
-            filterThread = new FilterThread();
-            filterThread.setFilter(filter);
-            filterThread.start();
-        }
-        else
-        {
-            filterThread.setFilter(filter);
+        final UIFilterQuery filterQuery = new UIFilterQuery(this);
 
-            synchronized (filterThread)
-            {
-                filterThread.notify();
-            }
-        }
+        currentFilterQuery = filterQuery;
 
-        return currentFilterQuery;
+        // A filter which has not been applied yet is replaced by this one.
+        if (filterTask != null)
+            filterTask.cancel();
+
+        filterTask
+            = ContactQueryExecutor.getInstance().submit(
+                    this,
+                    ContactQueryExecutor.PRIORITY_HIGH,
+                    (filter instanceof ContactListSearchFilter)
+                        ? SEARCH_FILTER_DELAY
+                        : 0,
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            runFilter(filter, filterQuery);
+                        }
+                    });
+
+        return filterQuery;
     }
 
     /**
-     * The <tt>SearchThread</tt> is meant to launch the search in a separate
-     * thread.
+     * Clears the contact list and applies a filter to it.
+     *
+     * @param filter the <tt>ContactListFilter</tt> to apply
+     * @param filterQuery the query tracking the filtering
      */
-    private class FilterThread extends Thread
+    private void runFilter(ContactListFilter filter, UIFilterQuery filterQuery)
     {
-        private ContactListFilter filter;
+        clearTreeModel();
 
-        public void setFilter(ContactListFilter filter)
+        if (!filterQuery.isCanceled())
         {
-            this.filter = filter;
-        }
+            if (currentFilter == null || !currentFilter.equals(filter))
+                currentFilter = filter;
 
-        @Override
-        public void run()
-        {
-            while (true)
+            setAutoSectionAllowed(false);
+            // If something goes wrong in our filters, we don't want the
+            // whole gui to crash.
+            try
             {
-                UIFilterQuery filterQuery = currentFilterQuery;
-                ContactListFilter filter = this.filter;
-
-                treeModel.clear();
-
-                if (!filterQuery.isCanceled())
-                {
-                    if (currentFilter == null || !currentFilter.equals(filter))
-                        currentFilter = filter;
-
-                    setAutoSectionAllowed(false);
-                    // If something goes wrong in our filters, we don't want the
-                    // whole gui to crash.
-                    try
-                    {
-                        currentFilter.applyFilter(filterQuery);
-                    }
-                    catch (Throwable t)
-                    {
-                        if (logger.isInfoEnabled())
-                            logger.info(
-                                "One of our contact list filters has crashed.",
-                                t);
-                    }
-                }
-
-                synchronized (this)
-                {
-                    try
-                    {
-                        // If in the mean time someone has changed the filter
-                        // we don't wait here.
-                        if (filterQuery == currentFilterQuery)
-                            this.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        if (logger.isInfoEnabled())
-                            logger.info("Filter thread was interrupted.", e);
-                    }
-                }
+                currentFilter.applyFilter(filterQuery);
+            }
+            catch (Throwable t)
+            {
+                if (logger.isInfoEnabled())
+                    logger.info(
+                        "One of our contact list filters has crashed.",
+                        t);
             }
         }
     }
@@ -1465,7 +1578,11 @@ public void run()
                 });
             }
             else
+            {
+                // the tree has to know the group before expanding it
+                treeModel.flushInsertions();
                 expandPath(path);
+            }
     }
 
     /**
@@ -0,0 +1,312 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.awt.*;
+import java.lang.ref.*;
+import java.util.*;
+
+import javax.swing.*;
+
+import net.java.sip.communicator.plugin.desktoputil.*;
+
+/**
+ * Caches the avatars of the contact list decoded and scaled to the sizes
+ * they are painted at, so that painting a row does not decode its avatar
+ * again.
+ * <p>
+ * The avatars are cached by contact and size. An avatar is only reused for
+ * the same avatar bytes, which are compared by identity first and by hash
+ * code and length if the contact returns a new array. The cache holds
+ * neither the contacts nor the avatar bytes strongly. The least recently
+ * used avatars are evicted once the cache is full, and all of them may be
+ * reclaimed by the garbage collector when memory is low.
+ */
+class AvatarImageCache
+{
+    /**
+     * The maximum number of cached avatars.
+     */
+    private static final int MAX_ENTRIES = 1000;
+
+    /**
+     * The cached avatars in least recently used order.
+     */
+    private static final Map<Key, Entry> entries
+        = new LinkedHashMap<Key, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * Returns the avatar of a contact scaled to a given size with rounded
+     * corners.
+     *
+     * @param contact the contact, for example a <tt>MetaContact</tt>
+     * @param avatar the bytes of the avatar of <tt>contact</tt>
+     * @param width the width of the scaled avatar
+     * @param height the height of the scaled avatar
+     * @return the scaled avatar or <tt>null</tt> if it could not be decoded
+     */
+    static ImageIcon getScaledRoundedIcon(Object contact,
+                                          byte[] avatar,
+                                          int width,
+                                          int height)
+    {
+        Key key = new Key(contact, width, height, false);
+        ImageIcon icon = get(key, avatar);
+
+        if (icon == null)
+        {
+            icon = ImageUtils.getScaledRoundedIcon(avatar, width, height);
+            put(key, avatar, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Returns an image scaled to a given size with rounded corners. The
+     * image is expected not to change for a given key.
+     *
+     * @param imageKey the key of the image, for example its identifier
+     * @param image the image
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @return the scaled image
+     */
+    static ImageIcon getScaledRoundedIcon(Object imageKey,
+                                          Image image,
+                                          int width,
+                                          int height)
+    {
+        Key key = new Key(imageKey, width, height, false);
+        ImageIcon icon = get(key, null);
+
+        if (icon == null)
+        {
+            icon = ImageUtils.getScaledRoundedIcon(image, width, height);
+            put(key, null, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Returns the avatar of a contact, scaled down with rounded corners if
+     * it is larger than a given size.
+     *
+     * @param contact the contact, for example a <tt>SourceContact</tt>
+     * @param avatar the bytes of the avatar of <tt>contact</tt>
+     * @param width the maximum width of the avatar
+     * @param height the maximum height of the avatar
+     * @return the avatar
+     */
+    static ImageIcon getIconWithinBounds(Object contact,
+                                         byte[] avatar,
+                                         int width,
+                                         int height)
+    {
+        Key key = new Key(contact, width, height, true);
+        ImageIcon icon = get(key, avatar);
+
+        if (icon == null)
+        {
+            icon = new ImageIcon(avatar);
+
+            if (icon.getIconWidth() > width || icon.getIconHeight() > height)
+            {
+                icon
+                    = ImageUtils.getScaledRoundedIcon(
+                            icon.getImage(),
+                            width, height);
+            }
+            put(key, avatar, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Removes the cached avatars of a contact, for example because its
+     * avatar has changed.
+     *
+     * @param contact the contact
+     */
+    static synchronized void remove(Object contact)
+    {
+        Iterator<Key> keys = entries.keySet().iterator();
+
+        while (keys.hasNext())
+        {
+            Object keyContact = keys.next().contact.get();
+
+            // also drop the avatars of the contacts which are gone
+            if ((keyContact == null) || keyContact.equals(contact))
+                keys.remove();
+        }
+    }
+
+    /**
+     * Returns a cached avatar if it was created from given avatar bytes.
+     *
+     * @param key the key of the avatar
+     * @param avatar the avatar bytes
+     * @return the cached avatar or <tt>null</tt>
+     */
+    private static synchronized ImageIcon get(Key key, byte[] avatar)
+    {
+        Entry entry = entries.get(key);
+
+        if (entry == null)
+            return null;
+
+        ImageIcon icon = entry.icon.get();
+
+        if (icon == null)
+        {
+            entries.remove(key);
+            return null;
+        }
+
+        if (entry.avatar.get() != avatar)
+        {
+            if (avatar == null
+                    || entry.avatarLength != avatar.length
+                    || entry.avatarHash != Arrays.hashCode(avatar))
+            {
+                return null;
+            }
+
+            // the same avatar in a new array, compare by identity next time
+            entry.avatar = new WeakReference<byte[]>(avatar);
+        }
+        return icon;
+    }
+
+    /**
+     * Caches an avatar.
+     *
+     * @param key the key of the avatar
+     * @param avatar the avatar bytes the avatar was created from
+     * @param icon the avatar, not cached if <tt>null</tt>
+     */
+    private static synchronized void put(Key key, byte[] avatar, ImageIcon icon)
+    {
+        if (icon == null)
+            entries.remove(key);
+        else
+            entries.put(key, new Entry(avatar, icon));
+    }
+
+    /**
+     * The key of a cached avatar.
+     */
+    private static class Key
+    {
+        /**
+         * The contact, which the cache does not keep from being collected.
+         */
+        final WeakReference<Object> contact;
+
+        /**
+         * The hash code of the contact.
+         */
+        final int contactHash;
+
+        final int width;
+
+        final int height;
+
+        /**
+         * Whether the avatar is only scaled down to fit the size.
+         */
+        final boolean withinBounds;
+
+        Key(Object contact, int width, int height, boolean withinBounds)
+        {
+            this.contact = new WeakReference<Object>(contact);
+            this.contactHash = contact.hashCode();
+            this.width = width;
+            this.height = height;
+            this.withinBounds = withinBounds;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key key = (Key) obj;
+
+            if (key == this)
+                return true;
+
+            Object contact = this.contact.get();
+
+            return contact != null
+                && contactHash == key.contactHash
+                && contact.equals(key.contact.get())
+                && width == key.width
+                && height == key.height
+                && withinBounds == key.withinBounds;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((contactHash * 31 + width) * 31 + height) * 2
+                + (withinBounds ? 1 : 0);
+        }
+    }
+
+    /**
+     * A cached avatar.
+     */
+    private static class Entry
+    {
+        /**
+         * The avatar bytes the avatar was last requested with, which the
+         * cache does not keep from being collected.
+         */
+        WeakReference<byte[]> avatar;
+
+        /**
+         * The hash code and the length of the avatar bytes the avatar was
+         * created from, or <tt>0</tt> and <tt>-1</tt> if it was created from
+         * an image.
+         */
+        final int avatarHash;
+
+        final int avatarLength;
+
+        final SoftReference<ImageIcon> icon;
+
+        Entry(byte[] avatar, ImageIcon icon)
+        {
+            this.avatar = new WeakReference<byte[]>(avatar);
+            this.avatarHash = (avatar == null) ? 0 : Arrays.hashCode(avatar);
+            this.avatarLength = (avatar == null) ? -1 : avatar.length;
+            this.icon = new SoftReference<ImageIcon>(icon);
+        }
+    }
+}
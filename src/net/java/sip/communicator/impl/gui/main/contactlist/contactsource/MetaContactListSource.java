@@ -32,6 +32,7 @@
 import net.java.sip.communicator.plugin.desktoputil.*;
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.service.contactsource.*;
 import net.java.sip.communicator.service.customcontactactions.*;
 import net.java.sip.communicator.service.gui.*;
 import net.java.sip.communicator.service.gui.event.*;
@@ -95,6 +96,12 @@
      */
     private int index = 0;
 
+    /**
+     * The index of the meta contacts by the strings they are searched by.
+     */
+    private final MetaContactSearchIndex searchIndex
+        = new MetaContactSearchIndex();
+
     /**
      * The logger.
      */
@@ -208,25 +215,84 @@ public static boolean isRootGroup(MetaContactGroup group)
     public void startQuery(final MetaContactQuery query,
         final Pattern filterPattern)
     {
-        new Thread()
-        {
-            @Override
-            public void run()
+        ContactQueryExecutor.getInstance().submit(
+            this,
+            ContactQueryExecutor.PRIORITY_HIGH,
+            0,
+            new Runnable()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
-
-                if (!query.isCanceled())
-                    query.fireQueryEvent(
-                        MetaContactQueryStatusEvent.QUERY_COMPLETED);
-                else
-                    query.fireQueryEvent(
-                        MetaContactQueryStatusEvent.QUERY_CANCELED);
-            }
-        }.start();
+                public void run()
+                {
+                    int resultCount = 0;
+                    queryMetaContactSource( filterPattern,
+                            GuiActivator.getContactListService().getRoot(),
+                            query,
+                            resultCount);
+
+                    if (!query.isCanceled())
+                        query.fireQueryEvent(
+                            MetaContactQueryStatusEvent.QUERY_COMPLETED);
+                    else
+                        query.fireQueryEvent(
+                            MetaContactQueryStatusEvent.QUERY_CANCELED);
+                }
+            });
+    }
+
+    /**
+     * Starts a query for the meta contacts containing a string, which looks
+     * the meta contacts up in the search index instead of going through the
+     * whole contact list.
+     *
+     * @param query the query to be started
+     * @param filterString the string to search for
+     * @param filterPattern the case insensitive pattern of
+     * <tt>filterString</tt>
+     */
+    public void startQuery(final MetaContactQuery query,
+        final String filterString,
+        final Pattern filterPattern)
+    {
+        ContactQueryExecutor.getInstance().submit(
+            this,
+            ContactQueryExecutor.PRIORITY_HIGH,
+            0,
+            new Runnable()
+            {
+                public void run()
+                {
+                    List<MetaContact> matches
+                        = searchIndex.findMatches(
+                                GuiActivator.getContactListService().getRoot(),
+                                filterString,
+                                filterPattern);
+                    int resultCount = 0;
+
+                    for (MetaContact metaContact : matches)
+                    {
+                        if (query.isCanceled())
+                            break;
+
+                        MetaContactGroup parentGroup
+                            = metaContact.getParentMetaContactGroup();
+
+                        // the meta contact was removed in the meantime
+                        if (parentGroup == null)
+                            continue;
+
+                        resultCount++;
+                        addQueryResult(metaContact, parentGroup, query,
+                            resultCount);
+                    }
+
+                    if (!query.isCanceled())
+                        query.fireQueryEvent(
+                            MetaContactQueryStatusEvent.QUERY_COMPLETED);
+                    else
+                        query.fireQueryEvent(
+                            MetaContactQueryStatusEvent.QUERY_CANCELED);
+                }
+            });
     }
 
     /**
@@ -253,48 +319,7 @@ public void queryMetaContactSource(Pattern filterPattern,
             if (isMatching(filterPattern, metaContact))
             {
                 resultCount++;
-
-                if (resultCount <= INITIAL_CONTACT_COUNT)
-                {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
-                    {
-                        synchronized (parentGroup)
-                        {
-                            uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
-
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact 
-                            = MetaContactListSource.getUIContact(metaContact);
-    
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-                        
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
-                    }
-                    
-                    query.setInitialResultCount(resultCount);
-                }
-                else
-                {
-                    query.fireQueryEvent(metaContact);
-                }
+                addQueryResult(metaContact, parentGroup, query, resultCount);
             }
         }
 
@@ -311,6 +336,64 @@ public void queryMetaContactSource(Pattern filterPattern,
         }
     }
 
+    /**
+     * Adds a meta contact matching a query to the contact list, or passes it
+     * to the query once the initial results were added.
+     *
+     * @param metaContact the matching <tt>MetaContact</tt>
+     * @param parentGroup the parent group of <tt>metaContact</tt>
+     * @param query the object that tracks the query
+     * @param resultCount the number of results of the query so far,
+     * including <tt>metaContact</tt>
+     */
+    private void addQueryResult(MetaContact metaContact,
+                                MetaContactGroup parentGroup,
+                                MetaContactQuery query,
+                                int resultCount)
+    {
+        if (resultCount <= INITIAL_CONTACT_COUNT)
+        {
+            UIGroup uiGroup = null;
+            if (!MetaContactListSource.isRootGroup(parentGroup))
+            {
+                synchronized (parentGroup)
+                {
+                    uiGroup = MetaContactListSource
+                        .getUIGroup(parentGroup);
+                    if (uiGroup == null)
+                        uiGroup = MetaContactListSource
+                            .createUIGroup(parentGroup);
+                }
+            }
+
+            UIContact newUIContact;
+            synchronized (metaContact)
+            {
+                newUIContact 
+                    = MetaContactListSource.getUIContact(metaContact);
+    
+                if (newUIContact == null)
+                {
+                    newUIContact
+                        = MetaContactListSource
+                            .createUIContact(metaContact);
+                }
+                
+                GuiActivator.getContactList().addContact(
+                    newUIContact,
+                    uiGroup,
+                    true,
+                    true);
+            }
+            
+            query.setInitialResultCount(resultCount);
+        }
+        else
+        {
+            query.fireQueryEvent(metaContact);
+        }
+    }
+
     /**
      * Checks if the given <tt>metaContact</tt> is matching the given
      * <tt>filterPattern</tt>.
@@ -324,7 +407,7 @@ public void queryMetaContactSource(Pattern filterPattern,
      * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
      * matching the current filter, otherwise returns <tt>false</tt>
      */
-    private boolean isMatching(Pattern filterPattern, MetaContact metaContact)
+    static boolean isMatching(Pattern filterPattern, MetaContact metaContact)
     {
         Matcher matcher = filterPattern.matcher(metaContact.getDisplayName());
 
@@ -501,6 +584,8 @@ public void childContactsReordered(MetaContactGroupEvent evt)
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
+        searchIndex.updateMetaContact(evt.getSourceMetaContact());
+
         metaContactAdded(evt.getSourceMetaContact(),
                         evt.getParentGroup());
     }
@@ -562,6 +647,8 @@ public void metaContactGroupAdded(MetaContactGroupEvent evt)
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        searchIndex.addGroup(metaGroup);
+
         UIGroup uiGroup;
 
         synchronized (metaGroup)
@@ -639,6 +726,8 @@ public void metaContactGroupRemoved(final MetaContactGroupEvent evt)
     {
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        searchIndex.removeGroup(metaGroup);
+
         UIGroup uiGroup;
         synchronized (metaGroup)
         {
@@ -768,6 +857,9 @@ public void metaContactRemoved(final MetaContactEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.removeMetaContact(metaContact);
+        AvatarImageCache.remove(metaContact);
+
         UIContact uiContact;
         synchronized (metaContact)
         {
@@ -788,6 +880,8 @@ public void metaContactRenamed(final MetaContactRenamedEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.updateMetaContact(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -814,6 +908,8 @@ public void metaContactAvatarUpdated(final MetaContactAvatarUpdateEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        AvatarImageCache.remove(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -843,6 +939,8 @@ public void protoContactAdded(ProtoContactEvent evt)
     {
         final MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.updateMetaContact(metaContact);
+
         UIContact parentUIContact;
         boolean parentUIContactCreated = false;
         synchronized (metaContact)
@@ -900,6 +998,8 @@ public void protoContactModified(ProtoContactEvent evt)
     {
         MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.updateMetaContact(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -928,6 +1028,9 @@ public void protoContactMoved(ProtoContactEvent evt)
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
 
+        searchIndex.updateMetaContact(oldParent);
+        searchIndex.updateMetaContact(newParent);
+
         UIContact oldUIContact;
         synchronized (oldParent)
         {
@@ -1000,6 +1103,8 @@ public void protoContactRemoved(ProtoContactEvent evt)
     {
         final MetaContact oldParent = evt.getOldParent();
 
+        searchIndex.updateMetaContact(oldParent);
+
         UIContactImpl oldUIContact;
         synchronized (oldParent)
         {
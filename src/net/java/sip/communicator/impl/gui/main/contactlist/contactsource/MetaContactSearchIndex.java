@@ -0,0 +1,348 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.util.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts of the contact list by the n-grams of their
+ * display names and of the display names and addresses of their protocol
+ * contacts, so that a search only checks the meta contacts which contain
+ * the n-grams of the searched string.
+ * <p>
+ * The index is built from the contact list on the first search and kept up
+ * to date by the <tt>MetaContactListSource</tt> as the contact list
+ * changes. When the searched string extends the previous one, only the
+ * meta contacts which matched the previous one are checked.
+ */
+class MetaContactSearchIndex
+{
+    /**
+     * The length of the longest n-grams. Shorter n-grams are indexed as
+     * well, so that short search strings are found in the index too.
+     */
+    private static final int MAX_GRAM_LENGTH = 3;
+
+    /**
+     * The meta contacts by n-gram, in the order they were indexed.
+     */
+    private final Map<String, Set<MetaContact>> contactsByGram
+        = new HashMap<String, Set<MetaContact>>();
+
+    /**
+     * The n-grams of each meta contact.
+     */
+    private final Map<MetaContact, Set<String>> gramsByContact
+        = new LinkedHashMap<MetaContact, Set<String>>();
+
+    /**
+     * Whether the index was built from the contact list.
+     */
+    private boolean built = false;
+
+    /**
+     * The number of changes of the index, which tells whether the result of
+     * the previous search may be refined.
+     */
+    private int modCount = 0;
+
+    /**
+     * The string of the previous search, its result and the number of
+     * changes of the index at the time.
+     */
+    private String lastFilterString = null;
+
+    private List<MetaContact> lastMatches = null;
+
+    private int lastModCount;
+
+    /**
+     * Returns the meta contacts of the contact list matching a filter.
+     *
+     * @param root the root group of the contact list
+     * @param filterString the searched string
+     * @param filterPattern the case insensitive pattern of
+     * <tt>filterString</tt>, which the meta contacts must match
+     * @return the meta contacts matching <tt>filterPattern</tt>
+     */
+    synchronized List<MetaContact> findMatches(MetaContactGroup root,
+                                               String filterString,
+                                               Pattern filterPattern)
+    {
+        if (!built)
+        {
+            addGroup0(root);
+            built = true;
+        }
+
+        String key = fold(filterString);
+        Collection<MetaContact> candidates;
+
+        if (lastFilterString != null
+                && lastModCount == modCount
+                && key.contains(lastFilterString))
+        {
+            candidates = lastMatches;
+        }
+        else if (key.length() == 0)
+        {
+            candidates = gramsByContact.keySet();
+        }
+        else
+        {
+            // every meta contact matching the key contains all its n-grams,
+            // so the meta contacts of the rarest one are the only candidates
+            candidates = null;
+            for (String gram : getGrams(key, key.length() <= MAX_GRAM_LENGTH))
+            {
+                Set<MetaContact> contacts = contactsByGram.get(gram);
+
+                if (contacts == null)
+                {
+                    candidates = Collections.emptySet();
+                    break;
+                }
+                if (candidates == null || contacts.size() < candidates.size())
+                    candidates = contacts;
+            }
+        }
+
+        List<MetaContact> matches = new ArrayList<MetaContact>();
+        for (MetaContact metaContact : candidates)
+        {
+            // skip the meta contacts removed with their group, in case the
+            // index was not told
+            if (metaContact.getParentMetaContactGroup() != null
+                    && MetaContactListSource.isMatching(
+                            filterPattern, metaContact))
+            {
+                matches.add(metaContact);
+            }
+        }
+
+        lastFilterString = key;
+        lastMatches = matches;
+        lastModCount = modCount;
+
+        return new ArrayList<MetaContact>(matches);
+    }
+
+    /**
+     * Indexes a meta contact again after it was added to the contact list
+     * or it or its protocol contacts changed.
+     *
+     * @param metaContact the meta contact
+     */
+    synchronized void updateMetaContact(MetaContact metaContact)
+    {
+        if (!built)
+            return;
+
+        removeMetaContact0(metaContact);
+        addMetaContact0(metaContact);
+        modCount++;
+    }
+
+    /**
+     * Removes a meta contact which was removed from the contact list.
+     *
+     * @param metaContact the meta contact
+     */
+    synchronized void removeMetaContact(MetaContact metaContact)
+    {
+        if (!built)
+            return;
+
+        removeMetaContact0(metaContact);
+        modCount++;
+    }
+
+    /**
+     * Indexes the meta contacts of a group which was added to the contact
+     * list and of its subgroups.
+     *
+     * @param group the group
+     */
+    synchronized void addGroup(MetaContactGroup group)
+    {
+        if (!built)
+            return;
+
+        addGroup0(group);
+        modCount++;
+    }
+
+    /**
+     * Removes the meta contacts of a group which was removed from the
+     * contact list and of its subgroups.
+     *
+     * @param group the group
+     */
+    synchronized void removeGroup(MetaContactGroup group)
+    {
+        if (!built)
+            return;
+
+        removeGroup0(group);
+        modCount++;
+    }
+
+    private void addGroup0(MetaContactGroup group)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+        {
+            MetaContact metaContact = contacts.next();
+
+            removeMetaContact0(metaContact);
+            addMetaContact0(metaContact);
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addGroup0(subgroups.next());
+    }
+
+    private void removeGroup0(MetaContactGroup group)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+            removeMetaContact0(contacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeGroup0(subgroups.next());
+    }
+
+    private void addMetaContact0(MetaContact metaContact)
+    {
+        Set<String> grams = new HashSet<String>();
+
+        addGrams(metaContact.getDisplayName(), grams);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+        {
+            Contact contact = contacts.next();
+
+            addGrams(contact.getDisplayName(), grams);
+            addGrams(contact.getAddress(), grams);
+        }
+
+        gramsByContact.put(metaContact, grams);
+        for (String gram : grams)
+        {
+            Set<MetaContact> gramContacts = contactsByGram.get(gram);
+
+            if (gramContacts == null)
+            {
+                gramContacts = new LinkedHashSet<MetaContact>();
+                contactsByGram.put(gram, gramContacts);
+            }
+            gramContacts.add(metaContact);
+        }
+    }
+
+    private void removeMetaContact0(MetaContact metaContact)
+    {
+        Set<String> grams = gramsByContact.remove(metaContact);
+
+        if (grams == null)
+            return;
+
+        for (String gram : grams)
+        {
+            Set<MetaContact> contacts = contactsByGram.get(gram);
+
+            if (contacts != null
+                    && contacts.remove(metaContact)
+                    && contacts.isEmpty())
+            {
+                contactsByGram.remove(gram);
+            }
+        }
+    }
+
+    /**
+     * Adds the n-grams of a string, up to <tt>MAX_GRAM_LENGTH</tt>
+     * characters long, to a set.
+     *
+     * @param s the string, may be <tt>null</tt>
+     * @param grams the set of n-grams
+     */
+    private static void addGrams(String s, Set<String> grams)
+    {
+        if (s != null)
+            grams.addAll(getGrams(fold(s), true));
+    }
+
+    /**
+     * Returns the n-grams of a folded string.
+     *
+     * @param s the folded string
+     * @param shorter whether to return the n-grams shorter than
+     * <tt>MAX_GRAM_LENGTH</tt> as well, or only the longest ones which cover
+     * the string
+     * @return the n-grams of <tt>s</tt>
+     */
+    private static Set<String> getGrams(String s, boolean shorter)
+    {
+        Set<String> grams = new HashSet<String>();
+        int length = s.length();
+
+        for (int i = 0; i < length; i++)
+        {
+            int maxEnd = Math.min(i + MAX_GRAM_LENGTH, length);
+
+            if (!shorter)
+            {
+                if (i + MAX_GRAM_LENGTH <= length)
+                    grams.add(s.substring(i, maxEnd));
+                continue;
+            }
+
+            for (int end = i + 1; end <= maxEnd; end++)
+                grams.add(s.substring(i, end));
+        }
+        return grams;
+    }
+
+    /**
+     * Folds the case of a string character by character, the way the case
+     * insensitive and unicode case patterns of the search filter compare
+     * characters.
+     *
+     * @param s the string
+     * @return the folded string
+     */
+    private static String fold(String s)
+    {
+        char[] chars = s.toCharArray();
+
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i]
+                = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+}
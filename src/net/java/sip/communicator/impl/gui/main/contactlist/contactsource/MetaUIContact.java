@@ -44,13 +44,6 @@
 public class MetaUIContact
     extends UIContactImpl
 {
-    /**
-     * The key of the user data in <tt>MetaContact</tt> which specifies
-     * the avatar cached from previous invocations.
-     */
-    private static final String AVATAR_DATA_KEY
-        = MetaUIContact.class.getName() + ".avatar";
-
     /**
      * A list of all search strings available for the underlying
      * <tt>MetaContact</tt>.
@@ -340,7 +333,8 @@ public ImageIcon getScaledAvatar(
         {
             if (!subscribed)
             {
-                return ImageUtils.getScaledRoundedIcon(
+                return AvatarImageCache.getScaledRoundedIcon(
+                    ImageLoader.UNAUTHORIZED_CONTACT_PHOTO,
                     ImageLoader.getImage(ImageLoader.UNAUTHORIZED_CONTACT_PHOTO),
                     width, height);
             }
@@ -348,40 +342,10 @@ public ImageIcon getScaledAvatar(
             return null;
         }
 
-        // If the cell is selected we return a zoomed version of the avatar
-        // image.
-        if (isSelected)
-            return ImageUtils.getScaledRoundedIcon(avatarBytes, width, height);
-
-        // In any other case try to get the avatar from the cache.
-        Object[] avatarCache
-            = (Object[]) metaContact.getData(AVATAR_DATA_KEY);
-        ImageIcon avatar = null;
-
-        if ((avatarCache != null) && (avatarCache[0] == avatarBytes))
-            avatar = (ImageIcon) avatarCache[1];
-
-        // If the avatar isn't available or it's not up-to-date, create it.
-        if (avatar == null)
-        {
-            avatar = ImageUtils.getScaledRoundedIcon(avatarBytes, width, height);
-        }
-
-        // Cache the avatar in case it has changed.
-        if (avatarCache == null)
-        {
-            if (avatar != null)
-                metaContact.setData(
-                    AVATAR_DATA_KEY,
-                    new Object[] { avatarBytes, avatar });
-        }
-        else
-        {
-            avatarCache[0] = avatarBytes;
-            avatarCache[1] = avatar;
-        }
-
-        return avatar;
+        // The selected cell shows a zoomed version of the avatar, which is
+        // cached along with the normal one.
+        return AvatarImageCache.getScaledRoundedIcon(
+            metaContact, avatarBytes, width, height);
     }
 
     /**
@@ -185,16 +185,8 @@ public ImageIcon getScaledAvatar(boolean isSelected, int width, int height)
 
         if ((image != null) && (image.length > 0))
         {
-            ImageIcon icon = new ImageIcon(image);
-
-            if (icon.getIconWidth() > width || icon.getIconHeight() > height)
-            {
-                icon
-                    = ImageUtils.getScaledRoundedIcon(
-                            icon.getImage(),
-                            width, height);
-            }
-            return icon;
+            return AvatarImageCache.getIconWithinBounds(
+                sourceContact, image, width, height);
         }
         else
             return null;
@@ -0,0 +1,282 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.w3c.dom.*;
+
+/**
+ * The cache of parsed history documents shared by all the histories of a
+ * <tt>HistoryServiceImpl</tt>. It holds at most a given number of documents
+ * and an estimated number of bytes, evicting the least recently used
+ * documents first. An evicted document is parsed again from its file the
+ * next time it is needed.
+ * <p>
+ * The size of a document is estimated from the length of its file. The
+ * hit, miss and eviction counters are published as system properties
+ * through the configuration service.
+ */
+class HistoryDocumentCache
+{
+    /**
+     * The prefix of the properties the statistics are published as.
+     */
+    private static final String STATS_PROPERTY_PREFIX
+        = "net.java.sip.communicator.impl.history.cache.";
+
+    /**
+     * The property holding the number of documents found in the cache.
+     */
+    static final String HITS_PROPERTY = STATS_PROPERTY_PREFIX + "HITS";
+
+    /**
+     * The property holding the number of documents not found in the cache.
+     */
+    static final String MISSES_PROPERTY = STATS_PROPERTY_PREFIX + "MISSES";
+
+    /**
+     * The property holding the number of documents evicted from the cache.
+     */
+    static final String EVICTIONS_PROPERTY
+        = STATS_PROPERTY_PREFIX + "EVICTIONS";
+
+    /**
+     * The property holding the estimated number of bytes used by the cache.
+     */
+    static final String BYTES_PROPERTY = STATS_PROPERTY_PREFIX + "BYTES";
+
+    /**
+     * The default maximum number of cached documents.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * The default maximum estimated size of the cached documents.
+     */
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * How many times a parsed document is bigger than its file, roughly.
+     */
+    private static final int DOCUMENT_SIZE_FACTOR = 8;
+
+    /**
+     * The minimum time in milliseconds between two publications of the
+     * statistics.
+     */
+    private static final long STATS_PUBLISH_INTERVAL = 1000;
+
+    /**
+     * The cached documents by file, in access order.
+     */
+    private final LinkedHashMap<File, CacheEntry> entries
+        = new LinkedHashMap<File, CacheEntry>(16, 0.75f, true);
+
+    /**
+     * The configuration service the statistics are published through, may
+     * be <tt>null</tt>.
+     */
+    private final ConfigurationService configService;
+
+    /**
+     * The maximum number of cached documents.
+     */
+    private final int maxEntries;
+
+    /**
+     * The maximum estimated size of the cached documents.
+     */
+    private final long maxBytes;
+
+    /**
+     * The estimated size of the cached documents.
+     */
+    private long bytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    /**
+     * The time the statistics were last published.
+     */
+    private long lastPublished = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param configService the configuration service to publish the
+     * statistics through, may be <tt>null</tt>
+     * @param maxEntries the maximum number of cached documents
+     * @param maxBytes the maximum estimated size of the cached documents
+     */
+    HistoryDocumentCache(ConfigurationService configService,
+                         int maxEntries,
+                         long maxBytes)
+    {
+        this.configService = configService;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached document of a file.
+     *
+     * @param file the history file
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    Document get(File file)
+    {
+        CacheEntry entry;
+        synchronized (this)
+        {
+            entry = entries.get(file);
+            if (entry == null)
+                misses++;
+            else
+                hits++;
+        }
+
+        publishStats(false);
+        return (entry == null) ? null : entry.doc;
+    }
+
+    /**
+     * Returns the cached document of a file without counting a hit or a
+     * miss or changing the eviction order.
+     *
+     * @param file the history file
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    synchronized Document peek(File file)
+    {
+        CacheEntry entry = entries.get(file);
+        return (entry == null) ? null : entry.doc;
+    }
+
+    /**
+     * Caches the document of a file, or updates the estimated size of a
+     * cached document after its file was written.
+     *
+     * @param file the history file
+     * @param doc the document
+     */
+    void put(File file, Document doc)
+    {
+        long size = Math.max(1, file.length()) * DOCUMENT_SIZE_FACTOR;
+
+        synchronized (this)
+        {
+            CacheEntry old = entries.put(file, new CacheEntry(doc, size));
+            if (old != null)
+                bytes -= old.size;
+            bytes += size;
+
+            Iterator<CacheEntry> iter = entries.values().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes)
+                    && iter.hasNext())
+            {
+                CacheEntry eldest = iter.next();
+
+                // keep the document just added even if it is too big
+                if (eldest.doc == doc)
+                    break;
+
+                iter.remove();
+                bytes -= eldest.size;
+                evictions++;
+            }
+        }
+
+        publishStats(false);
+    }
+
+    /**
+     * Removes the documents of the files in a directory.
+     *
+     * @param directory the history directory
+     */
+    synchronized void removeAll(File directory)
+    {
+        Iterator<Map.Entry<File, CacheEntry>> iter
+            = entries.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<File, CacheEntry> e = iter.next();
+            if (directory.equals(e.getKey().getParentFile()))
+            {
+                bytes -= e.getValue().size;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Publishes the statistics through the configuration service.
+     *
+     * @param force whether to publish them even if they were published
+     * recently
+     */
+    void publishStats(boolean force)
+    {
+        if (configService == null)
+            return;
+
+        long hits, misses, evictions, bytes;
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            if (!force && now - lastPublished < STATS_PUBLISH_INTERVAL)
+                return;
+            lastPublished = now;
+
+            hits = this.hits;
+            misses = this.misses;
+            evictions = this.evictions;
+            bytes = this.bytes;
+        }
+
+        configService.setProperty(HITS_PROPERTY, Long.toString(hits), true);
+        configService.setProperty(
+            MISSES_PROPERTY, Long.toString(misses), true);
+        configService.setProperty(
+            EVICTIONS_PROPERTY, Long.toString(evictions), true);
+        configService.setProperty(BYTES_PROPERTY, Long.toString(bytes), true);
+    }
+
+    /**
+     * A cached document and its estimated size.
+     */
+    private static class CacheEntry
+    {
+        final Document doc;
+
+        final long size;
+
+        CacheEntry(Document doc, long size)
+        {
+            this.doc = doc;
+            this.size = size;
+        }
+    }
+}
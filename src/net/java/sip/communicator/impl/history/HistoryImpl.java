@@ -17,8 +17,13 @@
  */
 package net.java.sip.communicator.impl.history;
 
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
 import java.io.*;
+import java.nio.file.*;
 import java.security.*;
+import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
@@ -59,9 +64,44 @@
 
     private HistoryWriter writer;
 
+    /**
+     * The files of this history by name. Values are <tt>File</tt>
+     * placeholders, or the <tt>Document</tt> of a new file not written yet.
+     * Parsed documents are kept in the cache shared by all histories.
+     */
     private SortedMap<String, Object> historyDocuments
         = new TreeMap<String, Object>();
 
+    /**
+     * An immutable snapshot of the names of the files, replaced whenever a
+     * file is added so queries can iterate it without locking.
+     */
+    private volatile List<String> fileList = Collections.emptyList();
+
+    /**
+     * The documents holding records not written yet by the write queue, by
+     * file name. Guarded by <tt>historyDocuments</tt>.
+     */
+    private final Map<String, Document> pendingDocuments
+        = new HashMap<String, Document>();
+
+    /**
+     * The segment new records are currently appended to, when the segment
+     * storage engine is used.
+     */
+    private SegmentLog segmentLog = null;
+
+    /**
+     * The sparse timestamp index of the history files, loaded lazily.
+     */
+    private HistoryIndex index = null;
+
+    /**
+     * The keyword index of the history files, loaded by the first keyword
+     * search.
+     */
+    private KeywordIndex keywordIndex = null;
+
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
      * identifier, the directory, the <tt>HistoryRecordStructure</tt> to use
@@ -93,6 +133,9 @@ protected HistoryImpl(HistoryID id, File directory,
             this.writer = null;
 
             this.reloadDocumentList();
+
+            if (historyServiceImpl.isSegmentStorageEnabled())
+                this.migrateToSegments();
         } finally {
             log.logExit();
         }
@@ -179,6 +222,10 @@ void reloadDocumentList()
         {
             this.historyDocuments.clear();
 
+            HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+            if (cache != null)
+                cache.removeAll(this.directory);
+
             File[] files = this.directory.listFiles();
             // TODO: Assert: Assert.assertNonNull(files, "The list of files
             // should be non-null.");
@@ -189,15 +236,28 @@ void reloadDocumentList()
                 {
                     String filename = files[i].getName();
 
-                    if (filename.endsWith(SUPPORTED_FILETYPE))
+                    if (filename.endsWith(SUPPORTED_FILETYPE)
+                        || isSegmentFile(filename))
                     {
                         this.historyDocuments.put(filename, files[i]);
                     }
                 }
             }
+
+            updateFileList();
         }
     }
 
+    /**
+     * Replaces the snapshot of the file names after the document list
+     * changed. Called with the lock on <tt>historyDocuments</tt> held.
+     */
+    private void updateFileList()
+    {
+        this.fileList = Collections.unmodifiableList(
+            new ArrayList<String>(this.historyDocuments.keySet()));
+    }
+
     protected Document createDocument(String filename)
     {
         Document retVal = null;
@@ -213,6 +273,7 @@ protected Document createDocument(String filename)
                 retVal.appendChild(retVal.createElement("history"));
 
                 this.historyDocuments.put(filename, retVal);
+                updateFileList();
             }
         }
 
@@ -233,23 +294,400 @@ protected void writeFile(String filename) throws InvalidParameterException,
 
             Object obj = this.historyDocuments.get(filename);
 
+            if (!(obj instanceof Document))
+                obj = getCachedDocument(file);
+
             if (obj instanceof Document)
+                writeFile(filename, (Document) obj);
+        }
+    }
+
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
+        File file = new File(this.directory, filename);
+
+        synchronized (this.historyDocuments)
+        {
+            if (!this.historyDocuments.containsKey(filename))
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+
+            synchronized (doc)
             {
-                Document doc = (Document) obj;
+                if (isSegmentFile(filename))
+                {
+                    synchronized (this)
+                    {
+                        // the segment is replaced, reopen it on next append
+                        if (segmentLog != null
+                            && segmentLog.getFile().equals(file))
+                        {
+                            segmentLog.close();
+                            segmentLog = null;
+                        }
 
-                synchronized (doc)
+                        SegmentLog.writeAll(file, getRecords(doc));
+                    }
+                }
+                else
                 {
-                    XMLUtils.writeXML(doc, file);
+                    writeXML(doc, file);
+
+                    // the document is on disk now, keep it only in the cache
+                    this.historyDocuments.put(filename, file);
+                    HistoryDocumentCache cache
+                        = historyServiceImpl.getDocumentCache();
+                    if (cache != null)
+                        cache.put(file, doc);
                 }
             }
         }
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Opens a reader returning the records of a file newest first. Segments
+     * are read backward from their end, so reading the last records does
+     * not depend on the size of the segment.
+     *
+     * @param filename the name of the file
+     * @return the reader or <tt>null</tt> if the file cannot be read
+     */
+    HistoryRecordReader openFileReverse(String filename)
+    {
+        if (isSegmentFile(filename))
+        {
+            File file = new File(this.directory, filename);
+
+            // an indexed segment ends at a record boundary even while a
+            // record is being appended
+            HistoryIndex.Entry entry = getIndex().getEntry(filename);
+            long end = (entry != null && entry.length <= file.length())
+                ? entry.length
+                : file.length();
+
+            try
+            {
+                return new HistoryRecordReader.ReverseSegmentReader(file, end);
+            }
+            catch (IOException e)
+            {
+                log.error("Error occured while reading history segment.", e);
+                return null;
+            }
+        }
+
+        HistoryRecordReader reader = openFile(filename, null);
+        if (reader == null)
+            return null;
+
+        List<HistoryRecord> records = reader.readAll();
+        Collections.reverse(records);
+        return HistoryRecordReader.forRecords(records);
+    }
+
+    /**
+     * Writes a document aside and moves it over <tt>file</tt>, so that
+     * concurrent readers see either the old or the new content but never a
+     * partially written file.
+     *
+     * @param doc the document to write
+     * @param file the destination file
+     * @throws IOException if writing or moving the file fails
+     */
+    private void writeXML(Document doc, File file)
+        throws IOException
+    {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        XMLUtils.writeXML(doc, tmp);
+
+        try
+        {
+            Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Sets the document of a file holding records the write queue has not
+     * written yet, for readers to see them.
+     *
+     * @param filename the name of the file
+     * @param doc the document of the file
+     */
+    void setPendingDocument(String filename, Document doc)
+    {
+        synchronized (this.historyDocuments)
+        {
+            this.pendingDocuments.put(filename, doc);
+        }
+    }
+
+    /**
+     * Checks whether a file holds records the write queue has not written
+     * yet, which the indexes do not know about.
+     *
+     * @param filename the name of the file
+     * @return whether the file has pending records
+     */
+    boolean hasPendingDocument(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            return this.pendingDocuments.containsKey(filename);
+        }
+    }
+
+    /**
+     * Forgets the document of a file once the write queue has written all
+     * its records.
+     *
+     * @param filename the name of the file
+     */
+    void removePendingDocument(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            this.pendingDocuments.remove(filename);
+        }
+    }
+
+    /**
+     * Returns the cached document of a file without loading it.
+     *
+     * @param file the history file
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    private Document getCachedDocument(File file)
+    {
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        return (cache == null) ? null : cache.peek(file);
+    }
+
+    /**
+     * Appends a record to a segment file, adding the file to the document
+     * list if it is a new one.
+     *
+     * @param filename the name of the segment file
+     * @param record the record to append, with values escaped the way they
+     * are stored in the XML files
+     * @return the offset of the record in the segment
+     * @throws IOException if writing to the segment fails
+     */
+    long appendRecord(String filename, HistoryRecord record)
+        throws IOException
     {
         File file = new File(this.directory, filename);
 
+        synchronized (this.historyDocuments)
+        {
+            // the document list only holds placeholders for segments
+            if (!(this.historyDocuments.get(filename) instanceof File))
+            {
+                boolean added
+                    = this.historyDocuments.put(filename, file) == null;
+                if (added)
+                    updateFileList();
+            }
+        }
+
+        synchronized (this)
+        {
+            if (segmentLog == null || !segmentLog.getFile().equals(file))
+            {
+                if (segmentLog != null)
+                    segmentLog.close();
+
+                segmentLog = historyServiceImpl.createSegmentLog(file);
+            }
+
+            return segmentLog.append(record);
+        }
+    }
+
+    /**
+     * Writes the pending records, syncs and closes the segment records are
+     * appended to and saves the index.
+     */
+    void close()
+    {
+        if (writer instanceof HistoryWriterImpl)
+            ((HistoryWriterImpl) writer).flush();
+
+        closeFiles();
+    }
+
+    /**
+     * Syncs and closes the segment records are appended to and saves the
+     * index.
+     */
+    private synchronized void closeFiles()
+    {
+        if (segmentLog != null)
+        {
+            segmentLog.close();
+            segmentLog = null;
+        }
+
+        if (index != null)
+            index.save();
+
+        if (keywordIndex != null)
+            keywordIndex.save();
+    }
+
+    /**
+     * Returns the sparse timestamp index of this history.
+     * @return the sparse timestamp index of this history
+     */
+    synchronized HistoryIndex getIndex()
+    {
+        if (index == null)
+            index = new HistoryIndex(directory);
+        return index;
+    }
+
+    /**
+     * Returns the keyword index of this history, making sure it indexes
+     * <tt>field</tt>.
+     * @param field the searched field
+     * @return the keyword index of this history
+     */
+    synchronized KeywordIndex getKeywordIndex(String field)
+    {
+        if (keywordIndex == null)
+            keywordIndex = new KeywordIndex(directory);
+
+        keywordIndex.addField(field);
+        return keywordIndex;
+    }
+
+    /**
+     * Returns the keyword index of this history if a keyword search has
+     * loaded it, writers only update an index in use.
+     * @return the keyword index or <tt>null</tt>
+     */
+    synchronized KeywordIndex getLoadedKeywordIndex()
+    {
+        return keywordIndex;
+    }
+
+    /**
+     * Indexes again all the files of this history for the fields which were
+     * searched so far, or for <tt>fields</tt> if given.
+     *
+     * @param fields additional fields to index, may be <tt>null</tt>
+     */
+    public void rebuildKeywordIndex(String[] fields)
+    {
+        KeywordIndex keywordIndex;
+        synchronized (this)
+        {
+            if (this.keywordIndex == null)
+                this.keywordIndex = new KeywordIndex(directory);
+            keywordIndex = this.keywordIndex;
+        }
+
+        if (fields != null)
+        {
+            for (String field : fields)
+                keywordIndex.addField(field);
+        }
+
+        keywordIndex.clear();
+
+        List<String> files;
+        synchronized (this.historyDocuments)
+        {
+            files = new ArrayList<String>(this.historyDocuments.keySet());
+        }
+
+        String[] structure = historyRecordStructure.getPropertyNames();
+        for (String filename : files)
+        {
+            HistoryRecordReader reader = openFile(filename, null);
+            if (reader == null)
+                continue;
+
+            List<HistoryRecord> records = reader.readAll();
+            for (String property : structure)
+            {
+                String field = property.endsWith("_CDATA")
+                    ? property.substring(0, property.length() - 6)
+                    : property;
+
+                if (!keywordIndex.isFieldIndexed(field))
+                    continue;
+
+                Set<String> tokens = new HashSet<String>();
+                for (HistoryRecord record : records)
+                    tokens.addAll(KeywordIndex.tokenize(field, record));
+                keywordIndex.indexFile(field, filename, tokens);
+            }
+        }
+
+        keywordIndex.save();
+    }
+
+    /**
+     * Returns the files which may hold records with timestamp in the given
+     * period. The files are first selected by the time encoded in their
+     * names and then the ones the index knows to hold no record of the
+     * period are left out.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param reverseOrder whether to return the newest files first
+     * @return the files to search
+     */
+    Vector<String> getFilesInPeriod(
+        Date startDate, Date endDate, boolean reverseOrder)
+    {
+        Vector<String> files = HistoryReaderImpl.filterFilesByDate(
+            getFileList(), startDate, endDate, reverseOrder);
+
+        if (startDate == null && endDate == null)
+            return files;
+
+        HistoryIndex index = getIndex();
+        Iterator<String> iter = files.iterator();
+        while (iter.hasNext())
+        {
+            String filename = iter.next();
+            HistoryIndex.Entry entry = index.getEntry(filename);
+
+            if (entry != null
+                && !entry.intersects(startDate, endDate)
+                && !hasPendingDocument(filename))
+            {
+                iter.remove();
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Opens a reader over the records of a file which returns at least all
+     * its records with timestamp after <tt>startDate</tt>. For indexed
+     * segments reading starts near the first such record. Files read
+     * entirely are added to the index if they are not indexed yet.
+     *
+     * @param filename the name of the file
+     * @param startDate the first timestamp of interest or <tt>null</tt>
+     * @return the reader or <tt>null</tt> if the file cannot be read
+     */
+    HistoryRecordReader openFile(String filename, Date startDate)
+    {
+        Object obj;
         synchronized (this.historyDocuments)
         {
             if (!this.historyDocuments.containsKey(filename))
@@ -258,16 +696,106 @@ protected void writeFile(String filename, Document doc)
                         + "filename does not exist in the document list.");
             }
 
+            obj = this.historyDocuments.get(filename);
+            if (this.pendingDocuments.containsKey(filename))
+                obj = this.pendingDocuments.get(filename);
+        }
+
+        File file = new File(this.directory, filename);
+
+        // do not parse again a document in memory
+        if (!(obj instanceof Document) && !isSegmentFile(filename))
+            obj = getCachedDocument(file);
+
+        if (obj instanceof Document)
+        {
+            Document doc = (Document) obj;
+            synchronized (doc)
+            {
+                return HistoryRecordReader.forRecords(getRecords(doc));
+            }
+        }
+
+        HistoryIndex index = getIndex();
+        HistoryIndex.Entry entry = index.getEntry(filename);
+
+        if (isSegmentFile(filename))
+        {
+            long offset = (entry == null || startDate == null)
+                ? -1 : entry.getSeekOffset(startDate);
+
+            try
+            {
+                return new HistoryRecordReader.SegmentReader(
+                    file, offset, (entry == null) ? index : null);
+            }
+            catch (IOException e)
+            {
+                log.error("Error occured while reading history segment.", e);
+                return null;
+            }
+        }
+
+        List<HistoryRecord> records;
+        try
+        {
+            records = HistoryRecordReader.parseXml(
+                this.historyServiceImpl.getXMLInputFactory(), file);
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while parsing XML document.", e);
+
+            // will try to fix the xml file
+            Document doc = getDocumentForFile(filename);
+            if (doc == null)
+                return null;
+
             synchronized (doc)
             {
-                XMLUtils.writeXML(doc, file);
+                records = getRecords(doc);
             }
         }
+
+        if (entry == null)
+        {
+            entry = new HistoryIndex.Entry();
+            for (HistoryRecord record : records)
+                entry.add(record.getTimestamp().getTime(), -1);
+            index.putEntry(filename, entry);
+        }
+
+        return HistoryRecordReader.forRecords(records);
+    }
+
+    /**
+     * Checks whether <tt>filename</tt> is a history segment.
+     * @param filename the name of a history file
+     * @return <tt>true</tt> if the file is a segment
+     */
+    static boolean isSegmentFile(String filename)
+    {
+        return filename.endsWith("." + SegmentLog.SEGMENT_FILETYPE);
     }
 
+    /**
+     * Returns an immutable snapshot of the names of the files of this
+     * history, in ascending order.
+     * @return the names of the files of this history
+     */
+    List<String> getFileNames()
+    {
+        return this.fileList;
+    }
+
+    /**
+     * Returns the names of the files of this history, in ascending order.
+     * The iteration is not affected by files added meanwhile.
+     * @return the names of the files of this history
+     */
     protected Iterator<String> getFileList()
     {
-        return this.historyDocuments.keySet().iterator();
+        return this.fileList.iterator();
     }
 
     protected Document getDocumentForFile(String filename)
@@ -283,14 +811,35 @@ protected Document getDocumentForFile(String filename)
             }
 
             Object obj = this.historyDocuments.get(filename);
+            if (this.pendingDocuments.containsKey(filename))
+                obj = this.pendingDocuments.get(filename);
+
             if (obj instanceof Document)
             {
                 // Document already loaded. Use it directly
                 retVal = (Document) obj;
+            } else if (obj instanceof File && isSegmentFile(filename))
+            {
+                // segments are only appended to, so their documents are
+                // built on demand and never cached
+                HistoryRecordReader reader = openFile(filename, null);
+                if (reader == null)
+                    return null;
+
+                retVal = createDocument(reader.readAll());
             } else if (obj instanceof File)
             {
                 File file = (File) obj;
 
+                HistoryDocumentCache cache
+                    = historyServiceImpl.getDocumentCache();
+                if (cache != null)
+                {
+                    retVal = cache.get(file);
+                    if (retVal != null)
+                        return retVal;
+                }
+
                 try {
                     retVal = this.historyServiceImpl.parse(file);
                 } catch (Exception e)
@@ -309,8 +858,8 @@ protected Document getDocumentForFile(String filename)
                 }
 
                 // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
+                if(cache != null)
+                    cache.put(file, retVal);
             } else {
                 // TODO: Assert: Assert.fail("Internal error - the data type " +
                 // "should be either Document or File.");
@@ -320,6 +869,158 @@ protected Document getDocumentForFile(String filename)
         return retVal;
     }
 
+    /**
+     * Builds a history document holding the given records.
+     *
+     * @param records the records as stored in a segment
+     * @return the document
+     */
+    private Document createDocument(List<HistoryRecord> records)
+    {
+        Document doc;
+        synchronized (this.historyServiceImpl)
+        {
+            doc = this.historyServiceImpl.getDocumentBuilder().newDocument();
+        }
+
+        Element root = doc.createElement("history");
+        doc.appendChild(root);
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        for (HistoryRecord record : records)
+        {
+            Element elem = doc.createElement("record");
+            elem.setAttribute("timestamp", sdf.format(record.getTimestamp()));
+
+            String[] names = record.getPropertyNames();
+            String[] values = record.getPropertyValues();
+            for (int i = 0; i < names.length; i++)
+            {
+                Element property = doc.createElement(names[i]);
+                property.appendChild(doc.createTextNode(values[i]));
+                elem.appendChild(property);
+            }
+
+            root.appendChild(elem);
+        }
+
+        return doc;
+    }
+
+    /**
+     * Extracts the records of a history document the way they are stored in
+     * a segment. Property values are kept as found in the text nodes.
+     *
+     * @param doc the history document
+     * @return the records of the document in document order
+     */
+    static List<HistoryRecord> getRecords(Document doc)
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+
+        NodeList nodes = doc.getElementsByTagName("record");
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            Element node = (Element) nodes.item(i);
+
+            Date timestamp;
+            String ts = node.getAttribute("timestamp");
+            try
+            {
+                timestamp = sdf.parse(ts);
+            }
+            catch (ParseException e)
+            {
+                timestamp = new Date(Long.parseLong(ts));
+            }
+
+            List<String> names = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            NodeList properties = node.getChildNodes();
+            for (int j = 0; j < properties.getLength(); j++)
+            {
+                Node property = properties.item(j);
+                if (property.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+
+                Node value = property.getFirstChild();
+                if (value == null)
+                    continue;
+
+                names.add(property.getNodeName());
+                values.add(value.getNodeValue());
+            }
+
+            records.add(new HistoryRecord(
+                names.toArray(new String[names.size()]),
+                values.toArray(new String[values.size()]),
+                timestamp));
+        }
+
+        return records;
+    }
+
+    /**
+     * Converts the XML files of this history to segments. Every file is
+     * replaced by a segment with the same base name, which is written aside
+     * and renamed into place before the XML file is removed, so the
+     * conversion can be interrupted at any point and resumed on next load.
+     */
+    private void migrateToSegments()
+    {
+        List<String> xmlFiles = new ArrayList<String>();
+        synchronized (this.historyDocuments)
+        {
+            for (String filename : this.historyDocuments.keySet())
+            {
+                if (filename.endsWith(SUPPORTED_FILETYPE))
+                    xmlFiles.add(filename);
+            }
+        }
+
+        if (xmlFiles.isEmpty())
+            return;
+
+        if (log.isInfoEnabled())
+            log.info("Migrating " + xmlFiles.size() + " history files in "
+                + directory + " to segments");
+
+        for (String filename : xmlFiles)
+        {
+            File xmlFile = new File(directory, filename);
+            File segFile = new File(directory,
+                filename.substring(0,
+                    filename.length() - SUPPORTED_FILETYPE.length())
+                + SegmentLog.SEGMENT_FILETYPE);
+
+            try
+            {
+                if (!segFile.exists())
+                {
+                    Document doc = getDocumentForFile(filename);
+                    if (doc == null)
+                    {
+                        log.error("Cannot migrate unreadable history file "
+                            + xmlFile);
+                        continue;
+                    }
+
+                    SegmentLog.writeAll(segFile, getRecords(doc));
+                }
+
+                if (!xmlFile.delete())
+                    log.warn("Cannot remove migrated history file " + xmlFile);
+            }
+            catch (IOException e)
+            {
+                log.error("Failed to migrate history file " + xmlFile, e);
+            }
+        }
+
+        reloadDocumentList();
+    }
+
     /**
      * Methods trying to fix histry xml files if corrupted
      */
@@ -371,7 +1072,7 @@ public Document getFixedDocument(File file)
 
             // parsing is ok . lets overwrite with correct values
             log.trace("File fixed will write to disk!");
-            XMLUtils.writeXML(result, file);
+            writeXML(result, file);
 
             return result;
         }
@@ -0,0 +1,429 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A sparse timestamp index of the files of a history. For every file it
+ * keeps the smallest and biggest record timestamp and the record count, and
+ * for segments a sparse list of record offsets, so that period queries only
+ * open the files holding matching records and can seek close to the first
+ * of them.
+ * <p>
+ * The index is kept up to date by <tt>HistoryWriterImpl</tt>. It is saved
+ * next to the history files when the writer starts a new file and when the
+ * history is closed. Entries loaded from disk which do not match the length
+ * or modification time of their file are dropped and computed again the
+ * first time the file is needed.
+ */
+class HistoryIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(HistoryIndex.class);
+
+    /**
+     * The name of the file the index is saved to.
+     */
+    static final String INDEX_FILE = "history.idx";
+
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Every how many records of a segment an offset is kept.
+     */
+    static final int SPARSE_STEP = 32;
+
+    /**
+     * The history directory.
+     */
+    private final File directory;
+
+    /**
+     * The entries by file name.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Whether the index changed since it was last saved.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates the index of the history files in <tt>directory</tt> and loads
+     * the entries previously saved there.
+     *
+     * @param directory the history directory
+     */
+    HistoryIndex(File directory)
+    {
+        this.directory = directory;
+
+        load();
+    }
+
+    /**
+     * Returns a copy of the entry for a file if it is known, which is not
+     * affected by records added to the file afterwards.
+     *
+     * @param filename the name of the history file
+     * @return the entry or <tt>null</tt> if the file has to be indexed
+     */
+    synchronized Entry getEntry(String filename)
+    {
+        Entry entry = entries.get(filename);
+        return (entry == null) ? null : entry.copy();
+    }
+
+    /**
+     * Sets the entry for a file, computed from its content.
+     *
+     * @param filename the name of the history file
+     * @param entry the entry
+     */
+    synchronized void putEntry(String filename, Entry entry)
+    {
+        File file = new File(directory, filename);
+        entry.length = file.length();
+        entry.lastModified = file.lastModified();
+
+        entries.put(filename, entry);
+        dirty = true;
+    }
+
+    /**
+     * Records that a record has been added to a file. If the entry of the
+     * file does not account for all the other records of the file, it is
+     * dropped instead and computed again when needed.
+     *
+     * @param filename the name of the history file
+     * @param timestamp the timestamp of the record
+     * @param offset the offset of the record in a segment, or <tt>-1</tt>
+     * @param recordCount the number of records in the file, including the
+     * added one
+     */
+    synchronized void recordAdded(
+        String filename, long timestamp, long offset, int recordCount)
+    {
+        Entry entry = entries.get(filename);
+
+        if(entry == null)
+        {
+            if(recordCount != 1)
+                return;
+
+            entry = new Entry();
+            entries.put(filename, entry);
+        }
+        else if(entry.count + 1 != recordCount)
+        {
+            invalidate(filename);
+            return;
+        }
+
+        entry.add(timestamp, offset);
+
+        File file = new File(directory, filename);
+        entry.length = file.length();
+        entry.lastModified = file.lastModified();
+        dirty = true;
+    }
+
+    /**
+     * Drops the entry of a file which content was changed in place.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void invalidate(String filename)
+    {
+        if(entries.remove(filename) != null)
+            dirty = true;
+    }
+
+    /**
+     * Drops all entries.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+        dirty = true;
+    }
+
+    /**
+     * Saves the index if it changed.
+     */
+    synchronized void save()
+    {
+        if(!dirty)
+            return;
+
+        File file = new File(directory, INDEX_FILE);
+        File tmp = new File(directory, INDEX_FILE + ".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(VERSION);
+                List<String> existing = new ArrayList<String>();
+                for(String filename : entries.keySet())
+                {
+                    // skip files removed or migrated since they were indexed
+                    if(new File(directory, filename).exists())
+                        existing.add(filename);
+                }
+
+                out.writeInt(existing.size());
+                for(String filename : existing)
+                {
+                    out.writeUTF(filename);
+                    entries.get(filename).write(out);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if(!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+                throw new IOException("Cannot replace " + file);
+
+            dirty = false;
+        }
+        catch(IOException e)
+        {
+            logger.error("Failed to save history index " + file, e);
+        }
+    }
+
+    /**
+     * Loads the saved entries, keeping only the ones still matching their
+     * files.
+     */
+    private void load()
+    {
+        File file = new File(directory, INDEX_FILE);
+        if(!file.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if(in.readInt() != VERSION)
+                    return;
+
+                int count = in.readInt();
+                for(int i = 0; i < count; i++)
+                {
+                    String filename = in.readUTF();
+                    Entry entry = Entry.read(in);
+
+                    File f = new File(directory, filename);
+                    if(f.length() == entry.length
+                        && f.lastModified() == entry.lastModified)
+                    {
+                        entries.put(filename, entry);
+                    }
+                    else
+                        dirty = true;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            logger.warn("Ignoring unreadable history index " + file, e);
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * The index data of a single history file.
+     */
+    static class Entry
+    {
+        /**
+         * The smallest record timestamp.
+         */
+        long minTimestamp = Long.MAX_VALUE;
+
+        /**
+         * The biggest record timestamp.
+         */
+        long maxTimestamp = Long.MIN_VALUE;
+
+        /**
+         * The number of records.
+         */
+        int count = 0;
+
+        /**
+         * The length of the file when the entry was last updated.
+         */
+        long length;
+
+        /**
+         * The modification time of the file when the entry was last updated.
+         */
+        long lastModified;
+
+        /**
+         * Offsets of every <tt>SPARSE_STEP</tt>-th record of a segment.
+         */
+        long[] offsets = new long[0];
+
+        /**
+         * For every offset, the biggest timestamp of the records before it.
+         */
+        long[] maxBefore = new long[0];
+
+        /**
+         * Adds a record to the entry.
+         *
+         * @param timestamp the timestamp of the record
+         * @param offset the offset of the record in a segment or <tt>-1</tt>
+         */
+        void add(long timestamp, long offset)
+        {
+            if(offset >= 0 && count % SPARSE_STEP == 0)
+            {
+                int n = offsets.length;
+                offsets = Arrays.copyOf(offsets, n + 1);
+                maxBefore = Arrays.copyOf(maxBefore, n + 1);
+                offsets[n] = offset;
+                maxBefore[n] = maxTimestamp;
+            }
+
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            count++;
+        }
+
+        /**
+         * Returns a copy of the entry.
+         * @return a copy of the entry
+         */
+        Entry copy()
+        {
+            Entry copy = new Entry();
+            copy.minTimestamp = minTimestamp;
+            copy.maxTimestamp = maxTimestamp;
+            copy.count = count;
+            copy.length = length;
+            copy.lastModified = lastModified;
+            copy.offsets = offsets;
+            copy.maxBefore = maxBefore;
+            return copy;
+        }
+
+        /**
+         * Checks whether the file may hold records with timestamp in the
+         * given period, the end being exclusive.
+         *
+         * @param start the start of the period or <tt>null</tt>
+         * @param end the end of the period or <tt>null</tt>
+         * @return whether the file has to be searched
+         */
+        boolean intersects(Date start, Date end)
+        {
+            if(count == 0)
+                return false;
+            if(start != null && maxTimestamp < start.getTime())
+                return false;
+            if(end != null && minTimestamp >= end.getTime())
+                return false;
+            return true;
+        }
+
+        /**
+         * Returns the offset of a segment from which reading can start
+         * without missing records with timestamp after <tt>start</tt>.
+         *
+         * @param start the start of the period
+         * @return the offset or <tt>-1</tt> to read the whole segment
+         */
+        long getSeekOffset(Date start)
+        {
+            long result = -1;
+            for(int i = 0; i < offsets.length; i++)
+            {
+                if(maxBefore[i] < start.getTime())
+                    result = offsets[i];
+                else
+                    break;
+            }
+            return result;
+        }
+
+        private void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeLong(minTimestamp);
+            out.writeLong(maxTimestamp);
+            out.writeInt(count);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(offsets.length);
+            for(int i = 0; i < offsets.length; i++)
+            {
+                out.writeLong(offsets[i]);
+                out.writeLong(maxBefore[i]);
+            }
+        }
+
+        private static Entry read(DataInputStream in)
+            throws IOException
+        {
+            Entry entry = new Entry();
+            entry.minTimestamp = in.readLong();
+            entry.maxTimestamp = in.readLong();
+            entry.count = in.readInt();
+            entry.length = in.readLong();
+            entry.lastModified = in.readLong();
+
+            int n = in.readInt();
+            if(n < 0 || n > entry.count)
+                throw new IOException("Malformed history index");
+
+            entry.offsets = new long[n];
+            entry.maxBefore = new long[n];
+            for(int i = 0; i < n; i++)
+            {
+                entry.offsets[i] = in.readLong();
+                entry.maxBefore[i] = in.readLong();
+            }
+            return entry;
+        }
+    }
+}
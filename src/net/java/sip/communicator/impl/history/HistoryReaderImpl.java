@@ -17,21 +17,21 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
 import org.apache.commons.lang3.*;
-import org.w3c.dom.*;
 
 /**
+ * Queries are not synchronized: each one works on a snapshot of the file
+ * list and reads the files through its own <tt>HistoryRecordReader</tt>s,
+ * so independent queries on the same history run in parallel.
+ *
  * @author Alexander Pelov
  * @author Damian Minkov
  * @author Yana Stamcheva
@@ -39,6 +39,12 @@
 public class HistoryReaderImpl
     implements HistoryReader
 {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryReaderImpl.class);
+
     private HistoryImpl historyImpl;
     private Vector<HistorySearchProgressListener> progressListeners
         = new Vector<HistorySearchProgressListener>();
@@ -67,7 +73,7 @@ protected HistoryReaderImpl(HistoryImpl historyImpl)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+    public QueryResultSet<HistoryRecord> findByStartDate(
                                                                 Date startDate)
             throws RuntimeException
     {
@@ -84,7 +90,7 @@ public synchronized QueryResultSet<HistoryRecord> findByStartDate(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
         throws RuntimeException
     {
         return find(null, endDate, null, null, false);
@@ -101,7 +107,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate, Date endDate)
             throws RuntimeException
     {
@@ -118,7 +124,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field)
             throws RuntimeException
     {
@@ -135,7 +141,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field)
             throws RuntimeException
     {
@@ -155,7 +161,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -174,7 +180,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      * @return QueryResultSet
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(int count)
+    public QueryResultSet<HistoryRecord> findLast(int count)
         throws RuntimeException
     {
         return findLast(count, null, null, false);
@@ -191,88 +197,87 @@ public synchronized QueryResultSet<HistoryRecord> findLast(int count)
      * @return the found records
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(
+    public QueryResultSet<HistoryRecord> findLast(
         int count,
         String[] keywords,
         String field,
         boolean caseSensitive)
         throws RuntimeException
     {
-        // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, null);
+        // the files are ordered from oldest to newest
+        List<String> filelist = this.historyImpl.getFileNames();
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        KeywordSearch keywordSearch
+            = new KeywordSearch(historyImpl, keywords, field);
+
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            String filename = filelist.get(currentFile);
 
-            if(doc == null)
+            // the records of a skipped file still count as searched
+            HistoryIndex.Entry entry
+                = this.historyImpl.getIndex().getEntry(filename);
+            if(entry != null && keywordSearch.canSkip(filename))
             {
+                leftCount -= entry.count;
                 currentFile--;
                 continue;
             }
 
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
+            // read the newest records first and stop at count
+            HistoryRecordReader reader
+                = this.historyImpl.openFileReverse(filename);
 
-            List<Node> lNodes = null;
-
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
+            if(reader == null)
             {
-                lNodes = nodes;
-                leftCount -= nodes.size();
+                currentFile--;
+                continue;
             }
 
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
+            boolean complete = false;
+            try
             {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                while(leftCount > 0)
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                    HistoryRecord stored = reader.next();
+                    if(stored == null)
+                    {
+                        complete = true;
+                        break;
+                    }
 
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
+                    keywordSearch.recordRead(stored);
+                    leftCount--;
 
-                if(record != null)
-                {
-                    result.add(record);
+                    HistoryRecord record = filterByKeyword(
+                        stored, keywords, field, caseSensitive);
+
+                    if(record != null)
+                    {
+                        result.add(record);
+                    }
                 }
+
+                if(!complete)
+                    complete = (reader.next() == null);
             }
+            finally
+            {
+                reader.close();
+            }
+
+            keywordSearch.fileRead(filename, complete);
 
             currentFile--;
         }
 
+        keywordSearch.done();
+
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
@@ -287,7 +292,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -305,7 +310,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -326,7 +331,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -353,86 +358,41 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), date, null);
+            this.historyImpl.getFilesInPeriod(date, null, false);
 
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            HistoryRecordReader reader = this.historyImpl.
+                openFile(filelist.get(currentFile), date);
 
-            if(doc == null)
+            if(reader == null)
             {
                 currentFile++;
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
+            try
             {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                HistoryRecord record;
+                while(leftCount > 0 && (record = reader.next()) != null)
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
+                    if(!isInPeriod(record.getTimestamp(), date, null))
+                        continue;
 
-                ArrayList<String> nameVals = new ArrayList<String>();
+                    // if we found a broken record - just skip it
+                    if(!isRecordComplete(record))
+                        continue;
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
+                    result.add(record);
+                    leftCount--;
                 }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+            }
+            finally
+            {
+                reader.close();
             }
 
             currentFile++;
@@ -455,7 +415,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
     {
         // the files are supposed to be ordered from oldest to newest
         Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, date);
+            this.historyImpl.getFilesInPeriod(null, date, false);
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
@@ -463,80 +423,37 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            // read the newest records first and stop at count
+            HistoryRecordReader reader = this.historyImpl.
+                openFileReverse(filelist.get(currentFile));
 
-            if(doc == null)
+            if(reader == null)
             {
                 currentFile--;
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
+            try
             {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                HistoryRecord record;
+                while(leftCount > 0 && (record = reader.next()) != null)
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
+                    if(!isInPeriod(record.getTimestamp(), null, date))
+                        continue;
 
-                ArrayList<String> nameVals = new ArrayList<String>();
+                    // if we found a broken record - just skip it
+                    if(!isRecordComplete(record))
+                        continue;
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
+                    result.add(record);
+                    leftCount--;
                 }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+            }
+            finally
+            {
+                reader.close();
             }
 
             currentFile--;
@@ -553,8 +470,7 @@ private QueryResultSet<HistoryRecord> find(
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
+            = this.historyImpl.getFilesInPeriod(startDate, endDate, false);
 
         double currentProgress
             = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
@@ -570,61 +486,78 @@ private QueryResultSet<HistoryRecord> find(
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        KeywordSearch keywordSearch
+            = new KeywordSearch(historyImpl, keywords, field);
+
         Iterator<String> fileIterator = filelist.iterator();
         while (fileIterator.hasNext())
         {
             String filename = fileIterator.next();
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
-
-            if(doc == null)
+            if(keywordSearch.canSkip(filename))
+            {
+                currentProgress += fileProgressStep;
                 continue;
+            }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            HistoryRecordReader reader
+                = this.historyImpl.openFile(filename, startDate);
 
-            double nodesProgressStep = fileProgressStep;
+            if(reader == null)
+                continue;
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+            // the index knows the number of records of the files read
+            // before, the progress of the others is reported once read
+            HistoryIndex.Entry entry
+                = this.historyImpl.getIndex().getEntry(filename);
+            double recordsProgressStep = 0;
+            if(entry != null && entry.count != 0)
+                recordsProgressStep = fileProgressStep / entry.count;
+            double fileProgressEnd = currentProgress + fileProgressStep;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            try
             {
-                node = nodes.item(i);
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                HistoryRecord stored;
+                while ((stored = reader.next()) != null)
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                    keywordSearch.recordRead(stored);
 
-                if(isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
+                    if(isInPeriod(stored.getTimestamp(), startDate, endDate))
+                    {
+                        HistoryRecord record = filterByKeyword(
+                            stored, keywords, field, caseSensitive);
 
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                        if(record != null)
+                        {
+                            result.add(record);
+                        }
+                    }
 
-                    if(record != null)
+                    if(recordsProgressStep != 0
+                        && currentProgress + recordsProgressStep
+                            < fileProgressEnd)
                     {
-                        result.add(record);
+                        currentProgress += recordsProgressStep;
+                        fireProgressStateChanged(
+                            startDate, endDate, keywords, (int)currentProgress);
                     }
                 }
-
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
             }
+            finally
+            {
+                reader.close();
+            }
+
+            keywordSearch.fileRead(filename,
+                startDate == null || !HistoryImpl.isSegmentFile(filename));
+
+            currentProgress = fileProgressEnd;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int)currentProgress);
         }
 
+        keywordSearch.done();
+
         // if maximum value is not reached fire an event
         if((int)currentProgress
                 < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
@@ -667,56 +600,45 @@ static boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
     /**
      * If there is keyword restriction and doesn't match the conditions
      * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
+     * given stored record, with its values unescaped.
      *
-     * @param propertyNodes NodeList
-     * @param timestamp Date
+     * @param stored the record as stored in the history file
      * @param keywords String[]
      * @param field String
      * @param caseSensitive boolean
      * @return HistoryRecord
      */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
-                                            Date timestamp,
+    static HistoryRecord filterByKeyword(   HistoryRecord stored,
                                             String[] keywords,
                                             String field,
                                             boolean caseSensitive)
     {
+        String[] names = stored.getPropertyNames();
+        String[] values = stored.getPropertyValues();
+
         ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
         boolean targetNodeFound = false;
-        for (int j = 0; j < len; j++)
+        for (int j = 0; j < names.length; j++)
         {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
-
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
+            String nodeName = names[j];
 
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
+            if(values[j] == null)
+                continue;
 
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
+            // unescape xml chars, we have escaped when writing values
+            String nodeValue = StringEscapeUtils.unescapeXml(values[j]);
 
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
+            if(field != null && field.equals(nodeName))
+            {
+                targetNodeFound = true;
 
+                if(!matchKeyword(nodeValue, keywords, caseSensitive))
+                    return null; // doesn't match the given keyword(s)
+                                // so return nothing
             }
+
+            nameVals.add(nodeName);
+            nameVals.add(nodeValue);
         }
 
         // if we need to find a particular record but the target node is not
@@ -734,7 +656,24 @@ static HistoryRecord filterByKeyword(   NodeList propertyNodes,
             propertyValues[j] = nameVals.get(j * 2 + 1);
         }
 
-        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+        return new HistoryRecord(
+            propertyNames, propertyValues, stored.getTimestamp());
+    }
+
+    /**
+     * Checks whether every property of a stored record has a value.
+     *
+     * @param stored the record as stored in the history file
+     * @return <tt>false</tt> if the record is broken
+     */
+    private static boolean isRecordComplete(HistoryRecord stored)
+    {
+        for (String value : stored.getPropertyValues())
+        {
+            if(value == null)
+                return false;
+        }
+        return true;
     }
 
     /**
@@ -824,15 +763,30 @@ public int compare(String o1, String o2)
 
             return result;
         }
-        // first convert all files to long
-        TreeSet<Long> files = new TreeSet<Long>();
+        // first convert all files to long, remembering their names as
+        // xml files and segments may both be present
+        TreeMap<Long, String> filenames = new TreeMap<Long, String>();
         while (filelist.hasNext())
         {
             String filename = filelist.next();
+            Long key
+                = Long.parseLong(filename.substring(0, filename.length() - 4));
+            String other = filenames.get(key);
+
+            // an interrupted migration leaves the xml file next to the
+            // segment written from it, which holds the same records
+            if (other != null)
+            {
+                String segment
+                    = HistoryImpl.isSegmentFile(filename) ? filename : other;
 
-            files.add(
-                Long.parseLong(filename.substring(0, filename.length() - 4)));
+                logger.warn("History files " + other + " and " + filename
+                    + " overlap, reading " + segment + " only");
+                filename = segment;
+            }
+            filenames.put(key, filename);
         }
+        NavigableSet<Long> files = filenames.navigableKeySet();
 
         TreeSet<Long> resultAsLong = new TreeSet<Long>();
 
@@ -881,7 +835,7 @@ public int compare(String o1, String o2)
         while (iter.hasNext())
         {
             Long item = iter.next();
-            result.add(item.toString() + ".xml");
+            result.add(filenames.get(item));
         }
 
         Collections.sort(result, new Comparator<String>() {
@@ -945,7 +899,8 @@ public void removeSearchProgressListener(HistorySearchProgressListener
     /**
      * Count the number of messages that a search will return
      * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records,
+     * The other files are counted from the index when indexed, otherwise
+     * we accept that they are full with max records,
      * this way we escape parsing all files which will significantly
      * slow the process and for one search will parse the files twice.
      *
@@ -959,24 +914,40 @@ public int countRecords()
     {
         int result = 0;
         String lastFile = null;
+        HistoryIndex index = this.historyImpl.getIndex();
         Iterator<String> filelistIter = this.historyImpl.getFileList();
         while (filelistIter.hasNext())
         {
+            if(lastFile != null)
+            {
+                HistoryIndex.Entry entry = index.getEntry(lastFile);
+                if(entry != null)
+                    result += entry.count;
+                else
+                    result += HistoryImpl.isSegmentFile(lastFile)
+                        ? HistoryWriterImpl.MAX_RECORDS_PER_SEGMENT
+                        : HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+            }
             lastFile = filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
         }
 
         if(lastFile == null)
             return result;
 
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
+        HistoryRecordReader reader = this.historyImpl.openFile(lastFile, null);
 
-        if(doc == null)
+        if(reader == null)
             return result;
 
-        NodeList nodes = doc.getElementsByTagName("record");
-
-        result += nodes.getLength();
+        try
+        {
+            while (reader.next() != null)
+                result++;
+        }
+        finally
+        {
+            reader.close();
+        }
 
         return result;
     }
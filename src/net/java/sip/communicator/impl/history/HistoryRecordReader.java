@@ -0,0 +1,449 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Reads the records of a single history file one after the other, without
+ * building a DOM tree. Records are returned the way they are stored: the
+ * property values are still XML escaped and the value of a property element
+ * without text is <tt>null</tt>.
+ * <p>
+ * Segments are read record by record, forward or, thanks to the length
+ * stored after each record, backward from their end. XML files are pulled
+ * with StAX, a file holding at most a few hundred records.
+ */
+abstract class HistoryRecordReader
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryRecordReader.class);
+
+    /**
+     * Returns the next record.
+     *
+     * @return the next record or <tt>null</tt> when all records were read
+     */
+    abstract HistoryRecord next();
+
+    /**
+     * Releases the file.
+     */
+    abstract void close();
+
+    /**
+     * Reads all the remaining records and closes the reader.
+     *
+     * @return the records in file order
+     */
+    List<HistoryRecord> readAll()
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        try
+        {
+            HistoryRecord record;
+            while ((record = next()) != null)
+                records.add(record);
+        }
+        finally
+        {
+            close();
+        }
+        return records;
+    }
+
+    /**
+     * Creates a reader over records already in memory.
+     *
+     * @param records the records
+     * @return the reader
+     */
+    static HistoryRecordReader forRecords(final List<HistoryRecord> records)
+    {
+        return new HistoryRecordReader()
+        {
+            private final Iterator<HistoryRecord> iter = records.iterator();
+
+            @Override
+            HistoryRecord next()
+            {
+                return iter.hasNext() ? iter.next() : null;
+            }
+
+            @Override
+            void close()
+            {
+            }
+        };
+    }
+
+    /**
+     * Pulls the records of a history XML file.
+     *
+     * @param factory the factory of the StAX readers
+     * @param file the XML file
+     * @return the records of the file in document order
+     * @throws IOException if reading the file fails
+     * @throws XMLStreamException if the file is not well formed
+     */
+    static List<HistoryRecord> parseXml(XMLInputFactory factory, File file)
+        throws IOException,
+               XMLStreamException
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            try
+            {
+                // depth 1 is <history>, 2 <record>, 3 the properties
+                int depth = 0;
+                Date timestamp = null;
+                String value = null;
+
+                while (xml.hasNext())
+                {
+                    switch (xml.next())
+                    {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2)
+                        {
+                            timestamp = parseTimestamp(
+                                sdf, xml.getAttributeValue(null, "timestamp"));
+                            names.clear();
+                            values.clear();
+                        }
+                        else if (depth == 3)
+                            value = null;
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (depth == 3)
+                        {
+                            value = (value == null)
+                                ? xml.getText()
+                                : value + xml.getText();
+                        }
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 3)
+                        {
+                            names.add(xml.getLocalName());
+                            values.add(value);
+                        }
+                        else if (depth == 2 && timestamp != null)
+                        {
+                            records.add(new HistoryRecord(
+                                names.toArray(new String[names.size()]),
+                                values.toArray(new String[values.size()]),
+                                timestamp));
+                        }
+                        depth--;
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                xml.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Parses the timestamp attribute of a record, which older histories
+     * store in milliseconds.
+     *
+     * @param sdf the format of the timestamps
+     * @param ts the value of the attribute
+     * @return the timestamp or <tt>null</tt> if <tt>ts</tt> is not valid
+     */
+    private static Date parseTimestamp(SimpleDateFormat sdf, String ts)
+    {
+        if (ts == null)
+            return null;
+
+        try
+        {
+            return sdf.parse(ts);
+        }
+        catch (ParseException e)
+        {
+            try
+            {
+                return new Date(Long.parseLong(ts));
+            }
+            catch (NumberFormatException nfe)
+            {
+                logger.warn("Skipping history record with timestamp " + ts);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads a segment record by record.
+     */
+    static class SegmentReader
+        extends HistoryRecordReader
+    {
+        /**
+         * The segment.
+         */
+        private final File file;
+
+        /**
+         * The stream of the segment.
+         */
+        private final FileInputStream in;
+
+        /**
+         * The reader of the records.
+         */
+        private final SegmentLog.Reader reader;
+
+        /**
+         * The index entry built while reading the whole segment, or
+         * <tt>null</tt>.
+         */
+        private HistoryIndex.Entry entry;
+
+        /**
+         * The index the built entry is added to.
+         */
+        private final HistoryIndex index;
+
+        /**
+         * The name of the segment in the index.
+         */
+        private final String filename;
+
+        /**
+         * Opens a segment.
+         *
+         * @param file the segment
+         * @param offset the offset of the first record to read or
+         * <tt>-1</tt>
+         * @param index the index to add the segment to once it was read
+         * entirely, <tt>null</tt> if it is indexed already
+         * @throws IOException if the segment cannot be opened
+         */
+        SegmentReader(File file, long offset, HistoryIndex index)
+            throws IOException
+        {
+            this.file = file;
+            this.filename = file.getName();
+            this.in = new FileInputStream(file);
+
+            try
+            {
+                this.reader = new SegmentLog.Reader(in.getChannel());
+            }
+            catch (IOException e)
+            {
+                in.close();
+                throw e;
+            }
+
+            if (offset > 0)
+                reader.seek(offset);
+
+            this.index = (offset > 0) ? null : index;
+            if (this.index != null)
+                entry = new HistoryIndex.Entry();
+        }
+
+        @Override
+        HistoryRecord next()
+        {
+            long position = reader.getPosition();
+            HistoryRecord record;
+            try
+            {
+                record = reader.next();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Stopped reading corrupted history segment "
+                    + file + " at " + position);
+                entry = null;
+                return null;
+            }
+
+            if (record == null)
+            {
+                // do not index a segment which was appended to meanwhile
+                if (entry != null && position == file.length())
+                    index.putEntry(filename, entry);
+                entry = null;
+            }
+            else if (entry != null)
+                entry.add(record.getTimestamp().getTime(), position);
+
+            return record;
+        }
+
+        @Override
+        void close()
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Failed to close history segment " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Reads a segment backward, newest record first.
+     */
+    static class ReverseSegmentReader
+        extends HistoryRecordReader
+    {
+        /**
+         * The segment.
+         */
+        private final File file;
+
+        /**
+         * The stream of the segment.
+         */
+        private final FileInputStream in;
+
+        /**
+         * The reader of the records.
+         */
+        private final SegmentLog.Reader reader;
+
+        /**
+         * The remaining records, newest first, once a corrupted record made
+         * reading backward impossible.
+         */
+        private Iterator<HistoryRecord> fallback = null;
+
+        /**
+         * Opens a segment at the end of its last record.
+         *
+         * @param file the segment
+         * @param end the offset of the end of the last record
+         * @throws IOException if the segment cannot be opened
+         */
+        ReverseSegmentReader(File file, long end)
+            throws IOException
+        {
+            this.file = file;
+            this.in = new FileInputStream(file);
+
+            try
+            {
+                this.reader = new SegmentLog.Reader(in.getChannel());
+            }
+            catch (IOException e)
+            {
+                in.close();
+                throw e;
+            }
+
+            reader.seek(end);
+        }
+
+        @Override
+        HistoryRecord next()
+        {
+            if (fallback != null)
+                return fallback.hasNext() ? fallback.next() : null;
+
+            long end = reader.getPosition();
+            try
+            {
+                return reader.previous();
+            }
+            catch (IOException e)
+            {
+                // a torn or corrupted record, read forward up to it
+                logger.warn("Cannot read history segment " + file
+                    + " backward from " + end);
+            }
+
+            List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+            try
+            {
+                SegmentLog.Reader forward
+                    = new SegmentLog.Reader(in.getChannel());
+                HistoryRecord record;
+                while (forward.getPosition() < end
+                        && (record = forward.next()) != null)
+                {
+                    records.add(record);
+                }
+            }
+            catch (IOException e)
+            {
+                logger.warn("Stopped reading corrupted history segment "
+                    + file);
+            }
+
+            Collections.reverse(records);
+            fallback = records.iterator();
+            return fallback.hasNext() ? fallback.next() : null;
+        }
+
+        @Override
+        void close()
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Failed to close history segment " + file, e);
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@
 import java.util.*;
 
 import javax.xml.parsers.*;
+import javax.xml.stream.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
@@ -50,6 +51,57 @@
      */
     public static final String DATA_FILE = "dbstruct.dat";
 
+    /**
+     * The property used to change the maximum number of history documents
+     * kept in memory when caching is enabled.
+     */
+    private static final String CACHE_MAX_ENTRIES_PROPERTY
+        = "net.java.sip.communicator.impl.history.CACHE_MAX_ENTRIES";
+
+    /**
+     * The property used to change the maximum estimated number of bytes of
+     * the history documents kept in memory when caching is enabled.
+     */
+    private static final String CACHE_MAX_BYTES_PROPERTY
+        = "net.java.sip.communicator.impl.history.CACHE_MAX_BYTES";
+
+    /**
+     * The property used to enable writing history files on a background
+     * thread instead of the thread adding the records.
+     */
+    private static final String ASYNC_WRITES_PROPERTY
+        = "net.java.sip.communicator.impl.history.ASYNC_WRITES";
+
+    /**
+     * The property used to change the maximum number of records waiting to
+     * be written when history files are written on a background thread.
+     */
+    private static final String WRITE_QUEUE_CAPACITY_PROPERTY
+        = "net.java.sip.communicator.impl.history.WRITE_QUEUE_CAPACITY";
+
+    /**
+     * The property used to change the number of records appended to a
+     * history segment after which they are synced to the storage device.
+     */
+    private static final String SEGMENT_SYNC_BATCH_SIZE_PROPERTY
+        = "net.java.sip.communicator.impl.history.SEGMENT_SYNC_BATCH_SIZE";
+
+    /**
+     * The property used to change the maximum time in milliseconds records
+     * appended to a history segment may wait before being synced.
+     */
+    private static final String SEGMENT_SYNC_INTERVAL_PROPERTY
+        = "net.java.sip.communicator.impl.history.SEGMENT_SYNC_INTERVAL";
+
+    /**
+     * The property used to request the keyword indexes of all histories to
+     * be rebuilt at startup. Its value is a comma separated list of the
+     * fields to index, for example <tt>msg,file</tt>. The property is removed
+     * once the rebuild is started.
+     */
+    private static final String REBUILD_KEYWORD_INDEXES_PROPERTY
+        = "net.java.sip.communicator.impl.history.REBUILD_KEYWORD_INDEXES";
+
     /**
      * The logger for this class.
      */
@@ -64,8 +116,41 @@
 
     private final DocumentBuilder builder;
 
+    /**
+     * The factory of the StAX readers the history files are read with.
+     */
+    private final XMLInputFactory xmlInputFactory;
+
     private final boolean cacheEnabled;
 
+    /**
+     * The cache of the documents of all histories, <tt>null</tt> if caching
+     * is disabled.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    /**
+     * The queue writing history files on a background thread, <tt>null</tt>
+     * if they are written by the threads adding records.
+     */
+    private final HistoryWriteQueue writeQueue;
+
+    /**
+     * Whether new records are appended to binary segments instead of being
+     * written to XML files.
+     */
+    private final boolean segmentStorageEnabled;
+
+    /**
+     * The number of appended records after which a segment is synced.
+     */
+    private final int segmentSyncBatchSize;
+
+    /**
+     * The time in milliseconds after which appended records are synced.
+     */
+    private final long segmentSyncInterval;
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -94,10 +179,65 @@ public HistoryServiceImpl(BundleContext bundleContext)
     {
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+        this.xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        ConfigurationService configService
+            = getConfigurationService(bundleContext);
+
         this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+            configService.getBoolean(CACHE_ENABLED_PROPERTY, false);
+        this.documentCache = cacheEnabled
+            ? new HistoryDocumentCache(
+                configService,
+                configService.getInt(
+                    CACHE_MAX_ENTRIES_PROPERTY,
+                    HistoryDocumentCache.DEFAULT_MAX_ENTRIES),
+                configService.getLong(
+                    CACHE_MAX_BYTES_PROPERTY,
+                    HistoryDocumentCache.DEFAULT_MAX_BYTES))
+            : null;
+        this.segmentStorageEnabled = STORAGE_ENGINE_SEGMENT.equals(
+            configService.getString(
+                STORAGE_ENGINE_PROPERTY, STORAGE_ENGINE_XML));
+        this.segmentSyncBatchSize = configService.getInt(
+            SEGMENT_SYNC_BATCH_SIZE_PROPERTY,
+            SegmentLog.DEFAULT_SYNC_BATCH_SIZE);
+        this.segmentSyncInterval = configService.getLong(
+            SEGMENT_SYNC_INTERVAL_PROPERTY,
+            SegmentLog.DEFAULT_SYNC_INTERVAL);
+        this.writeQueue
+            = configService.getBoolean(ASYNC_WRITES_PROPERTY, false)
+                ? new HistoryWriteQueue(
+                    configService,
+                    configService.getInt(
+                        WRITE_QUEUE_CAPACITY_PROPERTY,
+                        HistoryWriteQueue.DEFAULT_CAPACITY))
+                : null;
         this.fileAccessService = getFileAccessService(bundleContext);
+
+        String rebuildFields
+            = configService.getString(REBUILD_KEYWORD_INDEXES_PROPERTY);
+        if (rebuildFields != null)
+        {
+            configService.removeProperty(REBUILD_KEYWORD_INDEXES_PROPERTY);
+
+            final String[] fields = rebuildFields.split("\\s*,\\s*");
+            Thread rebuildThread = new Thread("HistoryKeywordIndexRebuild")
+            {
+                @Override
+                public void run()
+                {
+                    rebuildKeywordIndexes(fields);
+                }
+            };
+            rebuildThread.setDaemon(true);
+            rebuildThread.start();
+        }
     }
 
     public Iterator<HistoryID> getExistingIDs()
@@ -214,6 +354,15 @@ protected DocumentBuilder getDocumentBuilder()
         return builder;
     }
 
+    /**
+     * Returns the factory of the StAX readers used to read history files.
+     * @return the factory of the StAX readers
+     */
+    XMLInputFactory getXMLInputFactory()
+    {
+        return xmlInputFactory;
+    }
+
     /**
      * Parse documents. Synchronized to avoid exception
      * when concurrently parsing with same DocumentBuilder
@@ -318,6 +467,107 @@ protected boolean isCacheEnabled()
         return cacheEnabled;
     }
 
+    /**
+     * Returns the queue writing history files on a background thread.
+     * @return the queue or <tt>null</tt> if history files are written by the
+     * threads adding records
+     */
+    HistoryWriteQueue getWriteQueue()
+    {
+        return writeQueue;
+    }
+
+    /**
+     * Returns the cache of the documents of all histories.
+     * @return the cache or <tt>null</tt> if caching is disabled
+     */
+    HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns whether new records are appended to binary segments instead
+     * of being written to XML files.
+     * @return whether the segment storage engine is used
+     */
+    boolean isSegmentStorageEnabled()
+    {
+        return segmentStorageEnabled;
+    }
+
+    /**
+     * Creates a <tt>SegmentLog</tt> appending to <tt>file</tt> with the
+     * configured sync policy.
+     * @param file the segment file
+     * @return the new <tt>SegmentLog</tt>
+     */
+    SegmentLog createSegmentLog(File file)
+    {
+        return new SegmentLog(file, segmentSyncBatchSize, segmentSyncInterval);
+    }
+
+    /**
+     * Rebuilds the keyword indexes of all the existing histories.
+     *
+     * @param fields the fields to index in addition to the ones already
+     * searched, may be <tt>null</tt>
+     */
+    public void rebuildKeywordIndexes(String[] fields)
+    {
+        List<HistoryID> ids = new ArrayList<HistoryID>();
+        Iterator<HistoryID> iter = getExistingIDs();
+        synchronized (this.histories)
+        {
+            while (iter.hasNext())
+                ids.add(iter.next());
+        }
+
+        for (HistoryID id : ids)
+        {
+            History history = this.histories.get(id);
+
+            if (history instanceof HistoryImpl)
+            {
+                try
+                {
+                    ((HistoryImpl) history).rebuildKeywordIndex(fields);
+                }
+                catch (Exception e)
+                {
+                    logger.error("Failed to rebuild keyword index of "
+                        + id, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the service, making sure everything written to the loaded
+     * histories has reached the disk.
+     */
+    void stop()
+    {
+        // write what is queued before closing the histories
+        if (writeQueue != null)
+            writeQueue.stop();
+
+        List<History> loaded;
+        synchronized (this.histories)
+        {
+            loaded = new ArrayList<History>(this.histories.values());
+        }
+
+        for (History history : loaded)
+        {
+            if (history instanceof HistoryImpl)
+                ((HistoryImpl) history).close();
+        }
+
+        if (documentCache != null)
+            documentCache.publishStats(true);
+    }
+
     /**
      * Permamently removes local stored History
      *
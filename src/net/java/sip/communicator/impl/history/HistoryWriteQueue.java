@@ -0,0 +1,282 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+
+/**
+ * Writes the history files changed by <tt>HistoryWriterImpl</tt>s on a
+ * background thread, so that adding a record does not serialize a whole
+ * history file on the caller's thread. A writer with pending records is
+ * queued once however many records it holds, and all its pending records
+ * are written with a single write of each changed file.
+ * <p>
+ * The number of pending records is bounded: when it is reached, the thread
+ * adding a record writes the pending records of its writer itself. The
+ * queue depth and the write latency are published as system properties
+ * through the configuration service.
+ */
+class HistoryWriteQueue
+    implements Runnable
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriteQueue.class);
+
+    /**
+     * The prefix of the properties the statistics are published as.
+     */
+    private static final String STATS_PROPERTY_PREFIX
+        = "net.java.sip.communicator.impl.history.writer.";
+
+    /**
+     * The property holding the number of records waiting to be written.
+     */
+    static final String QUEUE_DEPTH_PROPERTY
+        = STATS_PROPERTY_PREFIX + "QUEUE_DEPTH";
+
+    /**
+     * The property holding the average time in milliseconds writing a file
+     * took.
+     */
+    static final String WRITE_LATENCY_PROPERTY
+        = STATS_PROPERTY_PREFIX + "WRITE_LATENCY";
+
+    /**
+     * The property holding the longest time in milliseconds writing a file
+     * took.
+     */
+    static final String MAX_WRITE_LATENCY_PROPERTY
+        = STATS_PROPERTY_PREFIX + "MAX_WRITE_LATENCY";
+
+    /**
+     * The default maximum number of records waiting to be written.
+     */
+    static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * The minimum time in milliseconds between two publications of the
+     * statistics.
+     */
+    private static final long STATS_PUBLISH_INTERVAL = 1000;
+
+    /**
+     * The writers with pending records, in the order they were queued.
+     */
+    private final Set<HistoryWriterImpl> writers
+        = new LinkedHashSet<HistoryWriterImpl>();
+
+    /**
+     * The configuration service the statistics are published through, may
+     * be <tt>null</tt>.
+     */
+    private final ConfigurationService configService;
+
+    /**
+     * The maximum number of records waiting to be written.
+     */
+    private final int capacity;
+
+    /**
+     * The number of records waiting to be written.
+     */
+    private int depth = 0;
+
+    /**
+     * The number of file writes done and the total and longest time they
+     * took, in nanoseconds.
+     */
+    private long writeCount = 0;
+
+    private long totalWriteTime = 0;
+
+    private long maxWriteTime = 0;
+
+    /**
+     * The time the statistics were last published.
+     */
+    private long lastPublished = 0;
+
+    /**
+     * The thread writing the files, <tt>null</tt> once stopped.
+     */
+    private Thread thread;
+
+    /**
+     * Creates a queue and starts its thread.
+     *
+     * @param configService the configuration service to publish the
+     * statistics through, may be <tt>null</tt>
+     * @param capacity the maximum number of records waiting to be written
+     */
+    HistoryWriteQueue(ConfigurationService configService, int capacity)
+    {
+        this.configService = configService;
+        this.capacity = Math.max(1, capacity);
+
+        thread = new Thread(this, "HistoryWriteQueue");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a writer which has a new pending record.
+     *
+     * @param writer the writer
+     * @return <tt>false</tt> if the queue is full or stopped and the caller
+     * has to write the pending records of <tt>writer</tt> itself
+     */
+    synchronized boolean recordAdded(HistoryWriterImpl writer)
+    {
+        if (thread == null || depth >= capacity)
+            return false;
+
+        depth++;
+        if (writers.add(writer))
+            notifyAll();
+        return true;
+    }
+
+    /**
+     * Records that pending records were written.
+     *
+     * @param count the number of written records
+     * @param writeTime the time in nanoseconds the write took
+     */
+    void recordsWritten(int count, long writeTime)
+    {
+        synchronized (this)
+        {
+            depth = Math.max(0, depth - count);
+            writeCount++;
+            totalWriteTime += writeTime;
+            maxWriteTime = Math.max(maxWriteTime, writeTime);
+        }
+
+        publishStats(false);
+    }
+
+    /**
+     * Writes the pending records of the queued writers until stopped.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            HistoryWriterImpl writer;
+            synchronized (this)
+            {
+                while (thread != null && writers.isEmpty())
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                }
+
+                if (writers.isEmpty())
+                    return;
+
+                Iterator<HistoryWriterImpl> iter = writers.iterator();
+                writer = iter.next();
+                iter.remove();
+            }
+
+            try
+            {
+                writer.flush();
+            }
+            catch (Throwable t)
+            {
+                logger.error("Failed to write history records", t);
+            }
+        }
+    }
+
+    /**
+     * Stops the thread once it has written all pending records, waiting for
+     * it to finish.
+     */
+    void stop()
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            thread = this.thread;
+            this.thread = null;
+            notifyAll();
+        }
+
+        if (thread != null)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        publishStats(true);
+    }
+
+    /**
+     * Publishes the statistics through the configuration service.
+     *
+     * @param force whether to publish them even if they were published
+     * recently
+     */
+    private void publishStats(boolean force)
+    {
+        if (configService == null)
+            return;
+
+        int depth;
+        long averageLatency, maxLatency;
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            if (!force && now - lastPublished < STATS_PUBLISH_INTERVAL)
+                return;
+            lastPublished = now;
+
+            depth = this.depth;
+            averageLatency = (writeCount == 0)
+                ? 0 : totalWriteTime / writeCount / 1000000;
+            maxLatency = maxWriteTime / 1000000;
+        }
+
+        configService.setProperty(
+            QUEUE_DEPTH_PROPERTY, Integer.toString(depth), true);
+        configService.setProperty(
+            WRITE_LATENCY_PROPERTY, Long.toString(averageLatency), true);
+        configService.setProperty(
+            MAX_WRITE_LATENCY_PROPERTY, Long.toString(maxLatency), true);
+    }
+}
@@ -27,6 +27,7 @@
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
 import org.jitsi.util.xml.XMLUtils;
 import org.w3c.dom.*;
@@ -39,11 +40,24 @@
 public class HistoryWriterImpl
     implements HistoryWriter
 {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriterImpl.class);
+
     /**
      * Maximum records per file.
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
+    /**
+     * Maximum records per segment, when the segment storage engine is used.
+     * Appending does not depend on the size of the segment, so segments can
+     * hold many more records than the XML files.
+     */
+    public static final int MAX_RECORDS_PER_SEGMENT = 2000;
+
     private static final String CDATA_SUFFIX = "_CDATA";
 
     private Object docCreateLock = new Object();
@@ -60,6 +74,25 @@
 
     private int currentDocElements = -1;
 
+    /**
+     * The records added but not written yet by file name, when files are
+     * written by the <tt>HistoryWriteQueue</tt>. Guarded by
+     * <tt>docWriteLock</tt>.
+     */
+    private final Map<String, PendingFile> pendingFiles
+        = new LinkedHashMap<String, PendingFile>();
+
+    /**
+     * The number of pending records accounted for by the write queue.
+     * Guarded by <tt>docWriteLock</tt>.
+     */
+    private int queuedRecords = 0;
+
+    /**
+     * Serializes the writes of the pending records.
+     */
+    private final Object flushLock = new Object();
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -131,6 +164,13 @@ private void addRecord(String[] propertyNames,
                            int maxNumberOfRecords)
         throws InvalidParameterException, IOException
     {
+        if (historyImpl.getHistoryServiceImpl().isSegmentStorageEnabled())
+        {
+            appendRecord(
+                propertyNames, propertyValues, date, maxNumberOfRecords);
+            return;
+        }
+
         // Synchronized to assure that two concurrent threads can insert records
         // safely.
         synchronized (this.docCreateLock)
@@ -142,6 +182,9 @@ private void addRecord(String[] propertyNames,
             }
         }
 
+        boolean trimmed = false;
+        int recordCount;
+
         synchronized (this.currentDoc)
         {
             Node root = this.currentDoc.getFirstChild();
@@ -154,25 +197,309 @@ private void addRecord(String[] propertyNames,
                 {
                     // lets remove the first one
                     removeFirstRecord(root);
+                    trimmed = true;
                 }
 
                 Element elem = createRecord(
                     this.currentDoc, propertyNames, propertyValues, date);
                 root.appendChild(elem);
                 this.currentDocElements++;
+                recordCount = this.currentDocElements;
+            }
+        }
+
+        HistoryWriteQueue queue
+            = historyImpl.getHistoryServiceImpl().getWriteQueue();
+        if (queue != null)
+        {
+            boolean queued;
+            synchronized (this.docWriteLock)
+            {
+                PendingFile pending = pendingFiles.get(this.currentFile);
+                if (pending == null)
+                {
+                    pending = new PendingFile(this.currentDoc);
+                    pendingFiles.put(this.currentFile, pending);
+                    this.historyImpl.setPendingDocument(
+                        this.currentFile, this.currentDoc);
+                }
+                pending.records.add(new PendingRecord(propertyNames,
+                    propertyValues, date.getTime(), recordCount, trimmed));
+
+                queued = queue.recordAdded(this);
+                if (queued)
+                    queuedRecords++;
             }
+
+            // the queue is full, write on this thread
+            if (!queued)
+                flush();
+            return;
         }
 
         // write changes
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            // the cache may have evicted the current document meanwhile
+            this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+
+            recordWritten(this.currentFile, propertyNames, propertyValues,
+                date.getTime(), recordCount, trimmed);
         }
     }
 
+    /**
+     * Writes the files holding pending records and updates the indexes
+     * with the written records.
+     */
+    void flush()
+    {
+        synchronized (this.flushLock)
+        {
+            Map<String, PendingFile> files;
+            int queued;
+            synchronized (this.docWriteLock)
+            {
+                if (pendingFiles.isEmpty())
+                    return;
+
+                files = new LinkedHashMap<String, PendingFile>(pendingFiles);
+                pendingFiles.clear();
+                queued = queuedRecords;
+                queuedRecords = 0;
+            }
+
+            long start = System.nanoTime();
+            for (Map.Entry<String, PendingFile> e : files.entrySet())
+            {
+                String filename = e.getKey();
+                PendingFile pending = e.getValue();
+
+                try
+                {
+                    this.historyImpl.writeFile(filename, pending.doc);
+
+                    for (PendingRecord record : pending.records)
+                    {
+                        recordWritten(filename, record.names, record.values,
+                            record.timestamp, record.recordCount,
+                            record.trimmed);
+                    }
+                }
+                catch (IOException ex)
+                {
+                    logger.error("Failed to write history file " + filename,
+                        ex);
+                    invalidateIndexes(filename);
+                }
+
+                synchronized (this.docWriteLock)
+                {
+                    if (!pendingFiles.containsKey(filename))
+                        this.historyImpl.removePendingDocument(filename);
+                }
+            }
+
+            HistoryWriteQueue queue
+                = historyImpl.getHistoryServiceImpl().getWriteQueue();
+            if (queue != null)
+                queue.recordsWritten(queued, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Updates the indexes with a record written to a file.
+     *
+     * @param filename the name of the file
+     * @param propertyNames property names of the record
+     * @param propertyValues values of the properties
+     * @param timestamp the timestamp of the record
+     * @param recordCount the number of records in the file with the record
+     * @param trimmed whether the oldest record of the file was removed
+     */
+    private void recordWritten(String filename,
+                               String[] propertyNames,
+                               String[] propertyValues,
+                               long timestamp,
+                               int recordCount,
+                               boolean trimmed)
+    {
+        if (trimmed)
+            this.historyImpl.getIndex().invalidate(filename);
+        else
+            this.historyImpl.getIndex().recordAdded(
+                filename, timestamp, -1, recordCount);
+
+        updateKeywordIndex(filename, propertyNames, propertyValues,
+            recordCount);
+    }
+
+    /**
+     * Appends a new record to the current segment, used instead of the
+     * document based <tt>addRecord</tt> when the segment storage engine is
+     * enabled.
+     *
+     * @param propertyNames String[]
+     * @param propertyValues String[]
+     * @param date Date
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException
+     */
+    private void appendRecord(String[] propertyNames,
+                              String[] propertyValues,
+                              Date date,
+                              int maxNumberOfRecords)
+        throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            if (this.currentFile == null
+                || !HistoryImpl.isSegmentFile(this.currentFile)
+                || this.currentDocElements >= MAX_RECORDS_PER_SEGMENT)
+            {
+                this.createNewSegment(date, this.currentFile == null);
+            }
+
+            if (maxNumberOfRecords > -1
+                && this.currentDocElements >= maxNumberOfRecords)
+            {
+                // removing the oldest record cannot be done by appending,
+                // so fall back to rewriting the whole segment
+                Document doc
+                    = this.historyImpl.getDocumentForFile(this.currentFile);
+
+                if (doc != null)
+                {
+                    Node root = doc.getFirstChild();
+                    removeFirstRecord(root);
+                    root.appendChild(createRecord(
+                        doc, propertyNames, propertyValues, date));
+
+                    synchronized (this.docWriteLock)
+                    {
+                        this.historyImpl.writeFile(this.currentFile, doc);
+                    }
+                    this.historyImpl.getIndex().invalidate(this.currentFile);
+                    updateKeywordIndex(this.currentFile, propertyNames,
+                        propertyValues, this.currentDocElements);
+                    return;
+                }
+            }
+
+            long offset = this.historyImpl.appendRecord(this.currentFile,
+                createSegmentRecord(propertyNames, propertyValues, date));
+            this.currentDocElements++;
+
+            this.historyImpl.getIndex().recordAdded(
+                this.currentFile, date.getTime(), offset,
+                this.currentDocElements);
+            updateKeywordIndex(this.currentFile,
+                propertyNames, propertyValues, this.currentDocElements);
+        }
+    }
+
+    /**
+     * Adds a new record of a file to the keyword index, when a keyword
+     * search has loaded it.
+     *
+     * @param filename the name of the file
+     * @param propertyNames property names of the record
+     * @param propertyValues values of the properties
+     * @param recordCount the number of records in the file
+     */
+    private void updateKeywordIndex(String filename,
+                                    String[] propertyNames,
+                                    String[] propertyValues,
+                                    int recordCount)
+    {
+        KeywordIndex keywordIndex = this.historyImpl.getLoadedKeywordIndex();
+        if (keywordIndex == null)
+            return;
+
+        String[] names = new String[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            names[i] = propertyNames[i].endsWith(CDATA_SUFFIX)
+                ? propertyNames[i].replaceFirst(CDATA_SUFFIX, "")
+                : propertyNames[i];
+        }
+
+        keywordIndex.recordAdded(filename, names, propertyValues, recordCount);
+    }
+
+    /**
+     * Saves the indexes when starting a new file, so the entries of the
+     * previous, now complete, file are kept.
+     */
+    private void saveIndexes()
+    {
+        this.historyImpl.getIndex().save();
+
+        KeywordIndex keywordIndex = this.historyImpl.getLoadedKeywordIndex();
+        if (keywordIndex != null)
+            keywordIndex.save();
+    }
+
+    /**
+     * Invalidates the index entries of a file changed in place.
+     * @param filename the name of the file
+     */
+    private void invalidateIndexes(String filename)
+    {
+        this.historyImpl.getIndex().invalidate(filename);
+
+        KeywordIndex keywordIndex = this.historyImpl.getLoadedKeywordIndex();
+        if (keywordIndex != null)
+            keywordIndex.invalidate(filename);
+    }
+
+    /**
+     * Creates the record stored in a segment for the supplied properties.
+     * Names and values are transformed the same way <tt>createRecord</tt>
+     * transforms them for the XML files.
+     * @param propertyNames property names for the record
+     * @param propertyValues values for the properties
+     * @param date the of creation of the record
+     * @return the newly created record.
+     */
+    private HistoryRecord createSegmentRecord(String[] propertyNames,
+                                              String[] propertyValues,
+                                              Date date)
+    {
+        List<String> names = new ArrayList<String>(propertyNames.length);
+        List<String> values = new ArrayList<String>(propertyNames.length);
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String propertyName = propertyNames[i];
+            if(propertyName.endsWith(CDATA_SUFFIX))
+                propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
+
+            names.add(propertyName);
+            values.add(escapeValue(propertyValues[i]));
+        }
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            date);
+    }
+
+    /**
+     * Escapes a property value the way it is stored in history files.
+     * @param value the value to escape
+     * @return the escaped value
+     */
+    private static String escapeValue(String value)
+    {
+        return XmlEscapers.xmlContentEscaper().escape(
+            value.replaceAll("\0", " "));
+    }
+
     /**
      * Creates a record element for the supplied <tt>doc</tt> and populates it
      * with the property names from <tt>propertyNames</tt> and corresponding
@@ -208,9 +535,7 @@ private Element createRecord(Document doc,
                     Element propertyElement = doc.createElement(propertyName);
 
                     Text value = doc.createCDATASection(
-                        XmlEscapers.xmlContentEscaper().escape(
-                            propertyValues[i].replaceAll("\0", " ")
-                        ));
+                        escapeValue(propertyValues[i]));
                     propertyElement.appendChild(value);
 
                     elem.appendChild(propertyElement);
@@ -223,9 +548,7 @@ private Element createRecord(Document doc,
                     Element propertyElement = doc.createElement(propertyName);
 
                     Text value = doc.createTextNode(
-                        XmlEscapers.xmlContentEscaper().escape(
-                            propertyValues[i].replaceAll("\0", " ")
-                        ));
+                        escapeValue(propertyValues[i]));
                     propertyElement.appendChild(value);
 
                     elem.appendChild(propertyElement);
@@ -298,6 +621,27 @@ private void removeFirstRecord(Node root)
     public void insertRecord(
             String[] propertyValues, Date timestamp, String timestampProperty)
         throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            insertRecord0(propertyValues, timestamp, timestampProperty);
+        }
+    }
+
+    /**
+     * Inserts a record at the position its timestamp calls for. The caller
+     * holds <tt>docCreateLock</tt>.
+     *
+     * @param propertyValues The values of the record.
+     * @param timestamp The timestamp of the record.
+     * @param timestampProperty the property name for the timestamp of the
+     * record
+     *
+     * @throws IOException
+     */
+    private void insertRecord0(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
     {
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator
@@ -364,6 +708,7 @@ public void insertRecord(
                 {
                     this.historyImpl.writeFile(filename, doc);
                 }
+                invalidateIndexes(filename);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -399,7 +744,8 @@ private void createNewDoc(Date date, boolean loadLastFile)
                 file = files.next();
             }
 
-            if (file != null)
+            // keep appending to segments written by the segment engine
+            if (file != null && !HistoryImpl.isSegmentFile(file))
             {
                 this.currentDoc = this.historyImpl.getDocumentForFile(file);
                 this.currentFile = file;
@@ -416,6 +762,8 @@ private void createNewDoc(Date date, boolean loadLastFile)
 
         if (!loaded)
         {
+            saveIndexes();
+
             this.currentFile = Long.toString(date.getTime());
             this.currentFile += ".xml";
 
@@ -429,6 +777,46 @@ private void createNewDoc(Date date, boolean loadLastFile)
                 .getChildNodes().getLength();
     }
 
+    /**
+     * If no segment is currently used continues the last one when it is a
+     * segment. Otherwise, or if the current segment is full, starts a new one.
+     *
+     * @param date Date
+     * @param loadLastFile boolean
+     */
+    private void createNewSegment(Date date, boolean loadLastFile)
+    {
+        if (loadLastFile)
+        {
+            Iterator<String> files = historyImpl.getFileList();
+
+            String file = null;
+            while (files.hasNext())
+            {
+                file = files.next();
+            }
+
+            if (file != null && HistoryImpl.isSegmentFile(file))
+            {
+                Document doc = this.historyImpl.getDocumentForFile(file);
+
+                if (doc != null)
+                {
+                    this.currentFile = file;
+                    this.currentDocElements
+                        = doc.getElementsByTagName("record").getLength();
+                    return;
+                }
+            }
+        }
+
+        saveIndexes();
+
+        this.currentFile = Long.toString(date.getTime())
+            + "." + SegmentLog.SEGMENT_FILETYPE;
+        this.currentDocElements = 0;
+    }
+
     /**
      * Updates a record by searching for record with idProperty which have
      * idValue and updating/creating the property with newValue.
@@ -441,6 +829,25 @@ private void createNewDoc(Date date, boolean loadLastFile)
     public void updateRecord(String idProperty, String idValue,
             String property, String newValue)
         throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            updateRecord0(idProperty, idValue, property, newValue);
+        }
+    }
+
+    /**
+     * Updates the property of the record with the given id. The caller holds
+     * <tt>docCreateLock</tt>.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     */
+    private void updateRecord0(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
     {
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
@@ -487,11 +894,10 @@ public void updateRecord(String idProperty, String idValue,
                 }
                 else
                 {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
+                    Element propertyElement = doc.createElement(property);
 
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
+                    Text value
+                        = doc.createTextNode(newValue.replaceAll("\0", " "));
                     propertyElement.appendChild(value);
 
                     node.appendChild(propertyElement);
@@ -514,6 +920,7 @@ public void updateRecord(String idProperty, String idValue,
                 {
                     this.historyImpl.writeFile(filename, doc);
                 }
+                invalidateIndexes(filename);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -535,6 +942,21 @@ public void updateRecord(String idProperty, String idValue,
      * @param updater the <tt>HistoryRecordUpdater</tt> instance.
      */
     public void updateRecord(HistoryRecordUpdater updater) throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            updateRecord0(updater);
+        }
+    }
+
+    /**
+     * Updates the records matched by the given <tt>HistoryRecordUpdater</tt>.
+     * The caller holds <tt>docCreateLock</tt>.
+     *
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     */
+    private void updateRecord0(HistoryRecordUpdater updater)
+        throws IOException
     {
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
@@ -588,6 +1010,7 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
                 {
                     this.historyImpl.writeFile(filename, doc);
                 }
+                invalidateIndexes(filename);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -629,4 +1052,52 @@ private HistoryRecord createHistoryRecordFromNode(Node node)
 
         return new HistoryRecord(structure, propertyValues);
     }
+
+    /**
+     * A file changed by added records which are not written yet.
+     */
+    private static class PendingFile
+    {
+        /**
+         * The document of the file.
+         */
+        final Document doc;
+
+        /**
+         * The added records, oldest first.
+         */
+        final List<PendingRecord> records = new ArrayList<PendingRecord>();
+
+        PendingFile(Document doc)
+        {
+            this.doc = doc;
+        }
+    }
+
+    /**
+     * A record added to a file which is not written yet, kept to update the
+     * indexes once it is.
+     */
+    private static class PendingRecord
+    {
+        final String[] names;
+
+        final String[] values;
+
+        final long timestamp;
+
+        final int recordCount;
+
+        final boolean trimmed;
+
+        PendingRecord(String[] names, String[] values, long timestamp,
+                      int recordCount, boolean trimmed)
+        {
+            this.names = names;
+            this.values = values;
+            this.timestamp = timestamp;
+            this.recordCount = recordCount;
+            this.trimmed = trimmed;
+        }
+    }
 }
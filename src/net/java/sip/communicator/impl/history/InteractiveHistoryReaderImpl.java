@@ -17,18 +17,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
@@ -151,46 +145,43 @@ private void find(  Date startDate,
                         HistoryQueryImpl query)
     {
         Vector<String> filelist
-            = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
-                                                    startDate, endDate, true);
+            = history.getFilesInPeriod(startDate, endDate, true);
         Iterator<String> fileIterator = filelist.iterator();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        KeywordSearch keywordSearch
+            = new KeywordSearch(history, keywords, field);
+
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
+            if (keywordSearch.canSkip(filename))
+                continue;
+
+            HistoryRecordReader reader = history.openFile(filename, startDate);
 
-            if(doc == null)
+            if(reader == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            // newest records first, the file is read before
+            List<HistoryRecord> records = reader.readAll();
+
+            for (HistoryRecord stored : records)
+                keywordSearch.recordRead(stored);
+            keywordSearch.fileRead(filename,
+                startDate == null || !HistoryImpl.isSegmentFile(filename));
 
-            for ( int i = nodes.getLength() - 1;
+            for ( int i = records.size() - 1;
                   i >= 0 && !query.isCanceled();
                   i--)
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                HistoryRecord stored = records.get(i);
 
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
+                if(HistoryReaderImpl.isInPeriod(
+                        stored.getTimestamp(), startDate, endDate))
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
                     HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                        HistoryReaderImpl.filterByKeyword(
+                            stored, keywords, field, caseSensitive);
 
                     if(record != null)
                     {
@@ -201,6 +192,8 @@ private void find(  Date startDate,
             }
         }
 
+        keywordSearch.done();
+
         if (query.isCanceled())
             query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
         else
@@ -0,0 +1,600 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.apache.commons.lang3.*;
+
+/**
+ * An inverted index of the words found in the records of a history, used to
+ * pick the files which may hold records matching a keyword search.
+ * <p>
+ * Values are split in words of letters and digits and case-folded. For
+ * every field ever searched, each word maps to the sorted list of the files
+ * it appears in. As keyword search matches substrings, a keyword selects
+ * the files of all the words containing it, which is a superset of the
+ * files holding matching records; the records themselves are still
+ * filtered by the reader.
+ * <p>
+ * A field is indexed from the first time it is searched: the files read by
+ * that search are indexed as a side effect, and from then on
+ * <tt>HistoryWriterImpl</tt> adds every new record. Files the index does not
+ * know, or which were modified in place, are simply searched as before and
+ * indexed again. The index is saved in {@link #INDEX_FILE} next to the
+ * history files.
+ */
+class KeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(KeywordIndex.class);
+
+    /**
+     * The name of the file the index is saved to.
+     */
+    static final String INDEX_FILE = "keywords.idx";
+
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The history directory.
+     */
+    private final File directory;
+
+    /**
+     * The indexed file names, the position in the list being the id used in
+     * the postings.
+     */
+    private final List<String> files = new ArrayList<String>();
+
+    /**
+     * The ids of the indexed file names.
+     */
+    private final Map<String, Integer> fileIds
+        = new HashMap<String, Integer>();
+
+    /**
+     * The indexes of the searched fields.
+     */
+    private final Map<String, FieldIndex> fields
+        = new HashMap<String, FieldIndex>();
+
+    /**
+     * Whether the index changed since it was last saved.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates the keyword index of the history files in <tt>directory</tt>
+     * and loads the one previously saved there.
+     *
+     * @param directory the history directory
+     */
+    KeywordIndex(File directory)
+    {
+        this.directory = directory;
+
+        load();
+    }
+
+    /**
+     * Splits a value in case-folded words.
+     *
+     * @param value the value
+     * @return the words of the value
+     */
+    static List<String> tokenize(String value)
+    {
+        List<String> tokens = new ArrayList<String>();
+        int len = value.length();
+        int start = -1;
+
+        for(int i = 0; i <= len; i++)
+        {
+            boolean wordChar
+                = i < len && Character.isLetterOrDigit(value.charAt(i));
+
+            if(wordChar && start < 0)
+                start = i;
+            else if(!wordChar && start >= 0)
+            {
+                tokens.add(value.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Returns whether a field is indexed.
+     *
+     * @param field the field
+     * @return whether searches on the field can use the index
+     */
+    synchronized boolean isFieldIndexed(String field)
+    {
+        return fields.containsKey(field);
+    }
+
+    /**
+     * Starts indexing a field. Its files get indexed as they are searched.
+     *
+     * @param field the field
+     */
+    synchronized void addField(String field)
+    {
+        if(!fields.containsKey(field))
+        {
+            fields.put(field, new FieldIndex());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns whether the index knows all the words of <tt>field</tt> in a
+     * file.
+     *
+     * @param field the field
+     * @param filename the name of the history file
+     * @return whether the file is indexed for the field
+     */
+    synchronized boolean isIndexed(String field, String filename)
+    {
+        FieldIndex fieldIndex = fields.get(field);
+        Integer id = fileIds.get(filename);
+
+        return fieldIndex != null && id != null
+            && fieldIndex.indexedFiles.get(id);
+    }
+
+    /**
+     * Returns the indexed files which may hold records having all
+     * <tt>keywords</tt> in <tt>field</tt>.
+     *
+     * @param field the field
+     * @param keywords the keywords
+     * @return the names of the candidate files, or <tt>null</tt> if the
+     * keywords do not restrict the files
+     */
+    synchronized Set<String> findFiles(String field, String[] keywords)
+    {
+        FieldIndex fieldIndex = fields.get(field);
+        if(fieldIndex == null || keywords == null)
+            return null;
+
+        BitSet result = null;
+        for(String keyword : keywords)
+        {
+            for(String part : tokenize(keyword))
+            {
+                BitSet partFiles = new BitSet();
+                for(Map.Entry<String, Postings> e
+                        : fieldIndex.postings.entrySet())
+                {
+                    if(e.getKey().contains(part))
+                        e.getValue().addTo(partFiles);
+                }
+
+                if(result == null)
+                    result = partFiles;
+                else
+                    result.and(partFiles);
+            }
+        }
+
+        if(result == null)
+            return null;
+
+        Set<String> names = new HashSet<String>();
+        for(int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1))
+            names.add(files.get(i));
+        return names;
+    }
+
+    /**
+     * Adds the words of a new record. They are only added to the fields for
+     * which the file is completely indexed, or when the record is the first
+     * one of a new file.
+     *
+     * @param filename the name of the history file
+     * @param names the names of the record properties
+     * @param values the raw values of the record properties
+     * @param recordCount the number of records in the file, including the
+     * added one
+     */
+    synchronized void recordAdded(String filename, String[] names,
+        String[] values, int recordCount)
+    {
+        if(fields.isEmpty())
+            return;
+
+        int id = getFileId(filename);
+        for(int i = 0; i < names.length; i++)
+        {
+            FieldIndex fieldIndex = fields.get(names[i]);
+            if(fieldIndex == null)
+                continue;
+
+            if(recordCount == 1)
+                fieldIndex.indexedFiles.set(id);
+            else if(!fieldIndex.indexedFiles.get(id))
+                continue;
+
+            if(values[i] != null)
+                fieldIndex.add(tokenize(values[i]), id);
+            dirty = true;
+        }
+
+        // new files may get no value for some fields
+        if(recordCount == 1)
+        {
+            for(FieldIndex fieldIndex : fields.values())
+                fieldIndex.indexedFiles.set(id);
+        }
+    }
+
+    /**
+     * Returns the words of a stored record for <tt>field</tt>.
+     *
+     * @param field the field
+     * @param record the record as stored, with escaped values
+     * @return the words, empty if the record has no value for the field
+     */
+    static List<String> tokenize(String field, HistoryRecord record)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+        for(int i = 0; i < names.length; i++)
+        {
+            if(field.equals(names[i]) && values[i] != null)
+                return tokenize(StringEscapeUtils.unescapeXml(values[i]));
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Indexes all the words of a file for <tt>field</tt>.
+     *
+     * @param field the field
+     * @param filename the name of the history file
+     * @param tokens all the words of the field in the file
+     * @return <tt>true</tt> if the file was not indexed for the field yet
+     */
+    synchronized boolean indexFile(
+        String field, String filename, Collection<String> tokens)
+    {
+        FieldIndex fieldIndex = fields.get(field);
+        if(fieldIndex == null)
+            return false;
+
+        int id = getFileId(filename);
+        if(fieldIndex.indexedFiles.get(id))
+            return false;
+
+        fieldIndex.add(tokens, id);
+        fieldIndex.indexedFiles.set(id);
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Marks a file changed in place as not indexed. The words it held are
+     * kept as they only make the candidate files a superset.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void invalidate(String filename)
+    {
+        Integer id = fileIds.get(filename);
+        if(id == null)
+            return;
+
+        for(FieldIndex fieldIndex : fields.values())
+            fieldIndex.indexedFiles.clear(id);
+        dirty = true;
+    }
+
+    /**
+     * Drops everything indexed, keeping the list of indexed fields.
+     */
+    synchronized void clear()
+    {
+        files.clear();
+        fileIds.clear();
+        for(String field : new ArrayList<String>(fields.keySet()))
+            fields.put(field, new FieldIndex());
+        dirty = true;
+    }
+
+    /**
+     * Returns the id of a file, adding it if unknown.
+     *
+     * @param filename the name of the history file
+     * @return the id of the file
+     */
+    private int getFileId(String filename)
+    {
+        Integer id = fileIds.get(filename);
+        if(id == null)
+        {
+            id = files.size();
+            files.add(filename);
+            fileIds.put(filename, id);
+        }
+        return id;
+    }
+
+    /**
+     * Saves the index if it changed. Every indexed file is saved with its
+     * length and modification time, so that files changed while the index
+     * was not loaded are detected.
+     */
+    synchronized void save()
+    {
+        if(!dirty)
+            return;
+
+        File file = new File(directory, INDEX_FILE);
+        File tmp = new File(directory, INDEX_FILE + ".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(VERSION);
+                out.writeInt(files.size());
+                for(String filename : files)
+                {
+                    File f = new File(directory, filename);
+                    out.writeUTF(filename);
+                    out.writeLong(f.length());
+                    out.writeLong(f.lastModified());
+                }
+
+                out.writeInt(fields.size());
+                for(Map.Entry<String, FieldIndex> e : fields.entrySet())
+                {
+                    out.writeUTF(e.getKey());
+                    e.getValue().write(out);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if(!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+                throw new IOException("Cannot replace " + file);
+
+            dirty = false;
+        }
+        catch(IOException e)
+        {
+            logger.error("Failed to save keyword index " + file, e);
+        }
+    }
+
+    /**
+     * Loads the saved index. Files which changed since it was saved are
+     * marked as not indexed.
+     */
+    private void load()
+    {
+        File file = new File(directory, INDEX_FILE);
+        if(!file.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if(in.readInt() != VERSION)
+                    return;
+
+                BitSet changed = new BitSet();
+                int fileCount = in.readInt();
+                for(int i = 0; i < fileCount; i++)
+                {
+                    String filename = in.readUTF();
+                    long length = in.readLong();
+                    long lastModified = in.readLong();
+
+                    File f = new File(directory, filename);
+                    if(f.length() != length || f.lastModified() != lastModified)
+                        changed.set(i);
+
+                    getFileId(filename);
+                }
+
+                int fieldCount = in.readInt();
+                for(int i = 0; i < fieldCount; i++)
+                {
+                    String field = in.readUTF();
+                    FieldIndex fieldIndex = FieldIndex.read(in, fileCount);
+                    fieldIndex.indexedFiles.andNot(changed);
+                    fields.put(field, fieldIndex);
+                }
+
+                dirty = !changed.isEmpty();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            logger.warn("Ignoring unreadable keyword index " + file, e);
+            files.clear();
+            fileIds.clear();
+            fields.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * The index of a single field.
+     */
+    private static class FieldIndex
+    {
+        /**
+         * The files of every word.
+         */
+        final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+        /**
+         * The ids of the files which words are all in the index.
+         */
+        final BitSet indexedFiles = new BitSet();
+
+        /**
+         * Adds words found in a file.
+         *
+         * @param tokens the words
+         * @param id the id of the file
+         */
+        void add(Collection<String> tokens, int id)
+        {
+            for(String token : tokens)
+            {
+                Postings p = postings.get(token);
+                if(p == null)
+                {
+                    p = new Postings();
+                    postings.put(token, p);
+                }
+                p.add(id);
+            }
+        }
+
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            long[] indexed = indexedFiles.toLongArray();
+            out.writeInt(indexed.length);
+            for(long l : indexed)
+                out.writeLong(l);
+
+            out.writeInt(postings.size());
+            for(Map.Entry<String, Postings> e : postings.entrySet())
+            {
+                out.writeUTF(e.getKey());
+                e.getValue().write(out);
+            }
+        }
+
+        static FieldIndex read(DataInputStream in, int fileCount)
+            throws IOException
+        {
+            FieldIndex fieldIndex = new FieldIndex();
+
+            int n = in.readInt();
+            if(n < 0 || n > fileCount / 64 + 1)
+                throw new IOException("Malformed keyword index");
+            long[] indexed = new long[n];
+            for(int i = 0; i < n; i++)
+                indexed[i] = in.readLong();
+            fieldIndex.indexedFiles.or(BitSet.valueOf(indexed));
+
+            int count = in.readInt();
+            for(int i = 0; i < count; i++)
+            {
+                String token = in.readUTF();
+                fieldIndex.postings.put(token, Postings.read(in, fileCount));
+            }
+            return fieldIndex;
+        }
+    }
+
+    /**
+     * A sorted list of file ids.
+     */
+    private static class Postings
+    {
+        private int[] ids = new int[2];
+
+        private int size = 0;
+
+        void add(int id)
+        {
+            // new records go to the newest file, check it first
+            if(size > 0 && ids[size - 1] == id)
+                return;
+
+            int pos = (size > 0 && ids[size - 1] < id)
+                ? size : Arrays.binarySearch(ids, 0, size, id);
+            if(pos >= 0 && pos < size)
+                return;
+            if(pos < 0)
+                pos = -pos - 1;
+
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = id;
+            size++;
+        }
+
+        void addTo(BitSet set)
+        {
+            for(int i = 0; i < size; i++)
+                set.set(ids[i]);
+        }
+
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeInt(size);
+            for(int i = 0; i < size; i++)
+                out.writeInt(ids[i]);
+        }
+
+        static Postings read(DataInputStream in, int fileCount)
+            throws IOException
+        {
+            Postings p = new Postings();
+            int n = in.readInt();
+            if(n < 0 || n > fileCount)
+                throw new IOException("Malformed keyword index");
+
+            p.ids = new int[Math.max(n, 2)];
+            for(int i = 0; i < n; i++)
+            {
+                int id = in.readInt();
+                if(id < 0 || id >= fileCount)
+                    throw new IOException("Malformed keyword index");
+                p.ids[i] = id;
+            }
+            p.size = n;
+            return p;
+        }
+    }
+}
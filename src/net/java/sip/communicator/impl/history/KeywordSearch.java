@@ -0,0 +1,138 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Consults the <tt>KeywordIndex</tt> of a history for the duration of a
+ * single keyword query: tells which files cannot hold matching records and
+ * indexes the files the query had to read.
+ */
+class KeywordSearch
+{
+    /**
+     * The keyword index or <tt>null</tt> if the query has no keywords.
+     */
+    private final KeywordIndex index;
+
+    /**
+     * The searched history.
+     */
+    private final HistoryImpl history;
+
+    /**
+     * The searched field.
+     */
+    private final String field;
+
+    /**
+     * The indexed files which may hold matching records or <tt>null</tt> if
+     * all files have to be searched.
+     */
+    private final Set<String> candidates;
+
+    /**
+     * The words of the field in the records read from the current file.
+     */
+    private final Set<String> tokens = new HashSet<String>();
+
+    /**
+     * Whether the query indexed files which were not indexed before.
+     */
+    private boolean indexChanged = false;
+
+    /**
+     * Prepares a keyword query over <tt>history</tt>.
+     *
+     * @param history the history to search
+     * @param keywords the keywords, may be <tt>null</tt>
+     * @param field the field to search, may be <tt>null</tt>
+     */
+    KeywordSearch(HistoryImpl history, String[] keywords, String field)
+    {
+        this.history = history;
+        this.field = field;
+
+        if (keywords != null && keywords.length > 0 && field != null)
+        {
+            index = history.getKeywordIndex(field);
+            candidates = index.findFiles(field, keywords);
+        }
+        else
+        {
+            index = null;
+            candidates = null;
+        }
+    }
+
+    /**
+     * Checks whether a file can be left out of the query.
+     *
+     * @param filename the name of the history file
+     * @return <tt>true</tt> if the file is indexed and holds no record
+     * matching the keywords
+     */
+    boolean canSkip(String filename)
+    {
+        return candidates != null
+            && !candidates.contains(filename)
+            && index.isIndexed(field, filename)
+            && !history.hasPendingDocument(filename);
+    }
+
+    /**
+     * Collects the words of a record read by the query.
+     *
+     * @param record the record as stored, with escaped values
+     */
+    void recordRead(HistoryRecord record)
+    {
+        if (index != null)
+            tokens.addAll(KeywordIndex.tokenize(field, record));
+    }
+
+    /**
+     * Ends reading a file, indexing it if all its records were read.
+     *
+     * @param filename the name of the history file
+     * @param complete whether all the records of the file were read
+     */
+    void fileRead(String filename, boolean complete)
+    {
+        if (index != null
+            && complete
+            && index.indexFile(field, filename, tokens))
+        {
+            indexChanged = true;
+        }
+
+        tokens.clear();
+    }
+
+    /**
+     * Saves the index if the query indexed new files.
+     */
+    void done()
+    {
+        if (indexChanged)
+            index.save();
+    }
+}
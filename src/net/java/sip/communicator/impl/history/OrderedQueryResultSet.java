@@ -23,7 +23,9 @@
 
 /**
  * This implementation is the same as DefaultQueryResultSet but the
- * container holding the records is LinkedList - so guarantees that values are ordered
+ * container holding the records is a list - so guarantees that values are
+ * ordered. The records are held in an <tt>ArrayList</tt>, so moving the
+ * cursor does not walk the list.
  *
  * @param <T> element type of query
  * @author Damian Minkov
@@ -31,7 +33,7 @@
 public class OrderedQueryResultSet<T>
     implements QueryResultSet<T>
 {
-    private LinkedList<T> records = null;
+    private final ArrayList<T> records;
 
     private int currentPos = -1;
 
@@ -42,7 +44,7 @@
      */
     public OrderedQueryResultSet(Set<T> records)
     {
-        this.records = new LinkedList<T>(records);
+        this.records = new ArrayList<T>(records);
     }
 
     /**
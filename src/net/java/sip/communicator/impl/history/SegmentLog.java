@@ -0,0 +1,637 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only binary segment holding history records. It is the storage
+ * used by the segment engine of <tt>HistoryImpl</tt> as an alternative to the
+ * XML files, so that adding a record costs a single append instead of
+ * serializing the whole file again.
+ * <p>
+ * A segment starts with a short header (magic and version) followed by
+ * records laid out as:
+ * <pre>
+ * int    payload length
+ * byte[] payload (timestamp, property count, name/value pairs in UTF-8)
+ * int    CRC32 of the payload
+ * int    payload length (repeated, allows reading a segment backwards)
+ * </pre>
+ * Property values are stored exactly as they appear in the text nodes of the
+ * XML files, so the data seen by the readers does not depend on the engine.
+ * <p>
+ * Appended records are flushed to the operating system immediately, while
+ * the expensive <tt>fsync</tt> is batched: it is issued once
+ * <tt>syncBatchSize</tt> records are pending or when
+ * <tt>syncInterval</tt> milliseconds have passed since the last one, and
+ * always on {@link #sync()} and {@link #close()}.
+ */
+class SegmentLog
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(SegmentLog.class);
+
+    /**
+     * The file extension of the segment files.
+     */
+    static final String SEGMENT_FILETYPE = "seg";
+
+    /**
+     * Magic bytes at the beginning of every segment.
+     */
+    private static final int MAGIC = 0x4A48534C; // "JHSL"
+
+    /**
+     * The current version of the segment format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of the segment header.
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * The bytes added around every payload: two lengths and the checksum.
+     */
+    static final int RECORD_OVERHEAD = 12;
+
+    /**
+     * The default number of appended records after which we sync.
+     */
+    static final int DEFAULT_SYNC_BATCH_SIZE = 32;
+
+    /**
+     * The default number of milliseconds after which pending records are
+     * synced with the next append.
+     */
+    static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    /**
+     * The segment file.
+     */
+    private final File file;
+
+    /**
+     * The number of records after which we sync.
+     */
+    private final int syncBatchSize;
+
+    /**
+     * The time in milliseconds after which we sync.
+     */
+    private final long syncInterval;
+
+    /**
+     * The channel used for appending, opened lazily.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * The number of records appended since the last sync.
+     */
+    private int pendingSync = 0;
+
+    /**
+     * The time of the last sync.
+     */
+    private long lastSyncTime = System.currentTimeMillis();
+
+    /**
+     * Creates a segment log appending to <tt>file</tt>.
+     *
+     * @param file the segment file, created on first append if missing
+     * @param syncBatchSize the number of records after which we sync
+     * @param syncInterval the number of milliseconds after which we sync
+     */
+    SegmentLog(File file, int syncBatchSize, long syncInterval)
+    {
+        this.file = file;
+        this.syncBatchSize = syncBatchSize;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Returns the file of this segment.
+     * @return the file of this segment.
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Appends a record at the end of the segment.
+     *
+     * @param record the record to append
+     * @return the offset in the segment at which the record was written
+     * @throws IOException if writing fails
+     */
+    synchronized long append(HistoryRecord record)
+        throws IOException
+    {
+        FileChannel ch = getChannel();
+        long offset = ch.size();
+        ByteBuffer buf = encode(record);
+
+        try
+        {
+            long position = offset;
+            while(buf.hasRemaining())
+                position += ch.write(buf, position);
+        }
+        catch(IOException e)
+        {
+            // don't leave a partial record for the next appends to follow
+            try
+            {
+                ch.truncate(offset);
+            }
+            catch(IOException te)
+            {
+                logger.error("Failed to drop a partial record from "
+                    + file, te);
+            }
+            throw e;
+        }
+
+        pendingSync++;
+        long now = System.currentTimeMillis();
+        if(pendingSync >= syncBatchSize || now - lastSyncTime >= syncInterval)
+            sync();
+
+        return offset;
+    }
+
+    /**
+     * Forces all appended records to the storage device.
+     *
+     * @throws IOException if syncing fails
+     */
+    synchronized void sync()
+        throws IOException
+    {
+        if(channel != null && pendingSync > 0)
+            channel.force(false);
+
+        pendingSync = 0;
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Syncs the pending records and releases the file.
+     */
+    synchronized void close()
+    {
+        if(channel == null)
+            return;
+
+        try
+        {
+            sync();
+        }
+        catch(IOException e)
+        {
+            logger.error("Failed to sync history segment " + file, e);
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+            logger.error("Failed to close history segment " + file, e);
+        }
+
+        channel = null;
+    }
+
+    /**
+     * Opens the channel we append to, writing the header of a new segment or
+     * dropping a torn record left at the end of an existing one.
+     *
+     * @return the channel
+     * @throws IOException if the file cannot be opened
+     */
+    private FileChannel getChannel()
+        throws IOException
+    {
+        if(channel != null)
+            return channel;
+
+        FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+        try
+        {
+            if(ch.size() < HEADER_SIZE)
+            {
+                ch.truncate(0);
+                ch.write(header(), 0);
+            }
+            else
+            {
+                long validEnd = scanValidEnd(ch);
+                if(validEnd < ch.size())
+                {
+                    logger.warn("Truncating torn record at the end of "
+                        + file + " (" + (ch.size() - validEnd) + " bytes)");
+                    ch.truncate(validEnd);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            ch.close();
+            throw e;
+        }
+
+        channel = ch;
+        return channel;
+    }
+
+    /**
+     * Finds the end of the last complete and valid record in a segment.
+     *
+     * @param ch the channel of the segment
+     * @return the offset right after the last valid record
+     * @throws IOException if reading fails
+     */
+    private static long scanValidEnd(FileChannel ch)
+        throws IOException
+    {
+        Reader reader = new Reader(ch);
+        try
+        {
+            while(reader.next() != null);
+        }
+        catch(IOException e)
+        {
+            // corrupt data at the end, the records before it are fine
+        }
+        return reader.getPosition();
+    }
+
+    /**
+     * Returns a new segment header.
+     * @return a new segment header.
+     */
+    private static ByteBuffer header()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Encodes a record, including its framing.
+     *
+     * @param record the record to encode
+     * @return the encoded record ready to be written
+     * @throws IOException if encoding fails
+     */
+    static ByteBuffer encode(HistoryRecord record)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        out.writeLong(record.getTimestamp().getTime());
+        out.writeInt(names.length);
+        for(int i = 0; i < names.length; i++)
+        {
+            writeString(out, names[i]);
+            writeString(out, values[i]);
+        }
+        out.flush();
+
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer buf = ByteBuffer.allocate(payload.length + RECORD_OVERHEAD);
+        buf.putInt(payload.length);
+        buf.put(payload);
+        buf.putInt((int) crc.getValue());
+        buf.putInt(payload.length);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Decodes the payload of a record.
+     *
+     * @param payload the payload
+     * @return the decoded record
+     * @throws IOException if the payload is malformed
+     */
+    static HistoryRecord decode(byte[] payload)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(payload));
+
+        long timestamp = in.readLong();
+        int count = in.readInt();
+        if(count < 0 || count > payload.length)
+            throw new IOException("Malformed history record");
+
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for(int i = 0; i < count; i++)
+        {
+            names[i] = readString(in);
+            values[i] = readString(in);
+        }
+
+        return new HistoryRecord(names, values, new Date(timestamp));
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        int len = in.readInt();
+        if(len < 0 || len > in.available())
+            throw new IOException("Malformed history record");
+
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Reads all the valid records of a segment. Reading stops at the first
+     * torn or corrupted record.
+     *
+     * @param file the segment file
+     * @return the records in the order they were appended
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    static List<HistoryRecord> readAll(File file)
+        throws IOException
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            Reader reader = new Reader(in.getChannel());
+            try
+            {
+                HistoryRecord record;
+                while((record = reader.next()) != null)
+                    records.add(record);
+            }
+            catch(IOException e)
+            {
+                logger.warn("Stopped reading corrupted history segment "
+                    + file + " at " + reader.getPosition());
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Replaces the content of a segment with the given records. The segment
+     * is written aside and renamed over the old one, so readers never see a
+     * half written file.
+     *
+     * @param file the segment file
+     * @param records the records to write
+     * @throws IOException if writing fails
+     */
+    static void writeAll(File file, List<HistoryRecord> records)
+        throws IOException
+    {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+        FileOutputStream out = new FileOutputStream(tmp);
+        try
+        {
+            FileChannel ch = out.getChannel();
+            ch.write(header());
+            for(HistoryRecord record : records)
+            {
+                ByteBuffer buf = encode(record);
+                while(buf.hasRemaining())
+                    ch.write(buf);
+            }
+            ch.force(false);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if(!tmp.renameTo(file))
+        {
+            // on some platforms rename does not replace existing files
+            if(!file.delete() || !tmp.renameTo(file))
+                throw new IOException("Cannot replace history segment "
+                    + file);
+        }
+    }
+
+    /**
+     * Sequential reader over the records of a segment.
+     */
+    static class Reader
+    {
+        /**
+         * The channel we read from.
+         */
+        private final FileChannel channel;
+
+        /**
+         * The position of the next record.
+         */
+        private long position;
+
+        /**
+         * Buffer for the record framing.
+         */
+        private final ByteBuffer intBuf = ByteBuffer.allocate(4);
+
+        /**
+         * Creates a reader positioned at the first record.
+         *
+         * @param channel the channel of the segment
+         * @throws IOException if the header is missing or invalid
+         */
+        Reader(FileChannel channel)
+            throws IOException
+        {
+            this.channel = channel;
+
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(h, 0);
+            if(h.getInt(0) != MAGIC)
+                throw new IOException("Not a history segment");
+            if(h.getInt(4) > VERSION)
+                throw new IOException("Unsupported history segment version "
+                    + h.getInt(4));
+
+            this.position = HEADER_SIZE;
+        }
+
+        /**
+         * Returns the position of the next record, or the end of the valid
+         * data when reading has failed.
+         * @return the position of the next record.
+         */
+        long getPosition()
+        {
+            return position;
+        }
+
+        /**
+         * Moves the reader to a record boundary.
+         * @param position the offset of a record
+         */
+        void seek(long position)
+        {
+            this.position = Math.max(HEADER_SIZE, position);
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @return the next record or <tt>null</tt> at the end of the segment
+         * @throws IOException if the next record is torn or corrupted
+         */
+        HistoryRecord next()
+            throws IOException
+        {
+            if(position + 4 > channel.size())
+            {
+                if(position < channel.size())
+                    throw new EOFException("Torn history record");
+                return null;
+            }
+
+            int len = readInt(position);
+            if(len < 0 || position + len + RECORD_OVERHEAD > channel.size())
+                throw new EOFException("Torn history record");
+
+            HistoryRecord record = readRecord(position, len);
+            position += len + RECORD_OVERHEAD;
+            return record;
+        }
+
+        /**
+         * Reads the record ending at the current position, using the length
+         * stored after each record, and moves the reader to its start.
+         *
+         * @return the previous record or <tt>null</tt> at the start of the
+         * segment
+         * @throws IOException if the previous record is corrupted
+         */
+        HistoryRecord previous()
+            throws IOException
+        {
+            if(position <= HEADER_SIZE)
+                return null;
+
+            if(position - HEADER_SIZE < RECORD_OVERHEAD)
+                throw new IOException("Corrupted history record");
+
+            int len = readInt(position - 4);
+            long start = position - len - RECORD_OVERHEAD;
+            if(len < 0 || start < HEADER_SIZE)
+                throw new IOException("Corrupted history record");
+
+            HistoryRecord record = readRecord(start, len);
+            position = start;
+            return record;
+        }
+
+        /**
+         * Reads and checks a record.
+         *
+         * @param start the offset of the record
+         * @param len the length of its payload
+         * @return the record
+         * @throws IOException if the record is corrupted
+         */
+        private HistoryRecord readRecord(long start, int len)
+            throws IOException
+        {
+            ByteBuffer payload = ByteBuffer.allocate(len);
+            readFully(payload, start + 4);
+            int header = readInt(start);
+            int crc = readInt(start + 4 + len);
+            int trailer = readInt(start + 8 + len);
+
+            CRC32 check = new CRC32();
+            check.update(payload.array(), 0, len);
+            if(header != len || trailer != len
+                || (int) check.getValue() != crc)
+            {
+                throw new IOException("Corrupted history record");
+            }
+
+            return decode(payload.array());
+        }
+
+        private int readInt(long pos)
+            throws IOException
+        {
+            intBuf.clear();
+            readFully(intBuf, pos);
+            return intBuf.getInt(0);
+        }
+
+        private void readFully(ByteBuffer buf, long pos)
+            throws IOException
+        {
+            while(buf.hasRemaining())
+            {
+                int r = channel.read(buf, pos + buf.position());
+                if(r < 0)
+                    throw new EOFException("Torn history record");
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -38,6 +39,12 @@
  * The Meta History Service is wrapper around the other known
  * history services. Query them all at once, sort the result and return all
  * merged records in one collection.
+ * <p>
+ * The wrapped services are queried concurrently on a small pool of threads
+ * and their results, each sorted by date, are merged into the returned
+ * collection. A <tt>HistorySearchProgressListener</tt> can stop waiting for
+ * the services which have not answered yet by cancelling the
+ * <tt>ProgressEvent</tt> it receives.
  *
  * @author Damian Minkov
  */
@@ -51,6 +58,17 @@
     private static final Logger logger =
         Logger.getLogger(MetaHistoryServiceImpl.class);
 
+    /**
+     * The maximum number of services queried at the same time.
+     */
+    private static final int MAX_QUERY_THREADS = 3;
+
+    /**
+     * The comparator ordering the records of all services by date.
+     */
+    private static final Comparator<Object> RECORDS_COMPARATOR
+        = new RecordsComparator();
+
     /**
      * The BundleContext that we got from the OSGI bus.
      */
@@ -64,6 +82,12 @@
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The threads querying the wrapped services, <tt>null</tt> when the
+     * service is stopped and the queries run on the calling thread.
+     */
+    private volatile ExecutorService queryExecutor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -76,55 +100,44 @@
      * @throws RuntimeException
      */
     public Collection<Object> findByStartDate(String[] services,
-            Object descriptor, Date startDate)
+            final Object descriptor, final Date startDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                if(serv instanceof MessageHistoryService)
+                {
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByStartDate(
+                            (MetaContact)descriptor, startDate);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByStartDate(
+                            (ChatRoom)descriptor, startDate);
+                    }
+                }
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
+                    return ((FileHistoryService)serv).findByStartDate(
+                        (MetaContact)descriptor, startDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+                else if(serv instanceof CallHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
+                    return ((CallHistoryService)serv).findByStartDate(
+                        startDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, null, null);
-
-        return result;
+        }, true, startDate, null, null);
     }
 
     /**
@@ -139,56 +152,43 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findByEndDate(String[] services,
-            Object descriptor, Date endDate)
+            final Object descriptor, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                if(serv instanceof MessageHistoryService)
+                {
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByEndDate(
+                            (MetaContact)descriptor, endDate);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByEndDate(
+                            (ChatRoom)descriptor, endDate);
+                    }
+                }
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
+                    return ((FileHistoryService)serv).findByEndDate(
+                        (MetaContact)descriptor, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+                else if(serv instanceof CallHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
+                    return ((CallHistoryService)serv).findByEndDate(endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
+                return null;
             }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, endDate, null);
-
-        return result;
+        }, true, null, endDate, null);
     }
 
     /**
@@ -204,59 +204,44 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate)
+            final Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        LinkedList<Object> result = new LinkedList<Object>();
-        for (int i = 0; i < services.length; i++)
+        return query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                if(serv instanceof MessageHistoryService)
+                {
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByPeriod(
+                            (MetaContact)descriptor, startDate, endDate);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByPeriod(
+                            (ChatRoom)descriptor, startDate, endDate);
+                    }
+                }
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
+                    return ((FileHistoryService)serv).findByPeriod(
+                        (MetaContact)descriptor, startDate, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+                else if(serv instanceof CallHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
+                    return ((CallHistoryService)serv).findByPeriod(
+                        startDate, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, null);
-
-        Collections.sort(result, new RecordsComparator());
-        return result;
+        }, false, startDate, endDate, null);
     }
 
     /**
@@ -296,75 +281,54 @@ public Collection<Object> findByPeriod(String[] services,
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            final Object descriptor, final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByPeriod(
                             (MetaContact)descriptor,
                             startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
+                            keywords, caseSensitive);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByPeriod(
                             (ChatRoom)descriptor,
                             startDate, endDate,
-                            keywords, caseSensitive));
+                            keywords, caseSensitive);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findByPeriod(
                         (MetaContact)descriptor,
                         startDate, endDate,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                        keywords, caseSensitive);
+                }
+                else if(serv instanceof CallHistoryService)
                 {
-                    CallRecord callRecord = iter.next();
+                    Collection<CallRecord> cs
+                        = ((CallHistoryService)serv).findByPeriod(
+                            startDate, endDate);
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    return matchCallRecords(cs, keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, keywords);
-
-        return result;
+        }, true, startDate, endDate, keywords);
     }
 
     /**
@@ -436,72 +400,51 @@ public Collection<Object> findByKeywords(String[] services,
      * @throws RuntimeException
      */
     public Collection<Object> findByKeywords(String[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            final Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByKeywords(
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByKeywords(
+                            (MetaContact)descriptor, keywords, caseSensitive);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByKeywords(
                             (ChatRoom)descriptor,
-                            keywords, caseSensitive));
+                            keywords, caseSensitive);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findByKeywords(
                         (MetaContact)descriptor,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                        keywords, caseSensitive);
+                }
+                else if(serv instanceof CallHistoryService)
                 {
-                    CallRecord callRecord = iter.next();
+                    // this will get all call records
+                    Collection<CallRecord> cs
+                        = ((CallHistoryService)serv).findByEndDate(
+                            new Date());
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    return matchCallRecords(cs, keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(null, null, keywords);
-
-        return result;
+        }, true, null, null, keywords);
     }
 
     /**
@@ -516,67 +459,53 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findLast(String[] services,
-            Object descriptor, int count)
+            final Object descriptor, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<Object> result = query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findLast(
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findLast(
                             (MetaContact)descriptor,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLast(
+                            count);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findLast(
                             (ChatRoom)descriptor,
-                            count));
+                            count);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findLast(
                         (MetaContact)descriptor,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
+                        count);
+                }
+                else if(serv instanceof CallHistoryService)
+                {
+                    return ((CallHistoryService)serv).findLast(count);
+                }
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(null, null, null);
+        }, true, null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        int startIndex = result.size() - count;
 
         if(startIndex < 0)
             startIndex = 0;
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result.subList(startIndex, result.size());
     }
 
     /**
@@ -592,79 +521,65 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findFirstMessagesAfter(String[] services,
-            Object descriptor, Date date, int count)
+            final Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<Object> result = query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findFirstMessagesAfter(
                             (MetaContact)descriptor,
                             date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
+                            count);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findFirstMessagesAfter(
                             (ChatRoom)descriptor,
                             date,
-                            count));
+                            count);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findFirstRecordsAfter(
                         (MetaContact)descriptor,
                         date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
+                        count);
+                }
+                else if(serv instanceof CallHistoryService)
                 {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
+                    Collection<CallRecord> col
+                        = ((CallHistoryService)serv).findByStartDate(date);
+                    if(col.size() > count)
+                    {
+                        // before we make a sublist make sure there are sorted
+                        // in the right order
+                        List<CallRecord> l = new ArrayList<CallRecord>(col);
+                        Collections.sort(l, RECORDS_COMPARATOR);
+                        return l.subList(0, count);
+                    }
+                    return col;
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
+        }, true, date, null, null);
 
         int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
+        if(toIndex > result.size())
+            toIndex = result.size();
 
-        return resultAsList.subList(0, toIndex);
+        return result.subList(0, toIndex);
     }
 
     /**
@@ -680,77 +595,295 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findLastMessagesBefore(String[] services,
-            Object descriptor, Date date, int count)
+            final Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<Object> result = query(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> query(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
+                    MessageHistoryService mhs =
+                        (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findLastMessagesBefore(
                             (MetaContact)descriptor,
                             date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
+                            count);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findLastMessagesBefore(
                             (ChatRoom)descriptor,
                             date,
-                            count));
+                            count);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findLastRecordsBefore(
                         (MetaContact)descriptor,
                         date,
-                        count));
+                        count);
+                }
+                else if(serv instanceof CallHistoryService)
+                {
+                    Collection<CallRecord> col
+                        = ((CallHistoryService)serv).findByEndDate(date);
+                    if(col.size() > count)
+                    {
+                        List<CallRecord> l = new ArrayList<CallRecord>(col);
+                        return l.subList(l.size() - count, l.size());
+                    }
+                    return col;
+                }
+                return null;
             }
-            else if(serv instanceof CallHistoryService)
+        }, true, date, null, null);
+
+        int startIndex = result.size() - count;
+
+        if(startIndex < 0)
+            startIndex = 0;
+
+        return result.subList(startIndex, result.size());
+    }
+
+    /**
+     * Runs a query against each of the given services concurrently and
+     * merges their results.
+     *
+     * @param services the services classnames we will query
+     * @param query the query to run against each service
+     * @param distinct whether to keep only the first of the records with the
+     * same date, as a <tt>TreeSet</tt> of the results would
+     * @param startDate the start date reported in the progress events
+     * @param endDate the end date reported in the progress events
+     * @param keywords the keywords reported in the progress events
+     * @return the records of all services sorted by date, without the
+     * records of the services still running if the search was cancelled
+     */
+    private List<Object> query(String[] services,
+                               final ServiceQuery query,
+                               boolean distinct,
+                               Date startDate,
+                               Date endDate,
+                               String[] keywords)
+    {
+        SearchProgress progress
+            = new SearchProgress(services.length, startDate, endDate, keywords);
+        List<FutureTask<List<Object>>> tasks
+            = new ArrayList<FutureTask<List<Object>>>(services.length);
+
+        ExecutorService executor = this.queryExecutor;
+        for (int i = 0; i < services.length; i++)
+        {
+            final Object serv = getService(services[i]);
+            final MessageProgressWrapper listenWrapper
+                = new MessageProgressWrapper(progress, i);
+
+            FutureTask<List<Object>> task
+                = new FutureTask<List<Object>>(new Callable<List<Object>>()
+                {
+                    public List<Object> call()
+                    {
+                        return queryService(serv, query, listenWrapper);
+                    }
+                });
+            tasks.add(task);
+            progress.addTask(task);
+
+            try
+            {
+                if (executor == null)
+                    task.run();
+                else
+                    executor.execute(task);
+            }
+            catch (RejectedExecutionException ex)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
+                // the service is being stopped
+                task.run();
+            }
+        }
 
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
+        List<List<Object>> results
+            = new ArrayList<List<Object>>(services.length);
+        try
+        {
+            for (FutureTask<List<Object>> task : tasks)
+            {
+                try
                 {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
+                    results.add(task.get());
+                }
+                catch (CancellationException ex)
+                {
+                    // keep the results of the other services
+                    if (logger.isDebugEnabled())
+                        logger.debug("History search of a service cancelled");
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
             }
         }
-        listenWrapper.fireLastProgress(date, null, null);
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw new RuntimeException(cause);
+        }
+        finally
+        {
+            progress.cancel();
+        }
+        progress.fireLastProgress();
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        return merge(results, RECORDS_COMPARATOR, distinct);
+    }
 
-        if(startIndex < 0)
-            startIndex = 0;
+    /**
+     * Queries a single service, reporting its progress.
+     *
+     * @param serv the service
+     * @param query the query to run against it
+     * @param listenWrapper the listener of the progress of the service
+     * @return the records found sorted by date
+     */
+    private List<Object> queryService(Object serv,
+                                      ServiceQuery query,
+                                      MessageProgressWrapper listenWrapper)
+    {
+        if(serv instanceof MessageHistoryService)
+        {
+            ((MessageHistoryService)serv).addSearchProgressListener(
+                listenWrapper);
+        }
+        else if(serv instanceof CallHistoryService)
+        {
+            ((CallHistoryService)serv).addSearchProgressListener(
+                listenWrapper);
+        }
+
+        Collection<?> records;
+        try
+        {
+            records = query.query(serv);
+        }
+        finally
+        {
+            if(serv instanceof MessageHistoryService)
+            {
+                ((MessageHistoryService)serv).removeSearchProgressListener(
+                    listenWrapper);
+            }
+            else if(serv instanceof CallHistoryService)
+            {
+                ((CallHistoryService)serv).removeSearchProgressListener(
+                    listenWrapper);
+            }
+        }
+
+        if (records == null)
+            return Collections.emptyList();
+
+        // services return their records sorted already, which makes this
+        // a single pass
+        List<Object> result = new ArrayList<Object>(records);
+        Collections.sort(result, RECORDS_COMPARATOR);
+        return result;
+    }
+
+    /**
+     * Merges sorted lists of records into a single sorted list. Records
+     * which compare equal keep the order of the lists they come from.
+     *
+     * @param lists the lists to merge, each sorted with <tt>comparator</tt>
+     * @param comparator the comparator the lists are sorted with
+     * @param distinct whether to keep only the first of the records which
+     * compare equal
+     * @return the merged records
+     */
+    static List<Object> merge(List<List<Object>> lists,
+                              final Comparator<Object> comparator,
+                              boolean distinct)
+    {
+        PriorityQueue<MergeCursor> heads
+            = new PriorityQueue<MergeCursor>(
+                    Math.max(1, lists.size()),
+                    new Comparator<MergeCursor>()
+                    {
+                        public int compare(MergeCursor c1, MergeCursor c2)
+                        {
+                            int result = comparator.compare(c1.head, c2.head);
+                            return (result != 0) ? result : c1.ix - c2.ix;
+                        }
+                    });
+
+        int size = 0;
+        for (int i = 0; i < lists.size(); i++)
+        {
+            List<Object> list = lists.get(i);
+            size += list.size();
+
+            MergeCursor cursor = new MergeCursor(i, list.iterator());
+            if (cursor.advance())
+                heads.add(cursor);
+        }
+
+        List<Object> result = new ArrayList<Object>(size);
+        Object last = null;
+        MergeCursor cursor;
+        while ((cursor = heads.poll()) != null)
+        {
+            if (!distinct
+                    || result.isEmpty()
+                    || comparator.compare(last, cursor.head) != 0)
+            {
+                result.add(cursor.head);
+                last = cursor.head;
+            }
+
+            if (cursor.advance())
+                heads.add(cursor);
+        }
+        return result;
+    }
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+    /**
+     * Returns the call records having a peer matching the given keywords.
+     *
+     * @param records the call records
+     * @param keywords the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching call records
+     */
+    private List<CallRecord> matchCallRecords(
+        Collection<CallRecord> records, String[] keywords,
+        boolean caseSensitive)
+    {
+        List<CallRecord> result = new ArrayList<CallRecord>();
+        Iterator<CallRecord> iter = records.iterator();
+        while (iter.hasNext())
+        {
+            CallRecord callRecord = iter.next();
+
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+        return result;
     }
 
     /**
@@ -880,6 +1013,23 @@ public void start(BundleContext bc)
 
         services.clear();
 
+        ThreadPoolExecutor executor
+            = new ThreadPoolExecutor(
+                    MAX_QUERY_THREADS, MAX_QUERY_THREADS,
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, "MetaHistoryQuery");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        executor.allowCoreThreadTimeOut(true);
+        queryExecutor = executor;
+
         // start listening for newly register or removed services
         bc.addServiceListener(this);
     }
@@ -893,6 +1043,12 @@ public void stop(BundleContext bc)
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        if (queryExecutor != null)
+        {
+            queryExecutor.shutdownNow();
+            queryExecutor = null;
+        }
     }
 
     /**
@@ -929,40 +1085,160 @@ public int compare(Object o1, Object o2)
         }
     }
 
-    private class MessageProgressWrapper
-        implements MessageHistorySearchProgressListener,
-        CallHistorySearchProgressListener
+    /**
+     * A query run against each of the wrapped services.
+     */
+    private static abstract class ServiceQuery
     {
-        private final int count;
+        /**
+         * Queries a service.
+         *
+         * @param serv the service
+         * @return the records found or <tt>null</tt> if the query does not
+         * apply to the service
+         */
+        abstract Collection<?> query(Object serv);
+    }
+
+    /**
+     * The next record of one of the lists being merged.
+     */
+    private static class MergeCursor
+    {
+        /**
+         * The index of the list.
+         */
+        final int ix;
 
-        private int ix;
+        private final Iterator<Object> iter;
 
-        public MessageProgressWrapper(int count)
+        Object head;
+
+        MergeCursor(int ix, Iterator<Object> iter)
         {
-            this.count = count;
+            this.ix = ix;
+            this.iter = iter;
         }
 
-        public void setIx(int ix)
+        /**
+         * Moves to the next record of the list.
+         *
+         * @return <tt>false</tt> if the list has no more records
+         */
+        boolean advance()
         {
-            this.ix = ix;
+            if (!iter.hasNext())
+                return false;
+
+            head = iter.next();
+            return true;
         }
+    }
 
-        private void fireProgress(int origProgress, int maxVal,
+    /**
+     * The progress of a search over several services, reported to the
+     * <tt>progressListeners</tt> as the average progress of the services.
+     */
+    private class SearchProgress
+    {
+        private final int[] progress;
+
+        private final Date startDate;
+
+        private final Date endDate;
+
+        private final String[] keywords;
+
+        /**
+         * The queries of the services.
+         */
+        private final List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+        private boolean cancelled = false;
+
+        SearchProgress(int count,
+                       Date startDate, Date endDate, String[] keywords)
+        {
+            this.progress = new int[count];
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.keywords = keywords;
+        }
+
+        /**
+         * Adds the query of a service, to be cancelled with the search.
+         *
+         * @param task the query
+         */
+        synchronized void addTask(Future<?> task)
+        {
+            if (cancelled)
+                task.cancel(true);
+            else
+                tasks.add(task);
+        }
+
+        /**
+         * Cancels the queries which are still running.
+         */
+        void cancel()
+        {
+            List<Future<?>> tasks;
+            synchronized (this)
+            {
+                cancelled = true;
+                tasks = new ArrayList<Future<?>>(this.tasks);
+                this.tasks.clear();
+            }
+
+            for (Future<?> task : tasks)
+                task.cancel(true);
+        }
+
+        /**
+         * Updates the progress of a service.
+         *
+         * @param ix the index of the service
+         * @param origProgress the progress reported by the service
+         * @param maxVal the maximum progress of the service
+         * @param startDate the start date reported by the service
+         * @param endDate the end date reported by the service
+         * @param keywords the keywords reported by the service
+         */
+        void update(int ix, int origProgress, int maxVal,
             Date startDate, Date endDate, String[] keywords)
         {
+            long total = 0;
+            synchronized (this)
+            {
+                if (cancelled)
+                    return;
+
+                progress[ix] = (int)((long)origProgress
+                    * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / maxVal);
+                for (int p : progress)
+                    total += p;
+            }
+
             ProgressEvent ev = new ProgressEvent(
                 MetaHistoryServiceImpl.this,
                 startDate,
                 endDate,
                 keywords);
+            ev.setProgress((int)(total / progress.length));
 
-            double part1 = origProgress/
-                ((double)maxVal*count);
-            double convProgress =
-                part1*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE +
-                ix*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE/count;
+            fireEvent(ev);
+        }
 
-            ev.setProgress((int)convProgress);
+        void fireLastProgress()
+        {
+            ProgressEvent ev = new ProgressEvent(
+                MetaHistoryServiceImpl.this,
+                startDate,
+                endDate,
+                keywords);
+            ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
 
             fireEvent(ev);
         }
@@ -978,25 +1254,31 @@ private void fireEvent(ProgressEvent ev)
             }
             for (HistorySearchProgressListener listener : listeners)
                 listener.progressChanged(ev);
+
+            if (ev.isCancelled())
+                cancel();
         }
+    }
 
-        public void fireLastProgress(
-            Date startDate, Date endDate, String[] keywords)
-        {
-            ProgressEvent ev = new ProgressEvent(
-                MetaHistoryServiceImpl.this,
-                startDate,
-                endDate,
-                keywords);
-            ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+    private static class MessageProgressWrapper
+        implements MessageHistorySearchProgressListener,
+        CallHistorySearchProgressListener
+    {
+        private final SearchProgress progress;
 
-            fireEvent(ev);
+        private final int ix;
+
+        public MessageProgressWrapper(SearchProgress progress, int ix)
+        {
+            this.progress = progress;
+            this.ix = ix;
         }
 
         public void progressChanged(
             net.java.sip.communicator.service.msghistory.event.ProgressEvent evt)
         {
-            fireProgress(
+            progress.update(
+                ix,
                 evt.getProgress(),
                 MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
                 evt.getStartDate(),
@@ -1006,7 +1288,8 @@ public void progressChanged(
 
         public void progressChanged(net.java.sip.communicator.service.callhistory.event.ProgressEvent evt)
         {
-            fireProgress(
+            progress.update(
+                ix,
                 evt.getProgress(),
                 CallHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
                 evt.getStartDate(),
@@ -43,6 +43,7 @@
 public class MessageSourceService
     extends MetaContactListAdapter
     implements ContactSourceService,
+               AsynchronousMetaContactListListener,
                ContactPresenceStatusListener,
                ContactCapabilitiesListener,
                ProviderPresenceStatusListener,
@@ -796,7 +796,7 @@ else if ((statusCode != Response.OK)
                  // try to keep a margin if the refresh delay allows it
                  if (refreshDelay >= (2*refreshMargin))
                      refreshDelay -= refreshMargin;
-                 timer.schedule(refreshTask, refreshDelay * 1000);
+                 timer.scheduleRefresh(refreshTask, refreshDelay * 1000);
 
                  // do it to remember the dialog in case of a polling
                  // subscription (which means no call to finalizeSubscription)
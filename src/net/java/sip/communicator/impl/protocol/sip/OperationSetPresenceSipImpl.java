@@ -17,6 +17,7 @@
  */
 package net.java.sip.communicator.impl.protocol.sip;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.text.*;
 import java.util.*;
@@ -25,6 +26,7 @@
 import javax.sip.address.*;
 import javax.sip.header.*;
 import javax.sip.message.*;
+import javax.xml.stream.XMLStreamException;
 
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
@@ -117,6 +119,29 @@
      */
     private RePublishTask republishTask = null;
 
+    /**
+     * The maximum number of PIDF documents kept in {@link #pidfCache}.
+     */
+    private static final int PIDF_CACHE_SIZE = 16;
+
+    /**
+     * The PIDF documents created by {@link #getPidfPresenceStatus(
+     * ContactSipImpl)} by contact URI, status icon URI and presence status,
+     * in least recently used order.
+     */
+    private final Map<List<Object>, byte[]> pidfCache
+        = new LinkedHashMap<List<Object>, byte[]>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<List<Object>, byte[]> eldest)
+            {
+                return size() > PIDF_CACHE_SIZE;
+            }
+        };
+
     /**
      * The interval between two execution of the polling task (in ms.)
      */
@@ -127,6 +152,18 @@
      */
     private PollOfflineContactsTask pollingTask = null;
 
+    /**
+     * The maximum number of offline contacts polled by a run of the
+     * polling task.
+     */
+    private static final int MAX_POLLS_PER_PERIOD = 20;
+
+    /**
+     * The maximum number of times the interval between two polls of an
+     * offline contact is doubled, which makes it 32 polling periods.
+     */
+    private static final int MAX_POLL_BACKOFF_SHIFT = 5;
+
     /**
      * If we should be totally silenced, just doing local operations
      */
@@ -1287,7 +1324,9 @@ public boolean processResponse(ResponseEvent responseEvent)
                 // try to keep a margin if the refresh delay allows it
                 if (republishDelay >= (2*REFRESH_MARGIN))
                     republishDelay -= REFRESH_MARGIN;
-                timer.schedule(this.republishTask, republishDelay * 1000);
+                timer.scheduleRefresh(
+                        this.republishTask,
+                        republishDelay * 1000);
 
             // UNAUTHORIZED (401/407)
             }
@@ -1986,100 +2025,182 @@ Document convertDocument(String document)
      */
      public byte[] getPidfPresenceStatus(ContactSipImpl contact)
      {
-         Document doc = this.createDocument();
+         String contactUri = contact.getSipAddress().getURI().toString();
+         URI imageUri = ssContactList.getImageUri();
+         PresenceStatus status = contact.getPresenceStatus();
+         List<Object> key = Arrays.<Object>asList(contactUri, imageUri, status);
+         byte[] pidf;
 
-         if (doc == null)
-             return null;
+         synchronized (pidfCache)
+         {
+             pidf = pidfCache.get(key);
+             if (pidf == null)
+             {
+                 pidf = createPidf(contactUri, imageUri, status);
+                 pidfCache.put(key, pidf);
+             }
+         }
+         return pidf.clone();
+     }
 
-         String contactUri = contact.getSipAddress().getURI().toString();
+     /**
+      * Fills the PIDF template with a presence status. The document is the
+      * same as the one of the DOM this method used to build, without the
+      * cost of building and serializing a DOM for each PUBLISH and NOTIFY.
+      *
+      * @param contactUri the URI of the presentity
+      * @param imageUri the URI of the avatar of the presentity or
+      * <tt>null</tt>
+      * @param status the presence status of the presentity
+      * @return the PIDF document
+      */
+     private byte[] createPidf(String contactUri,
+                               URI imageUri,
+                               PresenceStatus status)
+     {
+         StringBuilder pidf = new StringBuilder(512);
+
+         pidf.append("<?xml version=\"1.0\" encoding=\"UTF-8\""
+                 + " standalone=\"no\"?>");
 
          // <presence>
-         Element presence = doc.createElement(PRESENCE_ELEMENT);
-         presence.setAttribute(NS_ELEMENT, PIDF_NS_VALUE);
-         presence.setAttribute(RPID_NS_ELEMENT, RPID_NS_VALUE);
-         presence.setAttribute(DM_NS_ELEMENT, DM_NS_VALUE);
-         presence.setAttribute(ENTITY_ATTRIBUTE, contactUri);
-         doc.appendChild(presence);
+         pidf.append('<').append(PRESENCE_ELEMENT);
+         appendAttribute(pidf, NS_ELEMENT, PIDF_NS_VALUE);
+         appendAttribute(pidf, RPID_NS_ELEMENT, RPID_NS_VALUE);
+         appendAttribute(pidf, DM_NS_ELEMENT, DM_NS_VALUE);
+         appendAttribute(pidf, ENTITY_ATTRIBUTE, contactUri);
+         pidf.append('>');
 
          // <person>
-         Element person = doc.createElement(NS_PERSON_ELT);
-         person.setAttribute(ID_ATTRIBUTE, PERSON_ID);
-         presence.appendChild(person);
-
-         // <activities>
-         Element activities = doc.createElement(NS_ACTIVITY_ELT);
-         person.appendChild(activities);
-
-         // <status-icon>
-         URI imageUri = ssContactList.getImageUri();
-         if(imageUri != null)
+         pidf.append('<').append(NS_PERSON_ELT);
+         appendAttribute(pidf, ID_ATTRIBUTE, PERSON_ID);
+         pidf.append('>');
+
+         // <activities> with the correct activity
+         String activity = null;
+
+         if (status.equals(sipStatusEnum.getStatus(SipStatusEnum.AWAY)))
+             activity = NS_AWAY_ELT;
+         else if (status.equals(sipStatusEnum.getStatus(SipStatusEnum.BUSY)))
+             activity = NS_BUSY_ELT;
+         else if (status.equals(
+                 sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE)))
+             activity = NS_OTP_ELT;
+
+         if (activity == null)
+             pidf.append('<').append(NS_ACTIVITY_ELT).append("/>");
+         else
          {
-             Element statusIcon = doc.createElement(NS_STATUS_ICON_ELT);
-             statusIcon.setTextContent(imageUri.toString());
-             person.appendChild(statusIcon);
+             pidf.append('<').append(NS_ACTIVITY_ELT).append('>')
+                 .append('<').append(activity).append("/>")
+                 .append("</").append(NS_ACTIVITY_ELT).append('>');
          }
 
-         // the correct activity
-         if (contact.getPresenceStatus()
-                         .equals(sipStatusEnum.getStatus(SipStatusEnum.AWAY)))
-         {
-             Element away = doc.createElement(NS_AWAY_ELT);
-             activities.appendChild(away);
-         }
-         else if (contact.getPresenceStatus()
-                         .equals(sipStatusEnum.getStatus(SipStatusEnum.BUSY)))
-         {
-             Element busy = doc.createElement(NS_BUSY_ELT);
-             activities.appendChild(busy);
-         }
-         else if (contact.getPresenceStatus()
-                 .equals(sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE)))
-         {
-             Element otp = doc.createElement(NS_OTP_ELT);
-             activities.appendChild(otp);
-         }
+         // <status-icon>
+         if (imageUri != null)
+             appendElement(pidf, NS_STATUS_ICON_ELT, imageUri.toString());
+
+         pidf.append("</").append(NS_PERSON_ELT).append('>');
 
          // <tuple>
-         Element tuple = doc.createElement(TUPLE_ELEMENT);
-         tuple.setAttribute(ID_ATTRIBUTE, TUPLE_ID);
-         presence.appendChild(tuple);
-
-         // <status>
-         Element status = doc.createElement(STATUS_ELEMENT);
-         tuple.appendChild(status);
-
-         // <basic>
-         Element basic = doc.createElement(BASIC_ELEMENT);
-         if (contact.getPresenceStatus()
-                     .equals(sipStatusEnum.getStatus(SipStatusEnum.OFFLINE)))
-         {
-             basic.appendChild(doc.createTextNode(OFFLINE_STATUS));
-         }
-         else
-         {
-             basic.appendChild(doc.createTextNode(ONLINE_STATUS));
-         }
-         status.appendChild(basic);
+         pidf.append('<').append(TUPLE_ELEMENT);
+         appendAttribute(pidf, ID_ATTRIBUTE, TUPLE_ID);
+         pidf.append('>');
+
+         // <status><basic>
+         pidf.append('<').append(STATUS_ELEMENT).append('>');
+         appendElement(
+                 pidf,
+                 BASIC_ELEMENT,
+                 status.equals(sipStatusEnum.getStatus(SipStatusEnum.OFFLINE))
+                     ? OFFLINE_STATUS
+                     : ONLINE_STATUS);
+         pidf.append("</").append(STATUS_ELEMENT).append('>');
 
          // <contact>
-         Element contactUriEl = doc.createElement(CONTACT_ELEMENT);
-         Node cValue = doc.createTextNode(contactUri);
-         contactUriEl.appendChild(cValue);
-         tuple.appendChild(contactUriEl);
+         appendElement(pidf, CONTACT_ELEMENT, contactUri);
 
          // <note> we write our real status here, this status SHOULD not be
          // used for automatic parsing but some (bad) IM clients do this...
          // we don't use xml:lang here because it's not really relevant
-         Element noteNodeEl = doc.createElement(NOTE_ELEMENT);
-         noteNodeEl.appendChild(doc.createTextNode(contact.getPresenceStatus()
-                 .getStatusName()));
-         tuple.appendChild(noteNodeEl);
+         appendElement(pidf, NOTE_ELEMENT, status.getStatusName());
 
-         String res = convertDocument(doc);
-         if (res == null)
-             return null;
+         pidf.append("</").append(TUPLE_ELEMENT).append('>');
+         pidf.append("</").append(PRESENCE_ELEMENT).append('>');
+
+         try
+         {
+             return pidf.toString().getBytes("UTF-8");
+         }
+         catch (UnsupportedEncodingException e)
+         {
+             // UTF-8 is always supported
+             throw new IllegalStateException(e);
+         }
+     }
+
+     /**
+      * Appends an attribute to the start tag of an element.
+      *
+      * @param xml the XML document being written
+      * @param name the name of the attribute
+      * @param value the value of the attribute, to be escaped
+      */
+     private static void appendAttribute(StringBuilder xml,
+                                         String name,
+                                         String value)
+     {
+         xml.append(' ').append(name).append("=\"");
+         appendEscaped(xml, value);
+         xml.append('"');
+     }
+
+     /**
+      * Appends an element with text content.
+      *
+      * @param xml the XML document being written
+      * @param name the name of the element
+      * @param text the text of the element, to be escaped
+      */
+     private static void appendElement(StringBuilder xml,
+                                       String name,
+                                       String text)
+     {
+         xml.append('<').append(name).append('>');
+         appendEscaped(xml, text);
+         xml.append("</").append(name).append('>');
+     }
+
+     /**
+      * Appends text escaped for use as element text or attribute value.
+      *
+      * @param xml the XML document being written
+      * @param text the text to escape
+      */
+     private static void appendEscaped(StringBuilder xml, String text)
+     {
+         for (int i = 0; i < text.length(); i++)
+         {
+             char c = text.charAt(i);
 
-         return res.getBytes();
+             switch (c)
+             {
+             case '<':
+                 xml.append("&lt;");
+                 break;
+             case '>':
+                 xml.append("&gt;");
+                 break;
+             case '&':
+                 xml.append("&amp;");
+                 break;
+             case '"':
+                 xml.append("&quot;");
+                 break;
+             default:
+                 xml.append(c);
+             }
+         }
      }
 
      /**
@@ -2090,45 +2211,52 @@ else if (contact.getPresenceStatus()
       * implementations of SIMPLE. The limit of the tolerance is defined by
       * the CPU cost: as far as the tolerance costs nothing more in well
       * structured documents, we do it.
+      * <p>
+      * The document is read with the streaming <tt>PidfParser</tt> and, if
+      * it can't, from its DOM.
       *
       * @param presenceDoc the pidf document to use
       */
      public void setPidfPresenceStatus(String presenceDoc)
      {
-         Document doc = convertDocument(presenceDoc);
-
-         if (doc == null)
-             return;
-
          if (logger.isDebugEnabled())
              logger.debug("parsing:\n" + presenceDoc);
 
-         // <presence>
-         NodeList presList = doc.getElementsByTagNameNS(PIDF_NS_VALUE,
-                 PRESENCE_ELEMENT);
+         PidfParser.Presence presence = null;
 
-         if (presList.getLength() == 0)
+         try
          {
-             presList = doc.getElementsByTagNameNS(ANY_NS, PRESENCE_ELEMENT);
-
-             if (presList.getLength() == 0)
-             {
-                 logger.error("no presence element in this document");
-                 return;
-             }
+             presence = PidfParser.parsePresence(presenceDoc);
          }
-         if (presList.getLength() > 1)
+         catch (XMLStreamException e)
          {
-             logger.warn("more than one presence element in this document");
+             if (logger.isDebugEnabled())
+                 logger.debug("Failed to stream the presence document", e);
          }
-         Node presNode = presList.item(0);
-         if (presNode.getNodeType() != Node.ELEMENT_NODE)
+
+         if (presence == null)
          {
-             logger.error("the presence node is not an element");
-             return;
+             Document doc = convertDocument(presenceDoc);
+
+             if (doc == null)
+                 return;
+
+             presence = PidfParser.parsePresence(doc);
+             if (presence == null)
+                 return;
          }
-         Element presence = (Element) presNode;
 
+         setPidfPresenceStatus(presence);
+     }
+
+     /**
+      * Sets the contact's presence status using the parts of a PIDF
+      * document.
+      *
+      * @param presence the parts of the pidf document to use
+      */
+     private void setPidfPresenceStatus(PidfParser.Presence presence)
+     {
          // RPID area
 
          // due to a lot of changes in the past years to this functionality,
@@ -2137,140 +2265,81 @@ public void setPidfPresenceStatus(String presenceDoc)
 
          PresenceStatus personStatus = null;
          URI personStatusIcon = null;
-         NodeList personList = presence.getElementsByTagNameNS(ANY_NS,
-                 PERSON_ELEMENT);
 
-         //if (personList.getLength() > 1) {
-         //    logger.error("more than one person in this document");
-         //    return;
-         //}
+         if (AWAY_ELEMENT.equals(presence.activity))
+         {
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.AWAY);
+         }
+         else if (BUSY_ELEMENT.equals(presence.activity))
+         {
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.BUSY);
+         }
+         else if (OTP_ELEMENT.equals(presence.activity))
+         {
+             personStatus
+                 = sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE);
+         }
 
-         if (personList.getLength() > 0)
+         if (presence.statusIcon != null)
          {
-             Node personNode = personList.item(0);
-             if (personNode.getNodeType() != Node.ELEMENT_NODE)
-             {
-                 logger.error("the person node is not an element");
-                 return;
-             }
-             Element person = (Element) personNode;
+             String content
+                 = presence.statusIcon.getText(STATUS_ICON_ELEMENT);
 
-             NodeList activityList =
-                 person.getElementsByTagNameNS(ANY_NS, ACTIVITY_ELEMENT);
-             if (activityList.getLength() > 0)
+             if (content.trim().length() != 0)
              {
-                 Element activity = null;
-                 // find the first correct activity
-                 for (int i = 0; i < activityList.getLength(); i++)
+                 try
                  {
-                     Node activityNode = activityList.item(i);
-
-                     if (activityNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     activity = (Element) activityNode;
-
-                     NodeList statusList = activity.getChildNodes();
-                     for (int j = 0; j < statusList.getLength(); j++)
-                     {
-                         Node statusNode = statusList.item(j);
-                         if (statusNode.getNodeType() == Node.ELEMENT_NODE)
-                         {
-                             String statusname = statusNode.getLocalName();
-                             if (statusname.equals(AWAY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.AWAY);
-                                 break;
-                             }
-                             else if (statusname.equals(BUSY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.BUSY);
-                                 break;
-                             }
-                             else if (statusname.equals(OTP_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.ON_THE_PHONE);
-                                 break;
-                             }
-                         }
-                     }
-                     if (personStatus != null)
-                         break;
+                     personStatusIcon = URI.create(content);
                  }
-             }
-             NodeList statusIconList = person.getElementsByTagNameNS(ANY_NS,
-                     STATUS_ICON_ELEMENT);
-             if (statusIconList.getLength() > 0)
-             {
-                 Element statusIcon;
-                 Node statusIconNode = statusIconList.item(0);
-                 if (statusIconNode.getNodeType() == Node.ELEMENT_NODE)
+                 catch (IllegalArgumentException ex)
                  {
-                     statusIcon = (Element) statusIconNode;
-                     String content = getTextContent(statusIcon);
-                     if (content != null && content.trim().length() != 0)
-                     {
-                         try
-                         {
-                             personStatusIcon = URI.create(content);
-                         }
-                         catch (IllegalArgumentException ex)
-                         {
-                             logger.error("Person's status icon uri: " +
-                                     content + " is invalid");
-                         }
-                     }
+                     logger.error("Person's status icon uri: " +
+                             content + " is invalid");
                  }
              }
          }
 
-          if(personStatusIcon != null)
-          {
-              String contactID =
-                  XMLUtils.getAttribute(presNode, ENTITY_ATTRIBUTE);
-
-              if (contactID.startsWith("pres:"))
-              {
-                  contactID = contactID.substring("pres:".length());
-              }
-              Contact contact = resolveContactID(contactID);
-              updateContactIcon((ContactSipImpl) contact, personStatusIcon);
+         if (personStatusIcon != null && presence.entity != null)
+         {
+             String contactID = presence.entity;
+
+             if (contactID.startsWith("pres:"))
+             {
+                 contactID = contactID.substring("pres:".length());
+             }
+             ContactSipImpl contact = resolveContactID(contactID);
+             if (contact != null)
+                 updateContactIcon(contact, personStatusIcon);
          }
 
         // search for a <note> that can define a more precise
         // status this is not recommended by RFC3863 but some im
         // clients use this.
-        NodeList presNoteList = getPidfChilds(presence, NOTE_ELEMENT);
-        if (presNoteList.getLength() >= 1)
+        List<PidfParser.TextPart> presNoteList
+            = PidfParser.select(presence.notes);
+        if (presNoteList.size() >= 1)
         {
-            Node noteNode = presNoteList.item(presNoteList.getLength() - 1);
-            if (noteNode.getNodeType() == Node.ELEMENT_NODE)
+            String state
+                = presNoteList.get(presNoteList.size() - 1).getText(
+                        NOTE_ELEMENT);
+
+            switch (state.toLowerCase())
             {
-                String state = getTextContent((Element)noteNode);
-                if (state != null)
-                {
-                    switch (state.toLowerCase())
-                    {
-                        case "ready":
-                        case "available":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.ONLINE);
-                            break;
-                        case "ringing":
-                        case "on the phone":
-                        case "on hold":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.ON_THE_PHONE);
-                            break;
-                        case "unavailable":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.OFFLINE);
-                            break;
-                    }
-                }
+                case "ready":
+                case "available":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.ONLINE);
+                    break;
+                case "ringing":
+                case "on the phone":
+                case "on hold":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.ON_THE_PHONE);
+                    break;
+                case "unavailable":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.OFFLINE);
+                    break;
             }
         }
 
@@ -2280,35 +2349,28 @@ else if (statusname.equals(OTP_ELEMENT))
          List<Object[]> newPresenceStates = new Vector<Object[]>(3, 2);
 
          // <tuple>
-         NodeList tupleList = getPidfChilds(presence, TUPLE_ELEMENT);
-         for (int i = 0; i < tupleList.getLength(); i++)
+         for (PidfParser.Tuple tuple : PidfParser.select(presence.tuples))
          {
-             Node tupleNode = tupleList.item(i);
-
-             if (tupleNode.getNodeType() != Node.ELEMENT_NODE)
-                 continue;
-
-             Element tuple = (Element) tupleNode;
-
              // <contact>
-             NodeList contactList = getPidfChilds(tuple, CONTACT_ELEMENT);
+             List<PidfParser.TextPart> contactList
+                 = PidfParser.select(tuple.contacts);
 
              // we use a vector here and not an unique contact to handle an
              // error case where many contacts are associated with a status
              // Vector<ContactSipImpl>
              List<Object[]> sipcontact = new Vector<Object[]>(1, 3);
              String contactID = null;
-             if (contactList.getLength() == 0)
+             if (contactList.isEmpty())
              {
                  // use the entity attribute of the presence node
-                 contactID = XMLUtils.getAttribute(
-                         presNode, ENTITY_ATTRIBUTE);
+                 contactID = presence.entity;
                  // also accept entity URIs starting with pres: instead of sip:
-                 if (contactID.startsWith("pres:"))
+                 if (contactID != null && contactID.startsWith("pres:"))
                  {
                      contactID = contactID.substring("pres:".length());
                  }
-                 Contact tmpContact = resolveContactID(contactID);
+                 Contact tmpContact
+                     = (contactID == null) ? null : resolveContactID(contactID);
 
                  if (tmpContact != null)
                  {
@@ -2318,16 +2380,9 @@ else if (statusname.equals(OTP_ELEMENT))
              else
              {
                  // this is normally not permitted by RFC3863
-                 for (int j = 0; j < contactList.getLength(); j++)
+                 for (PidfParser.TextPart contact : contactList)
                  {
-                     Node contactNode = contactList.item(j);
-
-                     if (contactNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     Element contact = (Element) contactNode;
-
-                     contactID = getTextContent(contact);
+                     contactID = contact.getText(CONTACT_ELEMENT);
                      // also accept entity URIs starting with pres: instead
                      // of sip:
                      if (contactID.startsWith("pres:"))
@@ -2343,7 +2398,7 @@ else if (statusname.equals(OTP_ELEMENT))
                      Object tab[] = new Object[2];
 
                      // search if the contact has a priority
-                     String prioStr = contact.getAttribute(PRIORITY_ATTRIBUTE);
+                     String prioStr = contact.attribute;
                      Float prio = null;
                      try
                      {
@@ -2415,81 +2470,46 @@ else if (statusname.equals(OTP_ELEMENT))
              }
 
              // <status>
-             NodeList statusList = getPidfChilds(tuple, STATUS_ELEMENT);
-
              // in case of many status, just consider the last one
              // this is normally not permitted by RFC3863
-             int index = statusList.getLength() - 1;
-             Node statusNode = null;
-             do
-             {
-                 Node temp = statusList.item(index);
-                 if (temp.getNodeType() == Node.ELEMENT_NODE)
-                 {
-                     statusNode = temp;
-                     break;
-                 }
-                 index--;
-             }
-             while (index >= 0);
+             List<PidfParser.Status> statusList
+                 = PidfParser.select(tuple.statuses);
+             PidfParser.TextPart basic = null;
 
-             Element basic = null;
-
-             if (statusNode == null)
+             if (statusList.isEmpty())
              {
                  if (logger.isDebugEnabled())
                      logger.debug("no valid status in this tuple");
              }
              else
              {
-                 Element status = (Element) statusNode;
+                 PidfParser.Status status
+                     = statusList.get(statusList.size() - 1);
 
                  // <basic>
-                 NodeList basicList = getPidfChilds(status, BASIC_ELEMENT);
-
                  // in case of many basic, just consider the last one
                  // this is normally not permitted by RFC3863
-                 index = basicList.getLength() - 1;
-                 Node basicNode = null;
-                 do
-                 {
-                     Node temp = basicList.item(index);
-                     if (temp.getNodeType() == Node.ELEMENT_NODE)
-                     {
-                         basicNode = temp;
-                         break;
-                     }
-                     index--;
-                 }
-                 while (index >= 0);
+                 List<PidfParser.TextPart> basicList
+                     = PidfParser.select(status.basics);
 
-                 if (basicNode == null)
+                 if (basicList.isEmpty())
                  {
                      if (logger.isDebugEnabled())
                          logger.debug("no valid <basic> in this status");
                  }
                  else
                  {
-                     basic = (Element) basicNode;
+                     basic = basicList.get(basicList.size() - 1);
                  }
              }
 
              // search for a <note> that can define a more precise
              // status this is not recommended by RFC3863 but some im
              // clients use this.
-             NodeList noteList = getPidfChilds(tuple, NOTE_ELEMENT);
-
              boolean changed = false;
-             for (int k = 0; k < noteList.getLength() && !changed; k++)
+             for (PidfParser.TextPart note : PidfParser.select(tuple.notes))
              {
-                 Node noteNode = noteList.item(k);
-
-                 if (noteNode.getNodeType() != Node.ELEMENT_NODE)
-                     continue;
-
-                 Element note = (Element) noteNode;
-
-                 String state = getTextContent(note);
+                 String state = note.getText(NOTE_ELEMENT);
 
                  Iterator<PresenceStatus> states
                      = sipStatusEnum.getSupportedStatusSet();
@@ -2506,11 +2526,15 @@ else if (statusname.equals(OTP_ELEMENT))
                          break;
                      }
                  }
+                 if (changed)
+                     break;
              }
 
              if (changed == false && basic != null)
              {
-                 if (getTextContent(basic).equalsIgnoreCase(ONLINE_STATUS))
+                 String basicText = basic.getText(BASIC_ELEMENT);
+
+                 if (basicText.equalsIgnoreCase(ONLINE_STATUS))
                  {
                      // if its online(open) we use the person status
                      // if any, otherwise just mark as online
@@ -2529,8 +2553,7 @@ else if (statusname.equals(OTP_ELEMENT))
                                  newPresenceStates);
                      }
                  }
-                 else if (getTextContent(basic).equalsIgnoreCase(
-                         OFFLINE_STATUS))
+                 else if (basicText.equalsIgnoreCase(OFFLINE_STATUS))
                  {
                      // if its offline we ignore person status
                      newPresenceStates = setStatusForContacts(
@@ -2576,51 +2599,44 @@ public void setWatcherInfoStatus(
             return;
         }
 
-        Document doc = convertDocument(watcherInfoDoc);
-
-         if (doc == null)
-             return;
+        if (logger.isDebugEnabled())
+            logger.debug("parsing:\n" + watcherInfoDoc);
 
-         if (logger.isDebugEnabled())
-             logger.debug("parsing:\n" + watcherInfoDoc);
+        String resource
+            = parentProvider.getRegistrarConnection()
+                .getAddressOfRecord().getURI().toString();
+        PidfParser.WatcherInfo watcherInfo = null;
 
-        // <watcherinfo>
-        NodeList watchList = doc.getElementsByTagNameNS(
-                WATCHERINFO_NS_VALUE, WATCHERINFO_ELEMENT);
-        if (watchList.getLength() == 0)
+        try
         {
-            watchList = doc.getElementsByTagNameNS(
-                     ANY_NS, WATCHERINFO_ELEMENT);
-
-            if (watchList.getLength() == 0)
-            {
-                logger.error("no watcherinfo element in this document");
-                return;
-            }
+            watcherInfo = PidfParser.parseWatcherInfo(watcherInfoDoc, resource);
         }
-        if (watchList.getLength() > 1)
+        catch (XMLStreamException e)
         {
-            logger.warn("more than one watcherinfo element in this document");
+            if (logger.isDebugEnabled())
+                logger.debug("Failed to stream the watcherinfo document", e);
         }
-        Node watcherInfoNode = watchList.item(0);
-        if (watcherInfoNode.getNodeType() != Node.ELEMENT_NODE)
+
+        if (watcherInfo == null)
         {
-            logger.error("the watcherinfo node is not an element");
-            return;
-        }
+            Document doc = convertDocument(watcherInfoDoc);
 
-        Element watcherInfo = (Element)watcherInfoNode;
+            if (doc == null)
+                return;
+
+            watcherInfo = PidfParser.parseWatcherInfo(doc, resource);
+            if (watcherInfo == null)
+                return;
+        }
 
         // we don't take in account whether the state is full or partial.
         if(logger.isDebugEnabled())
-            logger.debug("Watcherinfo is with state: "
-                    + watcherInfo.getAttribute(STATE_ATTRIBUTE));
+            logger.debug("Watcherinfo is with state: " + watcherInfo.state);
 
         int currentVersion = -1;
         try
         {
-            currentVersion =
-                Integer.parseInt(watcherInfo.getAttribute(VERSION_ATTRIBUTE));
+            currentVersion = Integer.parseInt(watcherInfo.version);
         }
         catch(Throwable t)
         {
@@ -2636,33 +2652,16 @@ public void setWatcherInfoStatus(
             subscriber.version = currentVersion;
 
         // we need watcher list only for our resource
-        Element wlist = XMLUtils.locateElement(
-                watcherInfo, WATCHERLIST_ELEMENT, RESOURCE_ATTRIBUTE,
-                parentProvider.getRegistrarConnection()
-                    .getAddressOfRecord().getURI().toString());
-
-        if(wlist == null ||
-            !wlist.getAttribute(PACKAGE_ATTRIBUTE).equals(PRESENCE_ELEMENT))
+        if(!PRESENCE_ELEMENT.equals(watcherInfo.watcherListPackage))
         {
             logger.error("Watcher list for us is missing in this document!");
             return;
         }
 
-        NodeList watcherList = wlist.getElementsByTagNameNS(ANY_NS,
-                 WATCHER_ELEMENT);
-        for(int i = 0; i < watcherList.getLength(); i++)
+        for (PidfParser.TextPart watcher : watcherInfo.watchers)
         {
-            Node watcherNode = watcherList.item(i);
-            if (watcherNode.getNodeType() != Node.ELEMENT_NODE)
-            {
-                logger.error("the watcher node is not an element");
-                return;
-            }
-
-            Element watcher = (Element)watcherNode;
-
-            String status = watcher.getAttribute(STATUS_ELEMENT);
-            String contactID = getTextContent(watcher);
+            String status = watcher.attribute;
+            String contactID = watcher.getText(WATCHER_ELEMENT);
 
             //String event - subscribe, approved, deactivated, probation,
             //rejected, timeout, giveup, noresource
@@ -2751,52 +2750,6 @@ private void updateContactIcon(ContactSipImpl contact, URI imageUri)
                 newImage);
     }
 
-     /**
-      * Secured call to XMLUtils.getText (no null returned but an empty string)
-      *
-      * @param node the node with which call <tt>XMLUtils.getText()</tt>
-      *
-      * @return the string contained in the node or an empty string if there is
-      * no text information in the node.
-      */
-     private String getTextContent(Element node)
-     {
-         String res = XMLUtils.getText(node);
-
-         if (res == null)
-         {
-             logger.warn("no text for element '" + node.getNodeName() + "'");
-             return "";
-         }
-
-         return res;
-     }
-
-     /**
-      * Gets the list of the descendant of an element in the pidf namespace.
-      * If the list is empty, we try to get this list in any namespace.
-      * This method is useful for being able to read pidf document without any
-      * namespace or with a wrong namespace.
-      *
-      * @param element the base element concerned.
-      * @param childName the name of the descendants to match on.
-      *
-      * @return The list of all the descendant node.
-      */
-     private NodeList getPidfChilds(Element element, String childName)
-     {
-         NodeList res;
-
-         res = element.getElementsByTagNameNS(PIDF_NS_VALUE, childName);
-
-         if (res.getLength() == 0)
-         {
-             res = element.getElementsByTagNameNS(ANY_NS, childName);
-         }
-
-         return res;
-     }
-
      /**
       * Associate the provided presence state to the contacts considering the
       * current presence states and priorities.
@@ -2894,11 +2847,57 @@ else if (curPriority < priority)
       */
      public void forcePollContact(ContactSipImpl contact)
      {
-         if (this.presenceEnabled == false
-             || !contact.isResolvable()
-             || !contact.isPersistent())
-             return;
+         PollOfflineContactsTask pollingTask = this.pollingTask;
+
+         if (pollingTask != null)
+             pollingTask.resetBackoff(contact);
+
+         if (isPollable(contact))
+             pollContact(contact);
+     }
+
+     /**
+      * Determines whether a contact may be polled.
+      *
+      * @param contact the contact
+      * @return <tt>true</tt> if presence is enabled and <tt>contact</tt> is
+      * a resolvable, persistent contact
+      */
+     private boolean isPollable(ContactSipImpl contact)
+     {
+         return this.presenceEnabled
+             && contact.isResolvable()
+             && contact.isPersistent();
+     }
 
+     /**
+      * Determines whether we have a subscription with a contact, in which
+      * case polling it would not send anything.
+      *
+      * @param contact the contact
+      * @return <tt>true</tt> if we have a subscription with <tt>contact</tt>
+      */
+     private boolean isSubscribed(ContactSipImpl contact)
+     {
+         try
+         {
+             return subscriber.getSubscription(getAddress(contact), null)
+                 != null;
+         }
+         catch (OperationFailedException ex)
+         {
+             return false;
+         }
+     }
+
+     /**
+      * Polls a contact by subscribing to it if we have no subscription with
+      * it yet.
+      *
+      * @param contact the contact to poll
+      */
+     private void pollContact(ContactSipImpl contact)
+     {
          // Attempt to subscribe.
          try
          {
@@ -3065,27 +3064,44 @@ public void run()
 
      /**
       * A task handling polling of offline contacts.
+      * <p>
+      * A contact we have no subscription with is polled on the first run of
+      * the task and then less and less often, doubling the interval up to
+      * <tt>MAX_POLL_BACKOFF_SHIFT</tt> times, until a subscription with it
+      * exists again or it is polled explicitly. No more than
+      * <tt>MAX_POLLS_PER_PERIOD</tt> contacts are polled per run, the ones
+      * which waited longest first, so that a large contact list doesn't
+      * send a burst of SUBSCRIBE requests to the registrar.
       */
      private class PollOfflineContactsTask extends TimerTask
      {
+         /**
+          * The polling state of the contacts we have no subscription with.
+          */
+         private Map<ContactSipImpl, PollState> pollStates
+             = new HashMap<ContactSipImpl, PollState>();
+
+         /**
+          * The number of polls sent and of polls suppressed by the back-off
+          * or the rate limit since the task started.
+          */
+         private long pollsSent = 0;
+
+         private long pollsSuppressed = 0;
+
          /**
           * Check if we can't subscribe to this contact now
           */
          @Override
         public void run()
          {
-             // send a subscription for every contact
+             List<ContactSipImpl> contacts = new ArrayList<ContactSipImpl>();
+
              Iterator<Contact> rootContactsIter
                 = getServerStoredContactListRoot().contacts();
 
             while (rootContactsIter.hasNext())
-            {
-                ContactSipImpl contact =
-                    (ContactSipImpl) rootContactsIter.next();
-
-                 // poll this contact
-                 forcePollContact(contact);
-             }
+                contacts.add((ContactSipImpl) rootContactsIter.next());
 
              Iterator<ContactGroup> groupsIter
                  = getServerStoredContactListRoot().subgroups();
@@ -3096,14 +3112,118 @@ public void run()
                  Iterator<Contact> contactsIter = group.contacts();
 
                  while (contactsIter.hasNext())
+                     contacts.add((ContactSipImpl) contactsIter.next());
+             }
+
+             long now = System.currentTimeMillis();
+             List<PollState> due = new ArrayList<PollState>();
+
+             synchronized (this)
+             {
+                 Map<ContactSipImpl, PollState> states
+                     = new HashMap<ContactSipImpl, PollState>();
+
+                 for (ContactSipImpl contact : contacts)
                  {
-                     ContactSipImpl contact
-                         = (ContactSipImpl) contactsIter.next();
+                     if (!isPollable(contact) || isSubscribed(contact))
+                         continue;
 
-                     // poll this contact
-                     forcePollContact(contact);
+                     PollState state = pollStates.get(contact);
+
+                     if (state == null)
+                         state = new PollState(contact);
+                     states.put(contact, state);
+
+                     if (state.nextPollTime <= now)
+                         due.add(state);
+                     else
+                         pollsSuppressed++;
+                 }
+                 // forget the contacts which were removed or subscribed to
+                 pollStates = states;
+
+                 Collections.sort(
+                         due,
+                         new Comparator<PollState>()
+                         {
+                             public int compare(PollState s1, PollState s2)
+                             {
+                                 return
+                                     (s1.nextPollTime < s2.nextPollTime)
+                                         ? -1
+                                         : ((s1.nextPollTime
+                                                 == s2.nextPollTime)
+                                             ? 0
+                                             : 1);
+                             }
+                         });
+
+                 if (due.size() > MAX_POLLS_PER_PERIOD)
+                 {
+                     pollsSuppressed += due.size() - MAX_POLLS_PER_PERIOD;
+                     due = due.subList(0, MAX_POLLS_PER_PERIOD);
                  }
+
+                 for (PollState state : due)
+                 {
+                     int shift
+                         = Math.min(state.pollCount, MAX_POLL_BACKOFF_SHIFT);
+
+                     state.pollCount++;
+                     // half a period early so that it's due on that run
+                     state.nextPollTime
+                         = now
+                             + pollingTaskPeriod * ((1L << shift) - 1)
+                             + pollingTaskPeriod / 2;
+                 }
+                 pollsSent += due.size();
              }
+
+             for (PollState state : due)
+                 pollContact(state.contact);
+
+             if (logger.isDebugEnabled() && !due.isEmpty())
+             {
+                 logger.debug("Polled " + due.size() + " offline contacts, "
+                         + pollsSent + " polls sent and " + pollsSuppressed
+                         + " suppressed so far");
+             }
+         }
+
+         /**
+          * Forgets the back-off of a contact, which is polled on the next
+          * run of the task if we still have no subscription with it.
+          *
+          * @param contact the contact
+          */
+         synchronized void resetBackoff(ContactSipImpl contact)
+         {
+             pollStates.remove(contact);
+         }
+     }
+
+     /**
+      * The polling state of a contact we have no subscription with.
+      */
+     private static class PollState
+     {
+         final ContactSipImpl contact;
+
+         /**
+          * The number of times the contact was polled since we last had a
+          * subscription with it.
+          */
+         int pollCount = 0;
+
+         /**
+          * The time in milliseconds from which the contact may be polled
+          * again.
+          */
+         long nextPollTime = 0;
+
+         PollState(ContactSipImpl contact)
+         {
+             this.contact = contact;
          }
      }
 
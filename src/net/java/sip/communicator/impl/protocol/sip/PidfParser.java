@@ -0,0 +1,797 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * Extracts the parts of PIDF (RFC 3863) documents, with their RPID
+ * extensions, and of watcher information (RFC 3858) documents which
+ * <tt>OperationSetPresenceSipImpl</tt> uses.
+ * <p>
+ * The documents are read with a streaming pull parser, which is much cheaper
+ * than building a DOM for each of the many documents of a resource list
+ * NOTIFY. The documents the pull parser does not handle, such as those with
+ * a DTD or with elements in unexpected places, are given up with
+ * <tt>null</tt> so that the caller falls back to reading their DOM, which
+ * yields the same parts.
+ * <p>
+ * As <tt>OperationSetPresenceSipImpl</tt> is tolerant with the namespaces
+ * used by the servers and clients, the elements are matched by local name
+ * and remember whether they are in the PIDF namespace, so that
+ * {@link #select(List)} may prefer them.
+ */
+class PidfParser
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PidfParser</tt> class for logging
+     * output.
+     */
+    private static final Logger logger = Logger.getLogger(PidfParser.class);
+
+    private static final String PIDF_NS_VALUE = "urn:ietf:params:xml:ns:pidf";
+    private static final String WATCHERINFO_NS_VALUE
+        = "urn:ietf:params:xml:ns:watcherinfo";
+    private static final String ANY_NS = "*";
+
+    private static final String PRESENCE_ELEMENT = "presence";
+    private static final String ENTITY_ATTRIBUTE = "entity";
+    private static final String TUPLE_ELEMENT = "tuple";
+    private static final String STATUS_ELEMENT = "status";
+    private static final String BASIC_ELEMENT = "basic";
+    private static final String CONTACT_ELEMENT = "contact";
+    private static final String NOTE_ELEMENT = "note";
+    private static final String PRIORITY_ATTRIBUTE = "priority";
+    private static final String PERSON_ELEMENT = "person";
+    private static final String ACTIVITY_ELEMENT = "activities";
+    private static final String AWAY_ELEMENT = "away";
+    private static final String BUSY_ELEMENT = "busy";
+    private static final String OTP_ELEMENT = "on-the-phone";
+    private static final String STATUS_ICON_ELEMENT = "status-icon";
+
+    private static final String WATCHERINFO_ELEMENT = "watcherinfo";
+    private static final String STATE_ATTRIBUTE = "state";
+    private static final String VERSION_ATTRIBUTE = "version";
+    private static final String WATCHERLIST_ELEMENT = "watcher-list";
+    private static final String RESOURCE_ATTRIBUTE = "resource";
+    private static final String PACKAGE_ATTRIBUTE = "package";
+    private static final String WATCHER_ELEMENT = "watcher";
+
+    /**
+     * The factory of the pull parsers, which doesn't read DTDs or external
+     * entities.
+     */
+    private static final XMLInputFactory inputFactory;
+
+    static
+    {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                false);
+    }
+
+    /**
+     * Reads a PIDF document with the pull parser.
+     *
+     * @param document the PIDF document
+     * @return the parts of <tt>document</tt> or <tt>null</tt> if it is to be
+     * read with {@link #parsePresence(Document)} instead
+     * @throws XMLStreamException if <tt>document</tt> is not well-formed
+     */
+    static Presence parsePresence(String document)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader = createReader(document);
+
+        try
+        {
+            Presence presence = null;
+            List<TextPart> texts = new ArrayList<TextPart>();
+            int depth = 0;
+            boolean personSeen = false;
+            int personDepth = -1;
+            int activitiesDepth = -1;
+            boolean statusIconSeen = false;
+            Tuple tuple = null;
+            int tupleDepth = -1;
+            Status status = null;
+            int statusDepth = -1;
+
+            while (reader.hasNext())
+            {
+                switch (reader.next())
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+
+                    String name = reader.getLocalName();
+                    boolean pidf
+                        = PIDF_NS_VALUE.equals(reader.getNamespaceURI());
+                    TextPart text = null;
+
+                    if (depth == 1)
+                    {
+                        if (!PRESENCE_ELEMENT.equals(name))
+                            return null;
+
+                        presence = new Presence();
+                        presence.entity
+                            = getAttribute(reader, ENTITY_ATTRIBUTE);
+                    }
+                    else if (PRESENCE_ELEMENT.equals(name))
+                        return null;
+
+                    if (PERSON_ELEMENT.equals(name) && !personSeen)
+                    {
+                        personSeen = true;
+                        personDepth = depth;
+                    }
+                    if (ACTIVITY_ELEMENT.equals(name)
+                            && personDepth > 0
+                            && activitiesDepth < 0)
+                    {
+                        activitiesDepth = depth;
+                    }
+                    else if (depth == activitiesDepth + 1
+                            && presence.activity == null
+                            && (AWAY_ELEMENT.equals(name)
+                                || BUSY_ELEMENT.equals(name)
+                                || OTP_ELEMENT.equals(name)))
+                    {
+                        presence.activity = name;
+                    }
+                    if (STATUS_ICON_ELEMENT.equals(name)
+                            && personDepth > 0
+                            && !statusIconSeen)
+                    {
+                        statusIconSeen = true;
+                        text = presence.statusIcon = new TextPart(pidf);
+                    }
+                    if (NOTE_ELEMENT.equals(name))
+                    {
+                        text = new TextPart(pidf);
+                        presence.notes.add(text);
+                        if (tuple != null)
+                            tuple.notes.add(text);
+                    }
+                    if (TUPLE_ELEMENT.equals(name))
+                    {
+                        if (tuple != null)
+                            return null;
+
+                        tuple = new Tuple(pidf);
+                        tupleDepth = depth;
+                        presence.tuples.add(tuple);
+                    }
+                    else if (tuple != null)
+                    {
+                        if (CONTACT_ELEMENT.equals(name))
+                        {
+                            text = new TextPart(pidf);
+                            text.attribute
+                                = reader.getAttributeValue(
+                                        null,
+                                        PRIORITY_ATTRIBUTE);
+                            tuple.contacts.add(text);
+                        }
+                        else if (STATUS_ELEMENT.equals(name))
+                        {
+                            if (status != null)
+                                return null;
+
+                            status = new Status(pidf);
+                            statusDepth = depth;
+                            tuple.statuses.add(status);
+                        }
+                        else if (BASIC_ELEMENT.equals(name) && status != null)
+                        {
+                            text = new TextPart(pidf);
+                            status.basics.add(text);
+                        }
+                    }
+                    texts.add(text);
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    addText(texts, reader);
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    texts.remove(texts.size() - 1);
+                    if (depth == personDepth)
+                        personDepth = -1;
+                    if (depth == activitiesDepth)
+                        activitiesDepth = -1;
+                    if (depth == tupleDepth)
+                    {
+                        tuple = null;
+                        tupleDepth = -1;
+                    }
+                    if (depth == statusDepth)
+                    {
+                        status = null;
+                        statusDepth = -1;
+                    }
+                    depth--;
+                    break;
+
+                case XMLStreamConstants.DTD:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    return null;
+                }
+            }
+            return presence;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the DOM of a PIDF document.
+     *
+     * @param document the DOM of the PIDF document
+     * @return the parts of <tt>document</tt> or <tt>null</tt> if it has no
+     * presence element
+     */
+    static Presence parsePresence(Document document)
+    {
+        // <presence>
+        NodeList presList
+            = document.getElementsByTagNameNS(PIDF_NS_VALUE, PRESENCE_ELEMENT);
+
+        if (presList.getLength() == 0)
+        {
+            presList
+                = document.getElementsByTagNameNS(ANY_NS, PRESENCE_ELEMENT);
+
+            if (presList.getLength() == 0)
+            {
+                logger.error("no presence element in this document");
+                return null;
+            }
+        }
+        if (presList.getLength() > 1)
+        {
+            logger.warn("more than one presence element in this document");
+        }
+
+        Element presenceElement = (Element) presList.item(0);
+        Presence presence = new Presence();
+
+        presence.entity
+            = XMLUtils.getAttribute(presenceElement, ENTITY_ATTRIBUTE);
+
+        // RPID area
+        NodeList personList
+            = presenceElement.getElementsByTagNameNS(ANY_NS, PERSON_ELEMENT);
+
+        if (personList.getLength() > 0)
+        {
+            Element person = (Element) personList.item(0);
+            NodeList activityList
+                = person.getElementsByTagNameNS(ANY_NS, ACTIVITY_ELEMENT);
+
+            // find the first correct activity
+            for (int i = 0;
+                    i < activityList.getLength() && presence.activity == null;
+                    i++)
+            {
+                NodeList statusList = activityList.item(i).getChildNodes();
+
+                for (int j = 0; j < statusList.getLength(); j++)
+                {
+                    Node statusNode = statusList.item(j);
+
+                    if (statusNode.getNodeType() != Node.ELEMENT_NODE)
+                        continue;
+
+                    String name = statusNode.getLocalName();
+
+                    if (AWAY_ELEMENT.equals(name)
+                            || BUSY_ELEMENT.equals(name)
+                            || OTP_ELEMENT.equals(name))
+                    {
+                        presence.activity = name;
+                        break;
+                    }
+                }
+            }
+
+            NodeList statusIconList
+                = person.getElementsByTagNameNS(ANY_NS, STATUS_ICON_ELEMENT);
+
+            if (statusIconList.getLength() > 0)
+                presence.statusIcon = getText(statusIconList.item(0));
+        }
+
+        getTexts(presenceElement, NOTE_ELEMENT, presence.notes);
+
+        // <tuple>
+        NodeList tupleList
+            = presenceElement.getElementsByTagNameNS(ANY_NS, TUPLE_ELEMENT);
+
+        for (int i = 0; i < tupleList.getLength(); i++)
+        {
+            Element tupleElement = (Element) tupleList.item(i);
+            Tuple tuple = new Tuple(isPidf(tupleElement));
+
+            getTexts(tupleElement, CONTACT_ELEMENT, tuple.contacts);
+            for (TextPart contact : tuple.contacts)
+            {
+                contact.attribute
+                    = ((Element) contact.node).getAttribute(
+                            PRIORITY_ATTRIBUTE);
+            }
+
+            NodeList statusList
+                = tupleElement.getElementsByTagNameNS(ANY_NS, STATUS_ELEMENT);
+
+            for (int j = 0; j < statusList.getLength(); j++)
+            {
+                Element statusElement = (Element) statusList.item(j);
+                Status status = new Status(isPidf(statusElement));
+
+                getTexts(statusElement, BASIC_ELEMENT, status.basics);
+                tuple.statuses.add(status);
+            }
+
+            getTexts(tupleElement, NOTE_ELEMENT, tuple.notes);
+            presence.tuples.add(tuple);
+        }
+        return presence;
+    }
+
+    /**
+     * Reads a watcher information document with the pull parser.
+     *
+     * @param document the watcher information document
+     * @param resource the resource whose watcher list is to be read
+     * @return the parts of <tt>document</tt> or <tt>null</tt> if it is to be
+     * read with {@link #parseWatcherInfo(Document, String)} instead
+     * @throws XMLStreamException if <tt>document</tt> is not well-formed
+     */
+    static WatcherInfo parseWatcherInfo(String document, String resource)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader = createReader(document);
+
+        try
+        {
+            WatcherInfo watcherInfo = null;
+            List<TextPart> texts = new ArrayList<TextPart>();
+            int depth = 0;
+            int watcherListDepth = -1;
+
+            while (reader.hasNext())
+            {
+                switch (reader.next())
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+
+                    String name = reader.getLocalName();
+                    TextPart text = null;
+
+                    if (depth == 1)
+                    {
+                        if (!WATCHERINFO_ELEMENT.equals(name))
+                            return null;
+
+                        watcherInfo = new WatcherInfo();
+                        watcherInfo.state
+                            = getAttribute(reader, STATE_ATTRIBUTE);
+                        watcherInfo.version
+                            = getAttribute(reader, VERSION_ATTRIBUTE);
+                    }
+                    else if (WATCHERINFO_ELEMENT.equals(name))
+                        return null;
+                    else if (WATCHERLIST_ELEMENT.equals(name)
+                            && watcherInfo.watcherListPackage == null
+                            && resource.equals(
+                                    getAttribute(reader, RESOURCE_ATTRIBUTE)))
+                    {
+                        watcherInfo.watcherListPackage
+                            = getAttribute(reader, PACKAGE_ATTRIBUTE);
+                        watcherListDepth = depth;
+                    }
+                    else if (WATCHER_ELEMENT.equals(name)
+                            && watcherListDepth > 0)
+                    {
+                        text = new TextPart(false);
+                        text.attribute
+                            = reader.getAttributeValue(null, STATUS_ELEMENT);
+                        if (text.attribute == null)
+                            text.attribute = "";
+                        watcherInfo.watchers.add(text);
+                    }
+                    texts.add(text);
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    addText(texts, reader);
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    texts.remove(texts.size() - 1);
+                    if (depth == watcherListDepth)
+                        watcherListDepth = -1;
+                    depth--;
+                    break;
+
+                case XMLStreamConstants.DTD:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    return null;
+                }
+            }
+            return watcherInfo;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the DOM of a watcher information document.
+     *
+     * @param document the DOM of the watcher information document
+     * @param resource the resource whose watcher list is to be read
+     * @return the parts of <tt>document</tt> or <tt>null</tt> if it has no
+     * watcherinfo element
+     */
+    static WatcherInfo parseWatcherInfo(Document document, String resource)
+    {
+        // <watcherinfo>
+        NodeList watchList
+            = document.getElementsByTagNameNS(
+                    WATCHERINFO_NS_VALUE,
+                    WATCHERINFO_ELEMENT);
+
+        if (watchList.getLength() == 0)
+        {
+            watchList
+                = document.getElementsByTagNameNS(ANY_NS, WATCHERINFO_ELEMENT);
+
+            if (watchList.getLength() == 0)
+            {
+                logger.error("no watcherinfo element in this document");
+                return null;
+            }
+        }
+        if (watchList.getLength() > 1)
+        {
+            logger.warn("more than one watcherinfo element in this document");
+        }
+
+        Element watcherInfoElement = (Element) watchList.item(0);
+        WatcherInfo watcherInfo = new WatcherInfo();
+
+        watcherInfo.state = watcherInfoElement.getAttribute(STATE_ATTRIBUTE);
+        watcherInfo.version
+            = watcherInfoElement.getAttribute(VERSION_ATTRIBUTE);
+
+        // we need watcher list only for our resource
+        Element wlist
+            = XMLUtils.locateElement(
+                    watcherInfoElement,
+                    WATCHERLIST_ELEMENT,
+                    RESOURCE_ATTRIBUTE,
+                    resource);
+
+        if (wlist != null)
+        {
+            watcherInfo.watcherListPackage
+                = wlist.getAttribute(PACKAGE_ATTRIBUTE);
+
+            NodeList watcherList
+                = wlist.getElementsByTagNameNS(ANY_NS, WATCHER_ELEMENT);
+
+            for (int i = 0; i < watcherList.getLength(); i++)
+            {
+                Element watcher = (Element) watcherList.item(i);
+                TextPart text = getText(watcher);
+
+                text.attribute = watcher.getAttribute(STATUS_ELEMENT);
+                watcherInfo.watchers.add(text);
+            }
+        }
+        return watcherInfo;
+    }
+
+    /**
+     * Returns the elements in the PIDF namespace among given elements or
+     * all of them if none is in the PIDF namespace.
+     *
+     * @param elements the elements
+     * @param <T> the type of the elements
+     * @return the elements in the PIDF namespace or <tt>elements</tt>
+     */
+    static <T extends Part> List<T> select(List<T> elements)
+    {
+        List<T> pidfElements = null;
+
+        for (T element : elements)
+        {
+            if (element.pidf)
+            {
+                if (pidfElements == null)
+                    pidfElements = new ArrayList<T>();
+                pidfElements.add(element);
+            }
+        }
+        return (pidfElements == null) ? elements : pidfElements;
+    }
+
+    /**
+     * Creates a pull parser reading a document.
+     *
+     * @param document the document
+     * @return the pull parser reading <tt>document</tt>
+     * @throws XMLStreamException if the pull parser could not be created
+     */
+    private static XMLStreamReader createReader(String document)
+        throws XMLStreamException
+    {
+        synchronized (inputFactory)
+        {
+            return inputFactory.createXMLStreamReader(
+                    new StringReader(document));
+        }
+    }
+
+    /**
+     * Returns the value of an attribute in no namespace of the current
+     * element of a pull parser, trimmed like <tt>XMLUtils</tt> does.
+     *
+     * @param reader the pull parser
+     * @param name the name of the attribute
+     * @return the trimmed value of the attribute or <tt>null</tt>
+     */
+    private static String getAttribute(XMLStreamReader reader, String name)
+    {
+        String value = reader.getAttributeValue(null, name);
+
+        return (value == null) ? null : value.trim();
+    }
+
+    /**
+     * Gives the current text of a pull parser to the element it is in, if
+     * that element is of interest and doesn't have a text yet. Like
+     * <tt>XMLUtils.getText</tt>, only the first text of an element counts.
+     *
+     * @param texts the elements of interest among the elements the current
+     * text is in, <tt>null</tt> for the other elements
+     * @param reader the pull parser
+     */
+    private static void addText(List<TextPart> texts, XMLStreamReader reader)
+    {
+        if (texts.isEmpty())
+            return;
+
+        TextPart text = texts.get(texts.size() - 1);
+
+        if (text != null && text.text == null)
+            text.text = reader.getText();
+    }
+
+    /**
+     * Adds the descendants of a DOM element with a given local name to a
+     * list.
+     *
+     * @param element the DOM element
+     * @param name the local name of the descendants
+     * @param texts the list to add the descendants to
+     */
+    private static void getTexts(Element element,
+                                 String name,
+                                 List<TextPart> texts)
+    {
+        NodeList nodeList = element.getElementsByTagNameNS(ANY_NS, name);
+
+        for (int i = 0; i < nodeList.getLength(); i++)
+            texts.add(getText(nodeList.item(i)));
+    }
+
+    /**
+     * Creates a <tt>TextPart</tt> for a DOM element.
+     *
+     * @param node the DOM element
+     * @return the <tt>TextPart</tt> of <tt>node</tt>
+     */
+    private static TextPart getText(Node node)
+    {
+        TextPart text = new TextPart(isPidf(node));
+
+        text.text = XMLUtils.getText((Element) node);
+        text.node = node;
+        return text;
+    }
+
+    /**
+     * Determines whether a DOM node is in the PIDF namespace.
+     *
+     * @param node the DOM node
+     * @return <tt>true</tt> if <tt>node</tt> is in the PIDF namespace
+     */
+    private static boolean isPidf(Node node)
+    {
+        return PIDF_NS_VALUE.equals(node.getNamespaceURI());
+    }
+
+    /**
+     * An element of interest.
+     */
+    static class Part
+    {
+        /**
+         * Whether the element is in the PIDF namespace.
+         */
+        final boolean pidf;
+
+        Part(boolean pidf)
+        {
+            this.pidf = pidf;
+        }
+    }
+
+    /**
+     * An element of interest whose text is used.
+     */
+    static class TextPart
+        extends Part
+    {
+        /**
+         * The first text of the element, <tt>null</tt> if it has none.
+         */
+        String text;
+
+        /**
+         * The priority attribute of a contact element or the status
+         * attribute of a watcher element.
+         */
+        String attribute;
+
+        /**
+         * The DOM element when read from a DOM.
+         */
+        private Node node;
+
+        TextPart(boolean pidf)
+        {
+            super(pidf);
+        }
+
+        /**
+         * Returns the first text of the element or an empty string if it has
+         * no text.
+         *
+         * @param name the name of the element, for logging
+         * @return the first text of the element or an empty string
+         */
+        String getText(String name)
+        {
+            if (text == null)
+            {
+                logger.warn("no text for element '" + name + "'");
+                return "";
+            }
+            return text;
+        }
+    }
+
+    /**
+     * The parts of a PIDF document.
+     */
+    static class Presence
+    {
+        /**
+         * The entity attribute of the presence element.
+         */
+        String entity;
+
+        /**
+         * The local name of the first known activity of the first person,
+         * <tt>null</tt> if none.
+         */
+        String activity;
+
+        /**
+         * The first status icon of the first person, <tt>null</tt> if none.
+         */
+        TextPart statusIcon;
+
+        /**
+         * The notes anywhere in the presence element.
+         */
+        final List<TextPart> notes = new ArrayList<TextPart>();
+
+        final List<Tuple> tuples = new ArrayList<Tuple>();
+    }
+
+    /**
+     * The parts of a tuple element.
+     */
+    static class Tuple
+        extends Part
+    {
+        final List<TextPart> contacts = new ArrayList<TextPart>();
+
+        final List<Status> statuses = new ArrayList<Status>();
+
+        final List<TextPart> notes = new ArrayList<TextPart>();
+
+        Tuple(boolean pidf)
+        {
+            super(pidf);
+        }
+    }
+
+    /**
+     * The basic elements of a status element.
+     */
+    static class Status
+        extends Part
+    {
+        final List<TextPart> basics = new ArrayList<TextPart>();
+
+        Status(boolean pidf)
+        {
+            super(pidf);
+        }
+    }
+
+    /**
+     * The parts of a watcher information document.
+     */
+    static class WatcherInfo
+    {
+        String state;
+
+        String version;
+
+        /**
+         * The package attribute of the watcher list of the resource,
+         * <tt>null</tt> if the document has no watcher list for the
+         * resource.
+         */
+        String watcherListPackage;
+
+        /**
+         * The watchers of the watcher list of the resource.
+         */
+        final List<TextPart> watchers = new ArrayList<TextPart>();
+    }
+}
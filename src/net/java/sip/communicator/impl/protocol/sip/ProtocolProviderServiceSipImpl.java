@@ -819,7 +819,7 @@ public void processIOException(IOExceptionEvent exceptionEvent) {}
      * @param responseEvent the responseEvent fired from the SipProvider to the
      * SipListener representing a Response received from the network.
      */
-    public void processResponse(ResponseEvent responseEvent)
+    public void processResponse(final ResponseEvent responseEvent)
     {
         ClientTransaction clientTransaction = responseEvent
             .getClientTransaction();
@@ -834,9 +834,31 @@ public void processResponse(ResponseEvent responseEvent)
 
         earlyProcessMessage(responseEvent);
 
-        String method = ( (CSeqHeader) response.getHeader(CSeqHeader.NAME))
-            .getMethod();
+        final String method
+            = ( (CSeqHeader) response.getHeader(CSeqHeader.NAME)).getMethod();
 
+        SipEventDispatcher.getInstance().dispatch(
+                response,
+                method,
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        dispatchResponse(method, responseEvent);
+                    }
+                });
+    }
+
+    /**
+     * Passes a <tt>ResponseEvent</tt> to the <tt>MethodProcessor</tt>s of its
+     * method until one of them processes it. Called on the lane of the
+     * <tt>SipEventDispatcher</tt> the dialog of the response belongs to.
+     *
+     * @param method the method of the request the response belongs to
+     * @param responseEvent the <tt>ResponseEvent</tt> to process
+     */
+    private void dispatchResponse(String method, ResponseEvent responseEvent)
+    {
         //find the object that is supposed to take care of responses with the
         //corresponding method
         List<MethodProcessor> processors = methodProcessors.get(method);
@@ -867,7 +889,7 @@ public void processResponse(ResponseEvent responseEvent)
      *            the timeoutEvent received indicating either the message
      *            retransmit or transaction timed out.
      */
-    public void processTimeout(TimeoutEvent timeoutEvent)
+    public void processTimeout(final TimeoutEvent timeoutEvent)
     {
         Transaction transaction;
         if(timeoutEvent.isServerTransaction())
@@ -888,9 +910,33 @@ public void processTimeout(TimeoutEvent timeoutEvent)
         if (logger.isDebugEnabled())
             logger.debug("received timeout for req=" + request);
 
+        final String method = request.getMethod();
+
+        SipEventDispatcher.getInstance().dispatch(
+                request,
+                method,
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        dispatchTimeout(method, timeoutEvent);
+                    }
+                });
+    }
+
+    /**
+     * Passes a <tt>TimeoutEvent</tt> to the <tt>MethodProcessor</tt>s of its
+     * method until one of them processes it. Called on the lane of the
+     * <tt>SipEventDispatcher</tt> the dialog of the timed out transaction
+     * belongs to.
+     *
+     * @param method the method of the request of the timed out transaction
+     * @param timeoutEvent the <tt>TimeoutEvent</tt> to process
+     */
+    private void dispatchTimeout(String method, TimeoutEvent timeoutEvent)
+    {
         //find the object that is supposed to take care of responses with the
         //corresponding method
-        String method = request.getMethod();
         List<MethodProcessor> processors = methodProcessors.get(method);
 
         if (processors != null)
@@ -920,8 +966,8 @@ public void processTimeout(TimeoutEvent timeoutEvent)
      *       transaction has transitioned into the terminated state.
      * @since v1.2
      */
-    public void processTransactionTerminated(TransactionTerminatedEvent
-                                             transactionTerminatedEvent)
+    public void processTransactionTerminated(
+            final TransactionTerminatedEvent transactionTerminatedEvent)
     {
         Transaction transaction;
         if(transactionTerminatedEvent.isServerTransaction())
@@ -938,10 +984,38 @@ public void processTransactionTerminated(TransactionTerminatedEvent
         }
 
         Request request = transaction.getRequest();
+        final String method = request.getMethod();
 
+        SipEventDispatcher.getInstance().dispatch(
+                request,
+                method,
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        dispatchTransactionTerminated(
+                                method,
+                                transactionTerminatedEvent);
+                    }
+                });
+    }
+
+    /**
+     * Passes a <tt>TransactionTerminatedEvent</tt> to the
+     * <tt>MethodProcessor</tt>s of its method until one of them processes it.
+     * Called on the lane of the <tt>SipEventDispatcher</tt> the dialog of the
+     * terminated transaction belongs to.
+     *
+     * @param method the method of the request of the terminated transaction
+     * @param transactionTerminatedEvent the
+     * <tt>TransactionTerminatedEvent</tt> to process
+     */
+    private void dispatchTransactionTerminated(
+            String method,
+            TransactionTerminatedEvent transactionTerminatedEvent)
+    {
         //find the object that is supposed to take care of responses with the
         //corresponding method
-        String method = request.getMethod();
         List<MethodProcessor> processors = methodProcessors.get(method);
 
         if (processors != null)
@@ -987,7 +1061,7 @@ public void processDialogTerminated(DialogTerminatedEvent
      * @param requestEvent requestEvent fired from the SipProvider to the
      * SipListener representing a Request received from the network.
      */
-    public void processRequest(RequestEvent requestEvent)
+    public void processRequest(final RequestEvent requestEvent)
     {
         Request request = requestEvent.getRequest();
 
@@ -1093,8 +1167,32 @@ public void processRequest(RequestEvent requestEvent)
             }
         }
 
+        final String method = request.getMethod();
 
-        String method = request.getMethod();
+        SipEventDispatcher.getInstance().dispatch(
+                request,
+                method,
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        dispatchRequest(method, requestEvent);
+                    }
+                });
+    }
+
+    /**
+     * Passes a <tt>RequestEvent</tt> to the <tt>MethodProcessor</tt>s of its
+     * method until one of them processes it, and rejects the request if none
+     * of them does. Called on the lane of the <tt>SipEventDispatcher</tt> the
+     * dialog of the request belongs to.
+     *
+     * @param method the method of the request
+     * @param requestEvent the <tt>RequestEvent</tt> to process
+     */
+    private void dispatchRequest(String method, RequestEvent requestEvent)
+    {
+        Request request = requestEvent.getRequest();
 
         //find the object that is supposed to take care of responses with the
         //corresponding method
@@ -0,0 +1,349 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import javax.sip.header.*;
+import javax.sip.message.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Runs the <tt>MethodProcessor</tt>s of the SIP accounts on a few lanes of
+ * worker threads instead of on the thread of the JAIN-SIP stack, so that a
+ * slow processor does not delay the SIP traffic of all the accounts sharing
+ * the stack.
+ * <p>
+ * The events of a dialog, that is with the same Call-ID, always go to the
+ * same lane and are processed in the order they were received. The events
+ * of other dialogs may be processed in parallel on other lanes. The
+ * MESSAGE requests of a sender go to the same lane whatever their Call-ID,
+ * so that its instant messages are not reordered.
+ */
+class SipEventDispatcher
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SipEventDispatcher</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SipEventDispatcher.class);
+
+    /**
+     * The number of lanes.
+     */
+    private static final int LANE_COUNT
+        = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The interval in milliseconds at which the metrics of the events are
+     * logged when debug logging is enabled.
+     */
+    private static final long METRICS_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * The <tt>SipEventDispatcher</tt> shared by the SIP accounts.
+     */
+    private static final SipEventDispatcher instance
+        = new SipEventDispatcher();
+
+    /**
+     * The lanes, each started when an event is first dispatched to it.
+     */
+    private final Lane[] lanes = new Lane[LANE_COUNT];
+
+    /**
+     * The metrics of the events by SIP method.
+     */
+    private final Map<String, MethodMetrics> metrics
+        = new TreeMap<String, MethodMetrics>();
+
+    /**
+     * The time in milliseconds at which the metrics were last logged.
+     */
+    private long metricsLoggedTime = System.currentTimeMillis();
+
+    /**
+     * Returns the <tt>SipEventDispatcher</tt> shared by the SIP accounts.
+     *
+     * @return the shared <tt>SipEventDispatcher</tt>
+     */
+    static SipEventDispatcher getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Queues the processing of an event on the lane of its dialog.
+     *
+     * @param message the request or response of the event
+     * @param method the SIP method of the event, for the metrics
+     * @param task the processing of the event
+     */
+    void dispatch(Message message, String method, Runnable task)
+    {
+        Object key = getLaneKey(message);
+        int index
+            = (key == null) ? 0 : ((key.hashCode() & 0x7fffffff) % LANE_COUNT);
+        Lane lane;
+
+        synchronized (lanes)
+        {
+            lane = lanes[index];
+            if (lane == null)
+            {
+                lane = new Lane(index);
+                lanes[index] = lane;
+                lane.start();
+            }
+        }
+        lane.add(new Event(method, task));
+    }
+
+    /**
+     * Returns a summary of the metrics of the lanes and of the events
+     * processed so far, by SIP method.
+     *
+     * @return the metrics of the lanes and of the events
+     */
+    String getMetrics()
+    {
+        StringBuilder s = new StringBuilder("SIP event lanes:");
+
+        synchronized (lanes)
+        {
+            for (Lane lane : lanes)
+            {
+                if (lane != null)
+                    s.append("\n    ").append(lane);
+            }
+        }
+        synchronized (metrics)
+        {
+            for (Map.Entry<String, MethodMetrics> e : metrics.entrySet())
+                s.append("\n    ").append(e.getKey()).append(": ")
+                    .append(e.getValue());
+        }
+        return s.toString();
+    }
+
+    /**
+     * Returns the key which determines the lane of an event, which is the
+     * sender of MESSAGE requests and the Call-ID of the other messages.
+     *
+     * @param message the request or response of the event
+     * @return the key of the lane of the event or <tt>null</tt> if
+     * <tt>message</tt> has no Call-ID
+     */
+    private static Object getLaneKey(Message message)
+    {
+        if (message instanceof Request
+                && Request.MESSAGE.equals(((Request) message).getMethod()))
+        {
+            FromHeader from = (FromHeader) message.getHeader(FromHeader.NAME);
+
+            if (from != null && from.getAddress() != null)
+                return from.getAddress().getURI().toString();
+        }
+
+        CallIdHeader callId
+            = (CallIdHeader) message.getHeader(CallIdHeader.NAME);
+
+        return (callId == null) ? null : callId.getCallId();
+    }
+
+    /**
+     * Records the processing of an event in the metrics and logs them if
+     * debug logging is enabled and they were not logged recently.
+     *
+     * @param event the processed event
+     * @param startTime the time in milliseconds at which the processing of
+     * <tt>event</tt> started
+     */
+    private void eventProcessed(Event event, long startTime)
+    {
+        long now = System.currentTimeMillis();
+        boolean log = false;
+
+        synchronized (metrics)
+        {
+            MethodMetrics methodMetrics = metrics.get(event.method);
+
+            if (methodMetrics == null)
+            {
+                methodMetrics = new MethodMetrics();
+                metrics.put(event.method, methodMetrics);
+            }
+            methodMetrics.count++;
+            methodMetrics.totalWait += startTime - event.queuedTime;
+            methodMetrics.totalProcessing += now - startTime;
+            methodMetrics.maxProcessing
+                = Math.max(methodMetrics.maxProcessing, now - startTime);
+
+            if (logger.isDebugEnabled()
+                    && now - metricsLoggedTime >= METRICS_INTERVAL)
+            {
+                metricsLoggedTime = now;
+                log = true;
+            }
+        }
+
+        if (log)
+            logger.debug(getMetrics());
+    }
+
+    /**
+     * A thread processing the events of the dialogs assigned to it in the
+     * order they were dispatched.
+     */
+    private class Lane
+        extends Thread
+    {
+        /**
+         * The events which have not been processed yet.
+         */
+        private final LinkedList<Event> queue = new LinkedList<Event>();
+
+        /**
+         * The largest number of events which waited in the queue.
+         */
+        private int maxQueueDepth = 0;
+
+        private Lane(int index)
+        {
+            super("SipEventDispatcher-" + index);
+            setDaemon(true);
+        }
+
+        /**
+         * Queues an event.
+         *
+         * @param event the event
+         */
+        synchronized void add(Event event)
+        {
+            queue.add(event);
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+            notifyAll();
+        }
+
+        /**
+         * Processes the queued events.
+         */
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                Event event;
+
+                synchronized (this)
+                {
+                    while (queue.isEmpty())
+                    {
+                        try
+                        {
+                            wait();
+                        }
+                        catch (InterruptedException ie)
+                        {
+                        }
+                    }
+                    event = queue.removeFirst();
+                }
+
+                long startTime = System.currentTimeMillis();
+
+                try
+                {
+                    event.task.run();
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.error(
+                            "Failed to process a SIP " + event.method
+                                + " event.",
+                            t);
+                }
+                eventProcessed(event, startTime);
+            }
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return getName() + ": queueDepth=" + queue.size()
+                + " maxQueueDepth=" + maxQueueDepth;
+        }
+    }
+
+    /**
+     * The processing of an event waiting in a lane.
+     */
+    private static class Event
+    {
+        final String method;
+
+        final Runnable task;
+
+        /**
+         * The time in milliseconds at which the event was dispatched.
+         */
+        final long queuedTime = System.currentTimeMillis();
+
+        Event(String method, Runnable task)
+        {
+            this.method = method;
+            this.task = task;
+        }
+    }
+
+    /**
+     * The metrics of the events of a SIP method.
+     */
+    private static class MethodMetrics
+    {
+        long count;
+
+        /**
+         * The total time in milliseconds the events waited in their lane.
+         */
+        long totalWait;
+
+        /**
+         * The total and maximum time in milliseconds it took to process the
+         * events.
+         */
+        long totalProcessing;
+
+        long maxProcessing;
+
+        @Override
+        public String toString()
+        {
+            return "count=" + count
+                + " avgWait=" + ((count == 0) ? 0 : (totalWait / count))
+                + "ms avgProcessing="
+                + ((count == 0) ? 0 : (totalProcessing / count))
+                + "ms maxProcessing=" + maxProcessing + "ms";
+        }
+    }
+}
@@ -95,7 +95,7 @@
     /**
     * The timer we use for rescheduling registrations.
     */
-    private Timer reRegisterTimer = new Timer();
+    private final TimerScheduler reRegisterTimer = new TimerScheduler();
 
     /**
     * A copy of our last sent register request. (used when unregistering)
@@ -784,9 +784,6 @@ public void run()
     private void cancelPendingRegistrations()
     {
         reRegisterTimer.cancel();
-        reRegisterTimer = null;
-
-        reRegisterTimer = new Timer();
     }
 
     /**
@@ -806,8 +803,9 @@ private void scheduleReRegistration(int expires)
         //seconds
         //bug report and fix by Willem Romijn (romijn at lucent.com)
         //We keep a margin of 10% when sending re-registrations (1000
-        //becomes 900)
-        reRegisterTimer.schedule(reRegisterTask, expires * 900);
+        //becomes 900) and a little more at random so that the accounts
+        //registered together don't all re-register at the same time
+        reRegisterTimer.scheduleRefresh(reRegisterTask, expires * 900);
     }
 
     /**
@@ -94,6 +94,15 @@
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The candidate recipients by the user ID of their accounts, so that a
+     * request is only matched against the accounts of its Request-URI user.
+     * Guarded by <tt>listeners</tt>.
+     */
+    private final Map<String, List<ProtocolProviderServiceSipImpl>>
+        listenersByUserID
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -201,6 +210,7 @@ public void addSipListener(ProtocolProviderServiceSipImpl listener)
             if(this.listeners.size() == 0)
                 startListening();
             this.listeners.add(listener);
+            indexSipListener(listener);
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -218,6 +228,7 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
         synchronized(this.listeners)
         {
             this.listeners.remove(listener);
+            unindexSipListener(listener);
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -227,6 +238,97 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
         }
     }
 
+    /**
+     * Adds a candidate recipient to the indexes used to find the target of a
+     * request. Must be called while holding the <tt>listeners</tt> lock.
+     *
+     * @param listener the candidate recipient
+     */
+    private void indexSipListener(ProtocolProviderServiceSipImpl listener)
+    {
+        addToIndex(
+            listenersByUserID,
+            listener.getAccountID().getUserID(),
+            listener);
+    }
+
+    /**
+     * Removes a candidate recipient from the indexes used to find the target
+     * of a request. Must be called while holding the <tt>listeners</tt> lock.
+     *
+     * @param listener the candidate recipient
+     */
+    private void unindexSipListener(ProtocolProviderServiceSipImpl listener)
+    {
+        removeFromIndex(
+            listenersByUserID,
+            listener.getAccountID().getUserID(),
+            listener);
+    }
+
+    /**
+     * Adds a candidate recipient to the list of an index for a given key.
+     *
+     * @param index the index
+     * @param key the key
+     * @param listener the candidate recipient
+     */
+    private static <K> void addToIndex(
+            Map<K, List<ProtocolProviderServiceSipImpl>> index,
+            K key,
+            ProtocolProviderServiceSipImpl listener)
+    {
+        List<ProtocolProviderServiceSipImpl> indexed = index.get(key);
+
+        if (indexed == null)
+        {
+            indexed = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+            index.put(key, indexed);
+        }
+        if (!indexed.contains(listener))
+            indexed.add(listener);
+    }
+
+    /**
+     * Removes a candidate recipient from the list of an index for a given
+     * key.
+     *
+     * @param index the index
+     * @param key the key
+     * @param listener the candidate recipient
+     */
+    private static <K> void removeFromIndex(
+            Map<K, List<ProtocolProviderServiceSipImpl>> index,
+            K key,
+            ProtocolProviderServiceSipImpl listener)
+    {
+        List<ProtocolProviderServiceSipImpl> indexed = index.get(key);
+
+        if (indexed != null && indexed.remove(listener) && indexed.isEmpty())
+            index.remove(key);
+    }
+
+    /**
+     * Returns a copy of the candidate recipients indexed for a given key.
+     *
+     * @param index the index
+     * @param key the key
+     * @return a copy of the candidate recipients indexed for <tt>key</tt>
+     */
+    private <K> List<ProtocolProviderServiceSipImpl> getIndexedSipListeners(
+            Map<K, List<ProtocolProviderServiceSipImpl>> index,
+            K key)
+    {
+        synchronized(this.listeners)
+        {
+            List<ProtocolProviderServiceSipImpl> indexed = index.get(key);
+
+            return (indexed == null)
+                ? new ArrayList<ProtocolProviderServiceSipImpl>()
+                : new ArrayList<ProtocolProviderServiceSipImpl>(indexed);
+        }
+    }
+
     /**
      * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
      *
@@ -908,70 +1010,60 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
+        URI requestURI = request.getRequestURI();
 
-        if(currentListenersCopy.size() == 0)
+        if(!requestURI.isSipURI())
         {
-            logger.error("no listeners");
+            logger.error("Request-URI is not a SIP URI, dropping");
             return null;
         }
 
-        URI requestURI = request.getRequestURI();
+        String requestUser = ((SipURI) requestURI).getUser();
 
-        if(requestURI.isSipURI())
-        {
-            String requestUser = ((SipURI) requestURI).getUser();
+        // check if the Request-URI username is
+        // one of ours usernames
+        List<ProtocolProviderServiceSipImpl> candidates
+            = getIndexedSipListeners(listenersByUserID, requestUser);
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
+        // Let's narrow down candidate choice by comparing
+        // addresses and ports (no point in delivering to a provider with a
+        // non matching IP address  since they will reject it anyway).
+        filterByAddress(candidates, request);
 
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
-            {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
-                {
-                    if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
-                }
-            }
+        if (logger.isTraceEnabled())
+        {
+            for(ProtocolProviderServiceSipImpl candidate : candidates)
+                logger.trace("suitable candidate found: "
+                        + candidate.getAccountID());
+        }
 
-            // the perfect match
-            // every other case is approximation
-            if(candidates.size() == 1)
-            {
-                ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
+        // the perfect match
+        // every other case is approximation
+        if(candidates.size() == 1)
+        {
+            ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
 
-                if (logger.isTraceEnabled())
-                    logger.trace("Will dispatch to \""
-                            + perfectMatch.getAccountID() + "\"");
-                return perfectMatch;
-            }
+            if (logger.isTraceEnabled())
+                logger.trace("Will dispatch to \""
+                        + perfectMatch.getAccountID() + "\"");
+            return perfectMatch;
+        }
 
-            // more than one account match
-            if(candidates.size() > 1)
+        // more than one account match
+        if(candidates.size() > 1)
+        {
+            // check if a custom param exists in the contact
+            // address (set for registrar accounts)
+            String hostValue = ((SipURI) requestURI).getParameter(
+                    SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+            if (hostValue != null)
             {
-                // check if a custom param exists in the contact
-                // address (set for registrar accounts)
-                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                // the custom param of a provider depends on its current
+                // registrar, so it is not indexed
+                for(ProtocolProviderServiceSipImpl candidate : candidates)
                 {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
-                        continue;
-                    if (hostValue.equals(candidate
-                                .getContactAddressCustomParamValue()))
+                    if (hostValue.equals(
+                            candidate.getContactAddressCustomParamValue()))
                     {
                         if (logger.isTraceEnabled())
                             logger.trace("Will dispatch to \""
@@ -980,68 +1072,78 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
                         return candidate;
                     }
                 }
+            }
 
-                // Past this point, our guess is not reliable. We try to find
-                // the "least worst" match based on parameters like the To field
+            // Past this point, our guess is not reliable. We try to find
+            // the "least worst" match based on parameters like the To field
 
-                // check if the To header field host part
-                // matches any of our SIP hosts
-                for(ProtocolProviderServiceSipImpl candidate : candidates)
+            // check if the To header field host part
+            // matches any of our SIP hosts
+            for(ProtocolProviderServiceSipImpl candidate : candidates)
+            {
+                URI fromURI = ((FromHeader) request
+                        .getHeader(FromHeader.NAME)).getAddress().getURI();
+                if(fromURI.isSipURI() == false)
+                    continue;
+                SipURI ourURI = (SipURI) candidate
+                    .getOurSipAddress((SipURI) fromURI).getURI();
+                String ourHost = ourURI.getHost();
+
+                URI toURI = ((ToHeader) request
+                        .getHeader(ToHeader.NAME)).getAddress().getURI();
+                if(toURI.isSipURI() == false)
+                    continue;
+                String toHost = ((SipURI) toURI).getHost();
+
+                //logger.trace(toHost + "***" + ourHost);
+                if(toHost.equals(ourHost))
                 {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
-                    SipURI ourURI = (SipURI) candidate
-                        .getOurSipAddress((SipURI) fromURI).getURI();
-                    String ourHost = ourURI.getHost();
-
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
-                    String toHost = ((SipURI) toURI).getHost();
-
-                    //logger.trace(toHost + "***" + ourHost);
-                    if(toHost.equals(ourHost))
-                    {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "host in the To: is the same as in our AOR");
-                        return candidate;
-                    }
+                    if (logger.isTraceEnabled())
+                        logger.trace("Will dispatch to \""
+                                + candidate.getAccountID() + "\" because "
+                                + "host in the To: is the same as in our AOR");
+                    return candidate;
                 }
-
-                // fallback on the first candidate
-                ProtocolProviderServiceSipImpl target =
-                    candidates.iterator().next();
-                logger.info("Will randomly dispatch to \""
-                        + target.getAccountID()
-                        + "\" because there is ambiguity on the username from"
-                        + " the Request-URI");
-                if (logger.isTraceEnabled())
-                    logger.trace("\n" + request);
-                return target;
             }
 
-            // fallback on any account
+            // fallback on the first candidate
             ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
-            if (logger.isDebugEnabled())
-                logger.debug("Will randomly dispatch to \"" + target
-                        .getAccountID()
-                        + "\" because the username in the Request-URI "
-                        + "is unknown or empty");
+                candidates.iterator().next();
+            logger.info("Will randomly dispatch to \""
+                    + target.getAccountID()
+                    + "\" because there is ambiguity on the username from"
+                    + " the Request-URI");
             if (logger.isTraceEnabled())
                 logger.trace("\n" + request);
             return target;
         }
-        else
+
+        // fallback on any account
+        ProtocolProviderServiceSipImpl target = null;
+
+        for(ProtocolProviderServiceSipImpl listener : getSipListeners())
         {
-            logger.error("Request-URI is not a SIP URI, dropping");
+            if (isFromRegistrarOf(listener, request))
+            {
+                target = listener;
+                break;
+            }
+        }
+
+        if(target == null)
+        {
+            logger.error("no listeners");
+            return null;
         }
-        return null;
+
+        if (logger.isDebugEnabled())
+            logger.debug("Will randomly dispatch to \"" + target
+                    .getAccountID()
+                    + "\" because the username in the Request-URI "
+                    + "is unknown or empty");
+        if (logger.isTraceEnabled())
+            logger.trace("\n" + request);
+        return target;
     }
 
     /**
@@ -1060,33 +1162,47 @@ private void filterByAddress(
             candidates.iterator();
         while (iterPP.hasNext())
         {
-            ProtocolProviderServiceSipImpl candidate = iterPP.next();
-            boolean forceProxyBypass
-                = candidate.getAccountID()
-                    .getAccountPropertyBoolean(
-                        ProtocolProviderFactory.FORCE_PROXY_BYPASS, false);
-            if(forceProxyBypass)
-            {
-                // Proxy check is disabled all connections are
-                // ok (HA sipXecs, sipXcom, ...)
-                continue;
-            } 
-            if(candidate.getRegistrarConnection() == null)
-            {
-                //RegistrarLess connections are ok
-                continue;
-            }
-
-            if (   !candidate.getRegistrarConnection().isRegistrarless()
-                && !candidate.getRegistrarConnection()
-                        .isRequestFromSameConnection(request))
-            {
+            if (!isFromRegistrarOf(iterPP.next(), request))
                 iterPP.remove();
-            }
         }
 
     }
 
+    /**
+     * Determines whether a provider may receive a request, which is not the
+     * case if it is connected to a registrar that does not match the IP
+     * address that we are receiving the request from.
+     *
+     * @param candidate the provider
+     * @param request the request that we are currently dispatching
+     * @return <tt>false</tt> if <tt>request</tt> does not come from the
+     * registrar of <tt>candidate</tt>
+     */
+    private boolean isFromRegistrarOf(
+                    ProtocolProviderServiceSipImpl candidate,
+                    Request                        request)
+    {
+        boolean forceProxyBypass
+            = candidate.getAccountID()
+                .getAccountPropertyBoolean(
+                    ProtocolProviderFactory.FORCE_PROXY_BYPASS, false);
+        if(forceProxyBypass)
+        {
+            // Proxy check is disabled all connections are
+            // ok (HA sipXecs, sipXcom, ...)
+            return true;
+        }
+        if(candidate.getRegistrarConnection() == null)
+        {
+            //RegistrarLess connections are ok
+            return true;
+        }
+
+        return candidate.getRegistrarConnection().isRegistrarless()
+            || candidate.getRegistrarConnection()
+                    .isRequestFromSameConnection(request);
+    }
+
     /**
      * Retrieves and returns that ProtocolProviderService that this transaction
      * belongs to, or <tt>null</tt> if we couldn't associate it with a provider
@@ -0,0 +1,616 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A hashed wheel timer shared by all the SIP accounts for their
+ * registration, subscription and publication refreshes and the other
+ * <tt>TimerTask</tt>s of their <tt>TimerScheduler</tt>s.
+ * <p>
+ * The pending tasks are kept in the buckets of a wheel which turns one
+ * bucket per tick, so that scheduling and canceling a task does not depend
+ * on the number of pending tasks. A task is only as precise as a tick,
+ * which is plenty for refreshes measured in seconds.
+ * <p>
+ * The due tasks are handed to a small pool of dispatcher <tt>Timer</tt>s
+ * which run them. A due task goes to an idle dispatcher if there is one, so
+ * that a task blocked on the network only delays the tasks which were handed
+ * to its own dispatcher. The dispatchers refuse the tasks which were
+ * canceled with <tt>TimerTask#cancel()</tt> while they were waiting in the
+ * wheel, and run the periodic tasks after their first execution.
+ */
+class SipTimerWheel
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SipTimerWheel</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(SipTimerWheel.class);
+
+    /**
+     * The duration of a tick of the wheel in milliseconds.
+     */
+    private static final long TICK = 100;
+
+    /**
+     * The number of buckets of the wheel, a power of two. The wheel turns
+     * once in about 51 seconds and the tasks due later wait for as many
+     * turns as needed in their bucket.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The maximum number of dispatchers running the due tasks.
+     */
+    private static final int DISPATCHER_COUNT = 4;
+
+    /**
+     * The interval in milliseconds at which the metrics of the tasks are
+     * logged when debug logging is enabled.
+     */
+    private static final long METRICS_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * The <tt>SipTimerWheel</tt> shared by the SIP accounts.
+     */
+    private static final SipTimerWheel instance = new SipTimerWheel();
+
+    /**
+     * The buckets of the wheel, each the head of a doubly-linked list of
+     * <tt>Timeout</tt>s.
+     */
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+
+    /**
+     * The number of pending <tt>Timeout</tt>s.
+     */
+    private int pendingCount = 0;
+
+    /**
+     * The number of ticks since the wheel started and the time in
+     * milliseconds at which it started.
+     */
+    private long tick = 0;
+
+    private long startTime;
+
+    /**
+     * The thread turning the wheel, <tt>null</tt> until a task is first
+     * scheduled.
+     */
+    private Thread thread;
+
+    /**
+     * The dispatchers which run the due tasks, each created when no other
+     * dispatcher is idle.
+     */
+    private final Dispatcher[] dispatchers = new Dispatcher[DISPATCHER_COUNT];
+
+    /**
+     * The metrics of the tasks by class name.
+     */
+    private final Map<String, TaskMetrics> metrics
+        = new TreeMap<String, TaskMetrics>();
+
+    /**
+     * The time in milliseconds at which the metrics were last logged.
+     */
+    private long metricsLoggedTime = System.currentTimeMillis();
+
+    /**
+     * Returns the <tt>SipTimerWheel</tt> shared by the SIP accounts.
+     *
+     * @return the shared <tt>SipTimerWheel</tt>
+     */
+    static SipTimerWheel getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Schedules a task for execution after a delay and, if <tt>period</tt>
+     * is positive, for repeated fixed-delay execution after that.
+     *
+     * @param task the task
+     * @param delay the delay in milliseconds before the task is executed
+     * @param period the time in milliseconds between successive executions
+     * of the task or <tt>0</tt> to execute it once
+     * @return the <tt>Timeout</tt> which allows to cancel the task while it
+     * waits in the wheel
+     */
+    synchronized Timeout schedule(TimerTask task, long delay, long period)
+    {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative delay.");
+
+        long now = System.currentTimeMillis();
+
+        if (thread == null)
+            start();
+        else if (pendingCount == 0)
+        {
+            // don't catch up with the ticks missed while the wheel was idle
+            tick = Math.max(tick, (now - startTime) / TICK);
+        }
+
+        long deadline = now + delay;
+        // the tick at which the task is due, not earlier than the next one
+        long dueTick
+            = Math.max(
+                    tick + 1,
+                    (deadline - startTime + TICK - 1) / TICK);
+        Timeout timeout = new Timeout(task, deadline, period);
+
+        timeout.rounds = (dueTick - tick - 1) / WHEEL_SIZE;
+        timeout.bucket = (int) (dueTick & (WHEEL_SIZE - 1));
+        link(timeout);
+
+        getMetrics(task).scheduled++;
+
+        if (pendingCount == 1)
+            notifyAll();
+        return timeout;
+    }
+
+    /**
+     * Removes a <tt>Timeout</tt> from the wheel.
+     *
+     * @param timeout the <tt>Timeout</tt>
+     * @return <tt>true</tt> if <tt>timeout</tt> was still waiting in the
+     * wheel
+     */
+    private synchronized boolean cancel(Timeout timeout)
+    {
+        if (timeout.bucket < 0)
+            return false;
+
+        unlink(timeout);
+        getMetrics(timeout.task).canceled++;
+        return true;
+    }
+
+    /**
+     * Returns a summary of the metrics of the tasks scheduled so far, by
+     * task class.
+     *
+     * @return the metrics of the tasks
+     */
+    synchronized String getMetrics()
+    {
+        StringBuilder s = new StringBuilder();
+
+        s.append(pendingCount).append(" pending SIP timer tasks");
+        for (Map.Entry<String, TaskMetrics> e : metrics.entrySet())
+            s.append("\n    ").append(e.getKey()).append(": ")
+                .append(e.getValue());
+        return s.toString();
+    }
+
+    /**
+     * Starts the thread turning the wheel.
+     */
+    private void start()
+    {
+        startTime = System.currentTimeMillis();
+        thread
+            = new Thread("SipTimerWheel")
+            {
+                @Override
+                public void run()
+                {
+                    runWheel();
+                }
+            };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Turns the wheel one bucket per tick and hands the due tasks to the
+     * dispatcher.
+     */
+    private void runWheel()
+    {
+        List<Timeout> due = new ArrayList<Timeout>();
+
+        while (true)
+        {
+            synchronized (this)
+            {
+                try
+                {
+                    while (pendingCount == 0)
+                        wait();
+
+                    long sleep
+                        = startTime + (tick + 1) * TICK
+                            - System.currentTimeMillis();
+
+                    if (sleep > 0)
+                    {
+                        wait(sleep);
+                        // a task may have been scheduled in the meantime
+                        continue;
+                    }
+                }
+                catch (InterruptedException ie)
+                {
+                    continue;
+                }
+
+                tick++;
+                expire(due);
+                logMetrics();
+            }
+
+            for (Timeout timeout : due)
+            {
+                dispatch(timeout);
+                // let the task be collected once its owner forgets it
+                timeout.task = null;
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Removes the due <tt>Timeout</tt>s from the bucket of the current tick.
+     *
+     * @param due the list to add the due <tt>Timeout</tt>s to
+     */
+    private void expire(List<Timeout> due)
+    {
+        long now = System.currentTimeMillis();
+        Timeout timeout = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+
+            if (timeout.rounds > 0)
+                timeout.rounds--;
+            else
+            {
+                unlink(timeout);
+
+                TaskMetrics taskMetrics = getMetrics(timeout.task);
+                long lateness = Math.max(0, now - timeout.deadline);
+
+                taskMetrics.expired++;
+                taskMetrics.totalLateness += lateness;
+                taskMetrics.maxLateness
+                    = Math.max(taskMetrics.maxLateness, lateness);
+                due.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Hands a due task to a dispatcher, which runs it unless it was canceled.
+     *
+     * @param timeout the <tt>Timeout</tt> of the task
+     */
+    private void dispatch(Timeout timeout)
+    {
+        Dispatcher dispatcher = getDispatcher();
+        boolean scheduled = schedule(dispatcher, timeout);
+
+        if (dispatcher.release())
+        {
+            if (!scheduled)
+            {
+                // the task was canceled by its owner
+                synchronized (this)
+                {
+                    getMetrics(timeout.task).canceled++;
+                }
+            }
+            return;
+        }
+
+        // a task has thrown an exception and killed the dispatcher
+        logger.error("A SIP timer died, restarting it.");
+        synchronized (this)
+        {
+            if (dispatchers[dispatcher.index] == dispatcher)
+                dispatchers[dispatcher.index] = null;
+        }
+        if (!scheduled)
+        {
+            dispatcher = getDispatcher();
+            if (!schedule(dispatcher, timeout))
+            {
+                synchronized (this)
+                {
+                    getMetrics(timeout.task).canceled++;
+                }
+            }
+            dispatcher.release();
+        }
+    }
+
+    /**
+     * Schedules a due task with a dispatcher for immediate execution.
+     *
+     * @param dispatcher the dispatcher
+     * @param timeout the <tt>Timeout</tt> of the task
+     * @return <tt>false</tt> if the task was canceled or the
+     * <tt>dispatcher</tt> is no longer alive
+     */
+    private static boolean schedule(Dispatcher dispatcher, Timeout timeout)
+    {
+        try
+        {
+            if (timeout.period > 0)
+                dispatcher.timer.schedule(timeout.task, 0, timeout.period);
+            else
+                dispatcher.timer.schedule(timeout.task, 0);
+            return true;
+        }
+        catch (IllegalStateException ise)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an idle dispatcher, creating one if all of them are busy and
+     * there are less than <tt>DISPATCHER_COUNT</tt>, or else the least busy
+     * one. The returned dispatcher is marked busy until it is released.
+     *
+     * @return the dispatcher to run a due task
+     */
+    private synchronized Dispatcher getDispatcher()
+    {
+        Dispatcher dispatcher = null;
+        int free = -1;
+
+        for (int i = 0; i < dispatchers.length; i++)
+        {
+            Dispatcher d = dispatchers[i];
+
+            if (d == null)
+            {
+                if (free < 0)
+                    free = i;
+            }
+            else if (dispatcher == null || d.busy < dispatcher.busy)
+                dispatcher = d;
+        }
+        if (free >= 0 && (dispatcher == null || dispatcher.busy > 0))
+        {
+            dispatcher = new Dispatcher(free);
+            dispatchers[free] = dispatcher;
+        }
+        dispatcher.busy++;
+        return dispatcher;
+    }
+
+    /**
+     * Logs the metrics of the tasks if debug logging is enabled and they
+     * were not logged recently.
+     */
+    private void logMetrics()
+    {
+        if (!logger.isDebugEnabled())
+            return;
+
+        long now = System.currentTimeMillis();
+
+        if (now - metricsLoggedTime >= METRICS_INTERVAL)
+        {
+            metricsLoggedTime = now;
+            logger.debug(getMetrics());
+        }
+    }
+
+    /**
+     * Returns the metrics of the tasks of the class of a given task.
+     *
+     * @param task the task
+     * @return the metrics of the tasks of the class of <tt>task</tt>
+     */
+    private TaskMetrics getMetrics(TimerTask task)
+    {
+        String name = task.getClass().getName();
+        TaskMetrics taskMetrics = metrics.get(name);
+
+        if (taskMetrics == null)
+        {
+            taskMetrics = new TaskMetrics();
+            metrics.put(name, taskMetrics);
+        }
+        return taskMetrics;
+    }
+
+    /**
+     * Adds a <tt>Timeout</tt> to its bucket.
+     *
+     * @param timeout the <tt>Timeout</tt>
+     */
+    private void link(Timeout timeout)
+    {
+        Timeout head = wheel[timeout.bucket];
+
+        timeout.next = head;
+        if (head != null)
+            head.prev = timeout;
+        wheel[timeout.bucket] = timeout;
+        pendingCount++;
+    }
+
+    /**
+     * Removes a <tt>Timeout</tt> from its bucket.
+     *
+     * @param timeout the <tt>Timeout</tt>
+     */
+    private void unlink(Timeout timeout)
+    {
+        if (timeout.prev == null)
+            wheel[timeout.bucket] = timeout.next;
+        else
+            timeout.prev.next = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        pendingCount--;
+    }
+
+    /**
+     * A <tt>Timer</tt> running due tasks and the number of them it has not
+     * started yet.
+     */
+    private class Dispatcher
+    {
+        final int index;
+
+        final Timer timer;
+
+        /**
+         * The number of due tasks handed to the <tt>Timer</tt> which have
+         * not been released yet, guarded by the <tt>SipTimerWheel</tt>.
+         */
+        int busy;
+
+        Dispatcher(int index)
+        {
+            this.index = index;
+            timer = new Timer("SipTimerWheel dispatcher-" + index, true);
+        }
+
+        /**
+         * Releases the last due task handed to this dispatcher once the
+         * <tt>Timer</tt> has run the tasks scheduled before it.
+         *
+         * @return <tt>false</tt> if the <tt>Timer</tt> is no longer alive
+         */
+        boolean release()
+        {
+            try
+            {
+                // the tasks handed over are due now, so this one runs after
+                // them
+                timer.schedule(
+                        new TimerTask()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                synchronized (SipTimerWheel.this)
+                                {
+                                    busy--;
+                                }
+                            }
+                        },
+                        1);
+                return true;
+            }
+            catch (IllegalStateException ise)
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A task waiting in the wheel.
+     */
+    static class Timeout
+    {
+        /**
+         * The task, <tt>null</tt> once it was handed to the dispatcher.
+         */
+        private TimerTask task;
+
+        /**
+         * The time in milliseconds at which the task is due.
+         */
+        private final long deadline;
+
+        private final long period;
+
+        /**
+         * The number of turns of the wheel the task still has to wait and
+         * its bucket, <tt>-1</tt> once it left the wheel.
+         */
+        private long rounds;
+
+        private int bucket;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        private Timeout(TimerTask task, long deadline, long period)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * Cancels the task if it is still waiting in the wheel. The task
+         * itself is not canceled.
+         *
+         * @return <tt>true</tt> if the task was still waiting in the wheel
+         */
+        boolean cancel()
+        {
+            return instance.cancel(this);
+        }
+    }
+
+    /**
+     * The metrics of the tasks of a class.
+     */
+    private static class TaskMetrics
+    {
+        long scheduled;
+
+        long canceled;
+
+        long expired;
+
+        /**
+         * The total and maximum time in milliseconds by which the tasks
+         * expired later than they were due.
+         */
+        long totalLateness;
+
+        long maxLateness;
+
+        @Override
+        public String toString()
+        {
+            return "scheduled=" + scheduled
+                + " canceled=" + canceled
+                + " expired=" + expired
+                + " avgLateness="
+                + ((expired == 0) ? 0 : (totalLateness / expired)) + "ms"
+                + " maxLateness=" + maxLateness + "ms";
+        }
+    }
+}
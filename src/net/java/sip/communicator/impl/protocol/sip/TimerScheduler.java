@@ -25,40 +25,46 @@
  * construction time. It also allows the currently scheduled
  * <code>TimerTask</code>s to be canceled while still being able to schedule new
  * <code>TimerTask</code>s later on.
+ * <p>
+ * The <code>TimerTask</code>s of all the <code>TimerScheduler</code>s are run
+ * by the shared <code>SipTimerWheel</code> rather than by a thread per
+ * <code>TimerScheduler</code>.
  *
  * @author Lubomir Marinov
  */
 public class TimerScheduler
 {
+    /**
+     * The maximum fraction of its delay by which
+     * {@link #scheduleRefresh(TimerTask, long)} advances a refresh, so that
+     * the refreshes of the accounts started at the same time spread out.
+     */
+    private static final double REFRESH_JITTER = 0.05;
 
     /**
-     * The timer which will handle all scheduled tasks.
+     * The random numbers used to advance the refreshes.
      */
-    private Timer timer;
+    private static final Random jitterRandom = new Random();
 
     /**
-     * Discarding any currently scheduled <code>TimerTask</code>s.
+     * The <code>TimerTask</code>s scheduled by this instance which have not
+     * been discarded by {@link #cancel()}, mapped to their timeouts in the
+     * <code>SipTimerWheel</code>.
      */
-    public synchronized void cancel()
-    {
-       if (timer != null)
-       {
-           timer.cancel();
-           timer = null;
-       }
-    }
+    private final Map<TimerTask, SipTimerWheel.Timeout> tasks
+        = new WeakHashMap<TimerTask, SipTimerWheel.Timeout>();
 
     /**
-     * Gets the timer which handles all scheduled tasks. If it still doesn't
-     * exists, a new <tt>Timer</tt> is created.
-     *
-     * @return the <tt>Timer</tt> which handles all scheduled tasks
+     * Discarding any currently scheduled <code>TimerTask</code>s.
      */
-    private synchronized Timer getTimer()
+    public synchronized void cancel()
     {
-       if (timer == null)
-           timer = new Timer(true);
-       return timer;
+        for (Map.Entry<TimerTask, SipTimerWheel.Timeout> e : tasks.entrySet())
+        {
+            e.getValue().cancel();
+            e.getKey().cancel();
+        }
+        tasks.clear();
     }
 
     /**
@@ -74,7 +80,7 @@ private synchronized Timer getTimer()
      */
     public synchronized void schedule(TimerTask task, long delay)
     {
-        getTimer().schedule(task, delay);
+        schedule(task, delay, 0);
     }
 
     /**
@@ -94,6 +100,35 @@ public synchronized void schedule(TimerTask task, long delay)
      */
     public synchronized void schedule(TimerTask task, long delay, long period)
     {
-        getTimer().schedule(task, delay, period);
+        if (period < 0)
+            throw new IllegalArgumentException("Negative period.");
+        if (tasks.containsKey(task))
+            throw new IllegalStateException("Task already scheduled.");
+
+        tasks.put(
+                task,
+                SipTimerWheel.getInstance().schedule(task, delay, period));
+    }
+
+    /**
+     * Schedules the specified <code>TimerTask</code> refreshing a
+     * registration, subscription or publication for execution after
+     * slightly less than the specified delay. The delay is shortened by a
+     * random amount so that the refreshes of many accounts do not all hit
+     * the server at the same time.
+     *
+     * @param task
+     *            the <code>TimerTask</code> to be executed after about the
+     *            specified delay
+     * @param delay
+     *            the maximum delay in milliseconds before the specified
+     *            <code>TimerTask</code> is executed
+     */
+    public synchronized void scheduleRefresh(TimerTask task, long delay)
+    {
+        long jitter
+            = (long) (delay * REFRESH_JITTER * jitterRandom.nextDouble());
+
+        schedule(task, delay - jitter);
     }
 }
@@ -58,10 +58,10 @@
         = new LinkedList<SourceContact>();
 
     /**
-     * The <tt>Thread</tt> in which this <tt>AsyncContactQuery</tt> is
-     * performing {@link #query}.
+     * The task in which this <tt>AsyncContactQuery</tt> is performing
+     * {@link #query} on the threads of the <tt>ContactQueryExecutor</tt>.
      */
-    private Thread thread;
+    private ContactQueryExecutor.Task task;
 
     /**
      * Initializes a new <tt>AsyncContactQuery</tt> instance which is to perform
@@ -306,45 +306,46 @@ public String getQueryString()
     protected abstract void run();
 
     /**
-     * Starts this <tt>AsyncContactQuery</tt>.
+     * Starts this <tt>AsyncContactQuery</tt> on the threads of the shared
+     * <tt>ContactQueryExecutor</tt>.
      */
     public synchronized void start()
     {
-        if (thread == null)
+        if (task == null)
         {
-            thread
-                = new Thread()
-                {
-                    @Override
-                    public void run()
-                    {
-                        boolean completed = false;
-
-                        try
+            task
+                = ContactQueryExecutor.getInstance().submit(
+                        getContactSource(),
+                        ContactQueryExecutor.PRIORITY_NORMAL,
+                        0,
+                        new Runnable()
                         {
-                            AsyncContactQuery.this.run();
-                            completed = true;
-                        }
-                        finally
-                        {
-                            synchronized (AsyncContactQuery.this)
+                            public void run()
                             {
-                                if (thread == Thread.currentThread())
-                                    stopped(completed);
+                                boolean completed = false;
+
+                                try
+                                {
+                                    AsyncContactQuery.this.run();
+                                    completed = true;
+                                }
+                                finally
+                                {
+                                    synchronized (AsyncContactQuery.this)
+                                    {
+                                        stopped(completed);
+                                    }
+                                }
                             }
-                        }
-                    }
-                };
-            thread.setDaemon(true);
-            thread.start();
+                        });
         }
         else
-            throw new IllegalStateException("thread");
+            throw new IllegalStateException("task");
     }
 
     /**
      * Notifies this <tt>AsyncContactQuery</tt> that it has stopped performing
-     * in the associated background <tt>Thread</tt>.
+     * in the associated background task.
      *
      * @param completed <tt>true</tt> if this <tt>ContactQuery</tt> has
      * successfully completed, <tt>false</tt> if an error has been encountered
@@ -0,0 +1,429 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.contactsource;
+
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Runs contact queries and contact list filters on a bounded number of
+ * shared daemon threads instead of a new <tt>Thread</tt> each.
+ * <p>
+ * Tasks are run by priority and, for the same priority, in the order they
+ * were submitted. A task may be delayed, so that a task submitted for every
+ * key typed in a search field is only run once the user stops typing and
+ * the previous ones are canceled. The tasks of the same source, for example
+ * of the same <tt>ContactSourceService</tt>, do not run on more than a
+ * given number of threads at a time so that a slow source does not hold
+ * all the threads. One thread is kept for the <tt>PRIORITY_HIGH</tt> tasks,
+ * so that the tasks the user waits for never wait behind blocking queries.
+ * <p>
+ * Canceling a task only removes it if it has not started yet. A running
+ * task is expected to check the status of its query and return early.
+ */
+public class ContactQueryExecutor
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ContactQueryExecutor</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ContactQueryExecutor.class);
+
+    /**
+     * The priority of the tasks the user waits for, such as the filtering
+     * of the contact list.
+     */
+    public static final int PRIORITY_HIGH = 0;
+
+    /**
+     * The priority of the other tasks, such as the queries of the contact
+     * sources.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * The maximum number of threads running tasks.
+     */
+    private static final int MAX_THREADS = 6;
+
+    /**
+     * The number of threads which only run <tt>PRIORITY_HIGH</tt> tasks
+     * when the other threads are busy.
+     */
+    private static final int HIGH_PRIORITY_THREADS = 1;
+
+    /**
+     * The number of tasks of a source which may run at a time unless
+     * {@link #setConcurrency(Object, int)} says otherwise.
+     */
+    private static final int DEFAULT_CONCURRENCY = 2;
+
+    /**
+     * The time in milliseconds after which an idle thread exits.
+     */
+    private static final long KEEP_ALIVE = 60000;
+
+    /**
+     * The <tt>ContactQueryExecutor</tt> shared by the contact sources and
+     * the contact list.
+     */
+    private static final ContactQueryExecutor instance
+        = new ContactQueryExecutor();
+
+    /**
+     * The tasks which have not started yet.
+     */
+    private final List<Task> pending = new LinkedList<Task>();
+
+    /**
+     * The number of running tasks by source.
+     */
+    private final Map<Object, Integer> running = new HashMap<Object, Integer>();
+
+    /**
+     * The number of tasks of each source which may run at a time, for the
+     * sources which do not use {@link #DEFAULT_CONCURRENCY}.
+     */
+    private final Map<Object, Integer> concurrency
+        = new WeakHashMap<Object, Integer>();
+
+    /**
+     * The number of threads and the number of them waiting for a task.
+     */
+    private int threadCount = 0;
+
+    private int idleThreadCount = 0;
+
+    /**
+     * The number of running tasks which are not <tt>PRIORITY_HIGH</tt>.
+     */
+    private int runningNormalCount = 0;
+
+    /**
+     * The sequence number of the last submitted task.
+     */
+    private long sequence = 0;
+
+    /**
+     * Returns the <tt>ContactQueryExecutor</tt> shared by the contact sources
+     * and the contact list.
+     *
+     * @return the shared <tt>ContactQueryExecutor</tt>
+     */
+    public static ContactQueryExecutor getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Sets the number of tasks of a source which may run at a time.
+     *
+     * @param source the source of the tasks
+     * @param maxRunning the number of tasks of <tt>source</tt> which may run
+     * at a time
+     */
+    public synchronized void setConcurrency(Object source, int maxRunning)
+    {
+        if (maxRunning < 1)
+            throw new IllegalArgumentException("maxRunning");
+
+        concurrency.put(source, maxRunning);
+        notifyAll();
+    }
+
+    /**
+     * Submits a task to be run once a thread is available.
+     *
+     * @param source the source of the task, whose tasks do not run on more
+     * threads than allowed by {@link #setConcurrency(Object, int)}
+     * @param priority the priority of the task, one of
+     * <tt>PRIORITY_HIGH</tt> and <tt>PRIORITY_NORMAL</tt>
+     * @param delay the time in milliseconds to wait before running the task
+     * @param runnable the task
+     * @return the <tt>Task</tt> which allows to cancel the task before it
+     * starts
+     */
+    public synchronized Task submit(Object source,
+                                    int priority,
+                                    long delay,
+                                    Runnable runnable)
+    {
+        Task task
+            = new Task(
+                    this,
+                    source,
+                    priority,
+                    System.currentTimeMillis() + Math.max(delay, 0),
+                    ++sequence,
+                    runnable);
+
+        pending.add(task);
+
+        if (idleThreadCount < pending.size() && threadCount < MAX_THREADS)
+            startThread();
+        else
+            notifyAll();
+
+        return task;
+    }
+
+    /**
+     * Removes a task which has not started yet.
+     *
+     * @param task the task
+     * @return <tt>true</tt> if <tt>task</tt> was removed before it started
+     */
+    private synchronized boolean remove(Task task)
+    {
+        return pending.remove(task);
+    }
+
+    /**
+     * Starts a new thread running the submitted tasks.
+     */
+    private void startThread()
+    {
+        Thread thread
+            = new Thread("ContactQueryExecutor-" + (threadCount + 1))
+            {
+                @Override
+                public void run()
+                {
+                    runTasks();
+                }
+            };
+
+        thread.setDaemon(true);
+        threadCount++;
+        thread.start();
+    }
+
+    /**
+     * Runs the submitted tasks until no task was submitted for
+     * {@link #KEEP_ALIVE} milliseconds.
+     */
+    private void runTasks()
+    {
+        while (true)
+        {
+            Task task = takeTask();
+
+            if (task == null)
+                return;
+
+            try
+            {
+                task.runnable.run();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("A contact query task failed.", t);
+            }
+            finally
+            {
+                taskStopped(task);
+            }
+        }
+    }
+
+    /**
+     * Waits for the next task which may be run and marks it as running.
+     *
+     * @return the task or <tt>null</tt> if the calling thread is to exit
+     */
+    private synchronized Task takeTask()
+    {
+        long idleSince = System.currentTimeMillis();
+
+        idleThreadCount++;
+        try
+        {
+            while (true)
+            {
+                long now = System.currentTimeMillis();
+                Task next = null;
+                long wait = KEEP_ALIVE;
+
+                for (Task task : pending)
+                {
+                    if (!isAllowedToRun(task.source))
+                        continue;
+                    // keep a thread for the tasks the user waits for
+                    if (task.priority != PRIORITY_HIGH
+                            && runningNormalCount
+                                >= MAX_THREADS - HIGH_PRIORITY_THREADS)
+                        continue;
+                    if (task.time > now)
+                    {
+                        wait = Math.min(wait, task.time - now);
+                        continue;
+                    }
+                    if (next == null
+                            || task.priority < next.priority
+                            || (task.priority == next.priority
+                                    && task.sequence < next.sequence))
+                    {
+                        next = task;
+                    }
+                }
+
+                if (next != null)
+                {
+                    pending.remove(next);
+                    if (next.priority != PRIORITY_HIGH)
+                        runningNormalCount++;
+                    if (next.source != null)
+                    {
+                        Integer count = running.get(next.source);
+
+                        running.put(
+                            next.source,
+                            (count == null) ? 1 : (count + 1));
+                    }
+                    return next;
+                }
+
+                if (pending.isEmpty() && now - idleSince >= KEEP_ALIVE)
+                {
+                    threadCount--;
+                    return null;
+                }
+
+                try
+                {
+                    wait(wait);
+                }
+                catch (InterruptedException ie)
+                {
+                }
+            }
+        }
+        finally
+        {
+            idleThreadCount--;
+        }
+    }
+
+    /**
+     * Marks a task as no longer running, which may allow another task of
+     * its source to run.
+     *
+     * @param task the task
+     */
+    private synchronized void taskStopped(Task task)
+    {
+        if (task.priority != PRIORITY_HIGH)
+            runningNormalCount--;
+        if (task.source != null)
+        {
+            Integer count = running.get(task.source);
+
+            if (count == null || count <= 1)
+                running.remove(task.source);
+            else
+                running.put(task.source, count - 1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Determines whether another task of a source may run.
+     *
+     * @param source the source
+     * @return <tt>true</tt> if fewer tasks of <tt>source</tt> are running
+     * than allowed
+     */
+    private boolean isAllowedToRun(Object source)
+    {
+        if (source == null)
+            return true;
+
+        Integer count = running.get(source);
+
+        if (count == null)
+            return true;
+
+        Integer max = concurrency.get(source);
+
+        return count < ((max == null) ? DEFAULT_CONCURRENCY : max);
+    }
+
+    /**
+     * A task submitted to a <tt>ContactQueryExecutor</tt>.
+     */
+    public static class Task
+    {
+        private final ContactQueryExecutor executor;
+
+        private final Object source;
+
+        private final int priority;
+
+        /**
+         * The time in milliseconds at which the task may start.
+         */
+        private final long time;
+
+        private final long sequence;
+
+        private final Runnable runnable;
+
+        private volatile boolean canceled = false;
+
+        private Task(ContactQueryExecutor executor,
+                     Object source,
+                     int priority,
+                     long time,
+                     long sequence,
+                     Runnable runnable)
+        {
+            this.executor = executor;
+            this.source = source;
+            this.priority = priority;
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        /**
+         * Cancels this task, which is not run if it has not started yet.
+         *
+         * @return <tt>true</tt> if this task had not started yet and will
+         * not be run
+         */
+        public boolean cancel()
+        {
+            canceled = true;
+            return executor.remove(this);
+        }
+
+        /**
+         * Determines whether this task was canceled.
+         *
+         * @return <tt>true</tt> if this task was canceled
+         */
+        public boolean isCanceled()
+        {
+            return canceled;
+        }
+    }
+}
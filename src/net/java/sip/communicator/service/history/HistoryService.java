@@ -41,6 +41,27 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to select the storage engine new history records are
+     * written with. Accepted values are {@link #STORAGE_ENGINE_XML} (the
+     * default) and {@link #STORAGE_ENGINE_SEGMENT}.
+     */
+    public static final String STORAGE_ENGINE_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE_ENGINE";
+
+    /**
+     * Storage engine keeping every history file as an XML document which is
+     * rewritten on each change.
+     */
+    public static final String STORAGE_ENGINE_XML = "xml";
+
+    /**
+     * Storage engine appending records to binary segments. Existing XML
+     * history files are migrated to segments the first time a history is
+     * loaded with this engine.
+     */
+    public static final String STORAGE_ENGINE_SEGMENT = "segment";
+
     /**
      * Date format used in the XML history database.
      */
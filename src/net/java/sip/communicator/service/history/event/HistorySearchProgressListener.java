@@ -39,7 +39,8 @@
     public static int PROGRESS_MAXIMUM_VALUE = 1000;
 
     /**
-     * This method gets called when progress changes through the search process
+     * This method gets called when progress changes through the search process.
+     * The listener can stop the search by cancelling the event.
      * @param evt ProgressEvent the event holding the search condition and
      *              the current progress value.
      */
@@ -59,6 +59,11 @@
      */
     private int progress = 0;
 
+    /**
+     * Whether a listener asked to cancel the search.
+     */
+    private boolean cancelled = false;
+
     /**
      * Constructs a new <tt>ProgressEvent</tt>.
      *
@@ -153,4 +158,22 @@ public void setProgress(int progress)
         this.progress = progress;
     }
 
+    /**
+     * Asks the search firing this event to stop. Searches which cannot be
+     * cancelled ignore it.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Whether a listener asked the search firing this event to stop.
+     * @return <tt>true</tt> if the search was cancelled
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
 }
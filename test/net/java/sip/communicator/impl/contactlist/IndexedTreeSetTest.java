@@ -0,0 +1,162 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class IndexedTreeSetTest
+    extends TestCase
+{
+    public void testAddReturnsRank()
+    {
+        IndexedTreeSet<Integer> set = new IndexedTreeSet<Integer>();
+
+        assertEquals(0, set.add(20));
+        assertEquals(0, set.add(10));
+        assertEquals(2, set.add(30));
+        assertEquals(2, set.add(25));
+        assertEquals(-1, set.add(new Integer(10)));
+        assertEquals(4, set.size());
+
+        assertEquals(0, set.indexOf(10));
+        assertEquals(3, set.indexOf(30));
+        assertEquals(-1, set.indexOf(15));
+    }
+
+    public void testGetSelectsByIndex()
+    {
+        IndexedTreeSet<Integer> set = new IndexedTreeSet<Integer>();
+
+        for (int i = 99; i >= 0; i--)
+            set.add(i * 2);
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(Integer.valueOf(i * 2), set.get(i));
+
+        try
+        {
+            set.get(100);
+            fail("get(size()) did not throw");
+        }
+        catch (IndexOutOfBoundsException ioobe)
+        {
+        }
+        try
+        {
+            set.get(-1);
+            fail("get(-1) did not throw");
+        }
+        catch (IndexOutOfBoundsException ioobe)
+        {
+        }
+    }
+
+    public void testRemove()
+    {
+        IndexedTreeSet<Integer> set = new IndexedTreeSet<Integer>();
+
+        for (int i = 0; i < 10; i++)
+            set.add(i);
+
+        assertTrue(set.remove(0));
+        assertTrue(set.remove(5));
+        assertTrue(set.remove(9));
+        assertFalse(set.remove(5));
+        assertFalse(set.remove(42));
+
+        List<Integer> elements = new ArrayList<Integer>();
+
+        set.copyTo(elements);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 6, 7, 8), elements);
+        assertEquals(7, set.size());
+        assertEquals(3, set.indexOf(4));
+        assertEquals(4, set.indexOf(6));
+        assertFalse(set.contains(5));
+    }
+
+    public void testMatchesTreeSet()
+    {
+        Random random = new Random(42);
+        IndexedTreeSet<Integer> set = new IndexedTreeSet<Integer>();
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+
+        for (int k = 0; k < 20000; k++)
+        {
+            Integer value = random.nextInt(500);
+
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(value), set.remove(value));
+            else if (expected.add(value))
+                assertEquals(expected.headSet(value).size(), set.add(value));
+
+            if (k % 500 == 0)
+            {
+                List<Integer> elements = new ArrayList<Integer>();
+
+                set.copyTo(elements);
+                assertEquals(new ArrayList<Integer>(expected), elements);
+                for (int i = 0; i < elements.size(); i++)
+                {
+                    assertEquals(elements.get(i), set.get(i));
+                    assertEquals(i, set.indexOf(elements.get(i)));
+                }
+            }
+        }
+    }
+
+    public void testStaysBalanced()
+        throws Exception
+    {
+        IndexedTreeSet<Integer> set = new IndexedTreeSet<Integer>();
+        int count = 1 << 12;
+
+        // sorted insertion degenerates an unbalanced tree into a list
+        for (int i = 0; i < count; i++)
+            set.add(i);
+        // an AVL tree is at most about 1.44 times as high as a perfect one
+        assertTrue(getHeight(set) <= 1.45 * 12 + 1);
+
+        for (int i = 0; i < count; i += 2)
+            set.remove(i);
+        assertEquals(count / 2, set.size());
+        assertTrue(getHeight(set) <= 1.45 * 11 + 1);
+    }
+
+    /**
+     * Returns the height of the tree of an <tt>IndexedTreeSet</tt>.
+     *
+     * @param set the <tt>IndexedTreeSet</tt>
+     * @return the height of the tree of <tt>set</tt>
+     */
+    private static int getHeight(IndexedTreeSet<?> set)
+        throws Exception
+    {
+        Field rootField = IndexedTreeSet.class.getDeclaredField("root");
+
+        rootField.setAccessible(true);
+
+        Object root = rootField.get(set);
+        Field heightField = root.getClass().getDeclaredField("height");
+
+        heightField.setAccessible(true);
+        return heightField.getInt(root);
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import junit.framework.*;
+
+import org.w3c.dom.*;
+import org.xml.sax.*;
+
+/**
+ * Tests that the contact list journal reads back what was appended to it
+ * and that replaying it on the contact list file restores the changes made
+ * to the contact list document.
+ */
+public class MclJournalTest
+    extends TestCase
+{
+    /**
+     * The contact list file the journals are replayed on.
+     */
+    private static final String CONTACT_LIST
+        = "<sip-communicator>"
+            + "<group name='Contacts' uid='root'>"
+            + "<proto-groups/><subgroups>"
+            + "<group name='G1' uid='g1'>"
+            + "<proto-groups>"
+            + "<proto-group uid='p1' account-id='acc'/>"
+            + "</proto-groups>"
+            + "<subgroups/><child-contacts>"
+            + "<meta-contact uid='m1'>"
+            + "<display-name>One</display-name>"
+            + "<contact address='one@x' account-id='acc'/>"
+            + "</meta-contact>"
+            + "<meta-contact uid='m2'>"
+            + "<display-name>Two</display-name>"
+            + "</meta-contact>"
+            + "</child-contacts></group>"
+            + "</subgroups><child-contacts>"
+            + "<meta-contact uid='m3'>"
+            + "<display-name>Three</display-name>"
+            + "</meta-contact>"
+            + "</child-contacts></group></sip-communicator>";
+
+    private File journalFile;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        journalFile = File.createTempFile("contactlist", ".journal");
+        journalFile.delete();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        journalFile.delete();
+    }
+
+    public void testReadsAppendedRecords()
+        throws Exception
+    {
+        MclJournal journal = new MclJournal(journalFile);
+
+        journal.append(
+            Arrays.asList(
+                new MclJournal.Record(
+                        MclJournal.META_CONTACT, "m1", "g1",
+                        "<meta-contact uid='m1'/>"),
+                new MclJournal.Record(
+                        MclJournal.GROUP_REMOVED, "g2", null, null)));
+        journal.append(
+            Arrays.asList(
+                new MclJournal.Record(
+                        MclJournal.GROUP, "g1", "root",
+                        "<group name='Г' uid='g1'/>")));
+
+        List<MclJournal.Record> records = journal.read();
+
+        assertEquals(3, records.size());
+        assertEquals(MclJournal.META_CONTACT, records.get(0).type);
+        assertEquals("m1", records.get(0).uid);
+        assertEquals("g1", records.get(0).parentUID);
+        assertEquals("<meta-contact uid='m1'/>", records.get(0).xml);
+        assertEquals(MclJournal.GROUP_REMOVED, records.get(1).type);
+        assertNull(records.get(1).parentUID);
+        assertNull(records.get(1).xml);
+        assertEquals("<group name='Г' uid='g1'/>", records.get(2).xml);
+
+        journal.clear();
+
+        assertFalse(journalFile.exists());
+        assertTrue(journal.read().isEmpty());
+    }
+
+    public void testIgnoresIncompleteRecord()
+        throws Exception
+    {
+        MclJournal journal = new MclJournal(journalFile);
+
+        journal.append(
+            Arrays.asList(
+                new MclJournal.Record(
+                        MclJournal.META_CONTACT_REMOVED, "m1", null, null),
+                new MclJournal.Record(
+                        MclJournal.META_CONTACT, "m2", "root",
+                        "<meta-contact uid='m2'/>")));
+
+        // the application stopped while writing the last record
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+
+        try
+        {
+            raf.setLength(journalFile.length() - 3);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        List<MclJournal.Record> records = journal.read();
+
+        assertEquals(1, records.size());
+        assertEquals("m1", records.get(0).uid);
+    }
+
+    public void testReplayRestoresChanges()
+        throws Exception
+    {
+        Document document = parse(CONTACT_LIST);
+        MclStorageManager storageManager = createStorageManager(document);
+
+        // rename m1, move m3 into g1 and remove m2
+        findNode(storageManager, "m1")
+            .getElementsByTagName("display-name").item(0)
+                .setTextContent("Uno");
+        contactModified(storageManager, "m1");
+
+        Element m3 = findNode(storageManager, "m3");
+
+        m3.getParentNode().removeChild(m3);
+        getChild(findGroupNode(storageManager, "g1"), "child-contacts")
+            .appendChild(m3);
+        contactModified(storageManager, "m3");
+
+        Element m2 = findNode(storageManager, "m2");
+
+        m2.getParentNode().removeChild(m2);
+        contactModified(storageManager, "m2");
+        assertTrue(storeJournalRecords(storageManager));
+
+        // add the group g2 with its contact m4 and rename g1
+        Element g2
+            = (Element) document.importNode(
+                    parse(
+                        "<group name='G2' uid='g2'>"
+                            + "<proto-groups/><subgroups/><child-contacts>"
+                            + "<meta-contact uid='m4'>"
+                            + "<display-name>Four</display-name>"
+                            + "</meta-contact>"
+                            + "</child-contacts></group>")
+                        .getDocumentElement(),
+                    true);
+
+        getChild(findGroupNode(storageManager, "root"), "subgroups")
+            .appendChild(g2);
+        invoke(
+            storageManager, "indexNodes",
+            new Class<?>[] { Element.class }, g2);
+        groupModified(storageManager, "g2", true);
+        findGroupNode(storageManager, "g1").setAttribute("name", "Renamed");
+        groupModified(storageManager, "g1", false);
+        assertTrue(storeJournalRecords(storageManager));
+
+        assertEquals(toString(document), replay());
+
+        // remove g1 with its contacts
+        Element g1 = findGroupNode(storageManager, "g1");
+
+        g1.getParentNode().removeChild(g1);
+        groupModified(storageManager, "g1", true);
+        assertNull(findNode(storageManager, "m1"));
+        assertTrue(storeJournalRecords(storageManager));
+
+        assertEquals(toString(document), replay());
+    }
+
+    /**
+     * Replays the journal on the contact list file.
+     *
+     * @return the contact list document after the replay
+     */
+    private String replay()
+        throws Exception
+    {
+        MclStorageManager storageManager
+            = createStorageManager(parse(CONTACT_LIST));
+
+        invoke(storageManager, "replayJournal", new Class<?>[0]);
+        return toString(
+                (Document) getField(storageManager, "contactListDocument"));
+    }
+
+    /**
+     * Creates an <tt>MclStorageManager</tt> which has loaded a given
+     * document and journals its changes to the journal file of the test.
+     *
+     * @param document the contact list document
+     * @return the <tt>MclStorageManager</tt>
+     */
+    private MclStorageManager createStorageManager(Document document)
+        throws Exception
+    {
+        MclStorageManager storageManager = new MclStorageManager();
+
+        setField(storageManager, "contactListDocument", document);
+        setField(storageManager, "journal", new MclJournal(journalFile));
+        invoke(storageManager, "indexDocument", new Class<?>[0]);
+        return storageManager;
+    }
+
+    private static Element findNode(
+            MclStorageManager storageManager,
+            String metaUID)
+        throws Exception
+    {
+        return
+            (Element)
+                invoke(
+                    storageManager, "findMetaContactNode",
+                    new Class<?>[] { String.class }, metaUID);
+    }
+
+    private static Element findGroupNode(
+            MclStorageManager storageManager,
+            String metaUID)
+        throws Exception
+    {
+        return
+            (Element)
+                invoke(
+                    storageManager, "findMetaContactGroupNode",
+                    new Class<?>[] { String.class }, metaUID);
+    }
+
+    private static Element getChild(Element element, String tagName)
+    {
+        return (Element) element.getElementsByTagName(tagName).item(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void contactModified(
+            MclStorageManager storageManager,
+            String metaUID)
+        throws Exception
+    {
+        ((Set<String>) getField(storageManager, "modifiedMetaContacts"))
+            .add(metaUID);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void groupModified(
+            MclStorageManager storageManager,
+            String metaUID,
+            boolean tree)
+        throws Exception
+    {
+        ((Map<String, Boolean>) getField(storageManager, "modifiedGroups"))
+            .put(metaUID, tree);
+    }
+
+    private static boolean storeJournalRecords(
+            MclStorageManager storageManager)
+        throws Exception
+    {
+        return
+            (Boolean)
+                invoke(
+                    storageManager, "storeJournalRecords", new Class<?>[0]);
+    }
+
+    private static Object getField(Object object, String name)
+        throws Exception
+    {
+        Field field = object.getClass().getDeclaredField(name);
+
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static void setField(Object object, String name, Object value)
+        throws Exception
+    {
+        Field field = object.getClass().getDeclaredField(name);
+
+        field.setAccessible(true);
+        field.set(object, value);
+    }
+
+    private static Object invoke(
+            Object object,
+            String name,
+            Class<?>[] parameterTypes,
+            Object... args)
+        throws Exception
+    {
+        Method method
+            = object.getClass().getDeclaredMethod(name, parameterTypes);
+
+        method.setAccessible(true);
+        return method.invoke(object, args);
+    }
+
+    private static Document parse(String xml)
+        throws Exception
+    {
+        return
+            DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                    new InputSource(new StringReader(xml)));
+    }
+
+    private static String toString(Node node)
+        throws Exception
+    {
+        StringWriter writer = new StringWriter();
+
+        TransformerFactory.newInstance().newTransformer().transform(
+                new DOMSource(node),
+                new StreamResult(writer));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.lang.reflect.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+
+import org.jitsi.service.resources.*;
+
+/**
+ * Tests that the <tt>MetaContactListIndex</tt> of a
+ * <tt>MetaContactListServiceImpl</tt> follows the contacts and groups as
+ * they are attached to and detached from the contact list.
+ */
+public class MetaContactListIndexTest
+    extends TestCase
+{
+    private MetaContactListServiceImpl service;
+
+    private MetaContactGroupImpl root;
+
+    private MockProvider provider;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        // the root group takes its name from the resources
+        setResources(
+            (ResourceManagementService) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class<?>[] { ResourceManagementService.class },
+                    new InvocationHandler()
+                    {
+                        public Object invoke(
+                                Object proxy,
+                                Method method,
+                                Object[] args)
+                        {
+                            return
+                                "getI18NString".equals(method.getName())
+                                    ? args[0]
+                                    : null;
+                        }
+                    }));
+
+        service = new MetaContactListServiceImpl();
+        root = (MetaContactGroupImpl) service.getRoot();
+        provider = new MockProvider("index");
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        setResources(null);
+    }
+
+    public void testDetachedGroupIsNotIndexed()
+    {
+        MetaContactGroupImpl group = new MetaContactGroupImpl(service, "g");
+        MockContactGroup protoGroup = new MockContactGroup("g", provider);
+        MetaContactImpl metaContact = new MetaContactImpl();
+        MockContact contact = new MockContact("a@example.com", provider);
+
+        group.addProtoGroup(protoGroup);
+        metaContact.addProtoContact(contact);
+        group.addMetaContact(metaContact);
+
+        assertNull(service.findMetaContactByContact(contact));
+        assertNull(service.findMetaContactGroupByContactGroup(protoGroup));
+
+        root.addSubgroup(group);
+
+        assertSame(metaContact, service.findMetaContactByContact(contact));
+        assertSame(
+            metaContact,
+            service.findMetaContactByMetaUID(metaContact.getMetaUID()));
+        assertSame(
+            group,
+            service.findMetaContactGroupByMetaUID(group.getMetaUID()));
+        assertSame(
+            root,
+            service.findMetaContactGroupByMetaUID(root.getMetaUID()));
+        assertSame(
+            group,
+            service.findMetaContactGroupByContactGroup(protoGroup));
+
+        root.removeSubgroup(group);
+
+        assertNull(service.findMetaContactGroupByMetaUID(group.getMetaUID()));
+        assertNull(service.findMetaContactGroupByContactGroup(protoGroup));
+        assertNull(service.findMetaContactByContact(contact));
+        assertNull(service.findMetaContactByMetaUID(metaContact.getMetaUID()));
+    }
+
+    public void testProtoContactsAreIndexed()
+    {
+        MetaContactImpl metaContact = new MetaContactImpl();
+        MockContact contact1 = new MockContact("a@example.com", provider);
+        MockContact contact2 = new MockContact("b@example.com", provider);
+
+        metaContact.addProtoContact(contact1);
+        root.addMetaContact(metaContact);
+        metaContact.addProtoContact(contact2);
+
+        assertSame(metaContact, service.findMetaContactByContact(contact1));
+        assertSame(metaContact, service.findMetaContactByContact(contact2));
+
+        metaContact.removeProtoContact(contact1);
+
+        assertNull(service.findMetaContactByContact(contact1));
+        assertSame(metaContact, service.findMetaContactByContact(contact2));
+
+        root.removeMetaContact(metaContact);
+
+        assertNull(service.findMetaContactByContact(contact2));
+        assertNull(service.findMetaContactByMetaUID(metaContact.getMetaUID()));
+    }
+
+    public void testMovedContactStaysIndexed()
+    {
+        MetaContactGroupImpl group = new MetaContactGroupImpl(service, "g");
+        MetaContactImpl metaContact = new MetaContactImpl();
+        MockContact contact = new MockContact("a@example.com", provider);
+
+        root.addSubgroup(group);
+        metaContact.addProtoContact(contact);
+        group.addMetaContact(metaContact);
+        group.removeMetaContact(metaContact);
+        root.addMetaContact(metaContact);
+
+        assertSame(metaContact, service.findMetaContactByContact(contact));
+
+        root.removeSubgroup(group);
+
+        assertSame(metaContact, service.findMetaContactByContact(contact));
+    }
+
+    /**
+     * Sets the <tt>ResourceManagementService</tt> of the contact list
+     * bundle, which is looked up in OSGi otherwise.
+     *
+     * @param resources the <tt>ResourceManagementService</tt>
+     */
+    private static void setResources(ResourceManagementService resources)
+        throws Exception
+    {
+        Field field
+            = ContactlistActivator.class.getDeclaredField("resourcesService");
+
+        field.setAccessible(true);
+        field.set(null, resources);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Tests that a search in the <tt>MetaContactSearchIndex</tt> finds the same
+ * meta contacts as checking every meta contact of the contact list does.
+ */
+public class MetaContactSearchIndexTest
+    extends TestCase
+{
+    /**
+     * The meta contacts of the root group of the test contact list.
+     */
+    private final List<MetaContact> contacts = new ArrayList<MetaContact>();
+
+    private final MetaContactGroup root
+        = (MetaContactGroup) createProxy(
+                MetaContactGroup.class,
+                new Handler()
+                {
+                    @Override
+                    Object invoke(String name)
+                    {
+                        if ("getChildContacts".equals(name))
+                            return new ArrayList<MetaContact>(contacts)
+                                .iterator();
+                        if ("getSubgroups".equals(name))
+                            return Collections.emptyList().iterator();
+                        return null;
+                    }
+                });
+
+    public void testFindsByNameAndAddress()
+    {
+        MetaContact alice = addContact("Alice Liddell", "alice@example.com");
+        MetaContact bob = addContact("Bob", "bob@wonderland.org");
+        MetaContact eve = addContact("Ève", "eve@example.com");
+        MetaContactSearchIndex index = new MetaContactSearchIndex();
+
+        assertMatches(index, "", alice, bob, eve);
+        assertMatches(index, "LIDD", alice);
+        assertMatches(index, "example", alice, eve);
+        assertMatches(index, "ève", eve);
+        assertMatches(index, "wonderland", bob);
+        assertMatches(index, "x", alice, eve);
+        assertMatches(index, "nobody");
+    }
+
+    public void testFollowsChanges()
+    {
+        MetaContact alice = addContact("Alice", "alice@example.com");
+        MetaContact bob = addContact("Bob", "bob@example.com");
+        MetaContactSearchIndex index = new MetaContactSearchIndex();
+
+        assertMatches(index, "example", alice, bob);
+
+        // the refined search must not reuse the result of the previous one
+        index.removeMetaContact(bob);
+        contacts.remove(bob);
+        MetaContact carol = addContact("Carol", "carol@example.com");
+        index.updateMetaContact(carol);
+
+        assertMatches(index, "example.", alice, carol);
+        assertMatches(index, "carol", carol);
+    }
+
+    public void testMatchesFullScan()
+    {
+        Random random = new Random(1);
+        String alphabet = "abcdeÉéxyZ";
+
+        for (int i = 0; i < 300; i++)
+        {
+            addContact(
+                randomString(random, alphabet, 2 + random.nextInt(8)),
+                randomString(random, alphabet, 2 + random.nextInt(8)));
+        }
+
+        MetaContactSearchIndex index = new MetaContactSearchIndex();
+
+        for (int q = 0; q < 300; q++)
+        {
+            String query
+                = randomString(random, alphabet, random.nextInt(6));
+
+            // the search field is typed one character at a time
+            for (int k = 0; k <= query.length(); k++)
+            {
+                String filterString = query.substring(0, k);
+                Pattern filterPattern = createPattern(filterString);
+                List<MetaContact> expected = new ArrayList<MetaContact>();
+
+                for (MetaContact metaContact : contacts)
+                {
+                    if (MetaContactListSource.isMatching(
+                            filterPattern, metaContact))
+                        expected.add(metaContact);
+                }
+                assertEquals(
+                    filterString,
+                    new HashSet<MetaContact>(expected),
+                    new HashSet<MetaContact>(
+                            index.findMatches(
+                                    root, filterString, filterPattern)));
+            }
+
+            if (q % 10 == 0)
+            {
+                MetaContact removed
+                    = contacts.get(random.nextInt(contacts.size()));
+
+                index.removeMetaContact(removed);
+                contacts.remove(removed);
+                index.updateMetaContact(addContact("zz" + q, "Éa" + q));
+            }
+        }
+    }
+
+    private void assertMatches(
+            MetaContactSearchIndex index,
+            String filterString,
+            MetaContact... expected)
+    {
+        assertEquals(
+            filterString,
+            new HashSet<MetaContact>(Arrays.asList(expected)),
+            new HashSet<MetaContact>(
+                    index.findMatches(
+                            root,
+                            filterString,
+                            createPattern(filterString))));
+    }
+
+    /**
+     * Adds a meta contact with a single protocol contact to the root group.
+     *
+     * @param displayName the display name of the meta contact and of its
+     * protocol contact
+     * @param address the address of the protocol contact
+     * @return the meta contact
+     */
+    private MetaContact addContact(
+            final String displayName,
+            final String address)
+    {
+        final Contact contact
+            = (Contact) createProxy(
+                    Contact.class,
+                    new Handler()
+                    {
+                        @Override
+                        Object invoke(String name)
+                        {
+                            if ("getDisplayName".equals(name))
+                                return displayName;
+                            if ("getAddress".equals(name))
+                                return address;
+                            return null;
+                        }
+                    });
+        MetaContact metaContact
+            = (MetaContact) createProxy(
+                    MetaContact.class,
+                    new Handler()
+                    {
+                        @Override
+                        Object invoke(String name)
+                        {
+                            if ("getDisplayName".equals(name))
+                                return displayName;
+                            if ("getContacts".equals(name))
+                                return Collections.singletonList(contact)
+                                    .iterator();
+                            if ("getParentMetaContactGroup".equals(name))
+                                return root;
+                            return null;
+                        }
+                    });
+
+        contacts.add(metaContact);
+        return metaContact;
+    }
+
+    /**
+     * Creates the pattern of a search as <tt>SearchFilter</tt> does.
+     *
+     * @param filterString the searched string
+     * @return the pattern of <tt>filterString</tt>
+     */
+    private static Pattern createPattern(String filterString)
+    {
+        return
+            Pattern.compile(
+                    Pattern.quote(filterString),
+                    Pattern.MULTILINE
+                        | Pattern.CASE_INSENSITIVE
+                        | Pattern.UNICODE_CASE);
+    }
+
+    private static String randomString(
+            Random random,
+            String alphabet,
+            int length)
+    {
+        StringBuilder s = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++)
+            s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return s.toString();
+    }
+
+    private static Object createProxy(
+            final Class<?> type,
+            final Handler handler)
+    {
+        return
+            Proxy.newProxyInstance(
+                    MetaContactSearchIndexTest.class.getClassLoader(),
+                    new Class<?>[] { type },
+                    new InvocationHandler()
+                    {
+                        public Object invoke(
+                                Object proxy,
+                                Method method,
+                                Object[] args)
+                        {
+                            String name = method.getName();
+
+                            if ("equals".equals(name))
+                                return proxy == args[0];
+                            if ("hashCode".equals(name))
+                                return System.identityHashCode(proxy);
+                            if ("toString".equals(name))
+                                return type.getSimpleName();
+                            return handler.invoke(name);
+                        }
+                    });
+    }
+
+    /**
+     * Answers the calls of the methods of a test object by method name.
+     */
+    private static abstract class Handler
+    {
+        abstract Object invoke(String name);
+    }
+}
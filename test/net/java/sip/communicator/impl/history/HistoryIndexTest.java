@@ -0,0 +1,152 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests the timestamp index of the history files, its sparse offsets and
+ * how it is saved and loaded again.
+ */
+public class HistoryIndexTest
+    extends TestCase
+{
+    private File directory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for(File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    public void testPeriodAndSeekOffset()
+        throws Exception
+    {
+        String filename = "100.seg";
+        SegmentLog log = new SegmentLog(new File(directory, filename), 4, 1000);
+        HistoryIndex index = new HistoryIndex(directory);
+        List<Long> offsets = new ArrayList<Long>();
+        int count = 3 * HistoryIndex.SPARSE_STEP;
+
+        for(int i = 0; i < count; i++)
+        {
+            long offset = log.append(createRecord(1000 + i));
+
+            offsets.add(offset);
+            index.recordAdded(filename, 1000 + i, offset, i + 1);
+        }
+        log.close();
+
+        HistoryIndex.Entry entry = index.getEntry(filename);
+
+        assertEquals(count, entry.count);
+        assertEquals(1000, entry.minTimestamp);
+        assertEquals(1000 + count - 1, entry.maxTimestamp);
+
+        assertTrue(entry.intersects(null, null));
+        assertTrue(entry.intersects(new Date(1000 + count - 1), null));
+        assertFalse(entry.intersects(new Date(1000 + count), null));
+        assertFalse(entry.intersects(null, new Date(1000)));
+        assertTrue(entry.intersects(null, new Date(1001)));
+
+        // reading from the seek offset misses no record of the period
+        assertEquals(
+            offsets.get(0).longValue(),
+            entry.getSeekOffset(new Date(1000)));
+
+        Date start = new Date(1000 + 2 * HistoryIndex.SPARSE_STEP + 5);
+        long seek = entry.getSeekOffset(start);
+
+        assertEquals(
+            offsets.get(2 * HistoryIndex.SPARSE_STEP).longValue(),
+            seek);
+    }
+
+    public void testMissedRecordDropsEntry()
+    {
+        String filename = "100.seg";
+        HistoryIndex index = new HistoryIndex(directory);
+
+        index.recordAdded(filename, 1000, -1, 1);
+        index.recordAdded(filename, 1001, -1, 2);
+        assertEquals(2, index.getEntry(filename).count);
+
+        // a record was added without the index knowing about it
+        index.recordAdded(filename, 1003, -1, 4);
+        assertNull(index.getEntry(filename));
+
+        // an unknown file is only indexed from its first record
+        index.recordAdded("200.seg", 1000, -1, 7);
+        assertNull(index.getEntry("200.seg"));
+    }
+
+    public void testSaveAndLoad()
+        throws Exception
+    {
+        String filename = "100.seg";
+        File file = new File(directory, filename);
+        SegmentLog log = new SegmentLog(file, 4, 1000);
+        HistoryIndex index = new HistoryIndex(directory);
+
+        for(int i = 0; i < 40; i++)
+            index.recordAdded(
+                filename, 1000 + i, log.append(createRecord(1000 + i)), i + 1);
+        log.close();
+        index.putEntry(filename, index.getEntry(filename));
+        index.save();
+
+        HistoryIndex.Entry entry
+            = new HistoryIndex(directory).getEntry(filename);
+
+        assertNotNull(entry);
+        assertEquals(40, entry.count);
+        assertEquals(1039, entry.maxTimestamp);
+        assertEquals(2, entry.offsets.length);
+
+        // an entry which does not match its file any more is dropped
+        log = new SegmentLog(file, 4, 1000);
+        log.append(createRecord(2000));
+        log.close();
+
+        assertNull(new HistoryIndex(directory).getEntry(filename));
+    }
+
+    private static HistoryRecord createRecord(long timestamp)
+    {
+        return
+            new HistoryRecord(
+                    new String[] { "msg" },
+                    new String[] { "at " + timestamp },
+                    new Date(timestamp));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests that the keyword index selects the files which may hold the
+ * records matching a keyword search and that it survives a restart.
+ */
+public class KeywordIndexTest
+    extends TestCase
+{
+    private static final String[] NAMES = new String[] { "sender", "msg" };
+
+    private File directory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for(File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    public void testTokenize()
+    {
+        assertEquals(
+            Arrays.asList("hello", "wörld", "42"),
+            KeywordIndex.tokenize("Hello, WÖRLD! -42-"));
+        assertTrue(KeywordIndex.tokenize(" ... ").isEmpty());
+    }
+
+    public void testFindFiles()
+    {
+        KeywordIndex index = new KeywordIndex(directory);
+
+        // nothing restricts the files of a field which is not indexed
+        assertNull(index.findFiles("msg", new String[] { "hello" }));
+
+        index.addField("msg");
+        index.recordAdded(
+            "1.xml", NAMES, new String[] { "a", "Hello there" }, 1);
+        index.recordAdded(
+            "1.xml", NAMES, new String[] { "a", "general Kenobi" }, 2);
+        index.recordAdded(
+            "2.xml", NAMES, new String[] { "b", "hello again" }, 1);
+
+        assertTrue(index.isIndexed("msg", "1.xml"));
+        assertFalse(index.isIndexed("sender", "1.xml"));
+        assertEquals(
+            new HashSet<String>(Arrays.asList("1.xml", "2.xml")),
+            index.findFiles("msg", new String[] { "ELL" }));
+        assertEquals(
+            Collections.singleton("1.xml"),
+            index.findFiles("msg", new String[] { "hello", "kenobi" }));
+        assertTrue(index.findFiles("msg", new String[] { "bye" }).isEmpty());
+    }
+
+    public void testRecordOfPartlyIndexedFileIsSkipped()
+    {
+        KeywordIndex index = new KeywordIndex(directory);
+
+        index.addField("msg");
+        // the file had records before the field was indexed
+        index.recordAdded("1.xml", NAMES, new String[] { "a", "late" }, 5);
+
+        assertFalse(index.isIndexed("msg", "1.xml"));
+
+        assertTrue(
+            index.indexFile(
+                "msg", "1.xml", Arrays.asList("early", "late")));
+        assertFalse(
+            index.indexFile("msg", "1.xml", Arrays.asList("early")));
+        assertEquals(
+            Collections.singleton("1.xml"),
+            index.findFiles("msg", new String[] { "early" }));
+
+        index.invalidate("1.xml");
+        assertFalse(index.isIndexed("msg", "1.xml"));
+    }
+
+    public void testSaveAndLoad()
+    {
+        KeywordIndex index = new KeywordIndex(directory);
+
+        index.addField("msg");
+        index.recordAdded("1.xml", NAMES, new String[] { "a", "hello" }, 1);
+        index.recordAdded("2.xml", NAMES, new String[] { "b", "world" }, 1);
+        index.save();
+
+        KeywordIndex loaded = new KeywordIndex(directory);
+
+        assertTrue(loaded.isFieldIndexed("msg"));
+        assertTrue(loaded.isIndexed("msg", "2.xml"));
+        assertEquals(
+            Collections.singleton("2.xml"),
+            loaded.findFiles("msg", new String[] { "world" }));
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests that history records survive a round trip through a segment, that
+ * a torn record at the end of a segment is dropped and that a segment reads
+ * backwards.
+ */
+public class SegmentLogTest
+    extends TestCase
+{
+    private File file;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        file
+            = File.createTempFile(
+                    "history",
+                    "." + SegmentLog.SEGMENT_FILETYPE);
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testRoundTrip()
+        throws Exception
+    {
+        SegmentLog log = new SegmentLog(file, 4, 1000);
+        long previous = -1;
+
+        for(int i = 0; i < 10; i++)
+        {
+            long offset = log.append(createRecord(i));
+
+            assertTrue(offset > previous);
+            previous = offset;
+        }
+        log.close();
+
+        List<HistoryRecord> records = SegmentLog.readAll(file);
+
+        assertEquals(10, records.size());
+        for(int i = 0; i < 10; i++)
+            assertRecord(i, records.get(i));
+    }
+
+    public void testTornRecordIsDropped()
+        throws Exception
+    {
+        SegmentLog log = new SegmentLog(file, 4, 1000);
+
+        for(int i = 0; i < 10; i++)
+            log.append(createRecord(i));
+        log.close();
+
+        // the application stopped while appending the last record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(raf.length() - 3);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        assertEquals(9, SegmentLog.readAll(file).size());
+
+        // the next append replaces the torn record
+        log = new SegmentLog(file, 4, 1000);
+        log.append(createRecord(42));
+        log.close();
+
+        List<HistoryRecord> records = SegmentLog.readAll(file);
+
+        assertEquals(10, records.size());
+        assertRecord(8, records.get(8));
+        assertRecord(42, records.get(9));
+    }
+
+    public void testCorruptedRecordEndsSegment()
+        throws Exception
+    {
+        SegmentLog log = new SegmentLog(file, 4, 1000);
+        long offset = 0;
+
+        for(int i = 0; i < 5; i++)
+        {
+            long o = log.append(createRecord(i));
+
+            if(i == 3)
+                offset = o;
+        }
+        log.close();
+
+        // flip a byte in the payload of the fourth record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.seek(offset + 6);
+
+            int b = raf.read();
+
+            raf.seek(offset + 6);
+            raf.write(b ^ 0xff);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        assertEquals(3, SegmentLog.readAll(file).size());
+    }
+
+    public void testReadsBackwards()
+        throws Exception
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        for(int i = 0; i < 20; i++)
+            records.add(createRecord(i));
+        SegmentLog.writeAll(file, records);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            SegmentLog.Reader reader = new SegmentLog.Reader(raf.getChannel());
+
+            reader.seek(raf.length());
+            for(int i = 19; i >= 0; i--)
+                assertRecord(i, reader.previous());
+            assertNull(reader.previous());
+
+            // and forwards again from the start
+            for(int i = 0; i < 20; i++)
+                assertRecord(i, reader.next());
+            assertNull(reader.next());
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    public void testWriteAllReplacesSegment()
+        throws Exception
+    {
+        SegmentLog log = new SegmentLog(file, 4, 1000);
+
+        for(int i = 0; i < 10; i++)
+            log.append(createRecord(i));
+        log.close();
+
+        SegmentLog.writeAll(file, SegmentLog.readAll(file).subList(7, 10));
+
+        List<HistoryRecord> records = SegmentLog.readAll(file);
+
+        assertEquals(3, records.size());
+        assertRecord(7, records.get(0));
+        assertFalse(
+            new File(file.getParentFile(), file.getName() + ".tmp").exists());
+    }
+
+    private static HistoryRecord createRecord(int i)
+    {
+        return
+            new HistoryRecord(
+                    new String[] { "id", "msg" },
+                    new String[] { "v" + i, "héllo &amp; " + i },
+                    new Date(1000 + i));
+    }
+
+    private static void assertRecord(int i, HistoryRecord record)
+    {
+        assertNotNull(record);
+        assertEquals(
+            Arrays.asList("id", "msg"),
+            Arrays.asList(record.getPropertyNames()));
+        assertEquals(
+            Arrays.asList("v" + i, "héllo &amp; " + i),
+            Arrays.asList(record.getPropertyValues()));
+        assertEquals(1000 + i, record.getTimestamp().getTime());
+    }
+}
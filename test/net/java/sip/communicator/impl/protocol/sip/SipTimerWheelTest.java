@@ -0,0 +1,199 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import junit.framework.*;
+
+/**
+ * Tests that the <tt>TimerTask</tt>s of the <tt>TimerScheduler</tt>s run on
+ * the shared <tt>SipTimerWheel</tt> as they would on their own
+ * <tt>Timer</tt>.
+ */
+public class SipTimerWheelTest
+    extends TestCase
+{
+    private final TimerScheduler timer = new TimerScheduler();
+
+    @Override
+    protected void tearDown()
+    {
+        timer.cancel();
+    }
+
+    public void testRunsAfterDelay()
+        throws Exception
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+
+        timer.schedule(new LatchTask(ran), 300);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    public void testRunsFarTaskAfterDelay()
+        throws Exception
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+        SipTimerWheel.Timeout timeout
+            = SipTimerWheel.getInstance().schedule(
+                    new LatchTask(ran), 60 * 1000, 0);
+
+        // a task due after a turn of the wheel waits for it
+        assertFalse(ran.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+    }
+
+    public void testCanceledTaskDoesNotRun()
+        throws Exception
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+        CountDownLatch other = new CountDownLatch(1);
+        TimerTask task = new LatchTask(ran);
+
+        timer.schedule(task, 200);
+        timer.schedule(new LatchTask(other), 300);
+        task.cancel();
+
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.getCount());
+    }
+
+    public void testSchedulerCancelDiscardsTasks()
+        throws Exception
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+
+        timer.schedule(new LatchTask(ran), 200);
+        timer.cancel();
+
+        assertFalse(ran.await(600, TimeUnit.MILLISECONDS));
+
+        // the scheduler takes new tasks after it was canceled
+        timer.schedule(new LatchTask(ran), 100);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testPeriodicTask()
+        throws Exception
+    {
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        timer.schedule(
+                new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (count.incrementAndGet() == 3)
+                        {
+                            cancel();
+                            done.countDown();
+                        }
+                    }
+                },
+                50,
+                50);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        assertEquals(3, count.get());
+    }
+
+    public void testBlockedTaskDoesNotDelayOthers()
+        throws Exception
+    {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        try
+        {
+            timer.schedule(
+                    new TimerTask()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                blocked.await();
+                            }
+                            catch (InterruptedException ie)
+                            {
+                            }
+                        }
+                    },
+                    10);
+            timer.schedule(new LatchTask(ran), 300);
+
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            blocked.countDown();
+        }
+    }
+
+    public void testSurvivesThrowingTask()
+        throws Exception
+    {
+        CountDownLatch ran = new CountDownLatch(1);
+
+        timer.schedule(
+                new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        throw new IllegalStateException("test");
+                    }
+                },
+                10);
+        Thread.sleep(300);
+        timer.schedule(new LatchTask(ran), 10);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A task counting down a latch.
+     */
+    private static class LatchTask
+        extends TimerTask
+    {
+        private final CountDownLatch latch;
+
+        LatchTask(CountDownLatch latch)
+        {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run()
+        {
+            latch.countDown();
+        }
+    }
+}
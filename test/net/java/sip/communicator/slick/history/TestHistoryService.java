@@ -53,6 +53,7 @@ public static Test suite()
         suite.addTest(new TestHistoryService("testCreateDB"));
         suite.addTest(new TestHistoryService("testWriteRecords"));
         suite.addTest(new TestHistoryService("testReadRecords"));
+        suite.addTest(new TestHistoryService("testFindLastReadsNewest"));
         suite.addTest(new TestHistoryService("testPurgeLocallyStoredHistory"));
         suite.addTest(new TestHistoryService("testCreatingHistoryIDFromFS"));
         suite.addTest(new TestHistoryService("testWriteRecordsWithMaxNumber"));
@@ -189,6 +190,50 @@ public void testReadRecords()
         }
     }
 
+    /**
+     * Checks that <tt>findLast</tt> returns the newest records, which the
+     * readers find by reading the history files backwards, in the order they
+     * were written.
+     */
+    public void testFindLastReadsNewest()
+    {
+        HistoryWriter writer = this.history.getWriter();
+        HistoryReader reader = this.history.getReader();
+
+        try
+        {
+            for (int i = 0; i < 30; i++)
+            {
+                writer.addRecord(new String[] { "" + i,
+                                 "last" + i,
+                                 i % 2 == 0 ? "m" : "f" },
+                                 new Date(System.currentTimeMillis() + i));
+            }
+        }
+        catch (Exception e)
+        {
+            fail("Could not write records. Reason: " + e);
+        }
+
+        QueryResultSet<HistoryRecord> recs = reader.findLast(10);
+        List<String> names = new ArrayList<String>();
+        long lastTimestamp = Long.MIN_VALUE;
+
+        while (recs.hasNext())
+        {
+            HistoryRecord record = recs.next();
+
+            assertTrue("Records out of order",
+                record.getTimestamp().getTime() >= lastTimestamp);
+            lastTimestamp = record.getTimestamp().getTime();
+            names.add(record.getPropertyValues()[1]);
+        }
+
+        assertEquals("Wrong count of records", 10, names.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals("Wrong record", "last" + (20 + i), names.get(i));
+    }
+
     public void testPurgeLocallyStoredHistory()
     {
         try